@@ -0,0 +1,46 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.command.AbstractCommand;
+import org.apache.ftpserver.ftplet.DefaultFtpReply;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpReply;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.impl.FtpIoSession;
+import org.apache.ftpserver.impl.FtpServerContext;
+
+import java.io.IOException;
+
+/**
+ * <code>ALLO &lt;SP&gt; &lt;decimal-integer&gt; [&lt;SP&gt; R &lt;SP&gt; &lt;decimal-integer&gt;]</code>
+ * <p/>
+ * Remembers the announced size of the next upload, so that its block size can
+ * be picked from it.
+ */
+public class AlloCommand extends AbstractCommand {
+
+	@Override
+	public void execute(FtpIoSession session, FtpServerContext context, FtpRequest request)
+			throws IOException, FtpException {
+		// no resetState(), a REST offset given before ALLO still applies to the upload
+		String argument = request.getArgument();
+		if (argument == null) {
+			session.write(new DefaultFtpReply(FtpReply.REPLY_501_SYNTAX_ERROR_IN_PARAMETERS_OR_ARGUMENTS,
+					"Syntax error in parameters or arguments."));
+			return;
+		}
+
+		long size;
+		try {
+			size = Long.parseLong(argument.trim().split("\\s+")[0]);
+		} catch (NumberFormatException e) {
+			session.write(new DefaultFtpReply(FtpReply.REPLY_501_SYNTAX_ERROR_IN_PARAMETERS_OR_ARGUMENTS,
+					"Syntax error in parameters or arguments."));
+			return;
+		}
+
+		if (session.getFileSystemView() instanceof HdfsFileSystemView) {
+			((HdfsFileSystemView) session.getFileSystemView()).setAllocationHint(size);
+		}
+		session.write(new DefaultFtpReply(FtpReply.REPLY_200_COMMAND_OKAY, "Command ALLO okay."));
+	}
+}
@@ -0,0 +1,74 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.ftplet.DataTransferFtpReply;
+import org.apache.ftpserver.ftplet.DefaultFtplet;
+import org.apache.ftpserver.ftplet.FileActionFtpReply;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpReply;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.ftplet.FtpSession;
+import org.apache.ftpserver.ftplet.FtpletResult;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Records transfers and file operations in the {@link TransferAuditLog}
+ */
+public class AuditFtplet extends DefaultFtplet {
+
+	private static final String START_ATTRIBUTE = "org.apache.hadoop.contrib.ftp.audit-start";
+
+	private static final Set<String> AUDITED_COMMANDS = new HashSet<String>(Arrays.asList(
+			"RETR", "STOR", "STOU", "APPE", "DELE", "RMD", "MKD", "RNTO", "LIST", "NLST", "MLSD"));
+
+	private final TransferAuditLog auditLog;
+
+	/**
+	 * Constructs the ftplet
+	 *
+	 * @param auditLog log to write to
+	 */
+	public AuditFtplet(TransferAuditLog auditLog) {
+		this.auditLog = auditLog;
+	}
+
+	@Override
+	public FtpletResult beforeCommand(FtpSession session, FtpRequest request) throws FtpException, IOException {
+		if (AUDITED_COMMANDS.contains(request.getCommand().toUpperCase())) {
+			session.setAttribute(START_ATTRIBUTE, System.currentTimeMillis());
+		}
+		return FtpletResult.DEFAULT;
+	}
+
+	@Override
+	public FtpletResult afterCommand(FtpSession session, FtpRequest request, FtpReply reply) throws FtpException, IOException {
+		String command = request.getCommand().toUpperCase();
+		Object start = session.getAttribute(START_ATTRIBUTE);
+		if (!AUDITED_COMMANDS.contains(command) || start == null) {
+			return FtpletResult.DEFAULT;
+		}
+		session.removeAttribute(START_ATTRIBUTE);
+
+		String path = request.getArgument();
+		long bytes = 0;
+		if (reply instanceof FileActionFtpReply && ((FileActionFtpReply) reply).getFile() != null) {
+			path = ((FileActionFtpReply) reply).getFile().getAbsolutePath();
+		}
+		if (reply instanceof DataTransferFtpReply) {
+			bytes = ((DataTransferFtpReply) reply).getBytesTransferred();
+		}
+
+		auditLog.add(session.getSessionId().toString(),
+				session.getUser() != null ? session.getUser().getName() : null,
+				session.getClientAddress().getAddress().getHostAddress(),
+				command,
+				path,
+				bytes,
+				System.currentTimeMillis() - (Long) start,
+				reply != null ? reply.getCode() : 0);
+		return FtpletResult.DEFAULT;
+	}
+}
@@ -0,0 +1,210 @@
+package org.apache.hadoop.contrib.ftp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Index of the paths changed recently, fed by gateway writes through
+ * {@link HdfsMetadataCache} and by {@link HdfsInotifyTailer}. The index
+ * answers which paths under a directory changed after a given time in
+ * proportion to the number of changes, as long as that time is after the
+ * oldest change it still knows of. Until the tailer has opened the inotify
+ * stream, and again after it lost events, the index knows nothing.
+ * <p/>
+ * Times are NameNode times, as clients compare them with modification
+ * times: the tailer passes the time of the event. A gateway write is
+ * recorded before its event arrives, with an unknown time that counts as
+ * after any time, until the event replaces it.
+ */
+public class ChangeIndex {
+
+	private final int maxEntries;
+
+	// latest change of each path, ordered by path to find the changes below a directory
+	private final TreeMap<String, Change> byPath = new TreeMap<String, Change>();
+
+	// the same changes, oldest first, to evict the oldest when full
+	private final LinkedHashMap<String, Change> byAge = new LinkedHashMap<String, Change>();
+
+	// time of a change recorded by the gateway before its event
+	private static final long UNKNOWN = Long.MAX_VALUE;
+
+	// all changes after this time are in the index
+	private long coveredSince = Long.MAX_VALUE;
+
+	// reset, coverage starts with the time of the next event
+	private boolean resetting = false;
+
+	// latest NameNode time seen
+	private long lastTime = Long.MIN_VALUE;
+
+	/**
+	 * Change of a path. A change of a tree, a directory moved or removed,
+	 * changes everything below the path as well.
+	 */
+	private static class Change {
+		private final long time;
+		private final boolean tree;
+
+		Change(long time, boolean tree) {
+			this.time = time;
+			this.tree = tree;
+		}
+	}
+
+	/**
+	 * Paths changed below a directory
+	 */
+	public static class Changes {
+
+		private final List<String> paths = new ArrayList<String>();
+
+		private final List<String> trees = new ArrayList<String>();
+
+		/**
+		 * Get the changed paths, in path order
+		 *
+		 * @return changed paths
+		 */
+		public List<String> getPaths() {
+			return paths;
+		}
+
+		/**
+		 * Get the changed paths everything below of which changed too
+		 *
+		 * @return changed trees, a subset of the changed paths
+		 */
+		public List<String> getTrees() {
+			return trees;
+		}
+	}
+
+	/**
+	 * Constructs the index
+	 *
+	 * @param maxEntries maximum number of changed paths kept
+	 */
+	public ChangeIndex(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Record a change
+	 *
+	 * @param path changed path
+	 * @param tree true if everything below the path changed too
+	 * @param time NameNode time of the change, negative if it is not known yet
+	 */
+	public synchronized void changed(String path, boolean tree, long time) {
+		if (time >= 0) {
+			lastTime = Math.max(lastTime, time);
+			if (resetting) {
+				// the first event after the reset, nothing before it is missing
+				coveredSince = time;
+				resetting = false;
+			}
+		}
+		Change old = byAge.remove(path);
+		// a later change of the directory itself does not undo the move
+		Change change = new Change(time >= 0 ? time : UNKNOWN, tree || (old != null && old.tree));
+		byAge.put(path, change);
+		byPath.put(path, change);
+
+		Iterator<Map.Entry<String, Change>> it = byAge.entrySet().iterator();
+		while (byAge.size() > maxEntries) {
+			Map.Entry<String, Change> eldest = it.next();
+			if (coveredSince != Long.MAX_VALUE) {
+				long evicted = eldest.getValue().time != UNKNOWN ? eldest.getValue().time : lastTime;
+				coveredSince = Math.max(coveredSince, evicted);
+			}
+			byPath.remove(eldest.getKey());
+			it.remove();
+		}
+	}
+
+	/**
+	 * Forget all changes. Changes from now on are complete again, earlier
+	 * ones are unknown. The NameNode time of now is not known, changes are
+	 * covered from the time of the next event on.
+	 */
+	public synchronized void reset() {
+		byPath.clear();
+		byAge.clear();
+		coveredSince = Long.MAX_VALUE;
+		resetting = true;
+	}
+
+	/**
+	 * Forget all changes until the next reset, while changes may be missed
+	 */
+	public synchronized void suspend() {
+		byPath.clear();
+		byAge.clear();
+		coveredSince = Long.MAX_VALUE;
+		resetting = false;
+	}
+
+	/**
+	 * Get the paths below a directory changed after a time
+	 *
+	 * @param dir   path of the directory
+	 * @param since time in milliseconds
+	 * @return the changes, null if changes so long ago are not known
+	 */
+	public synchronized Changes getChanges(String dir, long since) {
+		if (since < coveredSince) {
+			return null;
+		}
+
+		Changes changes = new Changes();
+		// the directory itself or one of its parents moved: everything changed
+		for (String path = dir; path != null; path = HdfsMetadataCache.parentOf(path)) {
+			Change change = byPath.get(path);
+			if (change != null && change.tree && change.time > since) {
+				changes.trees.add(dir);
+				return changes;
+			}
+		}
+
+		String prefix = dir.endsWith("/") ? dir : dir + "/";
+		for (Map.Entry<String, Change> entry : byPath.tailMap(prefix, true).entrySet()) {
+			String path = entry.getKey();
+			if (!path.startsWith(prefix)) {
+				break;
+			}
+			if (entry.getValue().time <= since || inChangedTree(dir, path, since)) {
+				continue;
+			}
+			changes.paths.add(path);
+			if (entry.getValue().tree) {
+				changes.trees.add(path);
+			}
+		}
+		return changes;
+	}
+
+	private boolean inChangedTree(String dir, String path, long since) {
+		for (String parent = HdfsMetadataCache.parentOf(path); parent != null && parent.length() > dir.length();
+				parent = HdfsMetadataCache.parentOf(parent)) {
+			Change change = byPath.get(parent);
+			if (change != null && change.tree && change.time > since) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the number of changed paths in the index
+	 *
+	 * @return number of paths
+	 */
+	public synchronized int size() {
+		return byPath.size();
+	}
+}
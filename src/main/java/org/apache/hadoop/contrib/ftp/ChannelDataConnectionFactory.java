@@ -0,0 +1,305 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.DataConnectionConfiguration;
+import org.apache.ftpserver.DataConnectionException;
+import org.apache.ftpserver.command.Command;
+import org.apache.ftpserver.command.CommandFactory;
+import org.apache.ftpserver.ftplet.DataConnection;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.impl.FtpIoSession;
+import org.apache.ftpserver.impl.FtpServerContext;
+import org.apache.ftpserver.impl.IODataConnection;
+import org.apache.ftpserver.impl.IODataConnectionFactory;
+import org.apache.ftpserver.impl.ServerDataConnectionFactory;
+import org.apache.ftpserver.ssl.ClientAuth;
+import org.apache.ftpserver.ssl.SslConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Data connections over sockets of NIO channels. The ftpserver factory
+ * opens plain java.net sockets, which have no channel, so the direct
+ * buffers of {@link DirectBufferTransfer} and FileChannel.transferTo would
+ * be copied through a stream again. This factory opens plain data sockets
+ * from SocketChannels and behaves like the ftpserver one otherwise; TLS
+ * data sockets are layered over them and are sent by the ftpserver loop.
+ */
+public class ChannelDataConnectionFactory extends IODataConnectionFactory {
+
+	// session attribute FtpIoSession keeps its data connection factory in
+	private static final String ATTRIBUTE = "org.apache.ftpserver.data-connection";
+
+	private final Logger log = LoggerFactory.getLogger(ChannelDataConnectionFactory.class);
+
+	private final FtpIoSession session;
+
+	private Socket dataSoc;
+
+	private ServerSocket servSoc;
+
+	private InetAddress address;
+
+	private int port = 0;
+
+	private long requestTime = 0;
+
+	private boolean passive = false;
+
+	private InetAddress serverControlAddress;
+
+	/**
+	 * Data connection of a channel socket
+	 */
+	public static class ChannelDataConnection extends IODataConnection {
+
+		private final Socket socket;
+
+		private ChannelDataConnection(Socket socket, FtpIoSession session, ServerDataConnectionFactory factory) {
+			super(socket, session, factory);
+			this.socket = socket;
+		}
+
+		/**
+		 * Get the data socket
+		 *
+		 * @return socket, with a channel unless TLS is layered over it
+		 */
+		public Socket getSocket() {
+			return socket;
+		}
+	}
+
+	/**
+	 * Constructs the factory of a session
+	 *
+	 * @param context server context
+	 * @param session session of the data connections
+	 */
+	public ChannelDataConnectionFactory(FtpServerContext context, FtpIoSession session) {
+		super(context, session);
+		this.session = session;
+		this.serverControlAddress = ((InetSocketAddress) session.getLocalAddress()).getAddress();
+	}
+
+	/**
+	 * Wrap a command factory so that sessions get channel data connections
+	 * before their first command
+	 *
+	 * @param commands command factory of the server
+	 * @return command factory installing the data connection factory
+	 */
+	public static CommandFactory install(final CommandFactory commands) {
+		return new CommandFactory() {
+			@Override
+			public Command getCommand(String name) {
+				final Command command = commands.getCommand(name);
+				if (command == null) {
+					return null;
+				}
+				return new Command() {
+					@Override
+					public void execute(FtpIoSession session, FtpServerContext context, FtpRequest request)
+							throws IOException, FtpException {
+						if (!session.containsAttribute(ATTRIBUTE)) {
+							session.setAttribute(ATTRIBUTE, new ChannelDataConnectionFactory(context, session));
+						}
+						command.execute(session, context, request);
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public synchronized void closeDataConnection() {
+		if (dataSoc != null) {
+			try {
+				dataSoc.close();
+			} catch (Exception e) {
+				log.warn("FtpDataConnection.closeDataSocket()", e);
+			}
+			dataSoc = null;
+		}
+		if (servSoc != null) {
+			try {
+				servSoc.close();
+			} catch (Exception e) {
+				log.warn("FtpDataConnection.closeDataSocket()", e);
+			}
+			DataConnectionConfiguration dcc = session.getListener().getDataConnectionConfiguration();
+			if (dcc != null) {
+				dcc.releasePassivePort(port);
+			}
+			servSoc = null;
+		}
+		requestTime = 0;
+	}
+
+	@Override
+	public synchronized void initActiveDataConnection(InetSocketAddress address) {
+		closeDataConnection();
+		this.passive = false;
+		this.address = address.getAddress();
+		this.port = address.getPort();
+		this.requestTime = System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized InetSocketAddress initPassiveDataConnection() throws DataConnectionException {
+		closeDataConnection();
+		DataConnectionConfiguration dataCfg = session.getListener().getDataConnectionConfiguration();
+		int passivePort = dataCfg.requestPassivePort();
+		if (passivePort == -1) {
+			throw new DataConnectionException("Cannot find an available passive port.");
+		}
+		try {
+			address = dataCfg.getPassiveAddress() == null
+					? serverControlAddress : resolveAddress(dataCfg.getPassiveAddress());
+			if (isSecure() && getSslConfiguration() == null) {
+				throw new DataConnectionException("Data connection SSL required but not configured.");
+			}
+			log.debug("Opening passive data connection on address \"{}\" and port {}", address, passivePort);
+			port = passivePort;
+			servSoc = ServerSocketChannel.open().socket();
+			servSoc.bind(new InetSocketAddress(address, passivePort), 0);
+			port = servSoc.getLocalPort();
+			servSoc.setSoTimeout(dataCfg.getIdleTime() * 1000);
+			passive = true;
+			requestTime = System.currentTimeMillis();
+			return new InetSocketAddress(address, port);
+		} catch (Exception e) {
+			closeDataConnection();
+			throw new DataConnectionException("Failed to initate passive data connection: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return address;
+	}
+
+	@Override
+	public int getPort() {
+		return port;
+	}
+
+	@Override
+	public DataConnection openConnection() throws Exception {
+		return new ChannelDataConnection(createDataSocket(), session, this);
+	}
+
+	private synchronized Socket createDataSocket() throws Exception {
+		dataSoc = null;
+		DataConnectionConfiguration dataConfig = session.getListener().getDataConnectionConfiguration();
+		try {
+			SslConfiguration ssl = null;
+			if (isSecure()) {
+				ssl = getSslConfiguration();
+				if (ssl == null) {
+					throw new FtpException("Data connection SSL not configured");
+				}
+			}
+
+			if (!passive) {
+				if (ssl != null) {
+					SSLSocket ssoc = (SSLSocket) ssl.getSocketFactory().createSocket();
+					ssoc.setUseClientMode(false);
+					if (ssl.getEnabledCipherSuites() != null) {
+						ssoc.setEnabledCipherSuites(ssl.getEnabledCipherSuites());
+					}
+					dataSoc = ssoc;
+				} else {
+					dataSoc = SocketChannel.open().socket();
+				}
+				dataSoc.setReuseAddress(true);
+				InetAddress localAddr = resolveAddress(dataConfig.getActiveLocalAddress());
+				if (localAddr == null) {
+					localAddr = ((InetSocketAddress) session.getLocalAddress()).getAddress();
+				}
+				dataSoc.bind(new InetSocketAddress(localAddr, dataConfig.getActiveLocalPort()));
+				dataSoc.connect(new InetSocketAddress(address, port));
+			} else {
+				Socket accepted = servSoc.accept();
+				if (ssl != null) {
+					SSLSocketFactory factory = ssl.getSocketFactory();
+					SSLSocket sslSocket = (SSLSocket) factory.createSocket(accepted,
+							accepted.getInetAddress().getHostAddress(), accepted.getPort(), true);
+					sslSocket.setUseClientMode(false);
+					if (ssl.getClientAuth() == ClientAuth.NEED) {
+						sslSocket.setNeedClientAuth(true);
+					} else if (ssl.getClientAuth() == ClientAuth.WANT) {
+						sslSocket.setWantClientAuth(true);
+					}
+					if (ssl.getEnabledCipherSuites() != null) {
+						sslSocket.setEnabledCipherSuites(ssl.getEnabledCipherSuites());
+					}
+					dataSoc = sslSocket;
+				} else {
+					dataSoc = accepted;
+				}
+
+				if (dataConfig.isPassiveIpCheck()) {
+					InetAddress remoteAddress = ((InetSocketAddress) session.getRemoteAddress()).getAddress();
+					if (!dataSoc.getInetAddress().equals(remoteAddress)) {
+						log.warn("Passive IP Check failed. Closing data connection from " + dataSoc.getInetAddress()
+								+ " as it does not match the expected address " + remoteAddress);
+						closeDataConnection();
+						return null;
+					}
+				}
+			}
+		} catch (Exception e) {
+			closeDataConnection();
+			log.warn("FtpDataConnection.getDataSocket()", e);
+			throw e;
+		}
+
+		dataSoc.setSoTimeout(dataConfig.getIdleTime() * 1000);
+		if (dataSoc instanceof SSLSocket) {
+			((SSLSocket) dataSoc).startHandshake();
+		}
+		return dataSoc;
+	}
+
+	private SslConfiguration getSslConfiguration() {
+		SslConfiguration configuration = session.getListener().getDataConnectionConfiguration().getSslConfiguration();
+		return configuration != null ? configuration : session.getListener().getSslConfiguration();
+	}
+
+	private static InetAddress resolveAddress(String host) throws DataConnectionException {
+		if (host == null) {
+			return null;
+		}
+		try {
+			return InetAddress.getByName(host);
+		} catch (UnknownHostException e) {
+			throw new DataConnectionException("Failed to resolve address", e);
+		}
+	}
+
+	@Override
+	public synchronized boolean isTimeout(long currTime) {
+		if (requestTime == 0 || dataSoc != null) {
+			return false;
+		}
+		int maxIdleTime = session.getListener().getDataConnectionConfiguration().getIdleTime() * 1000;
+		return maxIdleTime != 0 && currTime - requestTime >= maxIdleTime;
+	}
+
+	@Override
+	public void setServerControlAddress(InetAddress serverControlAddress) {
+		this.serverControlAddress = serverControlAddress;
+	}
+}
@@ -0,0 +1,154 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.Path;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Trace of the FTP command running in the current thread, with the HDFS
+ * calls it made, their paths and durations. Only commands sampled by
+ * {@link TracingFtplet} have a trace; recording a call costs a volatile
+ * read while tracing is off.
+ */
+public class CommandTrace {
+
+	private static final ThreadLocal<CommandTrace> CURRENT = new ThreadLocal<CommandTrace>();
+
+	private static final int MAX_SPANS = 256;
+
+	private static volatile boolean enabled = false;
+
+	private final String command;
+
+	private final String user;
+
+	private final long start = System.nanoTime();
+
+	private final List<Span> spans = new ArrayList<Span>();
+
+	private int dropped = 0;
+
+	private long end = 0;
+
+	/**
+	 * HDFS call made by the command
+	 */
+	private static class Span {
+		private final String operation;
+		private final Path path;
+		private final long start;
+		private final long duration;
+
+		Span(String operation, Path path, long start, long duration) {
+			this.operation = operation;
+			this.path = path;
+			this.start = start;
+			this.duration = duration;
+		}
+	}
+
+	private CommandTrace(String command, String user) {
+		this.command = command;
+		this.user = user;
+	}
+
+	/**
+	 * Turn recording on or off
+	 *
+	 * @param enabled true if commands are traced at all
+	 */
+	public static void setEnabled(boolean enabled) {
+		CommandTrace.enabled = enabled;
+	}
+
+	/**
+	 * Start the trace of a command in the current thread
+	 *
+	 * @param command command line
+	 * @param user    name of the user, null before login
+	 */
+	public static void begin(String command, String user) {
+		CURRENT.set(new CommandTrace(command, user));
+	}
+
+	/**
+	 * End the trace of the command in the current thread
+	 *
+	 * @return the trace, null if the command was not traced
+	 */
+	public static CommandTrace end() {
+		CommandTrace trace = CURRENT.get();
+		if (trace != null) {
+			CURRENT.remove();
+			trace.end = System.nanoTime();
+		}
+		return trace;
+	}
+
+	/**
+	 * Drop the trace of the current thread, if any
+	 */
+	public static void clear() {
+		CURRENT.remove();
+	}
+
+	/**
+	 * Record an HDFS call made by the command in the current thread
+	 *
+	 * @param operation name of the call
+	 * @param path      path the call was made on
+	 * @param start     System.nanoTime() when the call started
+	 */
+	public static void record(String operation, Path path, long start) {
+		if (!enabled) {
+			return;
+		}
+		CommandTrace trace = CURRENT.get();
+		if (trace == null) {
+			return;
+		}
+		if (trace.spans.size() >= MAX_SPANS) {
+			trace.dropped++;
+			return;
+		}
+		trace.spans.add(new Span(operation, path, start, System.nanoTime() - start));
+	}
+
+	/**
+	 * Get the run time of the command
+	 *
+	 * @return milliseconds from the start to the end of the command
+	 */
+	public long getDuration() {
+		return (end - start) / 1000000;
+	}
+
+	/**
+	 * Format the trace, one line per HDFS call
+	 *
+	 * @param replyCode code of the reply to the command
+	 * @return the trace
+	 */
+	public String format(int replyCode) {
+		long hdfs = 0;
+		for (Span span : spans) {
+			hdfs += span.duration;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(command).append(" by ").append(user)
+				.append(": ").append(getDuration()).append(" ms, reply ").append(replyCode)
+				.append(", ").append(spans.size() + dropped).append(" hdfs calls ")
+				.append(hdfs / 1000000).append(" ms");
+		for (Span span : spans) {
+			sb.append("\n  +").append((span.start - start) / 1000000).append(" ms ")
+					.append(span.operation).append(' ').append(span.path.toUri().getPath())
+					.append(' ').append(span.duration / 1000000).append(" ms");
+		}
+		if (dropped > 0) {
+			sb.append("\n  ").append(dropped).append(" more calls");
+		}
+		return sb.toString();
+	}
+}
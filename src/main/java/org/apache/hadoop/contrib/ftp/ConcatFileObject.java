@@ -0,0 +1,80 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.ftplet.User;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Read-only virtual file of the concatenated part files of its directory,
+ * see {@link PartConcatenation}. Its size is the sum of the part sizes and
+ * its modification time the one of the newest part.
+ */
+public class ConcatFileObject extends VirtualFileObject {
+
+	private final PartConcatenation concatenation;
+
+	private final HdfsUser user;
+
+	private final Path dir;
+
+	private List<FileStatus> parts = null;
+
+	private FileStatus status = null;
+
+	/**
+	 * Constructs the virtual file
+	 *
+	 * @param path          path of the virtual file
+	 * @param user          accessor of the object
+	 * @param view          file system view of the session the object belongs to
+	 * @param concatenation concatenation of the part files
+	 */
+	public ConcatFileObject(String path, User user, HdfsFileSystemView view, PartConcatenation concatenation) {
+		super(path, user, view);
+		this.concatenation = concatenation;
+		this.user = (HdfsUser) user;
+		this.dir = new Path(path).getParent();
+	}
+
+	/**
+	 * Get the status of the concatenation, listing the directory once per object
+	 *
+	 * @return status of the virtual file
+	 * @throws java.io.FileNotFoundException if the parent is not a directory
+	 */
+	@Override
+	protected FileStatus getFileStatus() throws Exception {
+		if (status == null) {
+			FileStatus dirStatus = HdfsOverFtpSystem.getMetadataCache().getFileStatus(dir);
+			parts = concatenation.getParts(dir);
+			long length = 0;
+			long modificationTime = 0;
+			for (FileStatus part : parts) {
+				length += part.getLen();
+				modificationTime = Math.max(modificationTime, part.getModificationTime());
+			}
+			status = new FileStatus(length, false, 0, 0,
+					parts.isEmpty() ? dirStatus.getModificationTime() : modificationTime, 0,
+					dirStatus.getPermission(), dirStatus.getOwner(), dirStatus.getGroup(),
+					new Path(getAbsolutePath()));
+		}
+		return status;
+	}
+
+	/**
+	 * Creates input stream of the concatenated part files
+	 *
+	 * @param l offset in the concatenation to start reading at
+	 * @return InputStream
+	 * @throws IOException
+	 */
+	@Override
+	public InputStream createInputStream(long l) throws IOException {
+		requireFileStatus();
+		return concatenation.open(user, parts, l);
+	}
+}
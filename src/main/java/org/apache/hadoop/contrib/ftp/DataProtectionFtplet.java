@@ -0,0 +1,86 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.ftplet.DefaultFtpReply;
+import org.apache.ftpserver.ftplet.DefaultFtplet;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.ftplet.FtpSession;
+import org.apache.ftpserver.ftplet.FtpletResult;
+import org.apache.ftpserver.ipfilter.IpFilterType;
+import org.apache.ftpserver.ipfilter.RemoteIpFilter;
+import org.apache.mina.filter.firewall.Subnet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Enforces protected data connections (PROT P) on TLS sessions. Users with
+ * the cleardata flag and clients from the configured networks may use clear
+ * data connections (PROT C), so only their credentials are encrypted.
+ */
+public class DataProtectionFtplet extends DefaultFtplet {
+
+	private final Logger log = LoggerFactory.getLogger(DataProtectionFtplet.class);
+
+	private static final Set<String> DATA_COMMANDS = new HashSet<String>(Arrays.asList(
+			"RETR", "STOR", "STOU", "APPE", "LIST", "NLST", "MLSD"));
+
+	private final RemoteIpFilter clearDataNetworks;
+
+	/**
+	 * Constructs the ftplet
+	 *
+	 * @param clearDataNetworks comma separated addresses and CIDR subnets allowed to use PROT C
+	 */
+	public DataProtectionFtplet(String clearDataNetworks) throws IOException {
+		this.clearDataNetworks = new RemoteIpFilter(IpFilterType.ALLOW, clearDataNetworks);
+	}
+
+	@Override
+	public FtpletResult beforeCommand(FtpSession session, FtpRequest request) throws FtpException, IOException {
+		if (!session.isSecure() || !session.isLoggedIn()) {
+			return FtpletResult.DEFAULT;
+		}
+
+		String command = request.getCommand().toUpperCase();
+		if ("PROT".equals(command) && "C".equalsIgnoreCase(request.getArgument())) {
+			if (!isClearDataAllowed(session)) {
+				log.debug("PROT C denied for user {}", session.getUser().getName());
+				session.write(new DefaultFtpReply(536, "Clear data connections are not allowed, use PROT P."));
+				return FtpletResult.SKIP;
+			}
+		} else if (DATA_COMMANDS.contains(command) && !session.getDataConnection().isSecure()) {
+			if (!isClearDataAllowed(session)) {
+				log.debug("Clear data connection denied for user {}", session.getUser().getName());
+				session.write(new DefaultFtpReply(521, "Data connections must be protected, use PROT P."));
+				return FtpletResult.SKIP;
+			}
+		}
+		return FtpletResult.DEFAULT;
+	}
+
+	/**
+	 * Checks if the session may use clear data connections
+	 *
+	 * @param session session to check
+	 * @return true if the user or the client address is trusted
+	 */
+	private boolean isClearDataAllowed(FtpSession session) {
+		if (session.getUser() instanceof HdfsUser && ((HdfsUser) session.getUser()).isClearDataAllowed()) {
+			return true;
+		}
+
+		InetAddress address = session.getClientAddress().getAddress();
+		for (Subnet subnet : clearDataNetworks) {
+			if (subnet.inSubnet(address)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
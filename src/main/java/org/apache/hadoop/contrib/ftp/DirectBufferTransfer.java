@@ -0,0 +1,160 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.ftplet.DataConnection;
+import org.apache.ftpserver.ftplet.DataType;
+import org.apache.ftpserver.impl.FtpIoSession;
+import org.apache.ftpserver.usermanager.impl.TransferRateRequest;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Download engine for HDFS streams implementing ByteBufferReadable. Data is
+ * read into pooled direct buffers and written to the channel of the data
+ * socket, instead of being copied through the heap buffers of the ftpserver
+ * transfer loop. Local files, such as copies in the {@link DownloadCache},
+ * are sent with FileChannel.transferTo. Data connections need to be opened
+ * by {@link ChannelDataConnectionFactory}. TLS, compressed, ASCII and rate
+ * limited transfers, other streams and downloads finding the pool empty use
+ * the ftpserver loop.
+ */
+public class DirectBufferTransfer {
+
+	private static final MutableCounterLong TRANSFERS = HdfsOverFtpMetrics.get()
+			.counter("DirectTransfers", "Downloads sent from direct buffers");
+
+	private static final MutableCounterLong FILE_TRANSFERS = HdfsOverFtpMetrics.get()
+			.counter("FileChannelTransfers", "Downloads of local files sent with FileChannel.transferTo");
+
+	private static final MutableCounterLong FALLBACKS = HdfsOverFtpMetrics.get()
+			.counter("DirectTransferFallbacks", "Downloads sent by the ftpserver transfer loop");
+
+	private final Logger log = LoggerFactory.getLogger(DirectBufferTransfer.class);
+
+	private final BlockingQueue<ByteBuffer> pool;
+
+	/**
+	 * Constructs the engine
+	 *
+	 * @param bufferSize size of a direct buffer
+	 * @param poolSize   number of direct buffers, one per running download
+	 */
+	public DirectBufferTransfer(int bufferSize, int poolSize) {
+		pool = new ArrayBlockingQueue<ByteBuffer>(poolSize);
+		for (int i = 0; i < poolSize; i++) {
+			pool.add(ByteBuffer.allocateDirect(bufferSize));
+		}
+	}
+
+	/**
+	 * Transfer a download to the client
+	 *
+	 * @param session        session of the download
+	 * @param dataConnection open data connection
+	 * @param in             stream of the downloaded file
+	 * @return number of bytes transferred
+	 * @throws IOException
+	 */
+	public long transferToClient(FtpIoSession session, DataConnection dataConnection, InputStream in)
+			throws IOException {
+		SocketChannel out = getChannel(session, dataConnection, in);
+		if (out != null && in instanceof FileInputStream) {
+			FILE_TRANSFERS.incr();
+			return transferFile(session, out, ((FileInputStream) in).getChannel());
+		}
+		ByteBuffer buffer = out != null ? pool.poll() : null;
+		if (buffer == null) {
+			FALLBACKS.incr();
+			return dataConnection.transferToClient(session.getFtpletSession(), in);
+		}
+
+		try {
+			buffer.clear();
+			int n;
+			try {
+				n = ((ByteBufferReadable) in).read(buffer);
+			} catch (UnsupportedOperationException e) {
+				// FSDataInputStream over a stream without byte buffer reads
+				FALLBACKS.incr();
+				return dataConnection.transferToClient(session.getFtpletSession(), in);
+			}
+
+			TRANSFERS.incr();
+			long transferred = 0;
+			try {
+				while (n >= 0) {
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						out.write(buffer);
+					}
+					transferred += n;
+					session.increaseWrittenDataBytes(n);
+					session.updateLastAccessTime();
+
+					buffer.clear();
+					n = ((ByteBufferReadable) in).read(buffer);
+				}
+			} catch (IOException e) {
+				log.warn("Exception during data transfer, closing data connection socket", e);
+				session.getDataConnection().closeDataConnection();
+				throw e;
+			} finally {
+				out.close();
+			}
+			return transferred;
+		} finally {
+			pool.add(buffer);
+		}
+	}
+
+	private long transferFile(FtpIoSession session, SocketChannel out, FileChannel file) throws IOException {
+		long transferred = 0;
+		try {
+			long position = file.position();
+			long size = file.size();
+			while (position < size) {
+				long n = file.transferTo(position, Math.min(size - position, 8 * 1024 * 1024), out);
+				position += n;
+				transferred += n;
+				session.increaseWrittenDataBytes((int) n);
+				session.updateLastAccessTime();
+			}
+		} catch (IOException e) {
+			log.warn("Exception during data transfer, closing data connection socket", e);
+			session.getDataConnection().closeDataConnection();
+			throw e;
+		} finally {
+			out.close();
+		}
+		return transferred;
+	}
+
+	private SocketChannel getChannel(FtpIoSession session, DataConnection dataConnection, InputStream in) {
+		if (!(in instanceof ByteBufferReadable || in instanceof FileInputStream)
+				|| !(dataConnection instanceof ChannelDataConnectionFactory.ChannelDataConnection)
+				|| session.getDataType() != DataType.BINARY
+				|| session.getDataConnection().isSecure()
+				|| session.getDataConnection().isZipMode()) {
+			return null;
+		}
+
+		TransferRateRequest rateRequest = (TransferRateRequest) session.getUser()
+				.authorize(new TransferRateRequest());
+		if (rateRequest != null && rateRequest.getMaxDownloadRate() > 0) {
+			return null;
+		}
+
+		// null for TLS sockets layered over the channel socket
+		return ((ChannelDataConnectionFactory.ChannelDataConnection) dataConnection).getSocket().getChannel();
+	}
+}
@@ -0,0 +1,339 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-through cache of downloaded files on local disk. A file is copied
+ * into the cache while it is downloaded from the start, and later
+ * downloads of the same path, length and modification time read the local
+ * copy. The least recently downloaded files are evicted when the cache
+ * is full. The cache starts empty.
+ */
+public class DownloadCache {
+
+	private static final MutableCounterLong HITS = HdfsOverFtpMetrics.get()
+			.counter("DownloadCacheHits", "Downloads read from the local download cache");
+
+	private static final MutableCounterLong MISSES = HdfsOverFtpMetrics.get()
+			.counter("DownloadCacheMisses", "Cacheable downloads read from HDFS");
+
+	private static final MutableCounterLong BYTES_SAVED = HdfsOverFtpMetrics.get()
+			.counter("DownloadCacheBytesSaved", "Bytes of downloads read from the local download cache");
+
+	private static final MutableCounterLong EVICTIONS = HdfsOverFtpMetrics.get()
+			.counter("DownloadCacheEvictions", "Files evicted from the local download cache");
+
+	private final Logger log = LoggerFactory.getLogger(DownloadCache.class);
+
+	private final File dir;
+
+	private final long maxBytes;
+
+	private final long maxFileSize;
+
+	// cached files, least recently used first
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private final Set<String> filling = new HashSet<String>();
+
+	// bytes of cached files and of files being filled
+	private long used = 0;
+
+	private static class Entry {
+		private final File file;
+		private final long length;
+
+		Entry(File file, long length) {
+			this.file = file;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Constructs the cache and removes files left in its directory
+	 *
+	 * @param dir         local directory of the cached files
+	 * @param maxBytes    maximum number of bytes cached
+	 * @param maxFileSize maximum size of a cached file
+	 */
+	public DownloadCache(File dir, long maxBytes, long maxFileSize) throws IOException {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.maxFileSize = maxFileSize;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Failed to create download cache directory " + dir);
+		}
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Open the cached copy of a file
+	 *
+	 * @param status status of the downloaded file
+	 * @param offset offset to start reading at
+	 * @return stream of the cached copy, null if the file is not cached
+	 */
+	public InputStream open(FileStatus status, long offset) throws IOException {
+		if (!isCacheable(status)) {
+			return null;
+		}
+
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key(status));
+		}
+		if (entry == null) {
+			MISSES.incr();
+			return null;
+		}
+
+		FileInputStream in;
+		try {
+			in = new FileInputStream(entry.file);
+		} catch (FileNotFoundException e) {
+			// evicted meanwhile
+			MISSES.incr();
+			return null;
+		}
+		if (offset > 0) {
+			in.getChannel().position(offset);
+		}
+		HITS.incr();
+		BYTES_SAVED.incr(Math.max(0, entry.length - offset));
+		return in;
+	}
+
+	/**
+	 * Copy a download into the cache while it is read. The status the stream
+	 * was opened with may be older than the file the stream reads, e.g. when
+	 * it comes from the metadata cache, so the status is read again from the
+	 * NameNode. The copy is only made if the file did not change in between.
+	 *
+	 * @param dfs    file system the stream was opened on
+	 * @param status status the download was opened with
+	 * @param in     stream of the download, read from the start
+	 * @return stream to read the download from
+	 */
+	public InputStream fill(FileSystem dfs, FileStatus status, InputStream in) {
+		if (!isCacheable(status)) {
+			return in;
+		}
+		String key = key(status);
+		if (!reserve(key, status.getLen())) {
+			return in;
+		}
+		try {
+			FileStatus opened = dfs.getFileStatus(status.getPath());
+			if (opened.getLen() != status.getLen()
+					|| opened.getModificationTime() != status.getModificationTime()) {
+				log.debug("{} changed while it was opened, not caching it", status.getPath());
+				release(key, status.getLen());
+				return in;
+			}
+			return new FillingInputStream(in, key, status.getLen());
+		} catch (IOException e) {
+			log.warn("Failed to cache " + status.getPath(), e);
+			release(key, status.getLen());
+			return in;
+		}
+	}
+
+	/**
+	 * Get the number of cached files
+	 *
+	 * @return number of files
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the number of bytes in the cache
+	 *
+	 * @return number of bytes
+	 */
+	public synchronized long getBytes() {
+		return used;
+	}
+
+	private boolean isCacheable(FileStatus status) {
+		return status.isFile() && status.getLen() <= maxFileSize;
+	}
+
+	private synchronized boolean reserve(String key, long length) {
+		if (entries.containsKey(key) || filling.contains(key)) {
+			return false;
+		}
+		for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+				used + length > maxBytes && it.hasNext(); ) {
+			Entry eldest = it.next().getValue();
+			it.remove();
+			// readers of the file keep it open until they are done
+			eldest.file.delete();
+			used -= eldest.length;
+			EVICTIONS.incr();
+		}
+		if (used + length > maxBytes) {
+			return false;
+		}
+		used += length;
+		filling.add(key);
+		return true;
+	}
+
+	private synchronized void release(String key, long length) {
+		filling.remove(key);
+		used -= length;
+	}
+
+	private synchronized void filled(String key, File file, long length) {
+		filling.remove(key);
+		entries.put(key, new Entry(file, length));
+	}
+
+	private static String key(FileStatus status) {
+		return HdfsMetadataCache.key(status.getPath()) + '\0' + status.getLen() + '\0'
+				+ status.getModificationTime();
+	}
+
+	/**
+	 * Download stream which copies what is read into the cache. The copy
+	 * is kept only if the whole file was read.
+	 */
+	private class FillingInputStream extends FilterInputStream {
+
+		private final String key;
+
+		private final long length;
+
+		private final File file;
+
+		private final File tmp;
+
+		private OutputStream out;
+
+		private long copied = 0;
+
+		FillingInputStream(InputStream in, String key, long length) throws IOException {
+			super(in);
+			this.key = key;
+			this.length = length;
+			String name = MD5Hash.digest(key).toString();
+			this.file = new File(dir, name + ".cache");
+			this.tmp = new File(dir, name + ".tmp");
+			this.out = new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				copy(new byte[]{(byte) b}, 0, 1);
+			} else {
+				finish();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				copy(b, off, n);
+			} else if (n < 0) {
+				finish();
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			abort();
+			return super.skip(n);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				abort();
+			}
+		}
+
+		private void copy(byte[] b, int off, int len) {
+			if (out == null) {
+				return;
+			}
+			try {
+				out.write(b, off, len);
+				copied += len;
+			} catch (IOException e) {
+				log.warn("Failed to cache " + key.substring(0, key.indexOf('\0')), e);
+				abort();
+			}
+		}
+
+		private void finish() {
+			if (out == null) {
+				return;
+			}
+			if (copied != length) {
+				abort();
+				return;
+			}
+			try {
+				out.close();
+				out = null;
+			} catch (IOException e) {
+				abort();
+				return;
+			}
+			if (tmp.renameTo(file)) {
+				filled(key, file, length);
+			} else {
+				tmp.delete();
+				release(key, length);
+			}
+		}
+
+		private void abort() {
+			if (out == null) {
+				return;
+			}
+			try {
+				out.close();
+			} catch (IOException e) {
+				// the copy is dropped anyway
+			}
+			out = null;
+			tmp.delete();
+			release(key, length);
+		}
+	}
+}
@@ -0,0 +1,316 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fast-ingest upload mode. Uploads into ingest directories or by ingest
+ * users are written with a low replication, so the client waits on a short
+ * pipeline only. After the upload is closed a background queue restores
+ * the target replication with setReplication. The queue is kept in a local
+ * journal, so restores still pending when the gateway stops are done when
+ * it starts again.
+ */
+public class FastIngestManager {
+
+	private static final MutableCounterLong RESTORE_FAILURES = HdfsOverFtpMetrics.get()
+			.counter("ReplicationRestoreFailures", "Failed replication restores of fast-ingest uploads, retried later");
+
+	private final Logger log = LoggerFactory.getLogger(FastIngestManager.class);
+
+	private final List<String> paths = new ArrayList<String>();
+
+	private final Set<String> users = new HashSet<String>();
+
+	private final short replication;
+
+	private final long retryInterval;
+
+	private final ScheduledExecutorService executor;
+
+	private final AtomicLong pendingBytes = new AtomicLong();
+
+	private final AtomicLong pendingFiles = new AtomicLong();
+
+	private final Map<String, Restore> pending = new ConcurrentHashMap<String, Restore>();
+
+	private final File journal;
+
+	private Writer journalWriter = null;
+
+	private int journalLines = 0;
+
+	/**
+	 * Replication restore of an upload
+	 */
+	private static class Restore {
+		private final short target;
+		private final long length;
+
+		Restore(short target, long length) {
+			this.target = target;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Constructs the manager
+	 *
+	 * @param paths         comma separated path prefixes of ingest directories
+	 * @param users         comma separated names of ingest users
+	 * @param replication   replication uploads are written with
+	 * @param threads       number of threads restoring replication
+	 * @param retryInterval milliseconds before a failed restore is retried
+	 * @param journal       local file of the pending restores, null to keep them in memory only
+	 */
+	public FastIngestManager(String paths, String users, short replication, int threads, long retryInterval,
+			File journal) {
+		if (paths != null) {
+			for (String prefix : paths.split(",")) {
+				prefix = prefix.trim();
+				if (prefix.length() > 0) {
+					this.paths.add(prefix.endsWith("/") ? prefix : prefix + "/");
+				}
+			}
+		}
+		if (users != null) {
+			for (String user : users.split(",")) {
+				if (user.trim().length() > 0) {
+					this.users.add(user.trim());
+				}
+			}
+		}
+		this.replication = replication;
+		this.retryInterval = retryInterval;
+		this.journal = journal;
+		this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "fast-ingest-restore");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Checks if the upload is written in fast-ingest mode
+	 *
+	 * @param path path of the upload
+	 * @param user uploading user
+	 * @return true if the upload is an ingest upload
+	 */
+	public boolean matches(Path path, HdfsUser user) {
+		if (users.contains(user.getName())) {
+			return true;
+		}
+		String file = HdfsMetadataCache.key(path);
+		for (String prefix : paths) {
+			if (file.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get replication ingest uploads are written with
+	 *
+	 * @return ingest replication
+	 */
+	public short getReplication() {
+		return replication;
+	}
+
+	/**
+	 * Queue restoring the target replication of a closed upload
+	 *
+	 * @param path   path of the upload
+	 * @param target replication to restore
+	 * @param length length of the upload
+	 */
+	public void restore(Path path, short target, long length) {
+		if (target <= replication) {
+			return;
+		}
+		String key = HdfsMetadataCache.key(path);
+		Restore restore = new Restore(target, length);
+		Restore replaced = pending.put(key, restore);
+		if (replaced != null) {
+			// uploaded again before the restore of the previous upload was done
+			pendingBytes.addAndGet(-replaced.length);
+			pendingFiles.decrementAndGet();
+		}
+		journal("+\t" + target + "\t" + length + "\t" + key);
+		schedule(key, restore, 0);
+	}
+
+	private void schedule(final String key, final Restore restore, long delay) {
+		pendingBytes.addAndGet(restore.length);
+		pendingFiles.incrementAndGet();
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (pending.get(key) != restore) {
+					// replaced by a later upload of the same path
+					return;
+				}
+				Path path = new Path(key);
+				try {
+					HdfsOverFtpSystem.getDfs().setReplication(path, restore.target);
+					HdfsOverFtpSystem.getMetadataCache().invalidate(path);
+					log.debug("Replication of {} set to {}", path, restore.target);
+				} catch (FileNotFoundException e) {
+					log.debug("{} is gone before its replication was restored", path);
+				} catch (Exception e) {
+					RESTORE_FAILURES.incr();
+					log.warn("Failed to restore replication of " + path + ", retrying", e);
+					executor.schedule(this, retryInterval, TimeUnit.MILLISECONDS);
+					return;
+				}
+				if (pending.remove(key, restore)) {
+					pendingBytes.addAndGet(-restore.length);
+					pendingFiles.decrementAndGet();
+					journal("-\t" + key);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queue the restores left in the journal by the previous run
+	 *
+	 * @throws IOException if the journal cannot be read
+	 */
+	public void recover() throws IOException {
+		if (journal == null || !journal.exists()) {
+			return;
+		}
+		Map<String, Restore> left = new LinkedHashMap<String, Restore>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				String[] fields = line.split("\t", 4);
+				if (fields.length == 4 && "+".equals(fields[0])) {
+					left.put(fields[3], new Restore(Short.parseShort(fields[1]), Long.parseLong(fields[2])));
+				} else if (fields.length == 2 && "-".equals(fields[0])) {
+					left.remove(fields[1]);
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Corrupt ingest journal " + journal, e);
+		} finally {
+			reader.close();
+		}
+
+		log.info("Restoring replication of {} fast-ingest uploads of the previous run", left.size());
+		for (Map.Entry<String, Restore> entry : left.entrySet()) {
+			if (pending.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
+				schedule(entry.getKey(), entry.getValue(), 0);
+			}
+		}
+		synchronized (this) {
+			compactJournal();
+		}
+	}
+
+	/**
+	 * Append a line to the journal, rewriting it with the pending restores
+	 * only once most of its lines are obsolete
+	 */
+	private synchronized void journal(String line) {
+		if (journal == null) {
+			return;
+		}
+		try {
+			if (journalWriter == null || journalLines > 2 * pending.size() + 1000) {
+				compactJournal();
+			}
+			journalWriter.write(line);
+			journalWriter.write('\n');
+			journalWriter.flush();
+			journalLines++;
+		} catch (IOException e) {
+			log.warn("Failed to write ingest journal " + journal, e);
+			closeJournal();
+		}
+	}
+
+	private void compactJournal() throws IOException {
+		closeJournal();
+		File dir = journal.getAbsoluteFile().getParentFile();
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Cannot create directory of ingest journal : " + dir);
+		}
+		File tmp = new File(dir, journal.getName() + ".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+		try {
+			for (Map.Entry<String, Restore> entry : pending.entrySet()) {
+				writer.write("+\t" + entry.getValue().target + "\t" + entry.getValue().length + "\t" + entry.getKey() + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		if (!tmp.renameTo(journal)) {
+			throw new IOException("Cannot replace ingest journal " + journal);
+		}
+		journalLines = pending.size();
+		journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal, true), "UTF-8"));
+	}
+
+	private void closeJournal() {
+		if (journalWriter != null) {
+			try {
+				journalWriter.close();
+			} catch (IOException e) {
+				log.warn("Failed to close ingest journal " + journal, e);
+			}
+			journalWriter = null;
+		}
+	}
+
+	/**
+	 * Get number of bytes uploaded in fast-ingest mode whose target replication
+	 * is not restored yet
+	 *
+	 * @return under-replicated bytes
+	 */
+	public long getPendingBytes() {
+		return pendingBytes.get();
+	}
+
+	/**
+	 * Get number of files uploaded in fast-ingest mode whose target replication
+	 * is not restored yet
+	 *
+	 * @return under-replicated files
+	 */
+	public long getPendingFiles() {
+		return pendingFiles.get();
+	}
+}
@@ -0,0 +1,185 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.apache.hadoop.security.GroupMappingServiceProvider;
+import org.apache.hadoop.security.ShellBasedUnixGroupsMapping;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups of users resolved with the Hadoop group mapping
+ * (hadoop.security.group.mapping), so the gateway checks permissions with
+ * the groups HDFS uses. Groups are loaded at login and then served from
+ * memory: stale entries are refreshed in the background while the old
+ * groups keep being used, so permission checks never wait for a directory
+ * lookup. Users without groups are cached for a shorter time.
+ */
+public class GroupMappingCache {
+
+	private static final MutableCounterLong LOOKUPS = HdfsOverFtpMetrics.get()
+			.counter("GroupLookups", "Group lookups sent to the group mapping");
+
+	private static final MutableCounterLong LOOKUP_FAILURES = HdfsOverFtpMetrics.get()
+			.counter("GroupLookupFailures", "Group lookups which failed or found no groups");
+
+	private final Logger log = LoggerFactory.getLogger(GroupMappingCache.class);
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private final GroupMappingServiceProvider provider;
+
+	private final long refreshInterval;
+
+	private final long negativeInterval;
+
+	private final ExecutorService refresher;
+
+	private static class Entry {
+
+		// first group is the main group, empty if none were found
+		private final Set<String> groups;
+
+		private final long loadedAt;
+
+		// stands in for a user whose first lookup is running
+		private final boolean placeholder;
+
+		private volatile boolean refreshing = false;
+
+		private Entry(Set<String> groups) {
+			this(groups, false);
+		}
+
+		private Entry(Set<String> groups, boolean placeholder) {
+			this.groups = groups;
+			this.loadedAt = System.currentTimeMillis();
+			this.placeholder = placeholder;
+		}
+	}
+
+	/**
+	 * Constructs the cache
+	 *
+	 * @param conf             configuration with the group mapping settings
+	 * @param refreshInterval  milliseconds after which groups are refreshed
+	 * @param negativeInterval milliseconds after which a user without groups is looked up again
+	 * @param threads          number of threads refreshing groups
+	 */
+	public GroupMappingCache(Configuration conf, long refreshInterval, long negativeInterval, int threads) {
+		this.provider = ReflectionUtils.newInstance(
+				conf.getClass(CommonConfigurationKeys.HADOOP_SECURITY_GROUP_MAPPING,
+						ShellBasedUnixGroupsMapping.class, GroupMappingServiceProvider.class), conf);
+		this.refreshInterval = refreshInterval;
+		this.negativeInterval = negativeInterval;
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "group-mapping-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		this.refresher = executor;
+		log.info("Group mapping: " + provider.getClass().getName());
+	}
+
+	/**
+	 * Load groups of a user unless they are cached already. Called at login,
+	 * where waiting for the group mapping is acceptable.
+	 *
+	 * @param user name of the user
+	 */
+	public void load(String user) {
+		Entry entry = entries.get(user);
+		if (entry == null || entry.placeholder) {
+			entries.put(user, lookup(user));
+		}
+	}
+
+	/**
+	 * Get groups of a user without waiting for the group mapping. Stale
+	 * groups are returned while they are refreshed in the background.
+	 *
+	 * @param user name of the user
+	 * @return groups with the main group first, empty if none are known yet
+	 */
+	public Set<String> getGroups(String user) {
+		Entry entry = entries.get(user);
+		if (entry == null) {
+			// the first caller looks the user up, later ones find the placeholder
+			Entry placeholder = new Entry(Collections.<String>emptySet(), true);
+			entry = entries.putIfAbsent(user, placeholder);
+			if (entry == null) {
+				refresh(user, placeholder);
+				return Collections.<String>emptySet();
+			}
+		}
+		long age = System.currentTimeMillis() - entry.loadedAt;
+		if (age > (entry.groups.isEmpty() ? negativeInterval : refreshInterval)) {
+			refresh(user, entry);
+		}
+		return entry.groups;
+	}
+
+	/**
+	 * Get number of cached users
+	 *
+	 * @return number of cached users
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	private void refresh(final String user, final Entry entry) {
+		synchronized (entry) {
+			if (entry.refreshing) {
+				return;
+			}
+			entry.refreshing = true;
+		}
+		refresher.execute(new Runnable() {
+			@Override
+			public void run() {
+				Entry loaded = lookup(user);
+				if (loaded.groups.isEmpty() && !entry.groups.isEmpty()) {
+					// keep the known groups over a failed lookup, try again later
+					entries.put(user, new Entry(entry.groups));
+					return;
+				}
+				entries.put(user, loaded);
+			}
+		});
+	}
+
+	private Entry lookup(String user) {
+		LOOKUPS.incr();
+		try {
+			List<String> groups = provider.getGroups(user);
+			if (groups != null && !groups.isEmpty()) {
+				return new Entry(Collections.unmodifiableSet(new LinkedHashSet<String>(groups)));
+			}
+			log.debug("No groups found for {}", user);
+		} catch (Exception e) {
+			log.warn("Failed to get groups of " + user + ": " + e.getMessage());
+		}
+		LOOKUP_FAILURES.incr();
+		return new Entry(Collections.<String>emptySet());
+	}
+}
@@ -3,15 +3,20 @@ package org.apache.hadoop.contrib.ftp;
 import org.apache.ftpserver.ftplet.FtpFile;
 import org.apache.ftpserver.ftplet.User;
 import org.apache.hadoop.fs.*;
+import org.apache.hadoop.fs.permission.FsAction;
 import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * This class implements all actions to HDFS
@@ -22,6 +27,14 @@ public class HdfsFileObject implements FtpFile {
 
 	private Path path;
 	private HdfsUser user;
+	private HdfsFileSystemView view;
+
+	// status from a listing or the first status call, until the object is changed
+	private FileStatus status = null;
+
+	private boolean missing = false;
+
+	private HdfsFileObject parent = null;
 
 	/**
 	 * Constructs HdfsFtpFile from path
@@ -30,8 +43,33 @@ public class HdfsFileObject implements FtpFile {
 	 * @param user accessor of the object
 	 */
 	public HdfsFileObject(String path, User user) {
+		this(path, user, null);
+	}
+
+	/**
+	 * Constructs HdfsFtpFile from path
+	 *
+	 * @param path path to represent object
+	 * @param user accessor of the object
+	 * @param view file system view of the session the object belongs to
+	 */
+	public HdfsFileObject(String path, User user, HdfsFileSystemView view) {
 		this.path = new Path(path);
 		this.user = (HdfsUser) user;
+		this.view = view;
+	}
+
+	/**
+	 * Constructs HdfsFtpFile from the status of a listing entry, so the
+	 * entry needs no status call of its own
+	 *
+	 * @param status status of the object
+	 * @param user   accessor of the object
+	 * @param view   file system view of the session the object belongs to
+	 */
+	public HdfsFileObject(FileStatus status, User user, HdfsFileSystemView view) {
+		this(status.getPath().toString(), user, view);
+		this.status = status;
 	}
 
 	/**
@@ -77,16 +115,38 @@ public class HdfsFileObject implements FtpFile {
 	@Override
 	public boolean isDirectory() {
 		try {
-			log.debug("is directory? : " + path);
-			FileSystem dfs = HdfsOverFtpSystem.getDfs();
-			FileStatus fs = dfs.getFileStatus(path);
+			log.debug("is directory? : {}", path);
+			FileStatus fs = getFileStatus();
 			return fs.isDirectory();
 		} catch (Exception e) {
-			log.debug(path + " is not dir", e);
+			log.debug("{} is not dir", path, e);
 			return false;
 		}
 	}
 
+	/**
+	 * Get HDFS status of the object, through the metadata cache. The status
+	 * is kept by the object, which lives for a command, until it changes
+	 * the object.
+	 *
+	 * @return HDFS status of the object
+	 * @throws IOException if path doesn't exist
+	 */
+	protected FileStatus getFileStatus() throws Exception {
+		if (status == null) {
+			if (missing) {
+				throw new FileNotFoundException("File does not exist: " + path);
+			}
+			try {
+				status = HdfsOverFtpSystem.getMetadataCache().getFileStatus(path);
+			} catch (FileNotFoundException e) {
+				missing = true;
+				throw e;
+			}
+		}
+		return status;
+	}
+
 	/**
 	 * Get HDFS permissions
 	 *
@@ -94,8 +154,29 @@ public class HdfsFileObject implements FtpFile {
 	 * @throws IOException if path doesn't exist so we get permissions of parent object in that case
 	 */
 	private FsPermission getPermissions() throws Exception {
-		FileSystem dfs = HdfsOverFtpSystem.getDfs();
-		return dfs.getFileStatus(path).getPermission();
+		return getFileStatus().getPermission();
+	}
+
+	/**
+	 * Forget the status of the object before changing it
+	 */
+	/**
+	 * Get the space the file takes from the space quotas above it
+	 *
+	 * @return length times replication, 0 if there is no such file
+	 */
+	long getSpaceConsumed() {
+		try {
+			FileStatus status = getFileStatus();
+			return status.isFile() ? status.getLen() * status.getReplication() : 0;
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+	private void changed() {
+		status = null;
+		missing = false;
 	}
 
 	/**
@@ -106,10 +187,9 @@ public class HdfsFileObject implements FtpFile {
 	@Override
 	public boolean isFile() {
 		try {
-			FileSystem dfs = HdfsOverFtpSystem.getDfs();
-			return dfs.isFile(path);
+			return getFileStatus().isFile();
 		} catch (Exception e) {
-			log.debug(path + " is not file", e);
+			log.debug("{} is not file", path, e);
 			return false;
 		}
 	}
@@ -122,8 +202,7 @@ public class HdfsFileObject implements FtpFile {
 	@Override
 	public boolean doesExist() {
 		try {
-			FileSystem dfs = HdfsOverFtpSystem.getDfs();
-			dfs.getFileStatus(path);
+			getFileStatus();
 			return true;
 		} catch (Exception e) {
 			//   log.debug(path + " does not exist", e);
@@ -131,6 +210,24 @@ public class HdfsFileObject implements FtpFile {
 		}
 	}
 
+	/**
+	 * Checks if the user may read an object, by a status taken from a listing
+	 *
+	 * @param user   accessing user
+	 * @param status status of the object
+	 * @return true if the object is readable for the user
+	 */
+	public static boolean isReadable(HdfsUser user, FileStatus status) {
+		FsPermission permissions = status.getPermission();
+		if (user.getName().equals(status.getOwner())) {
+			return permissions.getUserAction().implies(FsAction.READ);
+		} else if (user.isGroupMember(status.getGroup())) {
+			return permissions.getGroupAction().implies(FsAction.READ);
+		} else {
+			return permissions.getOtherAction().implies(FsAction.READ);
+		}
+	}
+
 	/**
 	 * Checks if the user has a read permission on the object
 	 *
@@ -142,21 +239,21 @@ public class HdfsFileObject implements FtpFile {
 			FsPermission permissions = getPermissions();
 			if (user.getName().equals(getOwnerName())) {
 				if (permissions.toString().substring(0, 1).equals("r")) {
-					log.debug("PERMISSIONS: " + path + " - " + " read allowed for user");
+					log.debug("PERMISSIONS: {} - read allowed for user", path);
 					return true;
 				}
 			} else if (user.isGroupMember(getGroupName())) {
 				if (permissions.toString().substring(3, 4).equals("r")) {
-					log.debug("PERMISSIONS: " + path + " - " + " read allowed for group");
+					log.debug("PERMISSIONS: {} - read allowed for group", path);
 					return true;
 				}
 			} else {
 				if (permissions.toString().substring(6, 7).equals("r")) {
-					log.debug("PERMISSIONS: " + path + " - " + " read allowed for others");
+					log.debug("PERMISSIONS: {} - read allowed for others", path);
 					return true;
 				}
 			}
-			log.debug("PERMISSIONS: " + path + " - " + " read denied");
+			log.debug("PERMISSIONS: {} - read denied", path);
 			return false;
 		} catch (Exception e) {
 			e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
@@ -165,13 +262,17 @@ public class HdfsFileObject implements FtpFile {
 	}
 
 	private HdfsFileObject getParent() {
+		if (parent != null) {
+			return parent;
+		}
 		String pathS = path.toString();
 		String parentS = "/";
 		int pos = pathS.lastIndexOf("/");
 		if (pos > 0) {
 			parentS = pathS.substring(0, pos);
 		}
-		return new HdfsFileObject(parentS, user);
+		parent = new HdfsFileObject(parentS, user, view);
+		return parent;
 	}
 
 	/**
@@ -185,21 +286,21 @@ public class HdfsFileObject implements FtpFile {
 			FsPermission permissions = getPermissions();
 			if (user.getName().equals(getOwnerName())) {
 				if (permissions.toString().substring(1, 2).equals("w")) {
-					log.debug("PERMISSIONS: " + path + " - " + " write allowed for user");
+					log.debug("PERMISSIONS: {} - write allowed for user", path);
 					return true;
 				}
 			} else if (user.isGroupMember(getGroupName())) {
 				if (permissions.toString().substring(4, 5).equals("w")) {
-					log.debug("PERMISSIONS: " + path + " - " + " write allowed for group");
+					log.debug("PERMISSIONS: {} - write allowed for group", path);
 					return true;
 				}
 			} else {
 				if (permissions.toString().substring(7, 8).equals("w")) {
-					log.debug("PERMISSIONS: " + path + " - " + " write allowed for others");
+					log.debug("PERMISSIONS: {} - write allowed for others", path);
 					return true;
 				}
 			}
-			log.debug("PERMISSIONS: " + path + " - " + " write denied");
+			log.debug("PERMISSIONS: {} - write denied", path);
 			return false;
 		} catch (Exception e) {
 			return getParent().isWritable();
@@ -224,8 +325,7 @@ public class HdfsFileObject implements FtpFile {
 	@Override
 	public String getOwnerName() {
 		try {
-			FileSystem dfs = HdfsOverFtpSystem.getDfs();
-			FileStatus fs = dfs.getFileStatus(path);
+			FileStatus fs = getFileStatus();
 			return fs.getOwner();
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -241,8 +341,7 @@ public class HdfsFileObject implements FtpFile {
 	@Override
 	public String getGroupName() {
 		try {
-			FileSystem dfs = HdfsOverFtpSystem.getDfs();
-			FileStatus fs = dfs.getFileStatus(path);
+			FileStatus fs = getFileStatus();
 			return fs.getGroup();
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -268,8 +367,7 @@ public class HdfsFileObject implements FtpFile {
 	@Override
 	public long getLastModified() {
 		try {
-			FileSystem dfs = HdfsOverFtpSystem.getDfs();
-			FileStatus fs = dfs.getFileStatus(path);
+			FileStatus fs = getFileStatus();
 			return fs.getModificationTime();
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -285,9 +383,8 @@ public class HdfsFileObject implements FtpFile {
 	@Override
 	public long getSize() {
 		try {
-			FileSystem dfs = HdfsOverFtpSystem.getDfs();
-			FileStatus fs = dfs.getFileStatus(path);
-			log.info("getSize(): " + path + " : " + fs.getLen());
+			FileStatus fs = getFileStatus();
+			log.debug("getSize(): {} : {}", path, fs.getLen());
 			return fs.getLen();
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -303,13 +400,21 @@ public class HdfsFileObject implements FtpFile {
 	@Override
 	public boolean mkdir() {
 		if (!isWritable()) {
-			log.debug("No write permission : " + path);
+			log.debug("No write permission : {}", path);
 			return false;
 		}
+		changed();
 
 		try {
-			FileSystem dfs = HdfsOverFtpSystem.getDfs();
-			return dfs.mkdirs(path);
+			final FileSystem dfs = HdfsOverFtpSystem.getDfs();
+			boolean created = HdfsOverFtpSystem.getNameNodeGuard().call("mkdir", path, new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return dfs.mkdirs(path);
+				}
+			});
+			HdfsOverFtpSystem.getMetadataCache().invalidate(path);
+			return created;
 		} catch (Exception e) {
 			e.printStackTrace();
 			return false;
@@ -323,9 +428,24 @@ public class HdfsFileObject implements FtpFile {
 	 */
 	@Override
 	public boolean delete() {
+		changed();
 		try {
-			FileSystem dfs = HdfsOverFtpSystem.getDfs();
-			return dfs.delete(path, true);
+			UploadSpool spool = HdfsOverFtpSystem.getUploadSpool();
+			boolean discarded = spool != null && spool.discardTree(HdfsMetadataCache.key(path));
+
+			final FileSystem dfs = HdfsOverFtpSystem.getDfs();
+			boolean deleted = HdfsOverFtpSystem.getNameNodeGuard().call("delete", path, new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return dfs.delete(path, true);
+				}
+			});
+			HdfsOverFtpSystem.getMetadataCache().invalidateTree(path);
+			QuotaGuard quota = HdfsOverFtpSystem.getQuotaGuard();
+			if (quota != null) {
+				quota.invalidate(path);
+			}
+			return deleted || discarded;
 		} catch (Exception e) {
 			e.printStackTrace();
 			return false;
@@ -340,9 +460,29 @@ public class HdfsFileObject implements FtpFile {
 	 */
 	@Override
 	public boolean move(FtpFile FtpFile) {
+		changed();
 		try {
-			FileSystem dfs = HdfsOverFtpSystem.getDfs();
-			dfs.rename(path, new Path(FtpFile.getAbsolutePath()));
+			final FileSystem dfs = HdfsOverFtpSystem.getDfs();
+			final Path dst = new Path(FtpFile.getAbsolutePath());
+			UploadSpool spool = HdfsOverFtpSystem.getUploadSpool();
+			if (spool != null) {
+				// rename what clients see
+				spool.flushTree(HdfsMetadataCache.key(path));
+				spool.flush(HdfsMetadataCache.key(dst));
+			}
+			HdfsOverFtpSystem.getNameNodeGuard().call("rename", path, new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return dfs.rename(path, dst);
+				}
+			});
+			HdfsOverFtpSystem.getMetadataCache().invalidateTree(path);
+			HdfsOverFtpSystem.getMetadataCache().invalidateTree(dst);
+			QuotaGuard quota = HdfsOverFtpSystem.getQuotaGuard();
+			if (quota != null) {
+				quota.invalidate(path);
+				quota.invalidate(dst);
+			}
 			return true;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -359,17 +499,19 @@ public class HdfsFileObject implements FtpFile {
 	public List<? extends FtpFile> listFiles() {
 
 		if (!isReadable()) {
-			log.debug("No read permission : " + path);
+			log.debug("No read permission : {}", path);
 			return null;
 		}
 
 		try {
-			FileSystem dfs = HdfsOverFtpSystem.getDfs();
-			FileStatus fileStats[] = dfs.listStatus(path);
+			FileStatus fileStats[] = view != null ? view.takePrefetchedListing(path) : null;
+			if (fileStats == null) {
+				fileStats = HdfsOverFtpSystem.getMetadataCache().listStatus(path);
+			}
 
 			List<FtpFile> FtpFiles = new ArrayList<FtpFile>();
 			for (int i = 0; i < fileStats.length; i++) {
-				FtpFiles.add(new HdfsFileObject(fileStats[i].getPath().toString(), user));
+				FtpFiles.add(new HdfsFileObject(fileStats[i], user, view));
 			}
 			return FtpFiles;
 		} catch (Exception e) {
@@ -378,10 +520,59 @@ public class HdfsFileObject implements FtpFile {
 		}
 	}
 
+	/**
+	 * List statuses of the directory entries as they come from the listing,
+	 * without a status call or FtpFile per entry
+	 *
+	 * @return statuses of the directory entries, null if not readable
+	 */
+	public RemoteIterator<FileStatus> listStatusIterator() {
+
+		if (!isReadable()) {
+			log.debug("No read permission : {}", path);
+			return null;
+		}
+
+		try {
+			FileStatus prefetched[] = view != null ? view.takePrefetchedListing(path) : null;
+			HdfsMetadataCache cache = HdfsOverFtpSystem.getMetadataCache();
+			UploadSpool spool = HdfsOverFtpSystem.getUploadSpool();
+			if (prefetched == null && !cache.isEnabled()
+					&& (spool == null || !spool.hasPending(HdfsMetadataCache.key(path)))) {
+				// the first page is fetched here, within the list deadline
+				final FileSystem dfs = HdfsOverFtpSystem.getDfs();
+				return HdfsOverFtpSystem.getNameNodeGuard().call("list", path,
+						new Callable<RemoteIterator<FileStatus>>() {
+							@Override
+							public RemoteIterator<FileStatus> call() throws Exception {
+								return dfs.listStatusIterator(path);
+							}
+						});
+			}
+			final FileStatus fileStats[] = prefetched != null ? prefetched : cache.listStatus(path);
+			return new RemoteIterator<FileStatus>() {
+				private int i = 0;
+
+				@Override
+				public boolean hasNext() {
+					return i < fileStats.length;
+				}
+
+				@Override
+				public FileStatus next() {
+					return fileStats[i++];
+				}
+			};
+		} catch (Exception e) {
+			log.debug("", e);
+			return null;
+		}
+	}
+
 	/**
 	 * Creates output stream to write to the object
 	 *
-	 * @param l is not used here
+	 * @param l offset to start writing at, the REST offset of a segment
 	 * @return OutputStream
 	 * @throws IOException
 	 */
@@ -391,23 +582,163 @@ public class HdfsFileObject implements FtpFile {
 		if (!isWritable()) {
 			throw new IOException("No write permission : " + path);
 		}
+		// as QuotaFtplet checked the upload
+		boolean newFile = l == 0 && !doesExist();
+		long replaced = l == 0 && !newFile ? getSpaceConsumed() : 0;
+		changed();
 
 		try {
-			FileSystem dfs = HdfsOverFtpSystem.getDfs();
-			FSDataOutputStream out = dfs.create(path);
-			dfs.setOwner(path, user.getName(), user.getMainGroup());
-			return out;
+			final long sizeHint = view != null ? view.takeAllocationHint() : -1;
+			UploadSpool spool = HdfsOverFtpSystem.getUploadSpool();
+			OutputStream out;
+			if (spool != null && l == 0 && spool.accepts(sizeHint)) {
+				FileSystem dfs = HdfsOverFtpSystem.getDfs();
+				WriteProfile profile = HdfsOverFtpSystem.getWriteProfile(path, user);
+				out = spool.create(path, user, profile.getReplication(dfs, path),
+						profile.getBlockSize(dfs, path, sizeHint), profile.getBufferSize(dfs),
+						profile.getStoragePolicy(), new Callable<OutputStream>() {
+					@Override
+					public OutputStream call() throws Exception {
+						return createHdfsOutputStream(0, sizeHint);
+					}
+				});
+			} else {
+				out = createHdfsOutputStream(l, sizeHint);
+			}
+			QuotaGuard quota = HdfsOverFtpSystem.getQuotaGuard();
+			return quota != null ? quota.track(path, user, sizeHint, newFile, replaced, out) : out;
 		} catch (Exception e) {
 			e.printStackTrace();
 			return null;
 		}
 	}
 
+	/**
+	 * Creates output stream writing to HDFS directly
+	 */
+	private OutputStream createHdfsOutputStream(long l, long sizeHint) throws Exception {
+		UploadSpool spool = HdfsOverFtpSystem.getUploadSpool();
+		if (spool != null) {
+			// an upload waiting in the spool must not overwrite this one later,
+			// and a resumed upload continues it
+			if (l > 0) {
+				spool.flush(HdfsMetadataCache.key(path));
+			} else {
+				spool.discardTree(HdfsMetadataCache.key(path));
+			}
+		}
+
+		FileSystem dfs = HdfsOverFtpSystem.getDfs();
+		WriteProfile profile = HdfsOverFtpSystem.getWriteProfile(path, user);
+
+		final short target = profile.getReplication(dfs, path);
+		short replication = target;
+		FastIngestManager ingest = HdfsOverFtpSystem.getFastIngest();
+		final boolean fastIngest = ingest != null && ingest.matches(path, user);
+		if (fastIngest) {
+			// write with low replication, restore it after close
+			replication = (short) Math.min(target, ingest.getReplication());
+		}
+
+		final SegmentedUploads uploads = HdfsOverFtpSystem.getSegmentedUploads();
+		if (uploads == null) {
+			HdfsOutputStream stream = create(dfs, path, profile, replication, sizeHint);
+			if (fastIngest) {
+				stream.addListener(new HdfsOutputStream.Listener() {
+					@Override
+					public void closed(Path path, long length, boolean success) {
+						// also a file left behind by a failed close gets its replication back
+						HdfsOverFtpSystem.getFastIngest().restore(path, target, length);
+					}
+				});
+			}
+			return stream;
+		}
+
+		final SegmentedUploads.Segment segment = uploads.open(path, l);
+		HdfsOutputStream stream;
+		try {
+			if (segment.isAppend()) {
+				final FileSystem fs = dfs;
+				final int bufferSize = profile.getBufferSize(dfs);
+				stream = new HdfsOutputStream(HdfsOverFtpSystem.getNameNodeGuard().open("append", path,
+						new Callable<FSDataOutputStream>() {
+					@Override
+					public FSDataOutputStream call() throws Exception {
+						return fs.append(path, bufferSize);
+					}
+				}), path);
+			} else {
+				stream = create(dfs, segment.getPath(), profile, replication, sizeHint);
+			}
+		} catch (Exception e) {
+			uploads.closed(path, segment, 0, false, null);
+			throw e;
+		}
+		stream.addListener(new HdfsOutputStream.Listener() {
+			@Override
+			public void closed(Path written, long length, boolean success) {
+				SegmentedUploads.JoinListener joined = null;
+				if (fastIngest) {
+					joined = new SegmentedUploads.JoinListener() {
+						@Override
+						public void joined(Path path, long length) {
+							HdfsOverFtpSystem.getFastIngest().restore(path, target, length);
+						}
+					};
+					if (!segment.isPart() && length > 0) {
+						HdfsOverFtpSystem.getFastIngest().restore(path, target, length);
+					}
+				}
+				uploads.closed(path, segment, length, success, joined);
+			}
+		});
+		return stream;
+	}
+
+	private HdfsOutputStream create(final FileSystem dfs, final Path file, final WriteProfile profile,
+			final short replication, final long sizeHint) throws IOException, InterruptedException {
+		NameNodeGuard guard = HdfsOverFtpSystem.getNameNodeGuard();
+		FSDataOutputStream out = guard.open("create", file, new Callable<FSDataOutputStream>() {
+			@Override
+			public FSDataOutputStream call() throws Exception {
+				return dfs.create(file, true, profile.getBufferSize(dfs),
+						replication, profile.getBlockSize(dfs, path, sizeHint));
+			}
+		});
+		boolean created = false;
+		try {
+			if (profile.getStoragePolicy() != null && dfs instanceof DistributedFileSystem) {
+				guard.call("setStoragePolicy", file, new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						((DistributedFileSystem) dfs).setStoragePolicy(file, profile.getStoragePolicy());
+						return null;
+					}
+				});
+			}
+			guard.call("setOwner", file, new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					dfs.setOwner(file, user.getName(), user.getMainGroup());
+					return null;
+				}
+			});
+			created = true;
+		} finally {
+			if (!created) {
+				IOUtils.closeStream(out);
+			}
+		}
+		HdfsOverFtpSystem.getMetadataCache().invalidate(file);
+		return new HdfsOutputStream(out, file);
+	}
+
 	/**
 	 * Creates input stream to read from the object
 	 *
-	 * @param l is not used here
-	 * @return OutputStream
+	 * @param l offset to start reading at
+	 * @return InputStream
 	 * @throws IOException
 	 */
 	@Override
@@ -417,9 +748,46 @@ public class HdfsFileObject implements FtpFile {
 			throw new IOException("No read permission : " + path);
 		}
 		try {
-			FileSystem dfs = HdfsOverFtpSystem.getDfs();
-			FSDataInputStream in = dfs.open(path);
-			return in;
+			UploadSpool spool = HdfsOverFtpSystem.getUploadSpool();
+			InputStream spooled = spool != null ? spool.open(HdfsMetadataCache.key(path), l) : null;
+			if (spooled != null) {
+				return spooled;
+			}
+
+			FileStatus status = getFileStatus();
+			DownloadCache downloads = HdfsOverFtpSystem.getDownloadCache();
+			if (downloads != null) {
+				InputStream cached = downloads.open(status, l);
+				if (cached != null) {
+					return cached;
+				}
+			}
+
+			final FileSystem dfs = HdfsOverFtpSystem.getDfs();
+			InputStreamCache streams = HdfsOverFtpSystem.getInputStreamCache();
+			FSDataInputStream in;
+			if (streams != null) {
+				in = streams.open(dfs, user.getName(), path, status, l);
+			} else {
+				in = HdfsOverFtpSystem.getNameNodeGuard().open("open", path, new Callable<FSDataInputStream>() {
+					@Override
+					public FSDataInputStream call() throws Exception {
+						return dfs.open(path);
+					}
+				});
+				if (l > 0) {
+					in.seek(l);
+				}
+			}
+			InputStream stream = in;
+			int readSize = HdfsOverFtpSystem.getPositionalReadSize();
+			if (readSize > 0) {
+				stream = new PositionalReadInputStream(in, l, status.getLen(), readSize);
+			}
+			if (downloads != null && l == 0) {
+				stream = downloads.fill(dfs, status, stream);
+			}
+			return stream;
 		} catch (Exception e) {
 			e.printStackTrace();
 			return null;
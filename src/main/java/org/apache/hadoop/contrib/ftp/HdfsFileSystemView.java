@@ -4,6 +4,8 @@ import org.apache.ftpserver.ftplet.FtpFile;
 import org.apache.ftpserver.ftplet.FileSystemView;
 import org.apache.ftpserver.ftplet.FtpException;
 import org.apache.ftpserver.ftplet.User;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
 
 /**
  * Implemented FileSystemView to use HdfsFileObject
@@ -23,6 +25,12 @@ public class HdfsFileSystemView implements FileSystemView {
 
 	private boolean caseInsensitive = false;
 
+	// size announced by ALLO for the next upload
+	private long allocationHint = -1;
+
+	// listing started by the last CWD
+	private ListingPrefetcher.Prefetch prefetch = null;
+
 	/**
 	 * Constructor - set the user object.
 	 */
@@ -64,7 +72,7 @@ public class HdfsFileSystemView implements FileSystemView {
 	 */
 	@Override
 	public FtpFile getHomeDirectory() {
-		return new HdfsFileObject("/", user);
+		return new HdfsFileObject("/", user, this);
 	}
 
 	/**
@@ -72,7 +80,7 @@ public class HdfsFileSystemView implements FileSystemView {
 	 */
 	@Override
 	public FtpFile getWorkingDirectory() throws FtpException {
-		return new HdfsFileObject(currDir, user);
+		return new HdfsFileObject(currDir, user, this);
 	}
 
 	/**
@@ -88,7 +96,11 @@ public class HdfsFileSystemView implements FileSystemView {
 		} else {
 			path = "/" + file;
 		}
-		return new HdfsFileObject(path, user);
+		PartConcatenation concatenation = HdfsOverFtpSystem.getPartConcatenation();
+		if (concatenation != null && concatenation.isConcatenation(new Path(path).getName())) {
+			return new ConcatFileObject(path, user, this, concatenation);
+		}
+		return new HdfsFileObject(path, user, this);
 	}
 
 	/**
@@ -104,15 +116,64 @@ public class HdfsFileSystemView implements FileSystemView {
 		} else {
 			path = "/" + dir;
 		}
-		HdfsFileObject file = new HdfsFileObject(path, user);
+		HdfsFileObject file = new HdfsFileObject(path, user, this);
 		if (file.isDirectory() && file.isReadable()) {
 			currDir = path;
+			ListingPrefetcher prefetcher = HdfsOverFtpSystem.getListingPrefetcher();
+			if (prefetcher != null) {
+				if (prefetch != null) {
+					prefetch.cancel();
+				}
+				prefetch = prefetcher.prefetch(new Path(path));
+			}
 			return true;
 		} else {
 			return false;
 		}
 	}
 
+	/**
+	 * Get and clear the listing started by the last CWD
+	 *
+	 * @param path path of the listed directory
+	 * @return statuses of the directory entries, null if the directory has to be listed
+	 */
+	public FileStatus[] takePrefetchedListing(Path path) {
+		ListingPrefetcher.Prefetch p = prefetch;
+		if (p == null) {
+			return null;
+		}
+		prefetch = null;
+		return p.get(path);
+	}
+
+	/**
+	 * Set size of the next upload announced by ALLO
+	 */
+	public void setAllocationHint(long allocationHint) {
+		this.allocationHint = allocationHint;
+	}
+
+	/**
+	 * Get size of the next upload announced by ALLO, keeping it for the upload
+	 *
+	 * @return announced size, -1 if none
+	 */
+	public long getAllocationHint() {
+		return allocationHint;
+	}
+
+	/**
+	 * Get and clear size of the next upload announced by ALLO
+	 *
+	 * @return announced size, -1 if none
+	 */
+	public long takeAllocationHint() {
+		long hint = allocationHint;
+		allocationHint = -1;
+		return hint;
+	}
+
 	/**
 	 * Is the file content random accessible?
 	 */
@@ -122,9 +183,14 @@ public class HdfsFileSystemView implements FileSystemView {
 	}
 
 	/**
-	 * Dispose file system view - does nothing.
+	 * Dispose file system view, cancelling the listing started by the last CWD.
 	 */
 	@Override
 	public void dispose() {
+		ListingPrefetcher.Prefetch p = prefetch;
+		prefetch = null;
+		if (p != null) {
+			p.cancel();
+		}
 	}
 }
@@ -0,0 +1,192 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.hdfs.DFSInotifyEventInputStream;
+import org.apache.hadoop.hdfs.client.HdfsAdmin;
+import org.apache.hadoop.hdfs.inotify.Event;
+import org.apache.hadoop.hdfs.inotify.EventBatch;
+import org.apache.hadoop.hdfs.inotify.MissingEventsException;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.security.PrivilegedExceptionAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread which tails the HDFS inotify stream and drops cached
+ * metadata of every path changed outside of the gateway, which also records
+ * the change in the {@link ChangeIndex}. When the stream falls behind or
+ * breaks tailing restarts from the current transaction, and the whole cache
+ * is flushed once the new stream is open and the change index starts over.
+ */
+public class HdfsInotifyTailer implements Runnable {
+
+	private final Logger log = LoggerFactory.getLogger(HdfsInotifyTailer.class);
+
+	private final HdfsMetadataCache cache;
+
+	private final long maxLag;
+
+	private final long retryInterval;
+
+	private volatile boolean running = true;
+
+	// NameNode time of the latest event since the change index was reset
+	private long lastEventTime = -1;
+
+	private Thread thread;
+
+	/**
+	 * Constructs the tailer
+	 *
+	 * @param cache         cache to invalidate
+	 * @param maxLag        number of transactions the tailer may lag before the cache is flushed
+	 * @param retryInterval pause in milliseconds before reopening a broken stream
+	 */
+	public HdfsInotifyTailer(HdfsMetadataCache cache, long maxLag, long retryInterval) {
+		this.cache = cache;
+		this.maxLag = maxLag;
+		this.retryInterval = retryInterval;
+	}
+
+	/**
+	 * Start tailing in a daemon thread
+	 */
+	public synchronized void start() {
+		thread = new Thread(this, "hdfs-inotify-tailer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop tailing
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				DFSInotifyEventInputStream stream = openStream();
+				// entries cached before the stream was opened may have
+				// missed changes, the stream starts at the current transaction
+				cache.flush();
+				if (tail(stream)) {
+					continue;
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				if (!running) {
+					// stop() interrupted a call
+					break;
+				}
+				log.warn("Inotify stream failed, flushing metadata cache", e);
+			}
+			cache.flush();
+			ChangeIndex index = HdfsOverFtpSystem.getChangeIndex();
+			if (index != null) {
+				index.suspend();
+			}
+
+			try {
+				Thread.sleep(retryInterval);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		log.info("Inotify tailer stopped");
+	}
+
+	private DFSInotifyEventInputStream openStream() throws Exception {
+		UserGroupInformation ugi = UserGroupInformation.createRemoteUser(HdfsOverFtpSystem.getSuperuser());
+		return ugi.doAs(new PrivilegedExceptionAction<DFSInotifyEventInputStream>() {
+			@Override
+			public DFSInotifyEventInputStream run() throws Exception {
+				HdfsAdmin admin = new HdfsAdmin(URI.create(HdfsOverFtpSystem.HDFS_URI), HdfsOverFtpSystem.getConf());
+				return admin.getInotifyEventStream();
+			}
+		});
+	}
+
+	/**
+	 * Tail the stream until it fails or falls behind
+	 *
+	 * @return true if the stream fell behind and is to be reopened at once
+	 */
+	private boolean tail(DFSInotifyEventInputStream stream) throws Exception {
+		log.info("Tailing inotify stream");
+		resetChangeIndex();
+		while (running) {
+			EventBatch batch;
+			try {
+				batch = stream.poll(1, TimeUnit.SECONDS);
+			} catch (MissingEventsException e) {
+				log.warn("Inotify stream lost events, flushing metadata cache: {}", e.getMessage());
+				cache.flush();
+				resetChangeIndex();
+				continue;
+			}
+
+			if (batch != null) {
+				for (Event event : batch.getEvents()) {
+					apply(event);
+				}
+			}
+
+			long behind = stream.getTxidsBehindEstimate();
+			if (behind > maxLag) {
+				log.warn("Inotify stream is {} transactions behind, restarting from the current one", behind);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void resetChangeIndex() {
+		lastEventTime = -1;
+		ChangeIndex index = HdfsOverFtpSystem.getChangeIndex();
+		if (index != null) {
+			index.reset();
+		}
+	}
+
+	private void apply(Event event) {
+		switch (event.getEventType()) {
+			case CREATE:
+				lastEventTime = ((Event.CreateEvent) event).getCtime();
+				cache.invalidate(((Event.CreateEvent) event).getPath(), lastEventTime);
+				break;
+			case CLOSE:
+				lastEventTime = ((Event.CloseEvent) event).getTimestamp();
+				cache.invalidate(((Event.CloseEvent) event).getPath(), lastEventTime);
+				break;
+			case APPEND:
+				// appends and metadata updates carry no time of the change,
+				// the time of the previous event is the closest one known
+				cache.invalidate(((Event.AppendEvent) event).getPath(), lastEventTime);
+				break;
+			case METADATA:
+				cache.invalidate(((Event.MetadataUpdateEvent) event).getPath(), lastEventTime);
+				break;
+			case RENAME:
+				lastEventTime = ((Event.RenameEvent) event).getTimestamp();
+				cache.invalidateTree(((Event.RenameEvent) event).getSrcPath(), lastEventTime);
+				cache.invalidateTree(((Event.RenameEvent) event).getDstPath(), lastEventTime);
+				break;
+			case UNLINK:
+				lastEventTime = ((Event.UnlinkEvent) event).getTimestamp();
+				cache.invalidateTree(((Event.UnlinkEvent) event).getPath(), lastEventTime);
+				break;
+			default:
+				cache.flush();
+				resetChangeIndex();
+		}
+	}
+}
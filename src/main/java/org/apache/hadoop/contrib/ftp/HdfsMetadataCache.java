@@ -0,0 +1,378 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gateway-side cache of FileStatus objects and directory listings.
+ * Entries live for a configurable TTL and are dropped earlier by gateway
+ * writes and by {@link HdfsInotifyTailer}. A TTL of 0 disables caching.
+ * Invalidations are passed on to the {@link ChangeIndex} and the
+ * {@link ListingPrefetcher}, if there are any.
+ * Uploads waiting in the {@link UploadSpool} show over the HDFS metadata.
+ */
+public class HdfsMetadataCache {
+
+	private final long ttl;
+
+	private final int maxEntries;
+
+	private final ConcurrentHashMap<String, Entry<FileStatus>> statuses = new ConcurrentHashMap<String, Entry<FileStatus>>();
+
+	private final ConcurrentHashMap<String, Entry<FileStatus[]>> listings = new ConcurrentHashMap<String, Entry<FileStatus[]>>();
+
+	/**
+	 * Constructs the cache
+	 *
+	 * @param ttl        time to live of an entry in milliseconds, 0 disables caching
+	 * @param maxEntries maximum number of statuses and listings kept
+	 */
+	public HdfsMetadataCache(long ttl, int maxEntries) {
+		this.ttl = ttl;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Checks if the cache is enabled
+	 *
+	 * @return true if entries are cached at all
+	 */
+	public boolean isEnabled() {
+		return ttl > 0;
+	}
+
+	/**
+	 * Get status of the path, from the cache if possible
+	 *
+	 * @param path path to get status of
+	 * @return status of the path
+	 * @throws FileNotFoundException if the path does not exist
+	 */
+	public FileStatus getFileStatus(Path path) throws IOException, InterruptedException {
+		UploadSpool spool = HdfsOverFtpSystem.getUploadSpool();
+		if (spool != null) {
+			FileStatus spooled = spool.getFileStatus(key(path));
+			if (spooled != null) {
+				return spooled;
+			}
+		}
+		if (!isEnabled()) {
+			return fetchFileStatus(path);
+		}
+
+		String key = key(path);
+		Entry<FileStatus> entry = statuses.get(key);
+		if (entry != null && entry.isValid()) {
+			if (entry.value == null) {
+				throw new FileNotFoundException("File does not exist: " + key);
+			}
+			return entry.value;
+		}
+
+		Entry<FileStatus> pending = reserve(statuses, key);
+		try {
+			FileStatus status = fetchFileStatus(path);
+			statuses.replace(key, pending, new Entry<FileStatus>(status));
+			return status;
+		} catch (FileNotFoundException e) {
+			statuses.replace(key, pending, new Entry<FileStatus>(null));
+			throw e;
+		} finally {
+			statuses.remove(key, pending);
+		}
+	}
+
+	/**
+	 * List the directory, from the cache if possible. A fetched listing also
+	 * fills the status cache for every entry of the directory.
+	 *
+	 * @param path directory to list
+	 * @return statuses of the directory entries
+	 */
+	public FileStatus[] listStatus(Path path) throws IOException, InterruptedException {
+		UploadSpool spool = HdfsOverFtpSystem.getUploadSpool();
+		FileStatus[] fileStats = listStatus(key(path), path);
+		return spool != null ? spool.overlay(key(path), fileStats) : fileStats;
+	}
+
+	private FileStatus[] listStatus(String key, Path path) throws IOException, InterruptedException {
+		if (!isEnabled()) {
+			return fetchListing(path);
+		}
+
+		Entry<FileStatus[]> entry = listings.get(key);
+		if (entry != null && entry.isValid()) {
+			return entry.value;
+		}
+
+		Entry<FileStatus[]> pending = reserve(listings, key);
+		try {
+			FileStatus[] fileStats = fetchListing(path);
+			Entry<FileStatus[]> listing = new Entry<FileStatus[]>(fileStats);
+			if (listings.replace(key, pending, listing) && fileStats.length < maxEntries / 2) {
+				putChildren(key, listing);
+			}
+			return fileStats;
+		} finally {
+			listings.remove(key, pending);
+		}
+	}
+
+	/**
+	 * Fill the status cache with the entries of a listing just stored
+	 */
+	private void putChildren(String key, Entry<FileStatus[]> listing) {
+		makeRoom(listing.value.length);
+		List<String> keys = new ArrayList<String>(listing.value.length);
+		List<Entry<FileStatus>> children = new ArrayList<Entry<FileStatus>>(listing.value.length);
+		for (FileStatus fileStat : listing.value) {
+			Entry<FileStatus> child = new Entry<FileStatus>(fileStat);
+			keys.add(key(fileStat.getPath()));
+			children.add(child);
+			statuses.put(keys.get(keys.size() - 1), child);
+		}
+		if (listings.get(key) != listing) {
+			// an entry changed while the statuses were stored, the change
+			// dropped the listing and maybe not yet all of them
+			for (int i = 0; i < keys.size(); i++) {
+				statuses.remove(keys.get(i), children.get(i));
+			}
+		}
+	}
+
+	private static FileStatus fetchFileStatus(final Path path) throws IOException, InterruptedException {
+		final FileSystem dfs = HdfsOverFtpSystem.getDfs();
+		return HdfsOverFtpSystem.getNameNodeGuard().call("status", path, new Callable<FileStatus>() {
+			@Override
+			public FileStatus call() throws Exception {
+				return dfs.getFileStatus(path);
+			}
+		});
+	}
+
+	private static FileStatus[] fetchListing(final Path path) throws IOException, InterruptedException {
+		final FileSystem dfs = HdfsOverFtpSystem.getDfs();
+		return HdfsOverFtpSystem.getNameNodeGuard().call("list", path, new Callable<FileStatus[]>() {
+			@Override
+			public FileStatus[] call() throws Exception {
+				return dfs.listStatus(path);
+			}
+		});
+	}
+
+	/**
+	 * Drop the path and the listing of its parent
+	 *
+	 * @param path changed path
+	 */
+	public void invalidate(String path) {
+		invalidate(path, -1);
+	}
+
+	/**
+	 * Drop the path and the listing of its parent
+	 *
+	 * @param path changed path
+	 * @param time NameNode time of the change, negative if not known
+	 */
+	public void invalidate(String path, long time) {
+		drop(path);
+		changed(path, false, time);
+		prefetched(path, false);
+	}
+
+	private void drop(String path) {
+		statuses.remove(path);
+		listings.remove(path);
+
+		String parent = parentOf(path);
+		if (parent != null) {
+			statuses.remove(parent);
+			listings.remove(parent);
+		}
+	}
+
+	/**
+	 * Drop the path, everything below it and the listing of its parent
+	 *
+	 * @param path changed path
+	 */
+	public void invalidateTree(String path) {
+		invalidateTree(path, -1);
+	}
+
+	/**
+	 * Drop the path, everything below it and the listing of its parent
+	 *
+	 * @param path changed path
+	 * @param time NameNode time of the change, negative if not known
+	 */
+	public void invalidateTree(String path, long time) {
+		drop(path);
+		String prefix = path.endsWith("/") ? path : path + "/";
+		removePrefix(statuses, prefix);
+		removePrefix(listings, prefix);
+		changed(path, true, time);
+		prefetched(path, true);
+	}
+
+	public void invalidate(Path path) {
+		invalidate(key(path));
+	}
+
+	public void invalidateTree(Path path) {
+		invalidateTree(key(path));
+	}
+
+	/**
+	 * Drop all entries
+	 */
+	public void flush() {
+		statuses.clear();
+		listings.clear();
+		ListingPrefetcher prefetcher = HdfsOverFtpSystem.getListingPrefetcher();
+		if (prefetcher != null) {
+			prefetcher.flush();
+		}
+	}
+
+	/**
+	 * Get the number of cached statuses and listings
+	 *
+	 * @return number of entries
+	 */
+	public int size() {
+		return statuses.size() + listings.size();
+	}
+
+	private static void changed(String path, boolean tree, long time) {
+		ChangeIndex index = HdfsOverFtpSystem.getChangeIndex();
+		if (index != null) {
+			index.changed(path, tree, time);
+		}
+	}
+
+	private static void prefetched(String path, boolean tree) {
+		ListingPrefetcher prefetcher = HdfsOverFtpSystem.getListingPrefetcher();
+		if (prefetcher != null) {
+			prefetcher.invalidate(path, tree);
+		}
+	}
+
+	/**
+	 * Store a placeholder for a value about to be fetched. Invalidations
+	 * remove it like any entry, so a fetched value only replaces it if the
+	 * path did not change while it was fetched.
+	 */
+	private <T> Entry<T> reserve(ConcurrentHashMap<String, Entry<T>> map, String key) {
+		makeRoom(1);
+		Entry<T> pending = new Entry<T>();
+		map.put(key, pending);
+		return pending;
+	}
+
+	private void makeRoom(int count) {
+		if (size() + count <= maxEntries) {
+			return;
+		}
+		evictExpired();
+		// evict a tenth more than needed, so that a full cache does not
+		// scan its entries again on every fetch
+		int target = maxEntries - maxEntries / 10 - count;
+		evict(statuses, target);
+		evict(listings, target);
+	}
+
+	private void evictExpired() {
+		for (Iterator<Entry<FileStatus>> it = statuses.values().iterator(); it.hasNext(); ) {
+			if (it.next().isExpired()) {
+				it.remove();
+			}
+		}
+		for (Iterator<Entry<FileStatus[]>> it = listings.values().iterator(); it.hasNext(); ) {
+			if (it.next().isExpired()) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Evict entries in hash order, which is as good as random, until at most
+	 * target entries are left
+	 */
+	private void evict(ConcurrentHashMap<String, ?> map, int target) {
+		for (Iterator<String> it = map.keySet().iterator(); it.hasNext() && size() > target; ) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	private static void removePrefix(ConcurrentHashMap<String, ?> map, String prefix) {
+		for (Iterator<String> it = map.keySet().iterator(); it.hasNext(); ) {
+			if (it.next().startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Get the cache key of the path: the path without scheme and authority,
+	 * as listings return qualified paths and inotify returns bare ones
+	 */
+	static String key(Path path) {
+		String key = path.toUri().getPath();
+		if (key.length() > 1 && key.endsWith("/")) {
+			key = key.substring(0, key.length() - 1);
+		}
+		return key;
+	}
+
+	/**
+	 * Get the parent of a cache key
+	 */
+	static String parentOf(String path) {
+		int pos = path.lastIndexOf('/');
+		if (pos < 0 || path.length() == 1) {
+			return null;
+		}
+		return pos == 0 ? "/" : path.substring(0, pos);
+	}
+
+	private class Entry<T> {
+		private final T value;
+		private final long expires;
+		private final boolean pending;
+
+		Entry(T value) {
+			this.value = value;
+			this.expires = System.currentTimeMillis() + ttl;
+			this.pending = false;
+		}
+
+		/**
+		 * Placeholder of a value being fetched
+		 */
+		Entry() {
+			this.value = null;
+			this.expires = System.currentTimeMillis() + ttl;
+			this.pending = true;
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() > expires;
+		}
+
+		boolean isValid() {
+			return !pending && !isExpired();
+		}
+	}
+}
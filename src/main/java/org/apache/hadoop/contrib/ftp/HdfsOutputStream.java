@@ -0,0 +1,105 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output stream returned for uploads. It keeps the gateway state of the
+ * written file consistent once the upload is closed.
+ */
+public class HdfsOutputStream extends OutputStream {
+
+	private final FSDataOutputStream out;
+
+	private final Path path;
+
+	private final List<Listener> listeners = new ArrayList<Listener>();
+
+	private long written = 0;
+
+	private boolean closed = false;
+
+	/**
+	 * Called after the upload is closed, also when closing it failed
+	 */
+	public interface Listener {
+		void closed(Path path, long length, boolean success) throws IOException;
+	}
+
+	/**
+	 * Constructs the stream
+	 *
+	 * @param out  HDFS stream to write to
+	 * @param path path of the written file
+	 */
+	public HdfsOutputStream(FSDataOutputStream out, Path path) {
+		this.out = out;
+		this.path = path;
+	}
+
+	/**
+	 * Add a listener called after the upload is closed
+	 *
+	 * @param listener
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		written++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		written += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			out.close();
+			success = true;
+		} finally {
+			CommandTrace.record("close", path, start);
+			HdfsOverFtpSystem.getMetadataCache().invalidate(path);
+			notifyListeners(success);
+		}
+	}
+
+	private void notifyListeners(boolean success) throws IOException {
+		IOException failure = null;
+		for (Listener listener : listeners) {
+			try {
+				listener.closed(path, written, success);
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		// the failure of the close itself is thrown instead
+		if (failure != null && success) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.metrics2.lib.Interns;
+import org.apache.hadoop.metrics2.lib.MetricsRegistry;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.apache.hadoop.metrics2.lib.MutableMetric;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metrics of the gateway, published through the Hadoop metrics system
+ * (JMX and the sinks of hadoop-metrics2.properties)
+ */
+public class HdfsOverFtpMetrics implements MetricsSource {
+
+	private static final HdfsOverFtpMetrics INSTANCE = new HdfsOverFtpMetrics();
+
+	private final MetricsRegistry registry = new MetricsRegistry("HdfsOverFtp");
+
+	private final Map<String, GaugeEntry> gauges = new ConcurrentHashMap<String, GaugeEntry>();
+
+	/**
+	 * Value of a gauge, read when metrics are collected
+	 */
+	public interface Gauge {
+		long getValue();
+	}
+
+	private HdfsOverFtpMetrics() {
+	}
+
+	/**
+	 * Get metrics of the gateway
+	 *
+	 * @return metrics
+	 */
+	public static HdfsOverFtpMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Start the metrics system and publish the gateway metrics
+	 */
+	public static void start() {
+		DefaultMetricsSystem.initialize("hdfs-over-ftp");
+		DefaultMetricsSystem.instance().register("HdfsOverFtp", "HDFS over FTP gateway", INSTANCE);
+	}
+
+	/**
+	 * Get a counter, creating it on first use
+	 *
+	 * @param name        name of the counter
+	 * @param description description of the counter
+	 * @return counter
+	 */
+	public MutableCounterLong counter(String name, String description) {
+		synchronized (registry) {
+			MutableMetric metric = registry.get(name);
+			if (metric != null) {
+				return (MutableCounterLong) metric;
+			}
+			return registry.newCounter(name, description, 0L);
+		}
+	}
+
+	/**
+	 * Register a gauge, replacing a gauge of the same name
+	 *
+	 * @param name        name of the gauge
+	 * @param description description of the gauge
+	 * @param gauge       value of the gauge
+	 */
+	public void gauge(String name, String description, Gauge gauge) {
+		gauges.put(name, new GaugeEntry(description, gauge));
+	}
+
+	@Override
+	public void getMetrics(MetricsCollector collector, boolean all) {
+		MetricsRecordBuilder builder = collector.addRecord("HdfsOverFtp");
+		synchronized (registry) {
+			registry.snapshot(builder, all);
+		}
+		for (Map.Entry<String, GaugeEntry> entry : gauges.entrySet()) {
+			builder.addGauge(Interns.info(entry.getKey(), entry.getValue().description),
+					entry.getValue().gauge.getValue());
+		}
+	}
+
+	private static class GaugeEntry {
+		final String description;
+		final Gauge gauge;
+
+		GaugeEntry(String description, Gauge gauge) {
+			this.description = description;
+			this.gauge = gauge;
+		}
+	}
+}
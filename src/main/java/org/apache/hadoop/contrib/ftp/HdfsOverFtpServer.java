@@ -3,14 +3,24 @@ package org.apache.hadoop.contrib.ftp;
 import org.apache.ftpserver.DataConnectionConfigurationFactory;
 import org.apache.ftpserver.FtpServer;
 import org.apache.ftpserver.FtpServerFactory;
+import org.apache.ftpserver.command.CommandFactoryFactory;
+import org.apache.ftpserver.ftplet.Ftplet;
+import org.apache.ftpserver.listener.Listener;
 import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.ftpserver.util.BaseProperties;
+import org.apache.hadoop.hdfs.DFSHedgedReadMetrics;
 import org.apache.log4j.Logger;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Start-up class of FTP server
@@ -19,22 +29,24 @@ public class HdfsOverFtpServer {
 
 	private static Logger log = Logger.getLogger(HdfsOverFtpServer.class);
 
-	private static int port = 0;
-	private static int sslPort = 0;
-	private static String passivePorts = null;
-	private static String sslPassivePorts = null;
+	private static final String LISTENER_PREFIX = "listener.";
+
 	private static String hdfsUri = null;
+	private static BaseProperties props = null;
+	private static List<String> listeners = new ArrayList<String>();
 
 	public static void main(String[] args) throws Exception {
 		loadConfig();
 
-		if (port != 0) {
-			startServer();
+		if (listeners.isEmpty()) {
+			log.fatal("no listeners are configured");
+			System.exit(1);
 		}
+		startServer();
 
-		if (sslPort != 0) {
-			startSSLServer();
-		}
+		startInotifyTailer();
+
+		startMetrics();
 	}
 
 	/**
@@ -43,35 +55,40 @@ public class HdfsOverFtpServer {
 	 * @throws IOException
 	 */
 	private static void loadConfig() throws IOException {
-		Properties props = new Properties();
-		props.load(loadResource("/hdfs-over-ftp.properties"));
+		BaseProperties properties = new BaseProperties();
+		properties.load(loadResource("/hdfs-over-ftp.properties"));
+		configure(properties);
+	}
 
-		try {
-			port = Integer.parseInt(props.getProperty("port"));
-			log.info("port is set. ftp server will be started");
-		} catch (Exception e) {
-			log.info("port is not set. so ftp server will not be started");
-		}
+	/**
+	 * Apply configuration
+	 *
+	 * @param properties settings of hdfs-over-ftp.properties
+	 * @throws IOException
+	 */
+	static void configure(BaseProperties properties) throws IOException {
+		props = properties;
+		listeners.clear();
 
-		try {
-			sslPort = Integer.parseInt(props.getProperty("ssl-port"));
-			log.info("ssl-port is set. ssl server will be started");
-		} catch (Exception e) {
-			log.info("ssl-port is not set. so ssl server will not be started");
+		String names = props.getProperty("listeners");
+		if (names != null) {
+			for (String name : names.split(",")) {
+				if (name.trim().length() > 0) {
+					listeners.add(name.trim());
+				}
+			}
+		} else {
+			convertLegacyListeners();
 		}
 
-		if (port != 0) {
-			passivePorts = props.getProperty("data-ports");
-			if (passivePorts == null) {
-				log.fatal("data-ports is not set");
+		for (String name : listeners) {
+			String prefix = LISTENER_PREFIX + name + '.';
+			if (props.getInteger(prefix + "port", 0) == 0) {
+				log.fatal(prefix + "port is not set");
 				System.exit(1);
 			}
-		}
-
-		if (sslPort != 0) {
-			sslPassivePorts = props.getProperty("ssl-data-ports");
-			if (sslPassivePorts == null) {
-				log.fatal("ssl-data-ports is not set");
+			if (props.getProperty(prefix + "data-ports") == null) {
+				log.fatal(prefix + "data-ports is not set");
 				System.exit(1);
 			}
 		}
@@ -81,6 +98,7 @@ public class HdfsOverFtpServer {
 			log.fatal("hdfs-uri is not set");
 			System.exit(1);
 		}
+		HdfsOverFtpSystem.setHDFS_URI(hdfsUri);
 
 		String superuser = props.getProperty("superuser");
 		if (superuser == null) {
@@ -88,41 +106,401 @@ public class HdfsOverFtpServer {
 			System.exit(1);
 		}
 		HdfsOverFtpSystem.setSuperuser(superuser);
+
+		String groupMapping = props.getString("group-mapping", "static");
+		if (!"static".equals(groupMapping) && !"hadoop".equals(groupMapping)) {
+			log.fatal("group-mapping must be static or hadoop: " + groupMapping);
+			System.exit(1);
+		}
+
+		HdfsOverFtpSystem.setMetadataCache(new HdfsMetadataCache(
+				props.getLong("metadata-cache-ttl", 0),
+				props.getInteger("metadata-cache-max-entries", 100000)));
+
+		Map<String, Long> deadlines = new HashMap<String, Long>();
+		for (String key : props.stringPropertyNames()) {
+			if (key.startsWith("namenode-deadline.")) {
+				deadlines.put(key.substring("namenode-deadline.".length()), props.getLong(key, 0));
+			}
+		}
+		HdfsOverFtpSystem.setNameNodeGuard(new NameNodeGuard(
+				props.getLong("namenode-deadline", 0), deadlines,
+				props.getInteger("namenode-call-threads", 64),
+				props.getInteger("namenode-breaker-failures", 5),
+				props.getLong("namenode-breaker-probe-interval", 5000)));
+
+		if (props.getBoolean("changes-index", false)) {
+			HdfsOverFtpSystem.setChangeIndex(new ChangeIndex(props.getInteger("changes-index-size", 100000)));
+		}
+
+		// any hdfs-conf.<name> setting is passed to the DFS client as <name>
+		for (String key : props.stringPropertyNames()) {
+			if (key.startsWith("hdfs-conf.")) {
+				HdfsOverFtpSystem.setConf(key.substring("hdfs-conf.".length()), props.getProperty(key));
+			}
+		}
+
+		if (props.getProperty("ingest-paths") != null || props.getProperty("ingest-users") != null) {
+			HdfsOverFtpSystem.setFastIngest(new FastIngestManager(
+					props.getProperty("ingest-paths"),
+					props.getProperty("ingest-users"),
+					(short) props.getInteger("ingest-replication", 1),
+					props.getInteger("ingest-restore-threads", 2),
+					props.getLong("ingest-restore-retry", 60000),
+					new File(props.getString("ingest-journal", "log/ingest-restore.journal"))));
+		}
+
+		loadWriteProfiles();
+
+		if (props.getBoolean("segmented-uploads", false)) {
+			HdfsOverFtpSystem.setSegmentedUploads(new SegmentedUploads(
+					props.getLong("segment-timeout", 3600000)));
+		}
+
+		int streamCacheSize = props.getInteger("stream-cache-size", 0);
+		if (streamCacheSize > 0) {
+			HdfsOverFtpSystem.setInputStreamCache(new InputStreamCache(streamCacheSize,
+					props.getLong("stream-cache-idle-timeout", 30000),
+					props.getLong("readahead-min", 64 * 1024),
+					props.getLong("readahead-max", 4 * 1024 * 1024)));
+		}
+
+		if (props.getBoolean("listing-prefetch", false)) {
+			HdfsOverFtpSystem.setListingPrefetcher(new ListingPrefetcher(
+					props.getInteger("listing-prefetch-threads", 8),
+					props.getInteger("listing-prefetch-queue", 64),
+					props.getLong("listing-prefetch-window", 2000)));
+		}
+
+		if (props.getBoolean("hedged-reads", false)) {
+			HdfsOverFtpSystem.setConf("dfs.client.hedged.read.threadpool.size",
+					props.getString("hedged-read-threadpool-size", "16"));
+			HdfsOverFtpSystem.setConf("dfs.client.hedged.read.threshold.millis",
+					props.getString("hedged-read-threshold", "500"));
+			HdfsOverFtpSystem.setPositionalReadSize(props.getInteger("positional-read-size", 1024 * 1024));
+		}
+
+		String spoolDir = props.getProperty("spool-dir");
+		if (spoolDir != null) {
+			HdfsOverFtpSystem.setUploadSpool(new UploadSpool(new File(spoolDir),
+					props.getLong("spool-max-bytes", 1024L * 1024 * 1024),
+					props.getLong("spool-max-file-size", 16 * 1024 * 1024),
+					props.getInteger("spool-threads", 4),
+					props.getBoolean("spool-sync", true),
+					props.getLong("spool-retry-interval", 5000),
+					props.getInteger("spool-max-attempts", 100)));
+		}
+
+		String downloadCacheDir = props.getProperty("download-cache-dir");
+		if (downloadCacheDir != null) {
+			HdfsOverFtpSystem.setDownloadCache(new DownloadCache(new File(downloadCacheDir),
+					props.getLong("download-cache-max-bytes", 10L * 1024 * 1024 * 1024),
+					props.getLong("download-cache-max-file-size", 1024L * 1024 * 1024)));
+		}
+
+		String concatName = props.getProperty("concat-name");
+		if (concatName != null) {
+			HdfsOverFtpSystem.setPartConcatenation(new PartConcatenation(concatName,
+					props.getString("concat-parts", "part-*"),
+					props.getInteger("concat-prefetch-size", 1024 * 1024),
+					props.getInteger("concat-prefetch-threads", 16)));
+		}
+
+		String tarSuffix = props.getProperty("tar-suffix");
+		if (tarSuffix != null) {
+			HdfsOverFtpSystem.setTarDownloads(new TarDownloads(tarSuffix,
+					props.getInteger("tar-parallelism", 8),
+					props.getInteger("tar-read-ahead", 256),
+					props.getInteger("tar-buffer-size", 64 * 1024 * 1024),
+					props.getInteger("tar-max-buffered-file", 4 * 1024 * 1024),
+					props.getInteger("tar-max-memory", 256 * 1024 * 1024),
+					props.getInteger("tar-threads", 32)));
+		}
+
+		String quotaDirs = props.getProperty("quota-dirs");
+		if (quotaDirs != null) {
+			HdfsOverFtpSystem.setQuotaGuard(new QuotaGuard(quotaDirs,
+					props.getLong("quota-cache-ttl", 60000),
+					props.getLong("quota-headroom", 0)));
+		}
+	}
+
+	/**
+	 * Maps the old port/ssl-port settings to listener declarations
+	 */
+	private static void convertLegacyListeners() {
+		if (props.getInteger("port", 0) != 0) {
+			log.info("port is set. ftp listener will be started");
+			props.setProperty(LISTENER_PREFIX + "default.port", props.getProperty("port"));
+			copyProperty("data-ports", LISTENER_PREFIX + "default.data-ports");
+			listeners.add("default");
+		} else {
+			log.info("port is not set. so ftp listener will not be started");
+		}
+
+		if (props.getInteger("ssl-port", 0) != 0) {
+			log.info("ssl-port is set. ssl listener will be started");
+			props.setProperty(LISTENER_PREFIX + "ssl.port", props.getProperty("ssl-port"));
+			copyProperty("ssl-data-ports", LISTENER_PREFIX + "ssl.data-ports");
+			props.setProperty(LISTENER_PREFIX + "ssl.ssl", "implicit");
+			listeners.add("ssl");
+		} else {
+			log.info("ssl-port is not set. so ssl listener will not be started");
+		}
+	}
+
+	private static void copyProperty(String from, String to) {
+		String value = props.getProperty(from);
+		if (value != null) {
+			props.setProperty(to, value);
+		}
 	}
 
 	/**
-	 * Starts FTP server
+	 * Load write profiles from write-profiles and write-profile.&lt;name&gt;.* settings
+	 */
+	private static void loadWriteProfiles() {
+		List<WriteProfile> profiles = new ArrayList<WriteProfile>();
+		String names = props.getProperty("write-profiles");
+		if (names != null) {
+			for (String name : names.split(",")) {
+				name = name.trim();
+				if (name.length() == 0) {
+					continue;
+				}
+				String prefix = "write-profile." + name + '.';
+				WriteProfile profile = new WriteProfile(name,
+						props.getProperty(prefix + "paths"), props.getProperty(prefix + "users"));
+				configureWriteProfile(profile, prefix);
+				profiles.add(profile);
+				log.info("Write profile " + name + ". paths: " + props.getProperty(prefix + "paths")
+						+ " users: " + props.getProperty(prefix + "users"));
+			}
+		}
+
+		WriteProfile defaultProfile = new WriteProfile("default", null, null);
+		configureWriteProfile(defaultProfile, "write-profile.default.");
+		HdfsOverFtpSystem.setWriteProfiles(profiles, defaultProfile);
+	}
+
+	private static void configureWriteProfile(WriteProfile profile, String prefix) {
+		profile.setBlockSize(props.getLong(prefix + "block-size", 0));
+		profile.setBufferSize(props.getInteger(prefix + "buffer-size", 0));
+		profile.setReplication((short) props.getInteger(prefix + "replication", 0));
+		profile.setStoragePolicy(props.getProperty(prefix + "storage-policy"));
+		profile.setAlloMaxBlocks(props.getInteger(prefix + "allo-max-blocks",
+				props.getInteger("allo-max-blocks", 0)));
+		profile.setAlloMaxBlockSize(props.getLong(prefix + "allo-max-block-size",
+				props.getLong("allo-max-block-size", 0)));
+	}
+
+	/**
+	 * Starts FTP server with all configured listeners. The listeners share
+	 * one user manager, one file system and one SSL configuration.
 	 *
+	 * @return started server
 	 * @throws Exception
 	 */
-	public static void startServer() throws Exception {
+	public static FtpServer startServer() throws Exception {
 
-		log.info(
-				"Starting Hdfs-Over-Ftp server. port: " + port + " data-ports: " + passivePorts + " hdfs-uri: " + hdfsUri);
+		log.info("Starting Hdfs-Over-Ftp server. listeners: " + listeners + " hdfs-uri: " + hdfsUri);
 
-		HdfsOverFtpSystem.setHDFS_URI(hdfsUri);
-		
-		HdfsUserManager userManager = new HdfsUserManager();
-		final InputStream file = loadResource("/users.properties");
+		if (HdfsOverFtpSystem.getFastIngest() != null) {
+			HdfsOverFtpSystem.getFastIngest().recover();
+		}
 
-		userManager.setFile(file);
+		if ("hadoop".equals(props.getString("group-mapping", "static"))) {
+			HdfsOverFtpSystem.setGroupMapping(new GroupMappingCache(HdfsOverFtpSystem.getConf(),
+					props.getLong("group-cache-refresh", 300000),
+					props.getLong("group-negative-cache", 30000),
+					props.getInteger("group-refresh-threads", 2)));
+		}
+
+		HdfsUserManager userManager = new HdfsUserManager();
+		userManager.setFile(loadUsers());
 
 		FtpServerFactory serverFactory = new FtpServerFactory();
 		serverFactory.setFileSystem(new HdfsFileSystemManager());
 		serverFactory.setUserManager(userManager);
-		
-        ListenerFactory listenerFactory = new ListenerFactory();
-        
+
+		CommandFactoryFactory commandFactory = new CommandFactoryFactory();
+		commandFactory.addCommand("ALLO", new AlloCommand());
+		commandFactory.addCommand("NLST", new NlstCommand());
+		boolean directTransfer = props.getBoolean("direct-transfer", false);
+		commandFactory.addCommand("RETR", new RetrCommand(!directTransfer ? null
+				: new DirectBufferTransfer(
+						props.getInteger("direct-transfer-buffer-size", 256 * 1024),
+						props.getInteger("direct-transfer-buffers", 32))));
+		ExecutorService manifestListers = TreeManifest.createListers(props.getInteger("manifest-threads", 16));
+		commandFactory.addCommand("SITE_MANIFEST", new SiteManifestCommand(manifestListers,
+				props.getInteger("manifest-parallelism", 4),
+				props.getInteger("manifest-buffer", 1024)));
+		commandFactory.addCommand("SITE_CHANGED", new SiteChangedCommand(manifestListers,
+				props.getInteger("manifest-parallelism", 4),
+				props.getInteger("manifest-buffer", 1024)));
+		if (directTransfer) {
+			serverFactory.setCommandFactory(ChannelDataConnectionFactory.install(commandFactory.createCommandFactory()));
+		} else {
+			serverFactory.setCommandFactory(commandFactory.createCommandFactory());
+		}
+
+		Map<String, Ftplet> ftplets = new LinkedHashMap<String, Ftplet>();
+		double traceSampleRate = Double.parseDouble(props.getProperty("trace-sample-rate", "0"));
+		if (traceSampleRate > 0) {
+			ftplets.put("tracing", new TracingFtplet(traceSampleRate, props.getLong("trace-slow-threshold", 1000)));
+		}
+		ftplets.put("namenode-guard", new NameNodeGuardFtplet(HdfsOverFtpSystem.getNameNodeGuard()));
+		if (HdfsOverFtpSystem.getQuotaGuard() != null) {
+			ftplets.put("quota", new QuotaFtplet(HdfsOverFtpSystem.getQuotaGuard()));
+		}
+		if (props.getBoolean("ssl-protect-data", true)) {
+			ftplets.put("data-protection", new DataProtectionFtplet(props.getProperty("ssl-clear-data-networks")));
+		}
+		String auditDir = props.getProperty("audit-dir");
+		if (auditDir != null) {
+			TransferAuditLog auditLog = new TransferAuditLog(new File(auditDir),
+					props.getInteger("audit-buffer-size", 65536),
+					props.getLong("audit-max-file-size", 100L * 1024 * 1024),
+					props.getInteger("audit-max-files", 10),
+					props.getLong("audit-flush-interval", 1000));
+			auditLog.start();
+			ftplets.put("audit", new AuditFtplet(auditLog));
+
+			final TransferAuditLog droppedLog = auditLog;
+			HdfsOverFtpMetrics.get().gauge("AuditRecordsDropped", "Audit records dropped because the buffer was full",
+					new HdfsOverFtpMetrics.Gauge() {
+						@Override
+						public long getValue() {
+							return droppedLog.getDropped();
+						}
+					});
+		}
+		String postUploadHandlers = props.getProperty("post-upload-handlers");
+		if (postUploadHandlers != null) {
+			List<PostUploadPipeline.Handler> handlers = new ArrayList<PostUploadPipeline.Handler>();
+			for (String name : postUploadHandlers.split(",")) {
+				if (name.trim().length() > 0) {
+					handlers.add(PostUploadPipeline.createHandler(name.trim(),
+							(short) props.getInteger("post-upload-replication", 3),
+							props.getString("post-upload-manifest", "_UPLOADED.")));
+				}
+			}
+			final PostUploadPipeline pipeline = new PostUploadPipeline(handlers,
+					props.getInteger("post-upload-queue", 10000),
+					props.getInteger("post-upload-batch", 1000),
+					props.getLong("post-upload-interval", 10000),
+					props.getInteger("post-upload-retries", 3),
+					props.getLong("post-upload-retry-interval", 1000));
+			pipeline.start();
+			ftplets.put("post-upload", new PostUploadFtplet(pipeline));
+
+			HdfsOverFtpMetrics.get().gauge("PostUploadPending", "Completed uploads waiting for post-upload processing",
+					new HdfsOverFtpMetrics.Gauge() {
+						@Override
+						public long getValue() {
+							return pipeline.size();
+						}
+					});
+		}
+		serverFactory.setFtplets(ftplets);
+
+		MySslConfiguration ssl = null;
+		for (String name : listeners) {
+			String prefix = LISTENER_PREFIX + name + '.';
+			String sslMode = props.getString(prefix + "ssl", "none");
+			if (ssl == null && !"none".equalsIgnoreCase(sslMode)) {
+				ssl = createSslConfiguration();
+			}
+			serverFactory.addListener(name, createListener(name, ssl));
+		}
+
+		FtpServer server = serverFactory.createServer();
+
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Creates listener from listener.&lt;name&gt;.* settings
+	 *
+	 * @param name name of the listener
+	 * @param ssl  shared SSL configuration
+	 * @return listener
+	 */
+	private static Listener createListener(String name, MySslConfiguration ssl) {
+		String prefix = LISTENER_PREFIX + name + '.';
+		int port = props.getInteger(prefix + "port", 0);
+		String passivePorts = props.getProperty(prefix + "data-ports");
+		String sslMode = props.getString(prefix + "ssl", "none");
+
+		log.info("Listener " + name + ". port: " + port + " data-ports: " + passivePorts + " ssl: " + sslMode);
+
+		ListenerFactory listenerFactory = new ListenerFactory();
+
 		DataConnectionConfigurationFactory dataConFactory = new DataConnectionConfigurationFactory();
 		dataConFactory.setPassivePorts(passivePorts);
-		
+		String passiveAddress = props.getProperty(prefix + "passive-address");
+		if (passiveAddress != null) {
+			dataConFactory.setPassiveExternalAddress(passiveAddress);
+		}
+
+		String address = props.getProperty(prefix + "address");
+		if (address != null) {
+			listenerFactory.setServerAddress(address);
+		}
 		listenerFactory.setPort(port);
+		listenerFactory.setIdleTimeout(props.getInteger(prefix + "idle-timeout", 300));
+
+		if ("implicit".equalsIgnoreCase(sslMode)) {
+			dataConFactory.setImplicitSsl(true);
+			listenerFactory.setImplicitSsl(true);
+			listenerFactory.setSslConfiguration(ssl);
+		} else if ("explicit".equalsIgnoreCase(sslMode)) {
+			listenerFactory.setSslConfiguration(ssl);
+		} else if (!"none".equalsIgnoreCase(sslMode)) {
+			log.fatal(prefix + "ssl has to be none, implicit or explicit");
+			System.exit(1);
+		}
 		listenerFactory.setDataConnectionConfiguration(dataConFactory.createDataConnectionConfiguration());
-        
-		serverFactory.addListener("default", listenerFactory.createListener());
-		FtpServer server = serverFactory.createServer();
 
-		server.start();
+		return listenerFactory.createListener();
+	}
+
+	/**
+	 * Creates SSL configuration from ssl-* settings
+	 *
+	 * @return SSL configuration
+	 */
+	private static MySslConfiguration createSslConfiguration() {
+		MySslConfiguration ssl = new MySslConfiguration();
+		ssl.setKeystoreFile(new File(props.getString("ssl-keystore", "ftp.jks")));
+		ssl.setKeystoreType(props.getString("ssl-keystore-type", "JKS"));
+		ssl.setKeystorePassword(props.getString("ssl-keystore-password", "333333"));
+		ssl.setKeyPassword(props.getString("ssl-key-password", ssl.getKeystorePassword()));
+		ssl.setSslProtocol(props.getString("ssl-protocol", "TLS"));
+		ssl.setSessionCacheSize(props.getInteger("ssl-session-cache-size", 10000));
+		ssl.setSessionTimeout(props.getInteger("ssl-session-timeout", 3600));
+
+		String cipherSuites = props.getProperty("ssl-cipher-suites");
+		if (cipherSuites != null) {
+			ssl.setEnabledCipherSuites(cipherSuites.trim().split("\\s*,\\s*"));
+		}
+		return ssl;
+	}
+
+	/**
+	 * Opens users file. users-file setting points to a file on disk,
+	 * otherwise users.properties is loaded from the classpath.
+	 *
+	 * @return stream of the users file
+	 * @throws IOException
+	 */
+	private static InputStream loadUsers() throws IOException {
+		String usersFile = props.getProperty("users-file");
+		if (usersFile != null) {
+			return new FileInputStream(usersFile);
+		}
+		return loadResource("/users.properties");
 	}
 
 	private static InputStream loadResource(String resourceName) {
@@ -134,44 +512,164 @@ public class HdfsOverFtpServer {
 	}
 
 	/**
-	 * Starts SSL FTP server
-	 *
-	 * @throws Exception
+	 * Publishes gateway metrics
 	 */
-	public static void startSSLServer() throws Exception {
+	private static void startMetrics() throws Exception {
+		HdfsOverFtpMetrics metrics = HdfsOverFtpMetrics.get();
 
-		log.info(
-				"Starting Hdfs-Over-Ftp SSL server. ssl-port: " + sslPort + " ssl-data-ports: " + sslPassivePorts + " hdfs-uri: " + hdfsUri);
+		metrics.gauge("MetadataCacheEntries", "Statuses and listings in the metadata cache",
+				new HdfsOverFtpMetrics.Gauge() {
+					@Override
+					public long getValue() {
+						return HdfsOverFtpSystem.getMetadataCache().size();
+					}
+				});
 
+		final GroupMappingCache groupMapping = HdfsOverFtpSystem.getGroupMapping();
+		if (groupMapping != null) {
+			metrics.gauge("GroupCacheEntries", "Users with groups from the group mapping",
+					new HdfsOverFtpMetrics.Gauge() {
+						@Override
+						public long getValue() {
+							return groupMapping.size();
+						}
+					});
+		}
 
-		HdfsOverFtpSystem.setHDFS_URI(hdfsUri);
+		final NameNodeGuard guard = HdfsOverFtpSystem.getNameNodeGuard();
+		metrics.gauge("NameNodeBreakerOpen", "1 while NameNode calls fail at once, 0 otherwise",
+				new HdfsOverFtpMetrics.Gauge() {
+					@Override
+					public long getValue() {
+						return guard.isOpen() ? 1 : 0;
+					}
+				});
 
-		HdfsUserManager userManager = new HdfsUserManager();
-		userManager.setFile(new FileInputStream("users.conf"));
+		final DownloadCache downloads = HdfsOverFtpSystem.getDownloadCache();
+		if (downloads != null) {
+			metrics.gauge("DownloadCacheFiles", "Files in the local download cache",
+					new HdfsOverFtpMetrics.Gauge() {
+						@Override
+						public long getValue() {
+							return downloads.size();
+						}
+					});
+			metrics.gauge("DownloadCacheBytes", "Bytes of files in the local download cache",
+					new HdfsOverFtpMetrics.Gauge() {
+						@Override
+						public long getValue() {
+							return downloads.getBytes();
+						}
+					});
+		}
 
-		FtpServerFactory serverFactory = new FtpServerFactory();
-		serverFactory.setFileSystem(new HdfsFileSystemManager());
-		serverFactory.setUserManager(userManager);
+		final UploadSpool spool = HdfsOverFtpSystem.getUploadSpool();
+		if (spool != null) {
+			metrics.gauge("SpoolPendingFiles", "Spooled uploads waiting for their commit to HDFS",
+					new HdfsOverFtpMetrics.Gauge() {
+						@Override
+						public long getValue() {
+							return spool.size();
+						}
+					});
+			metrics.gauge("SpoolBytes", "Bytes of uploads in the local spool",
+					new HdfsOverFtpMetrics.Gauge() {
+						@Override
+						public long getValue() {
+							return spool.getBytes();
+						}
+					});
+		}
 
-        ListenerFactory listenerFactory = new ListenerFactory();
-        
-		DataConnectionConfigurationFactory dataConFactory = new DataConnectionConfigurationFactory();
-		dataConFactory.setPassivePorts(sslPassivePorts);
-		
-		MySslConfiguration ssl = new MySslConfiguration();
-		ssl.setKeystoreFile(new File("ftp.jks"));
-		ssl.setKeystoreType("JKS");
-		ssl.setKeyPassword("333333");
-		
-		listenerFactory.setPort(sslPort);
-		listenerFactory.setDataConnectionConfiguration(dataConFactory.createDataConnectionConfiguration());
-		listenerFactory.setImplicitSsl(true);
-		listenerFactory.setSslConfiguration(ssl);
-		
-		serverFactory.addListener("default", listenerFactory.createListener());
-		
-		FtpServer server = serverFactory.createServer();
+		final ChangeIndex changes = HdfsOverFtpSystem.getChangeIndex();
+		if (changes != null) {
+			metrics.gauge("ChangeIndexEntries", "Recently changed paths in the change index",
+					new HdfsOverFtpMetrics.Gauge() {
+						@Override
+						public long getValue() {
+							return changes.size();
+						}
+					});
+		}
 
-		server.start();
+		final InputStreamCache streams = HdfsOverFtpSystem.getInputStreamCache();
+		if (streams != null) {
+			metrics.gauge("StreamCacheEntries", "Idle input streams kept open for reuse",
+					new HdfsOverFtpMetrics.Gauge() {
+						@Override
+						public long getValue() {
+							return streams.size();
+						}
+					});
+		}
+
+		final SegmentedUploads uploads = HdfsOverFtpSystem.getSegmentedUploads();
+		if (uploads != null) {
+			metrics.gauge("SegmentedUploads", "Uploads with segments being written or parts waiting to be joined",
+					new HdfsOverFtpMetrics.Gauge() {
+						@Override
+						public long getValue() {
+							return uploads.size();
+						}
+					});
+		}
+
+		final FastIngestManager ingest = HdfsOverFtpSystem.getFastIngest();
+		if (ingest != null) {
+			metrics.gauge("IngestUnderReplicatedBytes", "Bytes of fast-ingest uploads with replication not restored yet",
+					new HdfsOverFtpMetrics.Gauge() {
+						@Override
+						public long getValue() {
+							return ingest.getPendingBytes();
+						}
+					});
+			metrics.gauge("IngestUnderReplicatedFiles", "Fast-ingest uploads with replication not restored yet",
+					new HdfsOverFtpMetrics.Gauge() {
+						@Override
+						public long getValue() {
+							return ingest.getPendingFiles();
+						}
+					});
+		}
+
+		if (HdfsOverFtpSystem.getPositionalReadSize() > 0) {
+			final DFSHedgedReadMetrics hedged = HdfsOverFtpSystem.getHedgedReadMetrics();
+			if (hedged != null) {
+				metrics.gauge("HedgedReadOps", "Positional reads which started a hedged read",
+						new HdfsOverFtpMetrics.Gauge() {
+							@Override
+							public long getValue() {
+								return hedged.getHedgedReadOps();
+							}
+						});
+				metrics.gauge("HedgedReadWins", "Hedged reads which finished before the original read",
+						new HdfsOverFtpMetrics.Gauge() {
+							@Override
+							public long getValue() {
+								return hedged.getHedgedReadWins();
+							}
+						});
+			}
+		}
+
+		HdfsOverFtpMetrics.start();
+	}
+
+	/**
+	 * Starts tailing HDFS inotify events to invalidate the metadata cache
+	 * and to feed the change index
+	 */
+	private static void startInotifyTailer() {
+		HdfsMetadataCache cache = HdfsOverFtpSystem.getMetadataCache();
+		if ((!cache.isEnabled() || !props.getBoolean("metadata-cache-inotify", false))
+				&& HdfsOverFtpSystem.getChangeIndex() == null) {
+			return;
+		}
+
+		log.info("Starting inotify tailer");
+		HdfsInotifyTailer tailer = new HdfsInotifyTailer(cache,
+				props.getLong("metadata-cache-inotify-max-lag", 10000),
+				props.getLong("metadata-cache-inotify-retry", 5000));
+		tailer.start();
 	}
 }
@@ -2,11 +2,20 @@ package org.apache.hadoop.contrib.ftp;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSHedgedReadMetrics;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Class to store DFS connection
@@ -15,6 +24,42 @@ public class HdfsOverFtpSystem {
 
 	private static FileSystem dfs = null;
 
+	private static Configuration conf = null;
+
+	private static HdfsMetadataCache metadataCache = new HdfsMetadataCache(0, 0);
+
+	private static Map<String, String> confOverrides = new HashMap<String, String>();
+
+	private static int positionalReadSize = 0;
+
+	private static FastIngestManager fastIngest = null;
+
+	private static SegmentedUploads segmentedUploads = null;
+
+	private static InputStreamCache inputStreamCache = null;
+
+	private static GroupMappingCache groupMapping = null;
+
+	private static ListingPrefetcher listingPrefetcher = null;
+
+	private static ChangeIndex changeIndex = null;
+
+	private static UploadSpool uploadSpool = null;
+
+	private static DownloadCache downloadCache = null;
+
+	private static PartConcatenation partConcatenation = null;
+
+	private static TarDownloads tarDownloads = null;
+
+	private static QuotaGuard quotaGuard = null;
+
+	private static NameNodeGuard nameNodeGuard = new NameNodeGuard(0, Collections.<String, Long>emptyMap(), 0, 0, 0);
+
+	private static List<WriteProfile> writeProfiles = new ArrayList<WriteProfile>();
+
+	private static WriteProfile defaultWriteProfile = new WriteProfile("default", null, null);
+
 	public static String HDFS_URI = "";
 
 	private static String superuser = "error";
@@ -24,8 +69,11 @@ public class HdfsOverFtpSystem {
 
 
 	private static void hdfsInit() throws IOException, InterruptedException {
-		Configuration conf = new Configuration();
+		conf = new Configuration();
 		conf.set("hadoop.job.ugi", superuser + "," + supergroup);
+		for (Map.Entry<String, String> entry : confOverrides.entrySet()) {
+			conf.set(entry.getKey(), entry.getValue());
+		}
 		try {
 			conf.set("fs.defaultFS", "hdfs://192.168.1.120:9000");
 			dfs = FileSystem.get(URI.create(HDFS_URI), conf, superuser);
@@ -52,6 +100,311 @@ public class HdfsOverFtpSystem {
 		return dfs;
 	}
 
+	/**
+	 * Get configuration used to connect to DFS
+	 *
+	 * @return configuration of the DFS client
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static Configuration getConf() throws IOException, InterruptedException {
+		getDfs();
+		return conf;
+	}
+
+	/**
+	 * Set a DFS client setting. Must be called before DFS is initialized.
+	 *
+	 * @param name  name of the setting
+	 * @param value value of the setting
+	 */
+	public static void setConf(String name, String value) {
+		confOverrides.put(name, value);
+	}
+
+	/**
+	 * Get size of positional reads used for downloads
+	 *
+	 * @return size of a positional read, 0 if downloads use stateful reads
+	 */
+	public static int getPositionalReadSize() {
+		return positionalReadSize;
+	}
+
+	/**
+	 * Set size of positional reads used for downloads. Positional reads are
+	 * the ones DFSClient hedges.
+	 *
+	 * @param positionalReadSize size of a positional read, 0 to use stateful reads
+	 */
+	public static void setPositionalReadSize(int positionalReadSize) {
+		HdfsOverFtpSystem.positionalReadSize = positionalReadSize;
+	}
+
+	/**
+	 * Get fast-ingest upload mode
+	 *
+	 * @return fast-ingest mode, null if it is disabled
+	 */
+	public static FastIngestManager getFastIngest() {
+		return fastIngest;
+	}
+
+	/**
+	 * Set fast-ingest upload mode
+	 *
+	 * @param fastIngest fast-ingest mode, null to disable it
+	 */
+	public static void setFastIngest(FastIngestManager fastIngest) {
+		HdfsOverFtpSystem.fastIngest = fastIngest;
+	}
+
+	/**
+	 * Get registry of segmented uploads
+	 *
+	 * @return segmented uploads, null if REST offsets of uploads are ignored
+	 */
+	public static SegmentedUploads getSegmentedUploads() {
+		return segmentedUploads;
+	}
+
+	/**
+	 * Set registry of segmented uploads
+	 *
+	 * @param segmentedUploads segmented uploads, null to ignore REST offsets of uploads
+	 */
+	public static void setSegmentedUploads(SegmentedUploads segmentedUploads) {
+		HdfsOverFtpSystem.segmentedUploads = segmentedUploads;
+	}
+
+	/**
+	 * Get cache of open input streams
+	 *
+	 * @return input stream cache, null if every download opens the file
+	 */
+	public static InputStreamCache getInputStreamCache() {
+		return inputStreamCache;
+	}
+
+	/**
+	 * Set cache of open input streams
+	 *
+	 * @param inputStreamCache input stream cache, null to open the file for every download
+	 */
+	public static void setInputStreamCache(InputStreamCache inputStreamCache) {
+		HdfsOverFtpSystem.inputStreamCache = inputStreamCache;
+	}
+
+	/**
+	 * Get groups resolved with the Hadoop group mapping
+	 *
+	 * @return group mapping cache, null if groups come from the users file
+	 */
+	public static GroupMappingCache getGroupMapping() {
+		return groupMapping;
+	}
+
+	/**
+	 * Set groups resolved with the Hadoop group mapping
+	 *
+	 * @param groupMapping group mapping cache, null to take groups from the users file
+	 */
+	public static void setGroupMapping(GroupMappingCache groupMapping) {
+		HdfsOverFtpSystem.groupMapping = groupMapping;
+	}
+
+	/**
+	 * Get prefetcher of listings on CWD
+	 *
+	 * @return listing prefetcher, null if listings are not prefetched
+	 */
+	public static ListingPrefetcher getListingPrefetcher() {
+		return listingPrefetcher;
+	}
+
+	/**
+	 * Set prefetcher of listings on CWD
+	 *
+	 * @param listingPrefetcher listing prefetcher, null to disable prefetching
+	 */
+	public static void setListingPrefetcher(ListingPrefetcher listingPrefetcher) {
+		HdfsOverFtpSystem.listingPrefetcher = listingPrefetcher;
+	}
+
+	/**
+	 * Get index of recently changed paths
+	 *
+	 * @return change index, null if changes are not indexed
+	 */
+	public static ChangeIndex getChangeIndex() {
+		return changeIndex;
+	}
+
+	/**
+	 * Set index of recently changed paths
+	 *
+	 * @param changeIndex change index, null to disable indexing
+	 */
+	public static void setChangeIndex(ChangeIndex changeIndex) {
+		HdfsOverFtpSystem.changeIndex = changeIndex;
+	}
+
+	/**
+	 * Get write-behind spool of uploads
+	 *
+	 * @return upload spool, null if uploads go to HDFS directly
+	 */
+	public static UploadSpool getUploadSpool() {
+		return uploadSpool;
+	}
+
+	/**
+	 * Set write-behind spool of uploads
+	 *
+	 * @param uploadSpool upload spool, null to write uploads to HDFS directly
+	 */
+	public static void setUploadSpool(UploadSpool uploadSpool) {
+		HdfsOverFtpSystem.uploadSpool = uploadSpool;
+	}
+
+	/**
+	 * Get local disk cache of downloads
+	 *
+	 * @return download cache, null if downloads are not cached
+	 */
+	public static DownloadCache getDownloadCache() {
+		return downloadCache;
+	}
+
+	/**
+	 * Set local disk cache of downloads
+	 *
+	 * @param downloadCache download cache, null to read downloads from HDFS
+	 */
+	public static void setDownloadCache(DownloadCache downloadCache) {
+		HdfsOverFtpSystem.downloadCache = downloadCache;
+	}
+
+	/**
+	 * Get concatenated downloads of part files
+	 *
+	 * @return part concatenation, null if there is no virtual concatenated file
+	 */
+	public static PartConcatenation getPartConcatenation() {
+		return partConcatenation;
+	}
+
+	/**
+	 * Set concatenated downloads of part files
+	 *
+	 * @param partConcatenation part concatenation, null to disable the virtual concatenated file
+	 */
+	public static void setPartConcatenation(PartConcatenation partConcatenation) {
+		HdfsOverFtpSystem.partConcatenation = partConcatenation;
+	}
+
+	/**
+	 * Get downloads of directory trees as tar archives
+	 *
+	 * @return tar downloads, null if directories cannot be downloaded as archives
+	 */
+	public static TarDownloads getTarDownloads() {
+		return tarDownloads;
+	}
+
+	/**
+	 * Set downloads of directory trees as tar archives
+	 *
+	 * @param tarDownloads tar downloads, null to disable the virtual archives
+	 */
+	public static void setTarDownloads(TarDownloads tarDownloads) {
+		HdfsOverFtpSystem.tarDownloads = tarDownloads;
+	}
+
+	/**
+	 * Get quota checks of uploads
+	 *
+	 * @return quota guard, null if uploads are not checked against quotas
+	 */
+	public static QuotaGuard getQuotaGuard() {
+		return quotaGuard;
+	}
+
+	/**
+	 * Set quota checks of uploads
+	 *
+	 * @param quotaGuard quota guard, null to leave quotas to the NameNode
+	 */
+	public static void setQuotaGuard(QuotaGuard quotaGuard) {
+		HdfsOverFtpSystem.quotaGuard = quotaGuard;
+	}
+
+	/**
+	 * Get guard of NameNode calls
+	 *
+	 * @return NameNode guard
+	 */
+	public static NameNodeGuard getNameNodeGuard() {
+		return nameNodeGuard;
+	}
+
+	/**
+	 * Set guard of NameNode calls
+	 *
+	 * @param nameNodeGuard NameNode guard
+	 */
+	public static void setNameNodeGuard(NameNodeGuard nameNodeGuard) {
+		HdfsOverFtpSystem.nameNodeGuard = nameNodeGuard;
+	}
+
+	/**
+	 * Get write profile of the upload
+	 *
+	 * @param path path of the upload
+	 * @param user uploading user
+	 * @return first matching write profile, or the default one
+	 */
+	public static WriteProfile getWriteProfile(Path path, HdfsUser user) {
+		for (WriteProfile profile : writeProfiles) {
+			if (profile.matches(path, user)) {
+				return profile;
+			}
+		}
+		return defaultWriteProfile;
+	}
+
+	/**
+	 * Set write profiles
+	 *
+	 * @param writeProfiles        profiles in order of precedence
+	 * @param defaultWriteProfile  profile of uploads no other profile matches
+	 */
+	public static void setWriteProfiles(List<WriteProfile> writeProfiles, WriteProfile defaultWriteProfile) {
+		HdfsOverFtpSystem.writeProfiles = writeProfiles;
+		HdfsOverFtpSystem.defaultWriteProfile = defaultWriteProfile;
+	}
+
+	/**
+	 * Get hedged read metrics of the DFS client
+	 *
+	 * @return hedged read metrics, null if they are not available
+	 */
+	public static DFSHedgedReadMetrics getHedgedReadMetrics() {
+		try {
+			FileSystem fs = getDfs();
+			if (!(fs instanceof DistributedFileSystem)) {
+				return null;
+			}
+			// not public in DFSClient of hadoop 2.7
+			Method method = ((DistributedFileSystem) fs).getClient().getClass().getDeclaredMethod("getHedgedReadMetrics");
+			method.setAccessible(true);
+			return (DFSHedgedReadMetrics) method.invoke(((DistributedFileSystem) fs).getClient());
+		} catch (Exception e) {
+			log.warn("Hedged read metrics are not available", e);
+			return null;
+		}
+	}
+
 	/**
 	 * Set superuser. and we connect to DFS as a superuser
 	 *
@@ -61,6 +414,33 @@ public class HdfsOverFtpSystem {
 		HdfsOverFtpSystem.superuser = superuser;
 	}
 
+	/**
+	 * Get superuser we connect to DFS as
+	 *
+	 * @return superuser
+	 */
+	public static String getSuperuser() {
+		return superuser;
+	}
+
+	/**
+	 * Get metadata cache shared by all sessions
+	 *
+	 * @return metadata cache
+	 */
+	public static HdfsMetadataCache getMetadataCache() {
+		return metadataCache;
+	}
+
+	/**
+	 * Set metadata cache shared by all sessions
+	 *
+	 * @param metadataCache
+	 */
+	public static void setMetadataCache(HdfsMetadataCache metadataCache) {
+		HdfsOverFtpSystem.metadataCache = metadataCache;
+	}
+
 //  public static String dirList(String path) throws IOException {
 //    String res = "";
 //
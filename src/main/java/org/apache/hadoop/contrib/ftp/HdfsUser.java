@@ -7,7 +7,10 @@ import org.apache.log4j.Logger;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Implemented User to add group persmissions
@@ -30,6 +33,12 @@ public class HdfsUser implements User, Serializable {
 
 	private ArrayList<String> groups = new ArrayList<String>();
 
+	private Set<String> groupSet = new HashSet<String>();
+
+	private transient GroupMappingCache groupMapping = null;
+
+	private boolean clearDataAllowed = false;
+
 	private Logger log = Logger.getLogger(HdfsUser.class);
 
 	/**
@@ -51,6 +60,10 @@ public class HdfsUser implements User, Serializable {
 	}
 
 	public ArrayList<String> getGroups() {
+		Set<String> mapped = getMappedGroups();
+		if (!mapped.isEmpty()) {
+			return new ArrayList<String>(mapped);
+		}
 		return groups;
 	}
 
@@ -60,6 +73,10 @@ public class HdfsUser implements User, Serializable {
 	 * @return main group of the user
 	 */
 	public String getMainGroup() {
+		Set<String> mapped = getMappedGroups();
+		if (!mapped.isEmpty()) {
+			return mapped.iterator().next();
+		}
 		if (groups.size() > 0) {
 			return groups.get(0);
 		} else {
@@ -75,12 +92,11 @@ public class HdfsUser implements User, Serializable {
 	 * @return true if the user id a member of the group
 	 */
 	public boolean isGroupMember(String group) {
-		for (String userGroup : groups) {
-			if (userGroup.equals(group)) {
-				return true;
-			}
+		Set<String> mapped = getMappedGroups();
+		if (!mapped.isEmpty()) {
+			return mapped.contains(group);
 		}
-		return false;
+		return groupSet.contains(group);
 	}
 
 	/**
@@ -93,6 +109,42 @@ public class HdfsUser implements User, Serializable {
 			log.error("User " + name + " is not a memer of any group");
 		}
 		this.groups = groups;
+		this.groupSet = new HashSet<String>(groups);
+	}
+
+	/**
+	 * Resolve groups with the Hadoop group mapping. The groups set with
+	 * {@link #setGroups(ArrayList)} are used while the mapping has none.
+	 *
+	 * @param groupMapping group mapping cache
+	 */
+	public void setGroupMapping(GroupMappingCache groupMapping) {
+		this.groupMapping = groupMapping;
+	}
+
+	private Set<String> getMappedGroups() {
+		if (groupMapping == null) {
+			return Collections.<String>emptySet();
+		}
+		return groupMapping.getGroups(name);
+	}
+
+	/**
+	 * Checks if the user may use clear data connections (PROT C) on TLS sessions
+	 *
+	 * @return true if clear data connections are allowed
+	 */
+	public boolean isClearDataAllowed() {
+		return clearDataAllowed;
+	}
+
+	/**
+	 * Allow clear data connections (PROT C) on TLS sessions
+	 *
+	 * @param clearDataAllowed
+	 */
+	public void setClearDataAllowed(boolean clearDataAllowed) {
+		this.clearDataAllowed = clearDataAllowed;
 	}
 
 	/**
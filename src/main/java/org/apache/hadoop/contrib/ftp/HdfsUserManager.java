@@ -325,8 +325,16 @@ public class HdfsUserManager extends AbstractUserManager {
 	}
 
 	private ArrayList<String> parseGroups(String groupsLine) {
-		String groupsArray[] = groupsLine.split(",");
-		return new ArrayList(Arrays.asList(groupsArray));
+		ArrayList<String> groups = new ArrayList<String>();
+		if (groupsLine == null) {
+			return groups;
+		}
+		for (String group : groupsLine.split(",")) {
+			if (group.trim().length() > 0) {
+				groups.add(group.trim());
+			}
+		}
+		return groups;
 	}
 
 	/**
@@ -347,8 +355,18 @@ public class HdfsUserManager extends AbstractUserManager {
 		user.setHomeDirectory(userDataProp
 				.getProperty(baseKey + ATTR_HOME, "/"));
 
-		user.setGroups(parseGroups(userDataProp
-				.getProperty(baseKey + "groups")));
+		String groupsLine = userDataProp.getProperty(baseKey + "groups");
+		GroupMappingCache groupMapping = HdfsOverFtpSystem.getGroupMapping();
+		if (groupMapping != null) {
+			// resolved now, so permission checks of the session do not wait for it
+			groupMapping.load(userName);
+			user.setGroupMapping(groupMapping);
+		}
+		if (groupsLine != null || groupMapping == null) {
+			user.setGroups(parseGroups(groupsLine));
+		}
+
+		user.setClearDataAllowed(userDataProp.getBoolean(baseKey + "cleardata", false));
 
 		List<Authority> authorities = new ArrayList<Authority>();
 
@@ -0,0 +1,306 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of open HDFS input streams. Clients like curlftpfs read a file with
+ * many REST+RETR+ABOR cycles, each of which would open the file again and
+ * look up its block locations. Closed downloads return their stream here,
+ * and the next download of the same version of the file by the same user
+ * seeks the idle stream instead. The DataNode readahead of a reused stream
+ * follows the access pattern: it grows while downloads continue where the
+ * previous one stopped and is turned off for random access.
+ */
+public class InputStreamCache {
+
+	private static final MutableCounterLong HITS = HdfsOverFtpMetrics.get()
+			.counter("StreamCacheHits", "Downloads which reused an open stream");
+
+	private static final MutableCounterLong MISSES = HdfsOverFtpMetrics.get()
+			.counter("StreamCacheMisses", "Downloads which opened a new stream");
+
+	private final Logger log = LoggerFactory.getLogger(InputStreamCache.class);
+
+	// user name -> idle streams, most recently used first
+	private final Map<String, LinkedList<Entry>> idle = new HashMap<String, LinkedList<Entry>>();
+
+	private final int maxPerUser;
+
+	private final long idleTimeout;
+
+	private final long minReadahead;
+
+	private final long maxReadahead;
+
+	private final ScheduledExecutorService sweeper;
+
+	private static class Entry {
+
+		private final String user;
+
+		private final Path path;
+
+		private final long modificationTime;
+
+		private final long length;
+
+		private final FSDataInputStream in;
+
+		private long lastPos;
+
+		// -1 while the DataNode default is used
+		private long readahead = -1;
+
+		private long idleSince;
+
+		private Entry(String user, Path path, FileStatus status, FSDataInputStream in) {
+			this.user = user;
+			this.path = path;
+			this.modificationTime = status.getModificationTime();
+			this.length = status.getLen();
+			this.in = in;
+		}
+
+		private boolean matches(Path path, FileStatus status) {
+			return this.path.equals(path) && modificationTime == status.getModificationTime()
+					&& length == status.getLen();
+		}
+	}
+
+	/**
+	 * Stream handed out for a download. Closing it returns the underlying
+	 * stream to the cache.
+	 */
+	private class CachedInputStream extends FSDataInputStream {
+
+		private final Entry entry;
+
+		private boolean closed = false;
+
+		private CachedInputStream(Entry entry) {
+			super(entry.in);
+			this.entry = entry;
+		}
+
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			release(entry);
+		}
+	}
+
+	/**
+	 * Constructs the cache
+	 *
+	 * @param maxPerUser   maximum number of idle streams kept per user
+	 * @param idleTimeout  milliseconds an idle stream is kept open
+	 * @param minReadahead readahead of a stream once sequential access is detected
+	 * @param maxReadahead largest readahead sequential access grows to
+	 */
+	public InputStreamCache(int maxPerUser, long idleTimeout, long minReadahead, long maxReadahead) {
+		this.maxPerUser = maxPerUser;
+		this.idleTimeout = idleTimeout;
+		this.minReadahead = minReadahead;
+		this.maxReadahead = maxReadahead;
+		this.sweeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "stream-cache-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = Math.max(idleTimeout / 2, 1000);
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sweep();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Open a file for a download, reusing an idle stream of the same version
+	 * of the file if there is one
+	 *
+	 * @param dfs    file system
+	 * @param user   downloading user
+	 * @param path   path of the file
+	 * @param status current status of the file
+	 * @param offset offset to start reading at
+	 * @return stream positioned at the offset, returned to the cache on close
+	 * @throws IOException
+	 */
+	public FSDataInputStream open(final FileSystem dfs, String user, final Path path, FileStatus status, long offset)
+			throws IOException {
+		Entry entry = take(user, path, status, offset);
+		if (entry != null) {
+			try {
+				adaptReadahead(entry, offset);
+				if (entry.in.getPos() != offset) {
+					entry.in.seek(offset);
+				}
+				HITS.incr();
+				return new CachedInputStream(entry);
+			} catch (IOException e) {
+				log.debug("Cannot reuse stream of {}: {}", path, e.getMessage());
+				closeQuietly(entry);
+			}
+		}
+
+		MISSES.incr();
+		try {
+			entry = new Entry(user, path, status, HdfsOverFtpSystem.getNameNodeGuard().open("open", path,
+					new Callable<FSDataInputStream>() {
+				@Override
+				public FSDataInputStream call() throws Exception {
+					return dfs.open(path);
+				}
+			}));
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted opening " + path);
+		}
+		if (offset > 0) {
+			try {
+				entry.in.seek(offset);
+			} catch (IOException e) {
+				closeQuietly(entry);
+				throw e;
+			}
+		}
+		return new CachedInputStream(entry);
+	}
+
+	/**
+	 * Get number of idle streams
+	 *
+	 * @return number of idle streams of all users
+	 */
+	public int size() {
+		synchronized (idle) {
+			int size = 0;
+			for (List<Entry> entries : idle.values()) {
+				size += entries.size();
+			}
+			return size;
+		}
+	}
+
+	private Entry take(String user, Path path, FileStatus status, long offset) {
+		synchronized (idle) {
+			LinkedList<Entry> entries = idle.get(user);
+			if (entries == null) {
+				return null;
+			}
+			// the stream stopped closest to the offset can keep its block reader
+			Entry best = null;
+			for (Entry entry : entries) {
+				if (entry.matches(path, status)
+						&& (best == null || Math.abs(entry.lastPos - offset) < Math.abs(best.lastPos - offset))) {
+					best = entry;
+				}
+			}
+			if (best != null) {
+				entries.remove(best);
+			}
+			return best;
+		}
+	}
+
+	private void release(Entry entry) {
+		try {
+			entry.lastPos = entry.in.getPos();
+		} catch (IOException e) {
+			closeQuietly(entry);
+			return;
+		}
+		entry.idleSince = System.currentTimeMillis();
+
+		List<Entry> evicted = new ArrayList<Entry>();
+		synchronized (idle) {
+			LinkedList<Entry> entries = idle.get(entry.user);
+			if (entries == null) {
+				entries = new LinkedList<Entry>();
+				idle.put(entry.user, entries);
+			}
+			entries.addFirst(entry);
+			while (entries.size() > maxPerUser) {
+				evicted.add(entries.removeLast());
+			}
+		}
+		for (Entry e : evicted) {
+			closeQuietly(e);
+		}
+	}
+
+	private void adaptReadahead(Entry entry, long offset) {
+		long readahead;
+		if (Math.abs(offset - entry.lastPos) <= Math.max(entry.readahead, minReadahead)) {
+			// continues where the previous download stopped
+			readahead = entry.readahead <= 0 ? minReadahead : Math.min(entry.readahead * 2, maxReadahead);
+		} else {
+			readahead = 0;
+		}
+		if (readahead != entry.readahead) {
+			try {
+				entry.in.setReadahead(readahead);
+				entry.readahead = readahead;
+			} catch (UnsupportedOperationException e) {
+				// the file system has no readahead
+			} catch (IOException e) {
+				log.debug("Cannot set readahead of {}: {}", entry.path, e.getMessage());
+			}
+		}
+	}
+
+	private void sweep() {
+		long expired = System.currentTimeMillis() - idleTimeout;
+		List<Entry> evicted = new ArrayList<Entry>();
+		synchronized (idle) {
+			Iterator<LinkedList<Entry>> users = idle.values().iterator();
+			while (users.hasNext()) {
+				LinkedList<Entry> entries = users.next();
+				while (!entries.isEmpty() && entries.getLast().idleSince < expired) {
+					evicted.add(entries.removeLast());
+				}
+				if (entries.isEmpty()) {
+					users.remove();
+				}
+			}
+		}
+		for (Entry entry : evicted) {
+			closeQuietly(entry);
+		}
+	}
+
+	private void closeQuietly(Entry entry) {
+		try {
+			entry.in.close();
+		} catch (IOException e) {
+			log.debug("Failed to close stream of " + entry.path, e);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts the listing of a directory as soon as a client changes into it.
+ * Clients almost always send LIST right after CWD, so the listing is
+ * already on its way when the LIST arrives. Prefetching is skipped while
+ * all threads are busy. Invalidations of the metadata cache mark the
+ * prefetches of the changed directories stale.
+ */
+public class ListingPrefetcher {
+
+	private static final MutableCounterLong PREFETCHES = HdfsOverFtpMetrics.get()
+			.counter("ListingPrefetches", "Listings started on CWD");
+
+	private static final MutableCounterLong PREFETCH_HITS = HdfsOverFtpMetrics.get()
+			.counter("ListingPrefetchHits", "Listings served from a prefetch");
+
+	private final Logger log = LoggerFactory.getLogger(ListingPrefetcher.class);
+
+	private final ExecutorService executor;
+
+	private final long window;
+
+	// prefetches not taken or cancelled yet
+	private final Set<Prefetch> live = Collections.newSetFromMap(new ConcurrentHashMap<Prefetch, Boolean>());
+
+	/**
+	 * Listing started for a directory
+	 */
+	public class Prefetch {
+
+		private final String key;
+
+		private Future<FileStatus[]> listing;
+
+		private final long started = System.currentTimeMillis();
+
+		private volatile boolean stale = false;
+
+		private Prefetch(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * Get the listing if it is of the directory and recent enough
+		 *
+		 * @param path path of the listed directory
+		 * @return statuses of the directory entries, null to list the directory again
+		 */
+		public FileStatus[] get(Path path) {
+			live.remove(this);
+			// a change since the CWD may be missing from the listing
+			if (!key.equals(HdfsMetadataCache.key(path)) || isExpired() || stale) {
+				listing.cancel(false);
+				return null;
+			}
+			try {
+				FileStatus[] fileStats = listing.get();
+				PREFETCH_HITS.incr();
+				return fileStats;
+			} catch (Exception e) {
+				log.debug("Prefetch of {} failed: {}", key, e.getMessage());
+				return null;
+			}
+		}
+
+		/**
+		 * Cancel the listing if it has not started yet
+		 */
+		public void cancel() {
+			live.remove(this);
+			listing.cancel(false);
+		}
+
+		private boolean isExpired() {
+			return System.currentTimeMillis() - started > window;
+		}
+	}
+
+	/**
+	 * Constructs the prefetcher
+	 *
+	 * @param threads number of threads listing directories
+	 * @param queue   number of listings waiting for a thread
+	 * @param window  milliseconds after CWD in which a LIST uses the prefetch
+	 */
+	public ListingPrefetcher(int threads, int queue, long window) {
+		this.window = window;
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "listing-prefetch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Start listing a directory
+	 *
+	 * @param path path of the directory
+	 * @return the started listing, null if all threads are busy
+	 */
+	public Prefetch prefetch(final Path path) {
+		// prefetches of sessions which ended after a CWD are never taken
+		for (Prefetch expired : live) {
+			if (expired.isExpired()) {
+				expired.cancel();
+			}
+		}
+
+		// registered before the listing starts, so that no change is missed
+		Prefetch prefetch = new Prefetch(HdfsMetadataCache.key(path));
+		live.add(prefetch);
+		try {
+			prefetch.listing = executor.submit(new Callable<FileStatus[]>() {
+				@Override
+				public FileStatus[] call() throws Exception {
+					return HdfsOverFtpSystem.getMetadataCache().listStatus(path);
+				}
+			});
+			PREFETCHES.incr();
+			return prefetch;
+		} catch (RejectedExecutionException e) {
+			live.remove(prefetch);
+			return null;
+		}
+	}
+
+	/**
+	 * Get number of prefetches not taken or cancelled yet
+	 *
+	 * @return number of live prefetches
+	 */
+	public int size() {
+		return live.size();
+	}
+
+	/**
+	 * Mark the prefetches of a changed path stale: of its parent, of the
+	 * path itself, and for a tree of all directories below it
+	 *
+	 * @param path changed path
+	 * @param tree true if everything below the path changed too
+	 */
+	public void invalidate(String path, boolean tree) {
+		String parent = HdfsMetadataCache.parentOf(path);
+		String prefix = path.endsWith("/") ? path : path + "/";
+		for (Prefetch prefetch : live) {
+			if (prefetch.isExpired()) {
+				live.remove(prefetch);
+			} else if (prefetch.key.equals(path) || prefetch.key.equals(parent)
+					|| (tree && prefetch.key.startsWith(prefix))) {
+				prefetch.stale = true;
+			}
+		}
+	}
+
+	/**
+	 * Mark all prefetches stale
+	 */
+	public void flush() {
+		for (Prefetch prefetch : live) {
+			prefetch.stale = true;
+		}
+	}
+}
@@ -14,13 +14,17 @@ import javax.net.ssl.*;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Due to bug in  DefaultSslConfiguration where password of the keystore is null
- * We set the password directly in loadStore method
+ * We pass the configured store password directly in loadStore method
  */
 public class MySslConfiguration implements SslConfiguration {
 
@@ -51,14 +55,20 @@ public class MySslConfiguration implements SslConfiguration {
 
 	private String keyAlias;
 
-	private KeyManagerFactory keyManagerFactory;
+	private volatile KeyManagerFactory keyManagerFactory;
 
 	private TrustManagerFactory trustManagerFactory;
 
-	private HashMap<String, SSLContext> sslContextMap = new HashMap<String, SSLContext>();
+	private final ConcurrentHashMap<String, SSLContext> sslContextMap = new ConcurrentHashMap<String, SSLContext>();
 
 	private String[] enabledCipherSuites;
 
+	private volatile String[] preferredCipherSuites;
+
+	private int sessionCacheSize = 10000;
+
+	private int sessionTimeout = 3600;
+
 	/**
 	 * The key store file used by this configuration
 	 *
@@ -263,7 +273,7 @@ public class MySslConfiguration implements SslConfiguration {
 		try {
 			fin = new FileInputStream(storeFile);
 			KeyStore store = KeyStore.getInstance(storeType);
-			store.load(fin, "333333".toCharArray());
+			store.load(fin, storePass != null ? storePass.toCharArray() : null);
 
 			return store;
 		} finally {
@@ -305,14 +315,19 @@ public class MySslConfiguration implements SslConfiguration {
 				keyPassToUse = keyPass;
 			}
 			// initialize key manager factory
-			keyManagerFactory = KeyManagerFactory
+			KeyManagerFactory kmf = KeyManagerFactory
 					.getInstance(keystoreAlgorithm);
-			keyManagerFactory.init(keyStore, keyPassToUse.toCharArray());
+			kmf.init(keyStore, keyPassToUse.toCharArray());
 
 			// initialize trust manager factory
-			trustManagerFactory = TrustManagerFactory
+			TrustManagerFactory tmf = TrustManagerFactory
 					.getInstance(trustStoreAlgorithm);
-			trustManagerFactory.init(trustStore);
+			tmf.init(trustStore);
+
+			// lazyInit() reads keyManagerFactory without the lock, so it is
+			// published last, when both factories are ready
+			trustManagerFactory = tmf;
+			keyManagerFactory = kmf;
 		} catch (Exception ex) {
 			LOG.error("DefaultSsl.configure()", ex);
 			throw new FtpServerConfigurationException("DefaultSsl.configure()",
@@ -320,9 +335,13 @@ public class MySslConfiguration implements SslConfiguration {
 		}
 	}
 
-	private synchronized void lazyInit() {
+	private void lazyInit() {
 		if (keyManagerFactory == null) {
-			init();
+			synchronized (this) {
+				if (keyManagerFactory == null) {
+					init();
+				}
+			}
 		}
 	}
 
@@ -330,10 +349,8 @@ public class MySslConfiguration implements SslConfiguration {
 	 * @see SslConfiguration#getSSLContext(String)
 	 */
 	@Override
-	public synchronized SSLContext getSSLContext(String protocol)
+	public SSLContext getSSLContext(String protocol)
 			throws GeneralSecurityException {
-		lazyInit();
-
 		// null value check
 		if (protocol == null) {
 			protocol = sslProtocol;
@@ -345,10 +362,10 @@ public class MySslConfiguration implements SslConfiguration {
 			return ctx;
 		}
 
-		// create SSLContext
-		ctx = SSLContext.getInstance(protocol);
+		lazyInit();
 
 		KeyManager[] keyManagers = keyManagerFactory.getKeyManagers();
+		TrustManager[] trustManagers = trustManagerFactory.getTrustManagers();
 
 		// wrap key managers to allow us to control their behavior
 		// (FTPSERVER-93)
@@ -365,12 +382,18 @@ public class MySslConfiguration implements SslConfiguration {
 		// create SSLContext
 		ctx = SSLContext.getInstance(protocol);
 
-		ctx.init(keyManagers, trustManagerFactory.getTrustManagers(), null);
+		ctx.init(keyManagers, trustManagers, null);
+
+		// one server session cache for control and data connections, so
+		// data connections can resume the session of the control connection
+		SSLSessionContext sessionContext = ctx.getServerSessionContext();
+		sessionContext.setSessionCacheSize(sessionCacheSize);
+		sessionContext.setSessionTimeout(sessionTimeout);
 
-		// store it in map
-		sslContextMap.put(protocol, ctx);
+		// store it in map, keep the first one if created concurrently
+		SSLContext stored = sslContextMap.putIfAbsent(protocol, ctx);
 
-		return ctx;
+		return stored != null ? stored : ctx;
 	}
 
 	/**
@@ -396,9 +419,42 @@ public class MySslConfiguration implements SslConfiguration {
 	public String[] getEnabledCipherSuites() {
 		if (enabledCipherSuites != null) {
 			return enabledCipherSuites.clone();
-		} else {
-			return null;
 		}
+
+		String[] suites = preferredCipherSuites;
+		if (suites == null) {
+			try {
+				suites = preferGcm(getSSLContext().getDefaultSSLParameters().getCipherSuites());
+			} catch (GeneralSecurityException e) {
+				LOG.warn("Failed to get default cipher suites", e);
+				return null;
+			}
+			preferredCipherSuites = suites;
+		}
+		return suites.clone();
+	}
+
+	/**
+	 * Move AES-GCM suites in front of the others, keeping the relative order
+	 * of the JRE defaults. GCM runs on AES-NI and CLMUL and avoids the
+	 * separate MAC pass of the CBC suites. TLS 1.3 suites are left out as
+	 * the MINA SSL filter of the control connection stalls on TLS 1.3.
+	 */
+	private static String[] preferGcm(String[] suites) {
+		List<String> gcm = new ArrayList<String>();
+		List<String> others = new ArrayList<String>();
+		for (String suite : suites) {
+			if (suite.startsWith("TLS_AES_") || suite.startsWith("TLS_CHACHA20_")) {
+				continue;
+			}
+			if (suite.contains("_AES_") && suite.contains("_GCM_")) {
+				gcm.add(suite);
+			} else {
+				others.add(suite);
+			}
+		}
+		gcm.addAll(others);
+		return gcm.toArray(new String[gcm.size()]);
 	}
 
 	/**
@@ -415,6 +471,44 @@ public class MySslConfiguration implements SslConfiguration {
 		}
 	}
 
+	/**
+	 * The number of TLS sessions kept for resumption
+	 *
+	 * @return The session cache size, 0 means no limit
+	 */
+	public int getSessionCacheSize() {
+		return sessionCacheSize;
+	}
+
+	/**
+	 * Set the number of TLS sessions kept for resumption. Must be set before
+	 * the first SSL context is created.
+	 *
+	 * @param sessionCacheSize The session cache size, 0 means no limit
+	 */
+	public void setSessionCacheSize(int sessionCacheSize) {
+		this.sessionCacheSize = sessionCacheSize;
+	}
+
+	/**
+	 * The time in seconds a TLS session can be resumed
+	 *
+	 * @return The session timeout, 0 means no limit
+	 */
+	public int getSessionTimeout() {
+		return sessionTimeout;
+	}
+
+	/**
+	 * Set the time in seconds a TLS session can be resumed. Must be set
+	 * before the first SSL context is created.
+	 *
+	 * @param sessionTimeout The session timeout, 0 means no limit
+	 */
+	public void setSessionTimeout(int sessionTimeout) {
+		this.sessionTimeout = sessionTimeout;
+	}
+
 	/**
 	 * Get the server key alias to be used for SSL communication
 	 *
@@ -436,8 +530,76 @@ public class MySslConfiguration implements SslConfiguration {
 		this.keyAlias = keyAlias;
 	}
 
+	/**
+	 * Get the factory of data connection sockets. The sockets share the
+	 * session cache with the control connection and prefer server cipher order.
+	 *
+	 * @see SslConfiguration#getSocketFactory()
+	 */
 	@Override
 	public SSLSocketFactory getSocketFactory() throws GeneralSecurityException {
-		return null;
+		return new ServerOrderSocketFactory(getSSLContext().getSocketFactory());
+	}
+
+	/**
+	 * Socket factory which makes the created sockets honor the server order
+	 * of the enabled cipher suites
+	 */
+	private static class ServerOrderSocketFactory extends SSLSocketFactory {
+
+		private final SSLSocketFactory factory;
+
+		ServerOrderSocketFactory(SSLSocketFactory factory) {
+			this.factory = factory;
+		}
+
+		private Socket configure(Socket socket) {
+			if (socket instanceof SSLSocket) {
+				SSLParameters params = ((SSLSocket) socket).getSSLParameters();
+				params.setUseCipherSuitesOrder(true);
+				((SSLSocket) socket).setSSLParameters(params);
+			}
+			return socket;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return factory.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return factory.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return configure(factory.createSocket());
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+			return configure(factory.createSocket(s, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return configure(factory.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return configure(factory.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return configure(factory.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			return configure(factory.createSocket(address, port, localAddress, localPort));
+		}
 	}
 }
@@ -0,0 +1,322 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.server.namenode.SafeModeException;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.ipc.RemoteException;
+import org.apache.hadoop.ipc.RetriableException;
+import org.apache.hadoop.ipc.StandbyException;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deadlines and a circuit breaker around NameNode calls. A call running
+ * past the deadline of its operation is interrupted and fails, so FTP
+ * threads do not wait out the IPC retries while the NameNode pauses or
+ * fails over. After a number of consecutive timeouts or connection
+ * failures the breaker opens: calls fail at once until a background probe
+ * reaches the NameNode again. A call with a deadline is handed to a call
+ * thread, which costs a thread handoff per call; calls without a deadline,
+ * and calls finding all call threads busy, run on the calling thread.
+ */
+public class NameNodeGuard {
+
+	private static final MutableCounterLong TIMEOUTS = HdfsOverFtpMetrics.get()
+			.counter("NameNodeCallTimeouts", "NameNode calls which ran past their deadline");
+
+	private static final MutableCounterLong TRIPS = HdfsOverFtpMetrics.get()
+			.counter("NameNodeBreakerTrips", "Times the NameNode circuit breaker opened");
+
+	private static final MutableCounterLong FAST_FAILS = HdfsOverFtpMetrics.get()
+			.counter("NameNodeFastFails", "NameNode calls failed at once by the open circuit breaker");
+
+	private static final MutableCounterLong INLINE_CALLS = HdfsOverFtpMetrics.get()
+			.counter("NameNodeInlineCalls", "NameNode calls run without deadline as all call threads were busy");
+
+	private final Logger log = LoggerFactory.getLogger(NameNodeGuard.class);
+
+	private final long deadline;
+
+	private final Map<String, Long> deadlines;
+
+	private final int threshold;
+
+	private final long probeInterval;
+
+	private final ThreadPoolExecutor executor;
+
+	private final AtomicInteger failures = new AtomicInteger();
+
+	private volatile boolean open = false;
+
+	/**
+	 * Thrown instead of calling the NameNode, or when a call ran past its deadline
+	 */
+	public static class UnavailableException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public UnavailableException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Constructs the guard
+	 *
+	 * @param deadline      deadline in milliseconds of operations without one of their own, 0 for none
+	 * @param deadlines     deadlines in milliseconds by operation
+	 * @param threads       maximum number of NameNode calls running at once, 0 to run calls without deadlines
+	 * @param threshold     number of consecutive failures opening the breaker, 0 to never open it
+	 * @param probeInterval pause in milliseconds between probes of the NameNode while the breaker is open
+	 */
+	public NameNodeGuard(long deadline, Map<String, Long> deadlines, int threads, int threshold, long probeInterval) {
+		this.deadline = deadline;
+		this.deadlines = deadlines;
+		this.threshold = threshold;
+		this.probeInterval = probeInterval;
+		if (threads > 0) {
+			executor = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "namenode-call");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else {
+			executor = null;
+		}
+	}
+
+	/**
+	 * Checks if the breaker is open
+	 *
+	 * @return true if NameNode calls fail at once
+	 */
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Call the NameNode within the deadline of the operation
+	 *
+	 * @param operation name of the operation, such as status, list, mkdir, delete, rename or setOwner
+	 * @param path      path the call is made on, recorded in the command trace
+	 * @param call      the NameNode call
+	 * @return result of the call
+	 * @throws UnavailableException if the breaker is open or the call ran past the deadline
+	 */
+	public <T> T call(String operation, Path path, Callable<T> call) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		try {
+			return call(operation, call);
+		} finally {
+			CommandTrace.record(operation, path, start);
+		}
+	}
+
+	/**
+	 * Call the NameNode for a stream within the deadline of the operation. A
+	 * stream the call returns after the deadline passed is closed, as nobody
+	 * takes it, so it does not hold the lease of the file.
+	 *
+	 * @param operation name of the operation, such as create, append or open
+	 * @param path      path the stream is opened on
+	 * @param call      the NameNode call returning the stream
+	 * @return the stream
+	 * @throws UnavailableException if the breaker is open or the call ran past the deadline
+	 */
+	public <T extends Closeable> T open(String operation, final Path path, final Callable<T> call)
+			throws IOException, InterruptedException {
+		return call(operation, path, new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				T stream = call.call();
+				if (Thread.currentThread().isInterrupted()) {
+					IOUtils.closeStream(stream);
+					throw new InterruptedIOException("Interrupted opening " + path);
+				}
+				return stream;
+			}
+		});
+	}
+
+	private <T> T call(String operation, Callable<T> call) throws IOException, InterruptedException {
+		if (open) {
+			FAST_FAILS.incr();
+			throw new UnavailableException("NameNode is unavailable");
+		}
+
+		Long opDeadline = deadlines.get(operation);
+		long timeout = opDeadline != null ? opDeadline : deadline;
+		if (executor == null || timeout <= 0) {
+			return callInline(call);
+		}
+
+		Future<T> future;
+		try {
+			future = executor.submit(call);
+		} catch (RejectedExecutionException e) {
+			// busy threads say nothing about the NameNode, the ipc timeouts still apply
+			INLINE_CALLS.incr();
+			return callInline(call);
+		}
+
+		try {
+			T result = future.get(timeout, TimeUnit.MILLISECONDS);
+			failures.set(0);
+			return result;
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			TIMEOUTS.incr();
+			failed();
+			throw new UnavailableException("NameNode " + operation + " call timed out after " + timeout + " ms");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				return fail((Exception) cause);
+			}
+			throw (Error) cause;
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			throw e;
+		}
+	}
+
+	private <T> T callInline(Callable<T> call) throws IOException, InterruptedException {
+		try {
+			T result = call.call();
+			failures.set(0);
+			return result;
+		} catch (Exception e) {
+			return fail(e);
+		}
+	}
+
+	private <T> T fail(Exception e) throws IOException, InterruptedException {
+		if (isUnhealthy(e)) {
+			failed();
+		} else {
+			// the NameNode answered
+			failures.set(0);
+		}
+
+		if (e instanceof IOException) {
+			throw (IOException) e;
+		} else if (e instanceof InterruptedException) {
+			throw (InterruptedException) e;
+		} else if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		}
+		throw new IOException(e);
+	}
+
+	private void failed() {
+		if (threshold > 0 && failures.incrementAndGet() >= threshold) {
+			trip();
+		}
+	}
+
+	private synchronized void trip() {
+		if (open) {
+			return;
+		}
+		open = true;
+		TRIPS.incr();
+		log.warn("NameNode failed {} calls in a row, failing calls until it answers again", failures.get());
+
+		Thread prober = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				probe();
+			}
+		}, "namenode-probe");
+		prober.setDaemon(true);
+		prober.start();
+	}
+
+	private void probe() {
+		while (true) {
+			try {
+				Thread.sleep(probeInterval);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			Future<FileStatus> future = null;
+			try {
+				future = executor != null ? executor.submit(new Callable<FileStatus>() {
+					@Override
+					public FileStatus call() throws Exception {
+						return HdfsOverFtpSystem.getDfs().getFileStatus(new Path("/"));
+					}
+				}) : null;
+				if (future != null) {
+					future.get(deadline > 0 ? deadline : probeInterval, TimeUnit.MILLISECONDS);
+				} else {
+					HdfsOverFtpSystem.getDfs().getFileStatus(new Path("/"));
+				}
+			} catch (Exception e) {
+				if (future != null) {
+					future.cancel(true);
+				}
+				log.debug("NameNode probe failed: {}", e.toString());
+				continue;
+			}
+
+			failures.set(0);
+			open = false;
+			log.info("NameNode answers again, calls are let through");
+			return;
+		}
+	}
+
+	/**
+	 * Checks if a call failed without reaching a NameNode able to serve it:
+	 * the breaker was open, the call ran past its deadline, or the NameNode
+	 * was unreachable, in standby or still in safe mode. Such a failure says
+	 * nothing about the call itself.
+	 *
+	 * @param e failure of the call
+	 * @return true if the NameNode was unavailable
+	 */
+	public static boolean isUnavailable(Throwable e) {
+		if (e instanceof RemoteException
+				&& SafeModeException.class.getName().equals(((RemoteException) e).getClassName())) {
+			return true;
+		}
+		return e instanceof UnavailableException || e instanceof SafeModeException || isUnhealthy(e);
+	}
+
+	private static boolean isUnhealthy(Throwable e) {
+		if (e instanceof RemoteException) {
+			String className = ((RemoteException) e).getClassName();
+			return StandbyException.class.getName().equals(className)
+					|| RetriableException.class.getName().equals(className);
+		}
+		return e instanceof ConnectException || e instanceof NoRouteToHostException
+				|| e instanceof SocketTimeoutException || e instanceof StandbyException
+				|| e instanceof RetriableException;
+	}
+}
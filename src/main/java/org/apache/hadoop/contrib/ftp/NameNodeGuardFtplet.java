@@ -0,0 +1,48 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.ftplet.DefaultFtpReply;
+import org.apache.ftpserver.ftplet.DefaultFtplet;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpReply;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.ftplet.FtpSession;
+import org.apache.ftpserver.ftplet.FtpletResult;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Replies 451 at once to commands which need the NameNode while the
+ * {@link NameNodeGuard} breaker is open. Other commands, such as NOOP,
+ * PWD or TYPE, keep working.
+ */
+public class NameNodeGuardFtplet extends DefaultFtplet {
+
+	private static final Set<String> HDFS_COMMANDS = new HashSet<String>(Arrays.asList(
+			"RETR", "STOR", "STOU", "APPE", "LIST", "NLST", "MLSD", "MLST", "SIZE", "MDTM",
+			"DELE", "RMD", "XRMD", "MKD", "XMKD", "RNFR", "RNTO", "CWD", "XCWD", "CDUP", "XCUP",
+			"ALLO", "SITE"));
+
+	private final NameNodeGuard guard;
+
+	/**
+	 * Constructs the ftplet
+	 *
+	 * @param guard guard of NameNode calls
+	 */
+	public NameNodeGuardFtplet(NameNodeGuard guard) {
+		this.guard = guard;
+	}
+
+	@Override
+	public FtpletResult beforeCommand(FtpSession session, FtpRequest request) throws FtpException, IOException {
+		if (guard.isOpen() && HDFS_COMMANDS.contains(request.getCommand().toUpperCase())) {
+			session.write(new DefaultFtpReply(FtpReply.REPLY_451_REQUESTED_ACTION_ABORTED,
+					"HDFS is unavailable, try again later."));
+			return FtpletResult.SKIP;
+		}
+		return FtpletResult.DEFAULT;
+	}
+}
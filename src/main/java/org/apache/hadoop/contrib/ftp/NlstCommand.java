@@ -0,0 +1,168 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.command.AbstractCommand;
+import org.apache.ftpserver.command.Command;
+import org.apache.ftpserver.command.impl.NLST;
+import org.apache.ftpserver.command.impl.listing.ListArgument;
+import org.apache.ftpserver.command.impl.listing.ListArgumentParser;
+import org.apache.ftpserver.ftplet.DataConnection;
+import org.apache.ftpserver.ftplet.DefaultFtpReply;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpFile;
+import org.apache.ftpserver.ftplet.FtpReply;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.impl.FtpIoSession;
+import org.apache.ftpserver.impl.FtpServerContext;
+import org.apache.ftpserver.impl.IODataConnectionFactory;
+import org.apache.ftpserver.impl.LocalizedFtpReply;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+
+/**
+ * <code>NLST [&lt;SP&gt; &lt;pathname&gt;] &lt;CRLF&gt;</code>
+ * <p/>
+ * Names-only listing of a directory. Names are streamed to the client while
+ * the HDFS listing is fetched, without an FtpFile or a status call per
+ * entry, and in listing order rather than directories first. The names are
+ * those LIST returns: HDFS files are never hidden, so names starting with
+ * '.' are listed as well. NLST -l, wildcard patterns and single files are
+ * left to the ftpserver command.
+ */
+public class NlstCommand extends AbstractCommand {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final Logger log = LoggerFactory.getLogger(NlstCommand.class);
+
+	private final Command fallback = new NLST();
+
+	@Override
+	public void execute(FtpIoSession session, FtpServerContext context, FtpRequest request)
+			throws IOException, FtpException {
+		ListArgument argument;
+		try {
+			argument = ListArgumentParser.parse(request.getArgument());
+		} catch (IllegalArgumentException e) {
+			fallback.execute(session, context, request);
+			return;
+		}
+		if (argument.hasOption('l') || argument.getPattern() != null) {
+			fallback.execute(session, context, request);
+			return;
+		}
+		FtpFile file = session.getFileSystemView().getFile(argument.getFile());
+		if (!(file instanceof HdfsFileObject) || !file.isDirectory()) {
+			fallback.execute(session, context, request);
+			return;
+		}
+
+		try {
+			session.resetState();
+
+			if (session.getDataConnection() instanceof IODataConnectionFactory
+					&& ((IODataConnectionFactory) session.getDataConnection()).getInetAddress() == null) {
+				session.write(new DefaultFtpReply(FtpReply.REPLY_503_BAD_SEQUENCE_OF_COMMANDS,
+						"PORT or PASV must be issued first"));
+				return;
+			}
+
+			session.write(LocalizedFtpReply.translate(session, request, context,
+					FtpReply.REPLY_150_FILE_STATUS_OKAY, "NLST", null));
+
+			DataConnection dataConnection;
+			try {
+				dataConnection = session.getDataConnection().openConnection();
+			} catch (Exception e) {
+				log.debug("Exception getting the output data stream", e);
+				session.write(LocalizedFtpReply.translate(session, request, context,
+						FtpReply.REPLY_425_CANT_OPEN_DATA_CONNECTION, "NLST", null));
+				return;
+			}
+
+			boolean failure = false;
+			try {
+				RemoteIterator<FileStatus> entries = ((HdfsFileObject) file).listStatusIterator();
+				dataConnection.transferToClient(session.getFtpletSession(),
+						new NameListInputStream(entries));
+			} catch (SocketException e) {
+				log.debug("Socket exception during data transfer", e);
+				failure = true;
+				session.write(LocalizedFtpReply.translate(session, request, context,
+						FtpReply.REPLY_426_CONNECTION_CLOSED_TRANSFER_ABORTED, "NLST", null));
+			} catch (IOException e) {
+				log.debug("IOException during data transfer", e);
+				failure = true;
+				session.write(LocalizedFtpReply.translate(session, request, context,
+						FtpReply.REPLY_551_REQUESTED_ACTION_ABORTED_PAGE_TYPE_UNKNOWN, "NLST", null));
+			}
+
+			if (!failure) {
+				session.write(LocalizedFtpReply.translate(session, request, context,
+						FtpReply.REPLY_226_CLOSING_DATA_CONNECTION, "NLST", null));
+			}
+		} finally {
+			session.getDataConnection().closeDataConnection();
+		}
+	}
+
+	/**
+	 * Lines of entry names, encoded while the listing is read
+	 */
+	private static class NameListInputStream extends InputStream {
+
+		private final RemoteIterator<FileStatus> entries;
+
+		private byte[] line = new byte[0];
+
+		private int pos = 0;
+
+		private NameListInputStream(RemoteIterator<FileStatus> entries) {
+			this.entries = entries;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (pos == line.length && !nextLine()) {
+				return -1;
+			}
+			return line[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			int n = 0;
+			while (n < len) {
+				if (pos == line.length && !nextLine()) {
+					break;
+				}
+				int count = Math.min(len - n, line.length - pos);
+				System.arraycopy(line, pos, b, off + n, count);
+				pos += count;
+				n += count;
+			}
+			return n == 0 ? -1 : n;
+		}
+
+		private boolean nextLine() throws IOException {
+			if (entries == null) {
+				return false;
+			}
+			if (!entries.hasNext()) {
+				return false;
+			}
+			line = (entries.next().getPath().getName() + "\r\n").getBytes(UTF_8);
+			pos = 0;
+			return true;
+		}
+	}
+}
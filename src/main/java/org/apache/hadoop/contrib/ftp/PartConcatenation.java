@@ -0,0 +1,321 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.GlobPattern;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads of the part files of a job output directory as one file. A
+ * virtual file of a configured name in any directory holds the files
+ * matching the part pattern, in name order. While a part is sent the next
+ * one is opened and its first bytes are read ahead.
+ */
+public class PartConcatenation {
+
+	private static final MutableCounterLong DOWNLOADS = HdfsOverFtpMetrics.get()
+			.counter("ConcatDownloads", "Downloads of concatenated part files");
+
+	private static final MutableCounterLong PREFETCHES = HdfsOverFtpMetrics.get()
+			.counter("ConcatPartPrefetches", "Part files opened ahead of a concatenated download");
+
+	private final String name;
+
+	private final GlobPattern parts;
+
+	private final int prefetchSize;
+
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * Constructs the concatenation
+	 *
+	 * @param name         name of the virtual file
+	 * @param parts        glob of the part file names
+	 * @param prefetchSize bytes of the next part read ahead
+	 * @param threads      maximum number of parts read ahead at once
+	 */
+	public PartConcatenation(String name, String parts, int prefetchSize, int threads) {
+		this.name = name;
+		this.parts = new GlobPattern(parts);
+		this.prefetchSize = prefetchSize;
+		this.executor = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "concat-prefetch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Checks if a file name is the virtual concatenated file
+	 *
+	 * @param fileName name of the file
+	 * @return true if the name is the name of the concatenated file
+	 */
+	public boolean isConcatenation(String fileName) {
+		return name.equals(fileName);
+	}
+
+	/**
+	 * Get the part files of a directory in order
+	 *
+	 * @param dir directory
+	 * @return statuses of the part files
+	 * @throws FileNotFoundException if dir is not a directory
+	 */
+	public List<FileStatus> getParts(Path dir) throws IOException, InterruptedException {
+		HdfsMetadataCache cache = HdfsOverFtpSystem.getMetadataCache();
+		if (!cache.getFileStatus(dir).isDirectory()) {
+			throw new FileNotFoundException(dir + " is not a directory");
+		}
+		FileStatus[] listing = cache.listStatus(dir).clone();
+		Arrays.sort(listing);
+		List<FileStatus> files = new ArrayList<FileStatus>();
+		for (FileStatus status : listing) {
+			if (status.isFile() && parts.matches(status.getPath().getName())) {
+				files.add(status);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Open the concatenation of part files
+	 *
+	 * @param user   downloading user
+	 * @param files  statuses of the part files, see {@link #getParts(Path)}
+	 * @param offset offset in the concatenation to start reading at
+	 * @return stream of the concatenated parts
+	 * @throws IOException if the user may not read a part
+	 */
+	public InputStream open(HdfsUser user, List<FileStatus> files, long offset) throws IOException {
+		for (FileStatus status : files) {
+			if (!HdfsFileObject.isReadable(user, status)) {
+				throw new IOException("No read permission : " + status.getPath());
+			}
+		}
+		DOWNLOADS.incr();
+		return new ConcatInputStream(files, offset);
+	}
+
+	private static InputStream openPart(FileStatus status, long offset) throws IOException, InterruptedException {
+		UploadSpool spool = HdfsOverFtpSystem.getUploadSpool();
+		if (spool != null) {
+			InputStream spooled = spool.open(HdfsMetadataCache.key(status.getPath()), offset);
+			if (spooled != null) {
+				return spooled;
+			}
+		}
+		FSDataInputStream in = HdfsOverFtpSystem.getDfs().open(status.getPath());
+		if (offset > 0) {
+			in.seek(offset);
+		}
+		return in;
+	}
+
+	/**
+	 * Part opened and read ahead on an executor thread. The stream of a
+	 * prefetch closed before its task finished is closed by the task, a
+	 * cancelled future does not hand it out.
+	 */
+	private class Prefetch implements Callable<InputStream> {
+
+		private final FileStatus status;
+
+		private Future<InputStream> future;
+
+		private InputStream opened = null;
+
+		private boolean closed = false;
+
+		Prefetch(FileStatus status) {
+			this.status = status;
+		}
+
+		@Override
+		public InputStream call() throws Exception {
+			InputStream in = openPart(status, 0);
+			byte[] head = new byte[(int) Math.min(prefetchSize, status.getLen())];
+			int n = 0;
+			try {
+				while (n < head.length) {
+					int r = in.read(head, n, head.length - n);
+					if (r < 0) {
+						break;
+					}
+					n += r;
+				}
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			synchronized (this) {
+				if (!closed) {
+					opened = new SequenceInputStream(new ByteArrayInputStream(head, 0, n), in);
+					return opened;
+				}
+			}
+			in.close();
+			return null;
+		}
+
+		/**
+		 * Give up the prefetch and close its stream, now or when its task finishes
+		 */
+		void close() {
+			InputStream in;
+			synchronized (this) {
+				closed = true;
+				in = opened;
+				opened = null;
+			}
+			future.cancel(true);
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// nothing was read from it
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stream of the parts one after the other
+	 */
+	private class ConcatInputStream extends InputStream {
+
+		private final List<FileStatus> files;
+
+		private int index;
+
+		private long offset;
+
+		private InputStream current = null;
+
+		private Prefetch next = null;
+
+		ConcatInputStream(List<FileStatus> files, long offset) {
+			this.files = files;
+			this.index = -1;
+			this.offset = offset;
+		}
+
+		@Override
+		public int read() throws IOException {
+			while (current != null || advance()) {
+				int b = current.read();
+				if (b >= 0) {
+					return b;
+				}
+				current.close();
+				current = null;
+			}
+			return -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (current != null || advance()) {
+				int n = current.read(b, off, len);
+				if (n >= 0) {
+					return n;
+				}
+				current.close();
+				current = null;
+			}
+			return -1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (current != null) {
+				current.close();
+				current = null;
+			}
+			if (next != null) {
+				next.close();
+				next = null;
+			}
+			index = files.size();
+		}
+
+		/**
+		 * Open the next part and start reading ahead the one after it
+		 *
+		 * @return false at the end of the last part
+		 */
+		private boolean advance() throws IOException {
+			index++;
+			// skip the parts before the offset
+			while (index < files.size() && offset >= files.get(index).getLen() && offset > 0) {
+				offset -= files.get(index).getLen();
+				index++;
+			}
+			if (index >= files.size()) {
+				return false;
+			}
+
+			try {
+				if (next != null) {
+					current = next.future.get();
+					next = null;
+				} else {
+					current = openPart(files.get(index), offset);
+					offset = 0;
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted opening " + files.get(index).getPath());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				throw new IOException("Failed to open " + files.get(index).getPath(), cause);
+			}
+
+			if (index + 1 < files.size()) {
+				next = prefetch(files.get(index + 1));
+			}
+			return true;
+		}
+
+		private Prefetch prefetch(FileStatus status) {
+			Prefetch prefetch = new Prefetch(status);
+			try {
+				prefetch.future = executor.submit(prefetch);
+				PREFETCHES.incr();
+				return prefetch;
+			} catch (RejectedExecutionException e) {
+				// no thread is free, the part is opened when it is reached
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream which reads a file with positional reads of a fixed size.
+ * Unlike stateful reads, positional reads of DFSClient are hedged: when a
+ * DataNode does not answer within the threshold the same range is requested
+ * from another replica and the first answer wins.
+ */
+public class PositionalReadInputStream extends InputStream {
+
+	private static final MutableCounterLong POSITIONAL_READS = HdfsOverFtpMetrics.get()
+			.counter("PositionalReads", "Positional reads of downloads");
+
+	private final FSDataInputStream in;
+
+	private final byte[] buffer;
+
+	private final long length;
+
+	private long position;
+
+	private int pos = 0;
+
+	private int limit = 0;
+
+	/**
+	 * Constructs the stream
+	 *
+	 * @param in       HDFS stream to read from
+	 * @param position offset to start reading at
+	 * @param length   length of the file, skips end there
+	 * @param readSize size of a single positional read
+	 */
+	public PositionalReadInputStream(FSDataInputStream in, long position, long length, int readSize) {
+		this.in = in;
+		this.position = position;
+		this.length = length;
+		this.buffer = new byte[readSize];
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+		return buffer[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (pos == limit) {
+			if (len >= buffer.length) {
+				// large reads go directly into the caller's array
+				return pread(b, off, len);
+			}
+			if (!fill()) {
+				return -1;
+			}
+		}
+		int n = Math.min(len, limit - pos);
+		System.arraycopy(buffer, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		int buffered = limit - pos;
+		if (n <= buffered) {
+			pos += (int) n;
+			return n;
+		}
+		pos = limit;
+		long skipped = Math.max(0, Math.min(n - buffered, length - position));
+		position += skipped;
+		return buffered + skipped;
+	}
+
+	@Override
+	public int available() {
+		return limit - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private boolean fill() throws IOException {
+		int n = pread(buffer, 0, buffer.length);
+		if (n <= 0) {
+			return false;
+		}
+		pos = 0;
+		limit = n;
+		return true;
+	}
+
+	private int pread(byte[] b, int off, int len) throws IOException {
+		POSITIONAL_READS.incr();
+		int n = in.read(position, b, off, len);
+		if (n > 0) {
+			position += n;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,104 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.ftplet.DataTransferFtpReply;
+import org.apache.ftpserver.ftplet.DefaultFtplet;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpFile;
+import org.apache.ftpserver.ftplet.FtpReply;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.ftplet.FtpSession;
+import org.apache.ftpserver.ftplet.FtpletResult;
+import org.apache.ftpserver.ftplet.User;
+import org.apache.hadoop.fs.Path;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Queues successful uploads on the {@link PostUploadPipeline}. The reply to
+ * the upload is sent without waiting for the handlers. A segment of a
+ * segmented upload is not an upload of its own: the target is queued with
+ * its full length once its last segment is closed and its parts are joined.
+ */
+public class PostUploadFtplet extends DefaultFtplet {
+
+	private static final String REPLY_ATTRIBUTE = "org.apache.hadoop.contrib.ftp.post-upload-reply";
+
+	private final PostUploadPipeline pipeline;
+
+	/**
+	 * Constructs the ftplet
+	 *
+	 * @param pipeline pipeline to queue uploads on
+	 */
+	public PostUploadFtplet(PostUploadPipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	@Override
+	public FtpletResult afterCommand(FtpSession session, FtpRequest request, FtpReply reply)
+			throws FtpException, IOException {
+		if (reply == null || reply.getCode() != FtpReply.REPLY_226_CLOSING_DATA_CONNECTION) {
+			return FtpletResult.DEFAULT;
+		}
+		session.setAttribute(REPLY_ATTRIBUTE, reply);
+		try {
+			super.afterCommand(session, request, reply);
+		} finally {
+			session.removeAttribute(REPLY_ATTRIBUTE);
+		}
+		return FtpletResult.DEFAULT;
+	}
+
+	@Override
+	public FtpletResult onUploadEnd(FtpSession session, FtpRequest request) throws FtpException, IOException {
+		queue(session);
+		return FtpletResult.DEFAULT;
+	}
+
+	@Override
+	public FtpletResult onUploadUniqueEnd(FtpSession session, FtpRequest request) throws FtpException, IOException {
+		queue(session);
+		return FtpletResult.DEFAULT;
+	}
+
+	@Override
+	public FtpletResult onAppendEnd(FtpSession session, FtpRequest request) throws FtpException, IOException {
+		queue(session);
+		return FtpletResult.DEFAULT;
+	}
+
+	private void queue(FtpSession session) throws IOException {
+		Object reply = session.getAttribute(REPLY_ATTRIBUTE);
+		if (!(reply instanceof DataTransferFtpReply)) {
+			return;
+		}
+		FtpFile file = ((DataTransferFtpReply) reply).getFile();
+		User user = session.getUser();
+		if (file == null || user == null) {
+			return;
+		}
+		Path path = new Path(file.getAbsolutePath());
+		long length = ((DataTransferFtpReply) reply).getBytesTransferred();
+
+		SegmentedUploads uploads = HdfsOverFtpSystem.getSegmentedUploads();
+		if (uploads != null) {
+			if (uploads.isPending(path)) {
+				return;
+			}
+			// the last segment carries only its own bytes
+			try {
+				length = HdfsOverFtpSystem.getMetadataCache().getFileStatus(path).getLen();
+			} catch (FileNotFoundException e) {
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while getting the length of " + path);
+			}
+		}
+
+		String group = user instanceof HdfsUser ? ((HdfsUser) user).getMainGroup() : null;
+		pipeline.add(new PostUploadPipeline.Upload(path, user.getName(), group, length));
+	}
+}
@@ -0,0 +1,411 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.apache.hadoop.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processing of completed uploads off the session threads. Uploads are put
+ * on a bounded queue, never waiting on it, and a background thread hands
+ * them in batches to the handlers in their configured order. A batch is
+ * handed over when it is full or when its oldest upload waited for the
+ * batch interval. A handler failing on a batch is retried with growing
+ * pauses before the batch moves on to the next handler.
+ */
+public class PostUploadPipeline implements Runnable {
+
+	private static final MutableCounterLong QUEUED = HdfsOverFtpMetrics.get()
+			.counter("PostUploadQueued", "Completed uploads queued for post-upload processing");
+
+	private static final MutableCounterLong DROPPED = HdfsOverFtpMetrics.get()
+			.counter("PostUploadDropped", "Completed uploads dropped because the post-upload queue was full");
+
+	private static final MutableCounterLong FAILURES = HdfsOverFtpMetrics.get()
+			.counter("PostUploadFailures", "Post-upload handler calls which failed");
+
+	private final Logger log = LoggerFactory.getLogger(PostUploadPipeline.class);
+
+	private final BlockingQueue<Upload> queue;
+
+	private final List<Handler> handlers;
+
+	private final int batchSize;
+
+	private final long interval;
+
+	private final int retries;
+
+	private final long retryInterval;
+
+	// id of the last batch
+	private long batches = 0;
+
+	private volatile boolean running = true;
+
+	private Thread thread;
+
+	/**
+	 * Completed upload
+	 */
+	public static class Upload {
+		private final Path path;
+		private final String user;
+		private final String group;
+		private final long length;
+		private final long time = System.currentTimeMillis();
+		private long batch;
+		private String checksum;
+
+		public Upload(Path path, String user, String group, long length) {
+			this.path = path;
+			this.user = user;
+			this.group = group;
+			this.length = length;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public String getUser() {
+			return user;
+		}
+
+		public String getGroup() {
+			return group;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Get id of the batch the upload is handled in
+		 *
+		 * @return batch id, unique while the server runs
+		 */
+		public long getBatch() {
+			return batch;
+		}
+
+		/**
+		 * Get checksum of the file, set by an earlier handler
+		 *
+		 * @return checksum, null if not computed
+		 */
+		public String getChecksum() {
+			return checksum;
+		}
+
+		public void setChecksum(String checksum) {
+			this.checksum = checksum;
+		}
+	}
+
+	/**
+	 * Handler of a batch of completed uploads
+	 */
+	public interface Handler {
+		void handle(List<Upload> uploads) throws Exception;
+	}
+
+	/**
+	 * Constructs the pipeline
+	 *
+	 * @param handlers  handlers called in order for every batch
+	 * @param queueSize maximum number of uploads waiting
+	 * @param batchSize maximum number of uploads in a batch
+	 * @param interval      milliseconds an upload waits for its batch to fill
+	 * @param retries       retries of a handler failing on a batch
+	 * @param retryInterval milliseconds before the first retry, doubled for every further one
+	 */
+	public PostUploadPipeline(List<Handler> handlers, int queueSize, int batchSize, long interval, int retries,
+			long retryInterval) {
+		this.handlers = handlers;
+		this.queue = new ArrayBlockingQueue<Upload>(queueSize);
+		this.batchSize = batchSize;
+		this.interval = interval;
+		this.retries = retries;
+		this.retryInterval = retryInterval;
+	}
+
+	/**
+	 * Create the handler of a name
+	 *
+	 * @param name        checksum, replication or manifest
+	 * @param replication replication set by the replication handler
+	 * @param manifest    name prefix of the manifest files
+	 * @return the handler
+	 */
+	public static Handler createHandler(String name, short replication, String manifest) {
+		if ("checksum".equals(name)) {
+			return new ChecksumHandler();
+		} else if ("replication".equals(name)) {
+			return new ReplicationHandler(replication);
+		} else if ("manifest".equals(name)) {
+			return new ManifestHandler(manifest);
+		}
+		throw new IllegalArgumentException("Unknown post-upload handler " + name);
+	}
+
+	/**
+	 * Start the handler thread
+	 */
+	public synchronized void start() {
+		thread = new Thread(this, "post-upload");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the handler thread after the current batch
+	 */
+	public void stop() {
+		running = false;
+		Thread t = thread;
+		if (t != null) {
+			t.interrupt();
+		}
+	}
+
+	/**
+	 * Queue a completed upload. Never blocks.
+	 *
+	 * @return false if the queue is full and the upload was dropped
+	 */
+	public boolean add(Upload upload) {
+		if (!queue.offer(upload)) {
+			DROPPED.incr();
+			return false;
+		}
+		QUEUED.incr();
+		return true;
+	}
+
+	/**
+	 * Get number of uploads waiting to be handled
+	 *
+	 * @return number of uploads
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	@Override
+	public void run() {
+		List<Upload> batch = new ArrayList<Upload>(batchSize);
+		while (running) {
+			try {
+				Upload first = queue.take();
+				batch.add(first);
+				long deadline = first.getTime() + interval;
+				while (batch.size() < batchSize) {
+					long wait = deadline - System.currentTimeMillis();
+					Upload next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+					queue.drainTo(batch, batchSize - batch.size());
+				}
+			} catch (InterruptedException e) {
+				if (batch.isEmpty()) {
+					continue;
+				}
+			}
+			handle(batch);
+			batch.clear();
+		}
+	}
+
+	private void handle(List<Upload> batch) {
+		batches++;
+		for (Upload upload : batch) {
+			upload.batch = batches;
+		}
+
+		UploadSpool spool = HdfsOverFtpSystem.getUploadSpool();
+		if (spool != null) {
+			// handlers see the uploads in HDFS
+			for (Upload upload : batch) {
+				try {
+					spool.flush(HdfsMetadataCache.key(upload.getPath()));
+				} catch (Exception e) {
+					log.warn("Failed to commit spooled upload " + upload.getPath(), e);
+				}
+			}
+		}
+
+		for (Handler handler : handlers) {
+			long pause = retryInterval;
+			for (int attempt = 0; ; attempt++) {
+				try {
+					handler.handle(batch);
+					break;
+				} catch (Exception e) {
+					FAILURES.incr();
+					if (attempt >= retries || !running) {
+						log.error("Post-upload handler " + handler.getClass().getSimpleName() + " failed on batch "
+								+ batches + " of " + batch.size() + " uploads, giving up", e);
+						break;
+					}
+					log.warn("Post-upload handler " + handler.getClass().getSimpleName() + " failed on batch "
+							+ batches + " of " + batch.size() + " uploads, retrying", e);
+				}
+				try {
+					Thread.sleep(pause);
+				} catch (InterruptedException e) {
+					// stopped, the retry is the last one
+				}
+				pause *= 2;
+			}
+		}
+	}
+
+	/**
+	 * Sets the checksum of the uploads, so later handlers can use it
+	 */
+	private static class ChecksumHandler implements Handler {
+		@Override
+		public void handle(List<Upload> uploads) throws Exception {
+			FileSystem dfs = HdfsOverFtpSystem.getDfs();
+			for (Upload upload : uploads) {
+				try {
+					FileChecksum checksum = dfs.getFileChecksum(upload.getPath());
+					if (checksum != null) {
+						upload.setChecksum(checksum.getAlgorithmName() + ":"
+								+ StringUtils.byteToHexString(checksum.getBytes()));
+					}
+				} catch (FileNotFoundException e) {
+					// removed meanwhile
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the replication of the uploads
+	 */
+	private static class ReplicationHandler implements Handler {
+		private final short replication;
+
+		ReplicationHandler(short replication) {
+			this.replication = replication;
+		}
+
+		@Override
+		public void handle(List<Upload> uploads) throws Exception {
+			FileSystem dfs = HdfsOverFtpSystem.getDfs();
+			for (Upload upload : uploads) {
+				try {
+					dfs.setReplication(upload.getPath(), replication);
+					HdfsOverFtpSystem.getMetadataCache().invalidate(upload.getPath());
+				} catch (FileNotFoundException e) {
+					// removed meanwhile
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes one manifest per directory and batch, listing the uploads with
+	 * their length and checksum, one per line separated by tabs. The
+	 * manifest is written under a temporary name and renamed, so it appears
+	 * complete. Its name carries the batch id, so batches of the same
+	 * millisecond do not collide, and a retried batch skips the manifests
+	 * already written.
+	 */
+	private static class ManifestHandler implements Handler {
+		private final String prefix;
+
+		private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+
+		// batch of the last call and its manifest name, kept for retries
+		private long batch = -1;
+
+		private String name;
+
+		ManifestHandler(String prefix) {
+			this.prefix = prefix;
+			dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		}
+
+		@Override
+		public void handle(List<Upload> uploads) throws Exception {
+			Map<Path, List<Upload>> dirs = new LinkedHashMap<Path, List<Upload>>();
+			for (Upload upload : uploads) {
+				Path dir = upload.getPath().getParent();
+				List<Upload> files = dirs.get(dir);
+				if (files == null) {
+					files = new ArrayList<Upload>();
+					dirs.put(dir, files);
+				}
+				files.add(upload);
+			}
+
+			FileSystem dfs = HdfsOverFtpSystem.getDfs();
+			long id = uploads.get(0).getBatch();
+			if (id != batch) {
+				batch = id;
+				name = prefix + dateFormat.format(new Date()) + "." + id;
+			}
+			for (Map.Entry<Path, List<Upload>> dir : dirs.entrySet()) {
+				write(dfs, dir.getKey(), name, dir.getValue());
+			}
+		}
+
+		private void write(FileSystem dfs, Path dir, String name, List<Upload> files) throws IOException {
+			Path manifest = new Path(dir, name);
+			if (dfs.exists(manifest)) {
+				// written by an earlier attempt
+				return;
+			}
+
+			StringBuilder sb = new StringBuilder();
+			for (Upload upload : files) {
+				sb.append(upload.getPath().getName()).append('\t').append(upload.getLength());
+				if (upload.getChecksum() != null) {
+					sb.append('\t').append(upload.getChecksum());
+				}
+				sb.append('\n');
+			}
+
+			Path tmp = new Path(dir, "." + name + ".tmp");
+			FSDataOutputStream out = dfs.create(tmp, true);
+			try {
+				out.write(sb.toString().getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+			Upload first = files.get(0);
+			dfs.setOwner(tmp, first.getUser(), first.getGroup());
+			if (!dfs.rename(tmp, manifest)) {
+				dfs.delete(tmp, false);
+				throw new IOException("Failed to rename manifest " + tmp + " to " + manifest);
+			}
+			HdfsOverFtpSystem.getMetadataCache().invalidate(manifest);
+		}
+	}
+}
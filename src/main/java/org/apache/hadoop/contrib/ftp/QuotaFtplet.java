@@ -0,0 +1,76 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.ftplet.DefaultFtpReply;
+import org.apache.ftpserver.ftplet.DefaultFtplet;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpFile;
+import org.apache.ftpserver.ftplet.FtpReply;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.ftplet.FtpSession;
+import org.apache.ftpserver.ftplet.FtpletResult;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+
+/**
+ * Replies 552 at once to uploads which would exceed a quota, see
+ * {@link QuotaGuard}, instead of failing after the data was sent.
+ */
+public class QuotaFtplet extends DefaultFtplet {
+
+	private final QuotaGuard guard;
+
+	/**
+	 * Constructs the ftplet
+	 *
+	 * @param guard quota checks of uploads
+	 */
+	public QuotaFtplet(QuotaGuard guard) {
+		this.guard = guard;
+	}
+
+	@Override
+	public FtpletResult beforeCommand(FtpSession session, FtpRequest request) throws FtpException, IOException {
+		String command = request.getCommand().toUpperCase();
+		if (!"STOR".equals(command) && !"APPE".equals(command) && !"STOU".equals(command)) {
+			return FtpletResult.DEFAULT;
+		}
+		if (!(session.getFileSystemView() instanceof HdfsFileSystemView) || !(session.getUser() instanceof HdfsUser)) {
+			return FtpletResult.DEFAULT;
+		}
+		HdfsFileSystemView view = (HdfsFileSystemView) session.getFileSystemView();
+
+		Path path;
+		boolean newFile;
+		long replaced = 0;
+		if ("STOU".equals(command)) {
+			// the unique file is created in the working directory
+			path = new Path(view.getWorkingDirectory().getAbsolutePath(), "stou");
+			newFile = true;
+		} else if (request.getArgument() != null) {
+			FtpFile file = view.getFile(request.getArgument());
+			if (file instanceof VirtualFileObject) {
+				return FtpletResult.DEFAULT;
+			}
+			path = new Path(file.getAbsolutePath());
+			boolean overwrite = "STOR".equals(command) && session.getFileOffset() == 0;
+			// as HdfsFileObject tracks it: APPE of a missing file creates it
+			newFile = (overwrite || "APPE".equals(command)) && !file.doesExist();
+			if (overwrite && !newFile && file instanceof HdfsFileObject) {
+				replaced = ((HdfsFileObject) file).getSpaceConsumed();
+			}
+		} else {
+			return FtpletResult.DEFAULT;
+		}
+
+		String reason = guard.check(path, (HdfsUser) session.getUser(), view.getAllocationHint(), newFile,
+				replaced);
+		if (reason != null) {
+			view.takeAllocationHint();
+			session.write(new DefaultFtpReply(FtpReply.REPLY_552_REQUESTED_FILE_ACTION_ABORTED_EXCEEDED_STORAGE,
+					reason));
+			return FtpletResult.SKIP;
+		}
+		return FtpletResult.DEFAULT;
+	}
+}
@@ -0,0 +1,311 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.GlobPattern;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks uploads against the HDFS quotas of the directories they go to,
+ * before any data is sent. Quota and usage of the configured quota
+ * directories come from getContentSummary, cached for a while and kept up
+ * to date from the uploads through the gateway: an upload reserves its
+ * expected space while it runs and adds what it wrote when it is closed.
+ * The space an upload needs is its ALLO size, or the configured headroom,
+ * rounded up to whole blocks and multiplied by its replication, as the
+ * NameNode reserves a whole block for each block being written.
+ */
+public class QuotaGuard {
+
+	private static final MutableCounterLong REJECTIONS = HdfsOverFtpMetrics.get()
+			.counter("QuotaRejections", "Uploads refused because they would exceed a quota");
+
+	private static final MutableCounterLong FETCHES = HdfsOverFtpMetrics.get()
+			.counter("QuotaSummaryFetches", "Content summaries fetched for quota checks");
+
+	private final Logger log = LoggerFactory.getLogger(QuotaGuard.class);
+
+	private final List<GlobPattern> dirs = new ArrayList<GlobPattern>();
+
+	private final long ttl;
+
+	private final long headroom;
+
+	private final ConcurrentMap<String, Usage> usages = new ConcurrentHashMap<String, Usage>();
+
+	/**
+	 * Quota and usage of a quota directory
+	 */
+	private static class Usage {
+		private final String dir;
+		private volatile ContentSummary summary = null;
+		private volatile long fetched = 0;
+		// written through the gateway since the summary was fetched
+		private final AtomicLong added = new AtomicLong();
+		private final AtomicLong addedFiles = new AtomicLong();
+		// reserved by running uploads
+		private final AtomicLong reserved = new AtomicLong();
+		private final AtomicLong reservedFiles = new AtomicLong();
+
+		Usage(String dir) {
+			this.dir = dir;
+		}
+	}
+
+	/**
+	 * Constructs the guard
+	 *
+	 * @param dirs     comma separated globs of the directories with quotas, such as /user/*
+	 * @param ttl      milliseconds a content summary is used
+	 * @param headroom bytes reserved for an upload without ALLO
+	 */
+	public QuotaGuard(String dirs, long ttl, long headroom) {
+		for (String dir : dirs.split(",")) {
+			dir = dir.trim();
+			if (dir.length() > 0) {
+				this.dirs.add(new GlobPattern(dir));
+			}
+		}
+		this.ttl = ttl;
+		this.headroom = headroom;
+	}
+
+	/**
+	 * Check if an upload fits the quotas of the directories above it
+	 *
+	 * @param path     path of the upload
+	 * @param user     uploading user
+	 * @param sizeHint size announced by ALLO, -1 if none
+	 * @param newFile  true if the upload creates a file
+	 * @param replaced space consumed by the file the upload overwrites, 0 if none
+	 * @return why the upload does not fit, null if it does
+	 */
+	public String check(Path path, HdfsUser user, long sizeHint, boolean newFile, long replaced) {
+		long needed = getReservation(path, user, sizeHint);
+		for (Usage usage : getUsages(path)) {
+			ContentSummary summary = usage.summary;
+			if (summary == null) {
+				continue;
+			}
+			if (summary.getSpaceQuota() >= 0) {
+				// the NameNode frees the overwritten file when the upload creates its own
+				long used = summary.getSpaceConsumed() + usage.added.get() + usage.reserved.get() - replaced;
+				if (used + needed > summary.getSpaceQuota()) {
+					REJECTIONS.incr();
+					return "Upload needs " + needed + " bytes of the space quota of " + usage.dir + ", "
+							+ Math.max(0, summary.getSpaceQuota() - used) + " bytes are left.";
+				}
+			}
+			if (newFile && summary.getQuota() >= 0) {
+				long names = summary.getFileCount() + summary.getDirectoryCount()
+						+ usage.addedFiles.get() + usage.reservedFiles.get();
+				if (names + 1 > summary.getQuota()) {
+					REJECTIONS.incr();
+					return "The name quota of " + usage.dir + " is used up.";
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reserve the space of an upload in the quota directories above it
+	 * until the stream is closed
+	 *
+	 * @param path     path of the upload
+	 * @param user     uploading user
+	 * @param sizeHint size announced by ALLO, -1 if none
+	 * @param newFile  true if the upload creates a file
+	 * @param replaced space consumed by the file the upload overwrote, 0 if none
+	 * @param out      stream of the upload
+	 * @return stream of the upload, releasing the reservation when closed
+	 */
+	public OutputStream track(Path path, HdfsUser user, long sizeHint, boolean newFile, long replaced,
+			OutputStream out) {
+		List<Usage> tracked = getUsages(path);
+		if (tracked.isEmpty()) {
+			return out;
+		}
+		long needed = getReservation(path, user, sizeHint);
+		short replication = getReplication(path, user);
+		for (Usage usage : tracked) {
+			usage.reserved.addAndGet(needed);
+			usage.added.addAndGet(-replaced);
+			if (newFile) {
+				usage.reservedFiles.incrementAndGet();
+			}
+		}
+		return new TrackedOutputStream(out, tracked, needed, replication, newFile);
+	}
+
+	/**
+	 * Fetch the usage of the quota directories above a path again at the
+	 * next check, after space was freed under it
+	 *
+	 * @param path deleted or moved path
+	 */
+	public void invalidate(Path path) {
+		for (Path dir = path.getParent(); dir != null && !dir.isRoot(); dir = dir.getParent()) {
+			Usage usage = usages.get(HdfsMetadataCache.key(dir));
+			if (usage != null) {
+				usage.fetched = 0;
+			}
+		}
+	}
+
+	private long getReservation(Path path, HdfsUser user, long sizeHint) {
+		FileSystem dfs;
+		try {
+			dfs = HdfsOverFtpSystem.getDfs();
+		} catch (Exception e) {
+			return 0;
+		}
+		WriteProfile profile = HdfsOverFtpSystem.getWriteProfile(path, user);
+		long blockSize = profile.getBlockSize(dfs, path, sizeHint);
+		long size = Math.max(sizeHint >= 0 ? sizeHint : headroom, 1);
+		return (size + blockSize - 1) / blockSize * blockSize * profile.getReplication(dfs, path);
+	}
+
+	private short getReplication(Path path, HdfsUser user) {
+		try {
+			return HdfsOverFtpSystem.getWriteProfile(path, user).getReplication(HdfsOverFtpSystem.getDfs(), path);
+		} catch (Exception e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * Get the usage of the quota directories above a path, fetching expired summaries
+	 */
+	private List<Usage> getUsages(Path path) {
+		List<Usage> found = new ArrayList<Usage>();
+		for (Path dir = path.getParent(); dir != null && !dir.isRoot(); dir = dir.getParent()) {
+			String key = HdfsMetadataCache.key(dir);
+			for (GlobPattern pattern : dirs) {
+				if (pattern.matches(key)) {
+					Usage usage = usages.get(key);
+					if (usage == null) {
+						Usage created = new Usage(key);
+						usage = usages.putIfAbsent(key, created);
+						if (usage == null) {
+							usage = created;
+						}
+					}
+					refresh(usage, dir);
+					found.add(usage);
+					break;
+				}
+			}
+		}
+		return found;
+	}
+
+	private void refresh(Usage usage, final Path dir) {
+		if (System.currentTimeMillis() - usage.fetched < ttl) {
+			return;
+		}
+		synchronized (usage) {
+			if (System.currentTimeMillis() - usage.fetched < ttl) {
+				return;
+			}
+			try {
+				FETCHES.incr();
+				final FileSystem dfs = HdfsOverFtpSystem.getDfs();
+				usage.summary = HdfsOverFtpSystem.getNameNodeGuard().call("contentSummary", dir,
+						new Callable<ContentSummary>() {
+					@Override
+					public ContentSummary call() throws Exception {
+						return dfs.getContentSummary(dir);
+					}
+				});
+			} catch (FileNotFoundException e) {
+				usage.summary = null;
+			} catch (Exception e) {
+				// uploads are let through, the NameNode still enforces the quota
+				log.debug("Failed to fetch the quota of {}: {}", dir, e.toString());
+				return;
+			}
+			usage.added.set(0);
+			usage.addedFiles.set(0);
+			usage.fetched = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Upload stream which turns its reservation into usage when closed
+	 */
+	private static class TrackedOutputStream extends FilterOutputStream {
+
+		private final List<Usage> tracked;
+
+		private final long needed;
+
+		private final short replication;
+
+		private final boolean newFile;
+
+		private long written = 0;
+
+		private boolean closed = false;
+
+		TrackedOutputStream(OutputStream out, List<Usage> tracked, long needed, short replication, boolean newFile) {
+			super(out);
+			this.tracked = tracked;
+			this.needed = needed;
+			this.replication = replication;
+			this.newFile = newFile;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			written++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			written += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			boolean success = false;
+			try {
+				out.close();
+				success = true;
+			} finally {
+				for (Usage usage : tracked) {
+					usage.reserved.addAndGet(-needed);
+					if (newFile) {
+						usage.reservedFiles.decrementAndGet();
+					}
+					if (success) {
+						usage.added.addAndGet(written * replication);
+						if (newFile) {
+							usage.addedFiles.incrementAndGet();
+						}
+					}
+				}
+			}
+		}
+	}
+}
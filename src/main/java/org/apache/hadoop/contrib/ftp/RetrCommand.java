@@ -0,0 +1,158 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.command.AbstractCommand;
+import org.apache.ftpserver.command.impl.RETR;
+import org.apache.ftpserver.ftplet.DataConnection;
+import org.apache.ftpserver.ftplet.DefaultFtpReply;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpFile;
+import org.apache.ftpserver.ftplet.FtpReply;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.impl.FtpIoSession;
+import org.apache.ftpserver.impl.FtpServerContext;
+import org.apache.ftpserver.impl.IODataConnectionFactory;
+import org.apache.ftpserver.impl.LocalizedDataTransferFtpReply;
+import org.apache.ftpserver.impl.LocalizedFtpReply;
+import org.apache.ftpserver.impl.ServerFtpStatistics;
+import org.apache.ftpserver.util.IoUtils;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+
+/**
+ * <code>RETR &lt;SP&gt; &lt;pathname&gt; &lt;CRLF&gt;</code>
+ * <p/>
+ * The ftpserver RETR command with the data sent by {@link DirectBufferTransfer},
+ * if one is given. A missing path naming the archive of a directory sends
+ * the archive, see {@link TarDownloads}.
+ */
+public class RetrCommand extends AbstractCommand {
+
+	private final Logger log = LoggerFactory.getLogger(RetrCommand.class);
+
+	private final RETR retr = new RETR();
+
+	private final DirectBufferTransfer transfer;
+
+	/**
+	 * Constructs the command
+	 *
+	 * @param transfer engine sending the downloads, null to send them by the data connection
+	 */
+	public RetrCommand(DirectBufferTransfer transfer) {
+		this.transfer = transfer;
+	}
+
+	@Override
+	public void execute(FtpIoSession session, FtpServerContext context, FtpRequest request)
+			throws IOException, FtpException {
+		try {
+			long skipLen = session.getFileOffset();
+
+			String fileName = request.getArgument();
+			if (fileName == null) {
+				session.write(LocalizedDataTransferFtpReply.translate(session, request, context,
+						FtpReply.REPLY_501_SYNTAX_ERROR_IN_PARAMETERS_OR_ARGUMENTS, "RETR", null, null));
+				return;
+			}
+
+			FtpFile file = null;
+			try {
+				file = session.getFileSystemView().getFile(fileName);
+			} catch (Exception e) {
+				log.debug("Exception getting file object", e);
+			}
+			if (file == null) {
+				session.write(LocalizedDataTransferFtpReply.translate(session, request, context,
+						FtpReply.REPLY_550_REQUESTED_ACTION_NOT_TAKEN, "RETR.missing", fileName, file));
+				return;
+			}
+			fileName = file.getAbsolutePath();
+
+			TarDownloads tars = HdfsOverFtpSystem.getTarDownloads();
+			if (tars != null && !file.doesExist() && tars.isArchive(new Path(fileName))) {
+				file = new TarFileObject(fileName, session.getUser(),
+						(HdfsFileSystemView) session.getFileSystemView(), tars);
+			}
+
+			if (!file.doesExist()) {
+				session.write(LocalizedDataTransferFtpReply.translate(session, request, context,
+						FtpReply.REPLY_550_REQUESTED_ACTION_NOT_TAKEN, "RETR.missing", fileName, file));
+				return;
+			}
+			if (!file.isFile()) {
+				session.write(LocalizedDataTransferFtpReply.translate(session, request, context,
+						FtpReply.REPLY_550_REQUESTED_ACTION_NOT_TAKEN, "RETR.invalid", fileName, file));
+				return;
+			}
+			if (!file.isReadable()) {
+				session.write(LocalizedDataTransferFtpReply.translate(session, request, context,
+						FtpReply.REPLY_550_REQUESTED_ACTION_NOT_TAKEN, "RETR.permission", fileName, file));
+				return;
+			}
+
+			if (session.getDataConnection() instanceof IODataConnectionFactory
+					&& ((IODataConnectionFactory) session.getDataConnection()).getInetAddress() == null) {
+				session.write(new DefaultFtpReply(FtpReply.REPLY_503_BAD_SEQUENCE_OF_COMMANDS,
+						"PORT or PASV must be issued first"));
+				return;
+			}
+
+			session.write(LocalizedFtpReply.translate(session, request, context,
+					FtpReply.REPLY_150_FILE_STATUS_OKAY, "RETR", null));
+
+			DataConnection dataConnection;
+			try {
+				dataConnection = session.getDataConnection().openConnection();
+			} catch (Exception e) {
+				log.debug("Exception getting the output data stream", e);
+				session.write(LocalizedDataTransferFtpReply.translate(session, request, context,
+						FtpReply.REPLY_425_CANT_OPEN_DATA_CONNECTION, "RETR", null, file));
+				return;
+			}
+
+			boolean failure = false;
+			long transSz = 0;
+			InputStream is = null;
+			try {
+				is = retr.openInputStream(session, file, skipLen);
+				transSz = transfer != null ? transfer.transferToClient(session, dataConnection, is)
+						: dataConnection.transferToClient(session.getFtpletSession(), is);
+				if (is != null) {
+					is.close();
+				}
+
+				log.info("File downloaded {}", fileName);
+				ServerFtpStatistics ftpStat = (ServerFtpStatistics) context.getFtpStatistics();
+				if (ftpStat != null) {
+					ftpStat.setDownload(session, file, transSz);
+				}
+			} catch (SocketException e) {
+				log.debug("Socket exception during data transfer", e);
+				failure = true;
+				session.write(LocalizedDataTransferFtpReply.translate(session, request, context,
+						FtpReply.REPLY_426_CONNECTION_CLOSED_TRANSFER_ABORTED, "RETR", fileName, file, transSz));
+			} catch (IOException e) {
+				log.debug("IOException during data transfer", e);
+				failure = true;
+				session.write(LocalizedDataTransferFtpReply.translate(session, request, context,
+						FtpReply.REPLY_551_REQUESTED_ACTION_ABORTED_PAGE_TYPE_UNKNOWN, "RETR", fileName, file,
+						transSz));
+			} finally {
+				IoUtils.close(is);
+			}
+
+			if (!failure) {
+				session.write(LocalizedDataTransferFtpReply.translate(session, request, context,
+						FtpReply.REPLY_226_CLOSING_DATA_CONNECTION, "RETR", fileName, file, transSz));
+			}
+		} finally {
+			session.resetState();
+			session.getDataConnection().closeDataConnection();
+		}
+	}
+}
@@ -0,0 +1,486 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Segmented uploads. Clients splitting one file across several connections
+ * send every segment with REST+STOR. A segment starting at the end of the
+ * target file is appended to it, any other one is written to a hidden part
+ * file next to the target. Once no segment of the target is being written
+ * and the parts continue the target without gaps, they are joined onto it
+ * with concat, which moves their blocks without copying data. The join runs
+ * in the close of the last segment, so the target is complete by the time
+ * its STOR is answered. A part overlapping the end of the target, e.g. of a
+ * segment sent again with another size, cannot be concatenated: its bytes
+ * past the end are copied.
+ * <p>
+ * Part names carry the id of the upload writing them. A STOR from offset 0
+ * while no segment of the target is open starts a new upload, parts left by
+ * an earlier one are discarded instead of being joined onto it. Parts still
+ * waiting after the segment timeout are discarded as well.
+ */
+public class SegmentedUploads {
+
+	private static final MutableCounterLong SEGMENTS_JOINED = HdfsOverFtpMetrics.get()
+			.counter("SegmentsJoined", "Part files of segmented uploads joined onto their target");
+
+	private static final String PART = ".part-";
+
+	private final Logger log = LoggerFactory.getLogger(SegmentedUploads.class);
+
+	private final Map<Path, Upload> uploads = new HashMap<Path, Upload>();
+
+	private final long timeout;
+
+	// part names of uploads before a restart are not reused
+	private final AtomicLong ids = new AtomicLong(System.currentTimeMillis());
+
+	private final ScheduledThreadPoolExecutor sweeper;
+
+	/**
+	 * Called after parts were joined onto their target
+	 */
+	public interface JoinListener {
+		void joined(Path target, long length);
+	}
+
+	/**
+	 * A segment being written
+	 */
+	public static class Segment {
+
+		private final Path path;
+
+		private final long upload;
+
+		private final long offset;
+
+		private final boolean append;
+
+		private Segment(Path path, long upload, long offset, boolean append) {
+			this.path = path;
+			this.upload = upload;
+			this.offset = offset;
+			this.append = append;
+		}
+
+		/**
+		 * Get path the segment is written to
+		 *
+		 * @return target path or part path
+		 */
+		public Path getPath() {
+			return path;
+		}
+
+		/**
+		 * Checks if the segment is appended to the target
+		 *
+		 * @return true if the target is opened for append
+		 */
+		public boolean isAppend() {
+			return append;
+		}
+
+		/**
+		 * Checks if the segment is written to a part file
+		 *
+		 * @return true for part files
+		 */
+		public boolean isPart() {
+			return offset > 0 && !append;
+		}
+	}
+
+	private static class Upload {
+
+		private long id;
+
+		private final AtomicInteger open = new AtomicInteger();
+
+		// offset -> length of closed part files
+		private final TreeMap<Long, Long> parts = new TreeMap<Long, Long>();
+
+		private long lastActivity = System.currentTimeMillis();
+
+		private JoinListener listener = null;
+	}
+
+	/**
+	 * Constructs the registry
+	 *
+	 * @param timeout milliseconds without activity after which part files
+	 *                waiting to be joined are discarded
+	 */
+	public SegmentedUploads(long timeout) {
+		this.timeout = timeout;
+		this.sweeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "segment-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = Math.max(Math.min(timeout / 2, 60000), 100);
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sweep();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get path of the part file of a segment
+	 *
+	 * @param target path of the uploaded file
+	 * @param upload id of the upload writing the part
+	 * @param offset offset of the segment
+	 * @return hidden part path in the directory of the target
+	 */
+	public static Path getPartPath(Path target, long upload, long offset) {
+		return new Path(target.getParent(), "." + target.getName() + PART + upload + "-" + offset);
+	}
+
+	/**
+	 * Start writing a segment of the target. Every call must be followed by
+	 * {@link #closed(Path, Segment, long, boolean, JoinListener)}.
+	 *
+	 * @param target path of the uploaded file
+	 * @param offset REST offset of the segment
+	 * @return the segment to write
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public Segment open(Path target, long offset) throws IOException, InterruptedException {
+		Upload upload;
+		synchronized (uploads) {
+			upload = uploads.get(target);
+			if (upload == null) {
+				upload = new Upload();
+				upload.id = ids.incrementAndGet();
+				uploads.put(target, upload);
+			}
+			upload.open.incrementAndGet();
+		}
+
+		synchronized (upload) {
+			boolean alone = upload.open.get() == 1;
+			upload.lastActivity = System.currentTimeMillis();
+			if (offset == 0) {
+				if (alone && !upload.parts.isEmpty()) {
+					// left over from an abandoned upload of the same file, a
+					// plain STOR replacing it must not get them joined on
+					deleteParts(target, upload);
+					upload.parts.clear();
+					upload.id = ids.incrementAndGet();
+				}
+				return new Segment(target, upload.id, 0, false);
+			}
+
+			if (alone && upload.parts.isEmpty()) {
+				try {
+					FileStatus status = HdfsOverFtpSystem.getDfs().getFileStatus(target);
+					if (status.isFile() && status.getLen() == offset) {
+						return new Segment(target, upload.id, offset, true);
+					}
+				} catch (FileNotFoundException e) {
+					// the first segment has not started yet
+				}
+			}
+			return new Segment(getPartPath(target, upload.id, offset), upload.id, offset, false);
+		}
+	}
+
+	/**
+	 * Finish writing a segment. When no segment of the target is open any
+	 * more, the parts are joined onto the target before this returns.
+	 * Failures to join are logged, the parts are joined when the next
+	 * segment of the target is closed.
+	 *
+	 * @param target   path of the uploaded file
+	 * @param segment  the written segment
+	 * @param length   number of bytes written
+	 * @param success  false if writing or closing the segment failed, its part is discarded
+	 * @param listener called after parts were joined onto the target, may be null
+	 */
+	public void closed(Path target, Segment segment, long length, boolean success, JoinListener listener) {
+		final Upload upload;
+		synchronized (uploads) {
+			upload = uploads.get(target);
+		}
+		if (upload == null) {
+			return;
+		}
+
+		long joined = 0;
+		JoinListener joinListener;
+		synchronized (upload) {
+			upload.lastActivity = System.currentTimeMillis();
+			if (listener != null) {
+				upload.listener = listener;
+			}
+			joinListener = upload.listener;
+			if (segment.isPart()) {
+				if (segment.upload != upload.id) {
+					// written for an upload which was discarded meanwhile
+					deletePart(segment.getPath());
+				} else if (success && length > 0) {
+					upload.parts.put(segment.offset, length);
+				} else {
+					// concat does not take empty files, a failed part is incomplete
+					upload.parts.remove(segment.offset);
+					deletePart(segment.getPath());
+				}
+			}
+			if (upload.open.decrementAndGet() == 0 && !upload.parts.isEmpty()) {
+				try {
+					joined = join(target, upload.id, upload.parts);
+				} catch (Exception e) {
+					log.warn("Failed to join parts of " + target, e);
+				}
+			}
+		}
+
+		if (joined > 0 && joinListener != null) {
+			joinListener.joined(target, joined);
+		}
+		release(target, upload);
+	}
+
+	private void release(Path target, Upload upload) {
+		synchronized (uploads) {
+			synchronized (upload) {
+				if (upload.open.get() == 0 && upload.parts.isEmpty() && uploads.get(target) == upload) {
+					uploads.remove(target);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks if the upload of a target is not complete yet
+	 *
+	 * @param target path of the uploaded file
+	 * @return true if segments of the target are being written or parts wait to be joined
+	 */
+	public boolean isPending(Path target) {
+		Upload upload;
+		synchronized (uploads) {
+			upload = uploads.get(target);
+		}
+		if (upload == null) {
+			return false;
+		}
+		synchronized (upload) {
+			return !isExpired(upload, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Get number of uploads with segments being written or parts waiting to be joined
+	 *
+	 * @return number of segmented uploads
+	 */
+	public int size() {
+		synchronized (uploads) {
+			return uploads.size();
+		}
+	}
+
+	private boolean isExpired(Upload upload, long now) {
+		return upload.open.get() == 0 && now - upload.lastActivity > timeout;
+	}
+
+	/**
+	 * Discard parts no segment followed up within the timeout, e.g. of a
+	 * single REST+STOR past the end of the file
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		List<Map.Entry<Path, Upload>> expired = new ArrayList<Map.Entry<Path, Upload>>();
+		synchronized (uploads) {
+			Iterator<Map.Entry<Path, Upload>> it = uploads.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Path, Upload> entry = it.next();
+				synchronized (entry.getValue()) {
+					if (isExpired(entry.getValue(), now)) {
+						it.remove();
+						expired.add(entry);
+					}
+				}
+			}
+		}
+		for (Map.Entry<Path, Upload> entry : expired) {
+			synchronized (entry.getValue()) {
+				log.info("Discarding {} parts of {} after {} ms without activity",
+						entry.getValue().parts.size(), entry.getKey(), timeout);
+				deleteParts(entry.getKey(), entry.getValue());
+				entry.getValue().parts.clear();
+			}
+		}
+	}
+
+	private long join(Path target, long id, TreeMap<Long, Long> parts) throws IOException, InterruptedException {
+		FileSystem dfs = HdfsOverFtpSystem.getDfs();
+		long joined = 0;
+		while (!parts.isEmpty()) {
+			long end;
+			try {
+				end = dfs.getFileStatus(target).getLen();
+			} catch (FileNotFoundException e) {
+				return joined;
+			}
+
+			List<Long> covered = new ArrayList<Long>();
+			List<Long> chain = new ArrayList<Long>();
+			Long overlap = null;
+			for (Map.Entry<Long, Long> part : parts.entrySet()) {
+				long offset = part.getKey();
+				if (offset + part.getValue() <= end) {
+					covered.add(offset);
+				} else if (offset == end) {
+					chain.add(offset);
+					end += part.getValue();
+				} else {
+					if (offset < end && chain.isEmpty()) {
+						overlap = offset;
+					}
+					break;
+				}
+			}
+			for (long offset : covered) {
+				deletePart(getPartPath(target, id, offset));
+				parts.remove(offset);
+			}
+
+			if (!chain.isEmpty()) {
+				joined += concat(dfs, target, id, chain, parts);
+			} else if (overlap != null) {
+				joined += copyTail(dfs, target, id, overlap, parts.get(overlap));
+				parts.remove(overlap);
+				deletePart(getPartPath(target, id, overlap));
+			} else {
+				log.debug("Parts of {} wait for the segment at {}", target, end);
+				break;
+			}
+		}
+		return joined;
+	}
+
+	private long concat(FileSystem dfs, Path target, long id, List<Long> chain, TreeMap<Long, Long> parts)
+			throws IOException {
+		Path[] srcs = new Path[chain.size()];
+		long joined = 0;
+		for (int i = 0; i < srcs.length; i++) {
+			srcs[i] = getPartPath(target, id, chain.get(i));
+			joined += parts.get(chain.get(i));
+		}
+
+		boolean concatenated = false;
+		if (dfs instanceof DistributedFileSystem) {
+			try {
+				((DistributedFileSystem) dfs).concat(target, srcs);
+				concatenated = true;
+			} catch (IOException e) {
+				// e.g. a part with a larger block size than the target
+				log.info("Cannot concat parts of " + target + ", copying them: " + e.getMessage());
+			}
+		}
+		if (!concatenated) {
+			copy(dfs, target, srcs);
+		}
+
+		parts.keySet().removeAll(chain);
+		HdfsMetadataCache cache = HdfsOverFtpSystem.getMetadataCache();
+		cache.invalidate(target);
+		for (Path src : srcs) {
+			cache.invalidate(src);
+		}
+		SEGMENTS_JOINED.incr(srcs.length);
+		log.debug("Joined {} parts onto {}", srcs.length, target);
+		return joined;
+	}
+
+	/**
+	 * Append the bytes of a part past the end of the target
+	 */
+	private long copyTail(FileSystem dfs, Path target, long id, long offset, long length) throws IOException {
+		long end = dfs.getFileStatus(target).getLen();
+		FSDataInputStream in = dfs.open(getPartPath(target, id, offset));
+		try {
+			in.seek(end - offset);
+			FSDataOutputStream out = dfs.append(target);
+			try {
+				IOUtils.copyBytes(in, out, offset + length - end, false);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		HdfsOverFtpSystem.getMetadataCache().invalidate(target);
+		SEGMENTS_JOINED.incr();
+		log.info("Part of {} at {} overlaps its end {}, copied {} bytes", target, offset, end, offset + length - end);
+		return offset + length - end;
+	}
+
+	private void copy(FileSystem dfs, Path target, Path[] srcs) throws IOException {
+		int bufferSize = dfs.getConf().getInt("io.file.buffer.size", 4096);
+		FSDataOutputStream out = dfs.append(target);
+		try {
+			for (Path src : srcs) {
+				FSDataInputStream in = dfs.open(src);
+				try {
+					IOUtils.copyBytes(in, out, bufferSize, false);
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			out.close();
+		}
+		for (Path src : srcs) {
+			dfs.delete(src, false);
+		}
+	}
+
+	private void deleteParts(Path target, Upload upload) {
+		for (long offset : upload.parts.keySet()) {
+			deletePart(getPartPath(target, upload.id, offset));
+		}
+	}
+
+	private void deletePart(Path part) {
+		try {
+			HdfsOverFtpSystem.getDfs().delete(part, false);
+			HdfsOverFtpSystem.getMetadataCache().invalidate(part);
+		} catch (Exception e) {
+			log.warn("Failed to delete " + part, e);
+		}
+	}
+}
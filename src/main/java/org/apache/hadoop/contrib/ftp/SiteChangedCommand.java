@@ -0,0 +1,194 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.command.AbstractCommand;
+import org.apache.ftpserver.ftplet.DefaultFtpReply;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpFile;
+import org.apache.ftpserver.ftplet.FtpReply;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.impl.FtpIoSession;
+import org.apache.ftpserver.impl.FtpServerContext;
+import org.apache.ftpserver.util.DateUtils;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * <code>SITE CHANGED &lt;SP&gt; &lt;time-val&gt; [&lt;SP&gt; &lt;pathname&gt;] &lt;CRLF&gt;</code>
+ * <p/>
+ * Sends the manifest lines, see {@link TreeManifest}, of the entries below
+ * a directory changed after the given UTC time, in the MDTM format.
+ * Entries removed since are sent as <code>type=deleted; /path</code>.
+ * Changes are taken from the {@link ChangeIndex} if it goes back far
+ * enough, otherwise the tree is walked for modification times, which
+ * misses removed entries.
+ */
+public class SiteChangedCommand extends AbstractCommand {
+
+	private static final MutableCounterLong INDEXED = HdfsOverFtpMetrics.get()
+			.counter("ChangedFromIndex", "SITE CHANGED answered from the change index");
+
+	private static final MutableCounterLong WALKED = HdfsOverFtpMetrics.get()
+			.counter("ChangedFromWalk", "SITE CHANGED answered by walking the tree");
+
+	private final Logger log = LoggerFactory.getLogger(SiteChangedCommand.class);
+
+	private final ExecutorService listers;
+
+	private final int parallelism;
+
+	private final int buffer;
+
+	/**
+	 * Constructs the command
+	 *
+	 * @param listers     executor listing the directories of all manifests
+	 * @param parallelism number of directories listed at once per manifest
+	 * @param buffer      number of lines buffered ahead of the data connection
+	 */
+	public SiteChangedCommand(ExecutorService listers, int parallelism, int buffer) {
+		this.listers = listers;
+		this.parallelism = parallelism;
+		this.buffer = buffer;
+	}
+
+	@Override
+	public void execute(FtpIoSession session, FtpServerContext context, FtpRequest request)
+			throws IOException, FtpException {
+		try {
+			session.resetState();
+
+			// SITE CHANGED time [path]
+			String[] args = request.getArgument().trim().split("\\s+", 3);
+			long since;
+			try {
+				since = DateUtils.parseFTPDate(args[1]).getTime();
+			} catch (Exception e) {
+				session.write(new DefaultFtpReply(FtpReply.REPLY_501_SYNTAX_ERROR_IN_PARAMETERS_OR_ARGUMENTS,
+						"Usage: SITE CHANGED YYYYMMDDHHMMSS [dir]"));
+				return;
+			}
+			String dir = args.length > 2 ? args[2] : "./";
+
+			FtpFile file = session.getFileSystemView().getFile(dir);
+			if (!(file instanceof HdfsFileObject) || !file.isDirectory()) {
+				session.write(new DefaultFtpReply(FtpReply.REPLY_550_REQUESTED_ACTION_NOT_TAKEN,
+						"Not a directory: " + dir));
+				return;
+			}
+			if (!file.isReadable()) {
+				session.write(new DefaultFtpReply(FtpReply.REPLY_550_REQUESTED_ACTION_NOT_TAKEN,
+						"Permission denied: " + dir));
+				return;
+			}
+
+			if (!SiteManifestCommand.hasDataConnection(session)) {
+				return;
+			}
+
+			HdfsUser user = (HdfsUser) session.getUser();
+			String root = file.getAbsolutePath();
+			ChangeIndex index = HdfsOverFtpSystem.getChangeIndex();
+			ChangeIndex.Changes changes = index != null ? index.getChanges(root, since) : null;
+
+			InputStream manifest;
+			if (changes == null) {
+				WALKED.incr();
+				manifest = new TreeManifest(user, Collections.singletonList(new Path(root)), since,
+						listers, parallelism, buffer);
+			} else {
+				INDEXED.incr();
+				try {
+					manifest = getManifest(user, root, changes);
+				} catch (Exception e) {
+					log.warn("Failed to look up the changes below " + root, e);
+					session.write(new DefaultFtpReply(FtpReply.REPLY_451_REQUESTED_ACTION_ABORTED,
+							"Failed to look up changes."));
+					return;
+				}
+			}
+			SiteManifestCommand.send(session, root, manifest);
+		} finally {
+			session.getDataConnection().closeDataConnection();
+		}
+	}
+
+	/**
+	 * Get the manifest of the changed paths, followed by everything in the
+	 * changed trees
+	 */
+	private InputStream getManifest(HdfsUser user, String root, ChangeIndex.Changes changes) throws Exception {
+		HdfsMetadataCache cache = HdfsOverFtpSystem.getMetadataCache();
+		ByteArrayOutputStream lines = new ByteArrayOutputStream();
+		Map<String, Boolean> readable = new HashMap<String, Boolean>();
+		Map<String, FileStatus> statuses = new HashMap<String, FileStatus>();
+
+		for (String path : changes.getPaths()) {
+			if (!isVisible(user, root, path, readable)) {
+				continue;
+			}
+			try {
+				FileStatus status = cache.getFileStatus(new Path(path));
+				statuses.put(path, status);
+				lines.write(TreeManifest.format(status));
+			} catch (FileNotFoundException e) {
+				lines.write(("type=deleted; " + path + "\r\n").getBytes("UTF-8"));
+			}
+		}
+
+		List<Path> trees = new ArrayList<Path>();
+		for (String tree : changes.getTrees()) {
+			FileStatus status = statuses.get(tree);
+			if (tree.equals(root)
+					|| (status != null && status.isDirectory() && HdfsFileObject.isReadable(user, status))) {
+				trees.add(new Path(tree));
+			}
+		}
+
+		InputStream in = new ByteArrayInputStream(lines.toByteArray());
+		if (trees.isEmpty()) {
+			return in;
+		}
+		return new SequenceInputStream(in, new TreeManifest(user, trees, -1, listers, parallelism, buffer));
+	}
+
+	/**
+	 * Checks if the directories between the root and the path exist and are readable
+	 */
+	private boolean isVisible(HdfsUser user, String root, String path, Map<String, Boolean> readable)
+			throws Exception {
+		for (String dir = HdfsMetadataCache.parentOf(path); dir != null && dir.length() > root.length();
+				dir = HdfsMetadataCache.parentOf(dir)) {
+			Boolean r = readable.get(dir);
+			if (r == null) {
+				try {
+					r = HdfsFileObject.isReadable(user, HdfsOverFtpSystem.getMetadataCache().getFileStatus(new Path(dir)));
+				} catch (FileNotFoundException e) {
+					// removed with the path, whose removal is reported if
+					// the removed directory was visible
+					r = false;
+				}
+				readable.put(dir, r);
+			}
+			if (!r) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,143 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.command.AbstractCommand;
+import org.apache.ftpserver.ftplet.DataConnection;
+import org.apache.ftpserver.ftplet.DefaultFtpReply;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpFile;
+import org.apache.ftpserver.ftplet.FtpReply;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.impl.FtpIoSession;
+import org.apache.ftpserver.impl.FtpServerContext;
+import org.apache.ftpserver.impl.IODataConnectionFactory;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * <code>SITE MANIFEST [&lt;SP&gt; &lt;pathname&gt;] &lt;CRLF&gt;</code>
+ * <p/>
+ * Sends the recursive manifest of a directory tree over one data
+ * connection, see {@link TreeManifest}, so mirror tools do not need a LIST
+ * per directory.
+ */
+public class SiteManifestCommand extends AbstractCommand {
+
+	private static final Logger log = LoggerFactory.getLogger(SiteManifestCommand.class);
+
+	private final ExecutorService listers;
+
+	private final int parallelism;
+
+	private final int buffer;
+
+	/**
+	 * Constructs the command
+	 *
+	 * @param listers     executor listing the directories of all manifests
+	 * @param parallelism number of directories listed at once per manifest
+	 * @param buffer      number of lines buffered ahead of the data connection
+	 */
+	public SiteManifestCommand(ExecutorService listers, int parallelism, int buffer) {
+		this.listers = listers;
+		this.parallelism = parallelism;
+		this.buffer = buffer;
+	}
+
+	@Override
+	public void execute(FtpIoSession session, FtpServerContext context, FtpRequest request)
+			throws IOException, FtpException {
+		try {
+			session.resetState();
+
+			// SITE MANIFEST [path]
+			String argument = request.getArgument().trim();
+			int index = argument.indexOf(' ');
+			String dir = index == -1 ? "./" : argument.substring(index + 1).trim();
+
+			FtpFile file = session.getFileSystemView().getFile(dir);
+			if (!(file instanceof HdfsFileObject) || !file.isDirectory()) {
+				session.write(new DefaultFtpReply(FtpReply.REPLY_550_REQUESTED_ACTION_NOT_TAKEN,
+						"Not a directory: " + dir));
+				return;
+			}
+			if (!file.isReadable()) {
+				session.write(new DefaultFtpReply(FtpReply.REPLY_550_REQUESTED_ACTION_NOT_TAKEN,
+						"Permission denied: " + dir));
+				return;
+			}
+
+			// nothing is listed for a manifest which cannot be sent
+			if (!hasDataConnection(session)) {
+				return;
+			}
+			send(session, file.getAbsolutePath(), new TreeManifest((HdfsUser) session.getUser(),
+					new Path(file.getAbsolutePath()), listers, parallelism, buffer));
+		} finally {
+			session.getDataConnection().closeDataConnection();
+		}
+	}
+
+	/**
+	 * Checks if PORT or PASV was issued, replies 503 if not
+	 *
+	 * @param session session of the command
+	 * @return true if a data connection can be opened
+	 */
+	static boolean hasDataConnection(FtpIoSession session) {
+		if (session.getDataConnection() instanceof IODataConnectionFactory
+				&& ((IODataConnectionFactory) session.getDataConnection()).getInetAddress() == null) {
+			session.write(new DefaultFtpReply(FtpReply.REPLY_503_BAD_SEQUENCE_OF_COMMANDS,
+					"PORT or PASV must be issued first"));
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Send a manifest over the data connection, and close it. The data
+	 * connection must have been checked with {@link #hasDataConnection}.
+	 *
+	 * @param session  session of the command
+	 * @param root     path the manifest is of
+	 * @param manifest lines of the manifest
+	 */
+	static void send(FtpIoSession session, String root, InputStream manifest) throws IOException {
+		try {
+			session.write(new DefaultFtpReply(FtpReply.REPLY_150_FILE_STATUS_OKAY,
+					"Opening data connection for the manifest of " + root + "."));
+
+			DataConnection dataConnection;
+			try {
+				dataConnection = session.getDataConnection().openConnection();
+			} catch (Exception e) {
+				log.debug("Exception getting the output data stream", e);
+				session.write(new DefaultFtpReply(FtpReply.REPLY_425_CANT_OPEN_DATA_CONNECTION,
+						"Can't open data connection."));
+				return;
+			}
+
+			try {
+				long size = dataConnection.transferToClient(session.getFtpletSession(), manifest);
+				log.info("Manifest of {} sent, {} bytes", root, size);
+				session.write(new DefaultFtpReply(FtpReply.REPLY_226_CLOSING_DATA_CONNECTION,
+						"Manifest sent."));
+			} catch (SocketException e) {
+				log.debug("Socket exception during data transfer", e);
+				session.write(new DefaultFtpReply(FtpReply.REPLY_426_CONNECTION_CLOSED_TRANSFER_ABORTED,
+						"Data connection error."));
+			} catch (IOException e) {
+				log.warn("Failed to send the manifest of " + root, e);
+				session.write(new DefaultFtpReply(FtpReply.REPLY_551_REQUESTED_ACTION_ABORTED_PAGE_TYPE_UNKNOWN,
+						"Failed to list the tree."));
+			}
+		} finally {
+			manifest.close();
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads of directory trees as tar archives. RETR of a path which does
+ * not exist, named like a directory followed by the archive suffix, sends
+ * the {@link TreeTar} of that directory. Files read ahead by all archives
+ * share one pool of reader threads and one bound of buffered bytes.
+ */
+public class TarDownloads {
+
+	private static final MutableCounterLong DOWNLOADS = HdfsOverFtpMetrics.get()
+			.counter("TarDownloads", "Downloads of directory trees as tar archives");
+
+	private final String suffix;
+
+	private final int parallelism;
+
+	private final int readAhead;
+
+	private final int bufferSize;
+
+	private final int maxBufferedFile;
+
+	private final int maxMemory;
+
+	// bytes read ahead by all archives
+	private final Semaphore memory;
+
+	// file reads of all archives
+	private final ThreadPoolExecutor readers;
+
+	/**
+	 * Constructs the downloads
+	 *
+	 * @param suffix          suffix of the archive names, such as .tar
+	 * @param parallelism     number of files read at once per archive
+	 * @param readAhead       number of entries prepared ahead of the client per archive
+	 * @param bufferSize      maximum number of bytes of files read ahead per archive
+	 * @param maxBufferedFile size up to which files are read ahead
+	 * @param maxMemory       maximum number of bytes of files read ahead by all archives
+	 * @param threads         number of threads reading files for all archives
+	 */
+	public TarDownloads(String suffix, int parallelism, int readAhead, int bufferSize, int maxBufferedFile,
+			int maxMemory, int threads) {
+		this.suffix = suffix;
+		this.parallelism = parallelism;
+		this.readAhead = readAhead;
+		this.bufferSize = Math.min(bufferSize, maxMemory);
+		this.maxBufferedFile = maxBufferedFile;
+		this.maxMemory = maxMemory;
+		this.memory = new Semaphore(maxMemory);
+		this.readers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "tree-tar-read");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		readers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Checks if a path names the archive of a directory. RETR asks only for
+	 * paths which are no file of their own.
+	 *
+	 * @param path path of the file
+	 * @return true if the path has the archive suffix and names an existing
+	 * directory
+	 */
+	public boolean isArchive(Path path) {
+		String name = path.getName();
+		if (!name.endsWith(suffix) || name.length() == suffix.length()) {
+			return false;
+		}
+		try {
+			return HdfsOverFtpSystem.getMetadataCache().getFileStatus(getDirectory(path)).isDirectory();
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Get the directory archived by a path
+	 *
+	 * @param path path of the archive
+	 * @return path of the directory
+	 */
+	public Path getDirectory(Path path) {
+		String archive = path.toString();
+		return new Path(archive.substring(0, archive.length() - suffix.length()));
+	}
+
+	/**
+	 * Open the archive of a directory tree
+	 *
+	 * @param user   downloading user
+	 * @param dir    status of the directory
+	 * @param offset offset in the archive to start reading at
+	 * @return stream of the archive
+	 */
+	public InputStream open(HdfsUser user, FileStatus dir, long offset) throws IOException {
+		InputStream in = new TreeTar(user, dir, readers, parallelism, readAhead, bufferSize, maxBufferedFile, memory);
+		DOWNLOADS.incr();
+		// the archive is generated, so a restarted download generates it again up to the offset
+		long skipped = 0;
+		while (skipped < offset) {
+			long n = in.skip(offset - skipped);
+			if (n <= 0) {
+				break;
+			}
+			skipped += n;
+		}
+		return in;
+	}
+
+	/**
+	 * Get the number of bytes read ahead by all archives
+	 *
+	 * @return number of bytes
+	 */
+	public long getBufferedBytes() {
+		return maxMemory - memory.availablePermits();
+	}
+}
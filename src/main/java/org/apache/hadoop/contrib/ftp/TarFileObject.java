@@ -0,0 +1,75 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.ftplet.User;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Read-only virtual file of the tar archive of a directory tree, see
+ * {@link TarDownloads}. Only RETR resolves it, for a path with no file of
+ * its own, other commands see the HDFS path. The archive is generated while
+ * it is sent, so its size is not known and reported as 0; its modification
+ * time is the one of the directory.
+ */
+public class TarFileObject extends VirtualFileObject {
+
+	private final TarDownloads downloads;
+
+	private final HdfsUser user;
+
+	private final Path dir;
+
+	private FileStatus dirStatus = null;
+
+	/**
+	 * Constructs the virtual file
+	 *
+	 * @param path      path of the archive
+	 * @param user      accessor of the object
+	 * @param view      file system view of the session the object belongs to
+	 * @param downloads tar downloads
+	 */
+	public TarFileObject(String path, User user, HdfsFileSystemView view, TarDownloads downloads) {
+		super(path, user, view);
+		this.downloads = downloads;
+		this.user = (HdfsUser) user;
+		this.dir = downloads.getDirectory(new Path(path));
+	}
+
+	/**
+	 * Get the status of the archive from the status of the directory
+	 *
+	 * @return status of the virtual file
+	 * @throws FileNotFoundException if the archived path is not a directory
+	 */
+	@Override
+	protected FileStatus getFileStatus() throws Exception {
+		if (dirStatus == null) {
+			FileStatus status = HdfsOverFtpSystem.getMetadataCache().getFileStatus(dir);
+			if (!status.isDirectory()) {
+				throw new FileNotFoundException(dir + " is not a directory");
+			}
+			dirStatus = status;
+		}
+		return new FileStatus(0, false, 0, 0, dirStatus.getModificationTime(), 0,
+				dirStatus.getPermission(), dirStatus.getOwner(), dirStatus.getGroup(),
+				new Path(getAbsolutePath()));
+	}
+
+	/**
+	 * Creates input stream of the archive
+	 *
+	 * @param l offset in the archive to start reading at
+	 * @return InputStream
+	 * @throws IOException
+	 */
+	@Override
+	public InputStream createInputStream(long l) throws IOException {
+		requireFileStatus();
+		return downloads.open(user, dirStatus, l);
+	}
+}
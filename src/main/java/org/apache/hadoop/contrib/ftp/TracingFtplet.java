@@ -0,0 +1,72 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.ftplet.DefaultFtplet;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpReply;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.ftplet.FtpSession;
+import org.apache.ftpserver.ftplet.FtpletResult;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Traces a sample of the FTP commands, see {@link CommandTrace}, and writes
+ * the traces of commands slower than the threshold to the slow operation
+ * log, the logger of this class.
+ */
+public class TracingFtplet extends DefaultFtplet {
+
+	private static final MutableCounterLong TRACED = HdfsOverFtpMetrics.get()
+			.counter("TracedCommands", "Commands traced by sampling");
+
+	private static final MutableCounterLong SLOW = HdfsOverFtpMetrics.get()
+			.counter("SlowCommands", "Traced commands slower than the slow operation threshold");
+
+	private final Logger log = LoggerFactory.getLogger(TracingFtplet.class);
+
+	private final double sampleRate;
+
+	private final long threshold;
+
+	/**
+	 * Constructs the ftplet
+	 *
+	 * @param sampleRate fraction of the commands traced, 1 to trace all
+	 * @param threshold  run time in milliseconds from which a traced command is logged
+	 */
+	public TracingFtplet(double sampleRate, long threshold) {
+		this.sampleRate = sampleRate;
+		this.threshold = threshold;
+		CommandTrace.setEnabled(sampleRate > 0);
+	}
+
+	@Override
+	public FtpletResult beforeCommand(FtpSession session, FtpRequest request) throws FtpException, IOException {
+		if (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate) {
+			// PASS arguments stay out of the log
+			String command = "PASS".equalsIgnoreCase(request.getCommand()) ? "PASS" : request.getRequestLine();
+			CommandTrace.begin(command, session.getUser() != null ? session.getUser().getName() : null);
+		} else {
+			CommandTrace.clear();
+		}
+		return FtpletResult.DEFAULT;
+	}
+
+	@Override
+	public FtpletResult afterCommand(FtpSession session, FtpRequest request, FtpReply reply)
+			throws FtpException, IOException {
+		CommandTrace trace = CommandTrace.end();
+		if (trace != null) {
+			TRACED.incr();
+			if (trace.getDuration() >= threshold) {
+				SLOW.incr();
+				log.info(trace.format(reply != null ? reply.getCode() : 0));
+			}
+		}
+		return FtpletResult.DEFAULT;
+	}
+}
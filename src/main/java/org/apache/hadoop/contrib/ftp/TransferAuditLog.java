@@ -0,0 +1,315 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Audit log of transfers and file operations. Session threads put records
+ * into a lock-free ring buffer and never wait; a background thread writes
+ * them as JSON lines into size-rotated files. Records are dropped and
+ * counted when the buffer is full.
+ */
+public class TransferAuditLog implements Runnable {
+
+	private final Logger log = LoggerFactory.getLogger(TransferAuditLog.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final AtomicReferenceArray<Record> slots;
+
+	private final int mask;
+
+	// next slot to claim by producers
+	private final AtomicLong head = new AtomicLong();
+
+	// next slot to write, only advanced by the writer thread
+	private volatile long tail = 0;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final File dir;
+
+	private final long maxFileSize;
+
+	private final int maxFiles;
+
+	private final long flushInterval;
+
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+	private volatile boolean running = true;
+
+	private Thread thread;
+
+	private Writer writer;
+
+	private long fileSize;
+
+	/**
+	 * Constructs the audit log
+	 *
+	 * @param dir           directory of the audit files
+	 * @param bufferSize    number of records buffered, rounded up to a power of two
+	 * @param maxFileSize   size in bytes after which the file is rotated
+	 * @param maxFiles      number of rotated files kept
+	 * @param flushInterval milliseconds between flushes of the file
+	 */
+	public TransferAuditLog(File dir, int bufferSize, long maxFileSize, int maxFiles, long flushInterval) {
+		int capacity = Integer.highestOneBit(Math.max(bufferSize - 1, 1)) << 1;
+		this.slots = new AtomicReferenceArray<Record>(capacity);
+		this.mask = capacity - 1;
+		this.dir = dir;
+		this.maxFileSize = maxFileSize;
+		this.maxFiles = maxFiles;
+		this.flushInterval = flushInterval;
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	/**
+	 * Start the writer thread
+	 */
+	public synchronized void start() {
+		thread = new Thread(this, "transfer-audit-writer");
+		thread.setDaemon(true);
+		thread.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				TransferAuditLog.this.stop();
+			}
+		});
+	}
+
+	/**
+	 * Stop the writer thread after it wrote the buffered records
+	 */
+	public void stop() {
+		running = false;
+		Thread t = thread;
+		if (t != null) {
+			LockSupport.unpark(t);
+			try {
+				t.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Add a record to the log. Never blocks.
+	 *
+	 * @return false if the buffer is full and the record was dropped
+	 */
+	public boolean add(String session, String user, String client, String command, String path,
+					   long bytes, long duration, int code) {
+		Record record = new Record(System.currentTimeMillis(), session, user, client, command, path, bytes, duration, code);
+		while (true) {
+			long h = head.get();
+			if (h - tail >= slots.length()) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			if (head.compareAndSet(h, h + 1)) {
+				slots.set((int) h & mask, record);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of records dropped because the buffer was full
+	 *
+	 * @return number of dropped records
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public void run() {
+		long lastFlush = System.currentTimeMillis();
+		boolean dirty = false;
+		while (true) {
+			int written = 0;
+			try {
+				written = drain();
+				dirty |= written > 0;
+
+				long now = System.currentTimeMillis();
+				if (dirty && (now - lastFlush >= flushInterval || !running)) {
+					writer.flush();
+					dirty = false;
+					lastFlush = now;
+				}
+			} catch (IOException e) {
+				log.error("Failed writing audit log", e);
+				closeWriter();
+				dirty = false;
+			}
+
+			if (!running && head.get() == tail) {
+				break;
+			}
+			if (written == 0) {
+				LockSupport.parkNanos(10000000L);
+			}
+		}
+		closeWriter();
+	}
+
+	private int drain() throws IOException {
+		int written = 0;
+		while (true) {
+			long t = tail;
+			int index = (int) t & mask;
+			Record record = slots.get(index);
+			if (record == null) {
+				// empty, or claimed and not yet published
+				return written;
+			}
+			slots.lazySet(index, null);
+			tail = t + 1;
+			write(record);
+			written++;
+		}
+	}
+
+	private void write(Record record) throws IOException {
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("{\"time\":\"").append(dateFormat.format(new Date(record.time))).append('"');
+		appendString(sb, "session", record.session);
+		appendString(sb, "user", record.user);
+		appendString(sb, "client", record.client);
+		appendString(sb, "command", record.command);
+		appendString(sb, "path", record.path);
+		sb.append(",\"bytes\":").append(record.bytes);
+		sb.append(",\"duration\":").append(record.duration);
+		sb.append(",\"code\":").append(record.code);
+		sb.append(",\"result\":\"").append(record.code < 400 ? "ok" : "failed").append("\"}\n");
+
+		String line = sb.toString();
+		int length = line.getBytes(UTF8).length;
+		if (writer == null || fileSize + length > maxFileSize) {
+			rotate();
+		}
+		writer.write(line);
+		fileSize += length;
+	}
+
+	private static void appendString(StringBuilder sb, String name, String value) {
+		sb.append(",\"").append(name).append("\":");
+		if (value == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						sb.append(String.format("\\u%04x", (int) c));
+					} else {
+						sb.append(c);
+					}
+			}
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Close the current file and shift audit.log.N to audit.log.N+1
+	 */
+	private void rotate() throws IOException {
+		File current = new File(dir, "audit.log");
+		if (writer == null && current.exists() && current.length() < maxFileSize) {
+			// continue the file of the previous run
+			fileSize = current.length();
+		} else {
+			closeWriter();
+			if (current.exists()) {
+				new File(dir, "audit.log." + maxFiles).delete();
+				for (int i = maxFiles - 1; i >= 1; i--) {
+					File f = new File(dir, "audit.log." + i);
+					if (f.exists()) {
+						f.renameTo(new File(dir, "audit.log." + (i + 1)));
+					}
+				}
+				current.renameTo(new File(dir, "audit.log.1"));
+			}
+			fileSize = 0;
+		}
+
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Cannot create audit log directory : " + dir.getAbsolutePath());
+		}
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(current, true), UTF8), 65536);
+	}
+
+	private void closeWriter() {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				log.warn("Failed closing audit log", e);
+			}
+			writer = null;
+		}
+	}
+
+	private static class Record {
+		final long time;
+		final String session;
+		final String user;
+		final String client;
+		final String command;
+		final String path;
+		final long bytes;
+		final long duration;
+		final int code;
+
+		Record(long time, String session, String user, String client, String command, String path,
+			   long bytes, long duration, int code) {
+			this.time = time;
+			this.session = session;
+			this.user = user;
+			this.client = client;
+			this.command = command;
+			this.path = path;
+			this.bytes = bytes;
+			this.duration = duration;
+			this.code = code;
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.util.DateUtils;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recursive manifest of a directory tree, read as a stream of lines
+ * <code>type=file;size=123;modify=20161019140000.000; /path/of/file</code>
+ * in the MLST fact format. Directories are listed in parallel while the
+ * manifest is read, so lines come in no particular order: a manifest lists
+ * a bounded number of directories at once, on threads shared by all
+ * manifests. Directories the user may not read are listed but not expanded.
+ * A manifest of changes lists only the entries modified after a given time,
+ * though it still walks the whole tree.
+ */
+public class TreeManifest extends InputStream {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// marks the end of the manifest in the line queue
+	private static final byte[] END = new byte[0];
+
+	private final Logger log = LoggerFactory.getLogger(TreeManifest.class);
+
+	private final HdfsUser user;
+
+	private final long since;
+
+	private final BlockingQueue<byte[]> lines;
+
+	private final ExecutorService listers;
+
+	private final int parallelism;
+
+	// directories waiting to be listed, and number being listed
+	private final LinkedList<Path> dirs = new LinkedList<Path>();
+
+	private int listing = 0;
+
+	private volatile boolean closed = false;
+
+	private volatile IOException error = null;
+
+	private byte[] line = new byte[0];
+
+	private int pos = 0;
+
+	private boolean finished = false;
+
+	/**
+	 * Create the executor listing the directories of all manifests
+	 *
+	 * @param threads number of directories listed at once by all manifests
+	 * @return executor to construct manifests with
+	 */
+	public static ThreadPoolExecutor createListers(int threads) {
+		ThreadPoolExecutor listers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "tree-manifest");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		listers.allowCoreThreadTimeOut(true);
+		return listers;
+	}
+
+	/**
+	 * Constructs the manifest and starts listing the tree
+	 *
+	 * @param user        user the manifest is sent to
+	 * @param root        path of the root directory
+	 * @param listers     executor listing the directories, shared by all manifests
+	 * @param parallelism number of directories listed at once
+	 * @param buffer      number of lines buffered ahead of the reader
+	 */
+	public TreeManifest(HdfsUser user, Path root, ExecutorService listers, int parallelism, int buffer) {
+		this(user, Collections.singletonList(root), -1, listers, parallelism, buffer);
+	}
+
+	/**
+	 * Constructs the manifest of changes and starts listing the trees
+	 *
+	 * @param user        user the manifest is sent to
+	 * @param roots       paths of the root directories
+	 * @param since       time in milliseconds entries must be modified after to be listed
+	 * @param listers     executor listing the directories, shared by all manifests
+	 * @param parallelism number of directories listed at once
+	 * @param buffer      number of lines buffered ahead of the reader
+	 */
+	public TreeManifest(HdfsUser user, List<Path> roots, long since, ExecutorService listers, int parallelism,
+			int buffer) {
+		this.user = user;
+		this.since = since;
+		this.lines = new ArrayBlockingQueue<byte[]>(buffer);
+		this.listers = listers;
+		this.parallelism = Math.max(parallelism, 1);
+		synchronized (dirs) {
+			dirs.addAll(roots);
+			if (dirs.isEmpty()) {
+				lines.add(END);
+			}
+			schedule();
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (pos == line.length && !nextLine()) {
+			return -1;
+		}
+		return line[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (pos == line.length && !nextLine()) {
+			return -1;
+		}
+		int n = 0;
+		while (n < len) {
+			int count = Math.min(len - n, line.length - pos);
+			System.arraycopy(line, pos, b, off + n, count);
+			pos += count;
+			n += count;
+			// hand out what is there instead of waiting for the next directory
+			if (pos == line.length && (lines.isEmpty() || !nextLine())) {
+				break;
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		synchronized (dirs) {
+			dirs.clear();
+		}
+	}
+
+	private boolean nextLine() throws IOException {
+		if (finished) {
+			return false;
+		}
+		byte[] next;
+		try {
+			next = lines.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while listing the tree");
+		}
+		if (error != null) {
+			throw error;
+		}
+		if (next == END) {
+			finished = true;
+			return false;
+		}
+		line = next;
+		pos = 0;
+		return true;
+	}
+
+	private void expand(Path dir) {
+		synchronized (dirs) {
+			if (!closed) {
+				dirs.add(dir);
+				schedule();
+			}
+		}
+	}
+
+	/**
+	 * Hand waiting directories to the listers, up to the parallelism of the
+	 * manifest. Called holding the lock of dirs.
+	 */
+	private void schedule() {
+		while (listing < parallelism && !dirs.isEmpty()) {
+			final Path dir = dirs.removeFirst();
+			listing++;
+			listers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (!closed && error == null) {
+							list(dir);
+						}
+					} catch (FileNotFoundException e) {
+						log.debug("{} is gone while listing the tree", dir);
+					} catch (IOException e) {
+						error = e;
+					} catch (Exception e) {
+						error = new IOException("Failed to list " + dir, e);
+					}
+
+					boolean done;
+					synchronized (dirs) {
+						listing--;
+						if (error != null) {
+							dirs.clear();
+						}
+						done = listing == 0 && dirs.isEmpty();
+						schedule();
+					}
+					if (done) {
+						put(END);
+					}
+				}
+			});
+		}
+	}
+
+	private void list(Path dir) throws Exception {
+		RemoteIterator<FileStatus> entries = HdfsOverFtpSystem.getDfs().listStatusIterator(dir);
+		while (entries.hasNext() && !closed && error == null) {
+			FileStatus status = entries.next();
+			if (status.getModificationTime() > since) {
+				put(format(status));
+			}
+			if (status.isDirectory() && HdfsFileObject.isReadable(user, status)) {
+				expand(status.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Get the manifest line of an entry
+	 */
+	static byte[] format(FileStatus status) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("type=").append(status.isDirectory() ? "dir" : "file").append(';');
+		sb.append("size=").append(status.getLen()).append(';');
+		sb.append("modify=").append(DateUtils.getFtpDate(status.getModificationTime())).append(';');
+		sb.append(' ').append(status.getPath().toUri().getPath()).append("\r\n");
+		return sb.toString().getBytes(UTF_8);
+	}
+
+	private void put(byte[] next) {
+		try {
+			// wait for the reader, unless it has gone
+			while (!closed) {
+				if (lines.offer(next, 100, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
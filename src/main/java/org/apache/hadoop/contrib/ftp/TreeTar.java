@@ -0,0 +1,520 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tar archive of a directory tree, generated while it is read. A walker
+ * thread lists the tree depth first with listing iterators, and the small
+ * files coming next are read in parallel into a bounded buffer, so the
+ * archive goes on while the following files are fetched. Larger files are
+ * read when the archive reaches them. The files are read by a pool shared
+ * with other archives, and their bytes count against the buffer of the
+ * archive and a bound shared with other archives until they are sent.
+ * Entries the user may not read are left out, unreadable directories are
+ * archived but not expanded. The archive is in GNU tar format.
+ */
+public class TreeTar extends InputStream {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int BLOCK = 512;
+
+	private static final int RECORD = 20 * BLOCK;
+
+	private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+	// marks the end of the tree in the item queue
+	private static final Item END = new Item(null, null, null, 0);
+
+	private final Logger log = LoggerFactory.getLogger(TreeTar.class);
+
+	private final HdfsUser user;
+
+	private final String root;
+
+	private final int maxBufferedFile;
+
+	private final BlockingQueue<Item> items;
+
+	private final Semaphore buffer;
+
+	// bytes read ahead by all archives
+	private final Semaphore memory;
+
+	// files of this archive being read
+	private final Semaphore reads;
+
+	private final ExecutorService readers;
+
+	private final Thread walker;
+
+	// bytes of memory held by this archive
+	private int held = 0;
+
+	private volatile boolean closed = false;
+
+	private volatile IOException error = null;
+
+	private InputStream segment = new ByteArrayInputStream(new byte[0]);
+
+	private Item current = null;
+
+	private int step = 0;
+
+	private long written = 0;
+
+	private boolean finished = false;
+
+	/**
+	 * Entry of the archive
+	 */
+	private static class Item {
+		private final FileStatus status;
+		private final String name;
+		private final Future<byte[]> content;
+		private final int buffered;
+
+		Item(FileStatus status, String name, Future<byte[]> content, int buffered) {
+			this.status = status;
+			this.name = name;
+			this.content = content;
+			this.buffered = buffered;
+		}
+	}
+
+	/**
+	 * Constructs the archive and starts walking the tree
+	 *
+	 * @param user            user the archive is sent to
+	 * @param root            status of the root directory
+	 * @param readers         executor reading the files
+	 * @param parallelism     number of files read at once
+	 * @param readAhead       number of entries prepared ahead of the reader
+	 * @param bufferSize      maximum number of bytes of files read ahead
+	 * @param maxBufferedFile size up to which files are read ahead
+	 * @param memory          bytes of files read ahead by all archives, at
+	 *                        least bufferSize
+	 */
+	public TreeTar(HdfsUser user, final FileStatus root, ExecutorService readers, int parallelism, int readAhead,
+			int bufferSize, int maxBufferedFile, Semaphore memory) {
+		this.user = user;
+		this.root = HdfsMetadataCache.key(root.getPath());
+		this.maxBufferedFile = Math.min(maxBufferedFile, bufferSize);
+		this.items = new ArrayBlockingQueue<Item>(readAhead);
+		this.buffer = new Semaphore(bufferSize);
+		this.memory = memory;
+		this.reads = new Semaphore(parallelism);
+		this.readers = readers;
+		this.walker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (!"/".equals(TreeTar.this.root)) {
+						add(root);
+					}
+					walk(root.getPath());
+				} catch (IOException e) {
+					error = e;
+				} catch (InterruptedException e) {
+					// closed
+				} catch (Exception e) {
+					error = new IOException("Failed to archive " + root.getPath(), e);
+				} finally {
+					put(END);
+				}
+			}
+		}, "tree-tar");
+		walker.setDaemon(true);
+		walker.start();
+	}
+
+	@Override
+	public int read() throws IOException {
+		while (true) {
+			int b = segment.read();
+			if (b >= 0) {
+				written++;
+				return b;
+			}
+			if (!nextSegment()) {
+				return -1;
+			}
+		}
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (true) {
+			int n = segment.read(b, off, len);
+			if (n > 0) {
+				written += n;
+				return n;
+			}
+			if (!nextSegment()) {
+				return -1;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			memory.release(held);
+			held = 0;
+		}
+		walker.interrupt();
+		for (Item item : items) {
+			if (item.content != null) {
+				item.content.cancel(true);
+			}
+		}
+		segment.close();
+	}
+
+	/**
+	 * Move to the next part of the archive: the header, content and padding
+	 * of every entry, then the end of the archive
+	 *
+	 * @return false at the end of the archive
+	 */
+	private boolean nextSegment() throws IOException {
+		segment.close();
+		if (finished) {
+			return false;
+		}
+
+		if (current != null && step == 1) {
+			step = 2;
+			segment = content(current);
+			return true;
+		}
+		if (current != null && step == 2) {
+			buffer.release(current.buffered);
+			release(current.buffered);
+			step = 0;
+			int padding = (int) ((BLOCK - current.status.getLen() % BLOCK) % BLOCK);
+			current = null;
+			segment = new ByteArrayInputStream(new byte[padding]);
+			return true;
+		}
+
+		Item next;
+		try {
+			next = items.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while archiving the tree");
+		}
+		if (next == END) {
+			if (error != null) {
+				throw error;
+			}
+			finished = true;
+			// two zero blocks, padded to a full record
+			int end = 2 * BLOCK;
+			end += (int) ((RECORD - (written + end) % RECORD) % RECORD);
+			segment = new ByteArrayInputStream(new byte[end]);
+			return true;
+		}
+
+		current = next;
+		step = next.status.isFile() ? 1 : 0;
+		if (step == 0) {
+			current = null;
+		}
+		segment = new ByteArrayInputStream(headers(next));
+		return true;
+	}
+
+	private InputStream content(Item item) throws IOException {
+		if (item.content != null) {
+			try {
+				return new ByteArrayInputStream(item.content.get());
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while reading " + item.status.getPath());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				throw new IOException("Failed to read " + item.status.getPath(), cause);
+			}
+		}
+		if (item.status.getLen() == 0) {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+		return new FileContent(item.status);
+	}
+
+	private void walk(Path dir) throws Exception {
+		RemoteIterator<FileStatus> entries;
+		try {
+			entries = HdfsOverFtpSystem.getDfs().listStatusIterator(dir);
+		} catch (FileNotFoundException e) {
+			log.debug("{} is gone while archiving the tree", dir);
+			return;
+		}
+		while (entries.hasNext() && !closed) {
+			FileStatus status = entries.next();
+			if (!HdfsFileObject.isReadable(user, status)) {
+				if (status.isDirectory()) {
+					add(status);
+				}
+				continue;
+			}
+			add(status);
+			if (status.isDirectory()) {
+				walk(status.getPath());
+			}
+		}
+	}
+
+	private void add(final FileStatus status) throws InterruptedException {
+		String name = HdfsMetadataCache.key(status.getPath());
+		name = "/".equals(root) ? name.substring(1)
+				: name.substring(root.lastIndexOf('/') + 1);
+		if (status.isDirectory()) {
+			name += "/";
+		}
+
+		Future<byte[]> content = null;
+		int buffered = 0;
+		if (status.isFile() && status.getLen() > 0 && status.getLen() <= maxBufferedFile) {
+			buffered = (int) status.getLen();
+			buffer.acquire(buffered);
+			memory.acquire(buffered);
+			if (!hold(buffered)) {
+				memory.release(buffered);
+				throw new InterruptedException("closed");
+			}
+			reads.acquire();
+			content = readers.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					try {
+						return readFully(status);
+					} finally {
+						reads.release();
+					}
+				}
+			});
+		}
+		put(new Item(status, name, content, buffered));
+	}
+
+	private synchronized boolean hold(int bytes) {
+		if (closed) {
+			return false;
+		}
+		held += bytes;
+		return true;
+	}
+
+	private synchronized void release(int bytes) {
+		// a closed archive released all it held
+		if (!closed) {
+			held -= bytes;
+			memory.release(bytes);
+		}
+	}
+
+	private byte[] readFully(FileStatus status) throws IOException, InterruptedException {
+		byte[] data = new byte[(int) status.getLen()];
+		FSDataInputStream in;
+		try {
+			in = HdfsOverFtpSystem.getDfs().open(status.getPath());
+		} catch (FileNotFoundException e) {
+			log.warn("{} is gone while archiving the tree", status.getPath());
+			return data;
+		}
+		try {
+			int n = 0;
+			while (n < data.length) {
+				int r = in.read(data, n, data.length - n);
+				if (r < 0) {
+					// the rest is left zero, the archive keeps the listed size
+					log.warn("{} is shorter than listed while archiving the tree", status.getPath());
+					break;
+				}
+				n += r;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private void put(Item item) {
+		try {
+			// wait for the reader, unless it has gone
+			while (!closed) {
+				if (items.offer(item, 100, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Get the header blocks of an entry, with a GNU long name entry first
+	 * if the name does not fit the header
+	 */
+	private static byte[] headers(Item item) {
+		byte[] name = item.name.getBytes(UTF_8);
+		FileStatus status = item.status;
+		byte[] header = header(name, status.isDirectory() ? '5' : '0',
+				status.isFile() ? status.getLen() : 0, status);
+		if (name.length <= 100) {
+			return header;
+		}
+
+		int blocks = (name.length + 1 + BLOCK - 1) / BLOCK;
+		byte[] headers = new byte[BLOCK + blocks * BLOCK + BLOCK];
+		System.arraycopy(header("././@LongLink".getBytes(UTF_8), 'L', name.length + 1, status),
+				0, headers, 0, BLOCK);
+		System.arraycopy(name, 0, headers, BLOCK, name.length);
+		System.arraycopy(header, 0, headers, BLOCK + blocks * BLOCK, BLOCK);
+		return headers;
+	}
+
+	private static byte[] header(byte[] name, char type, long size, FileStatus status) {
+		byte[] header = new byte[BLOCK];
+		System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+		octal(header, 100, 8, status.getPermission().toShort() & 07777);
+		octal(header, 108, 8, 0);
+		octal(header, 116, 8, 0);
+		if (size <= MAX_OCTAL_SIZE) {
+			octal(header, 124, 12, size);
+		} else {
+			// GNU base-256 size
+			header[124] = (byte) 0x80;
+			for (int i = 0; i < 8; i++) {
+				header[135 - i] = (byte) (size >>> (8 * i));
+			}
+		}
+		octal(header, 136, 12, status.getModificationTime() / 1000);
+		header[156] = (byte) type;
+		System.arraycopy("ustar  ".getBytes(UTF_8), 0, header, 257, 7);
+		field(header, 265, 32, status.getOwner());
+		field(header, 297, 32, status.getGroup());
+
+		for (int i = 148; i < 156; i++) {
+			header[i] = ' ';
+		}
+		long checksum = 0;
+		for (byte b : header) {
+			checksum += b & 0xff;
+		}
+		octal(header, 148, 7, checksum);
+		return header;
+	}
+
+	private static void octal(byte[] header, int offset, int length, long value) {
+		String digits = Long.toOctalString(value);
+		int start = offset + length - 1 - digits.length();
+		for (int i = offset; i < start; i++) {
+			header[i] = '0';
+		}
+		for (int i = 0; i < digits.length(); i++) {
+			header[start + i] = (byte) digits.charAt(i);
+		}
+		header[offset + length - 1] = 0;
+	}
+
+	private static void field(byte[] header, int offset, int length, String value) {
+		if (value != null) {
+			byte[] bytes = value.getBytes(UTF_8);
+			System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length - 1));
+		}
+	}
+
+	/**
+	 * Content of a file too large to read ahead, exactly its listed size
+	 */
+	private static class FileContent extends InputStream {
+
+		private final FileStatus status;
+
+		private FSDataInputStream in = null;
+
+		private boolean gone = false;
+
+		private long remaining;
+
+		FileContent(FileStatus status) {
+			this.status = status;
+			this.remaining = status.getLen();
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0) {
+				return -1;
+			}
+			len = (int) Math.min(len, remaining);
+			int n = -1;
+			if (in != null || (!gone && open())) {
+				n = in.read(b, off, len);
+			}
+			if (n < 0) {
+				// shorter than listed, filled with zeros
+				n = len;
+				for (int i = off; i < off + n; i++) {
+					b[i] = 0;
+				}
+			}
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null) {
+				in.close();
+			}
+		}
+
+		private boolean open() throws IOException {
+			try {
+				in = HdfsOverFtpSystem.getDfs().open(status.getPath());
+				return true;
+			} catch (FileNotFoundException e) {
+				gone = true;
+				return false;
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted opening " + status.getPath());
+			}
+		}
+	}
+}
@@ -0,0 +1,762 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind spool of small uploads on local disk. An upload is written
+ * to a spool file and acknowledged once the file and its metadata are on
+ * disk, and a pool of workers commits it to HDFS afterwards. Until then the
+ * file shows in statuses and listings, and downloads read the spool file.
+ * Uploads growing past the maximum file size, or finding the spool full,
+ * continue directly to HDFS. Uploads left in the spool by a crash are
+ * committed on start. Uploads failing their commit more often than the
+ * maximum number of attempts are moved to the failed directory of the
+ * spool and left to the administrator.
+ */
+public class UploadSpool {
+
+	private static final MutableCounterLong SPOOLED = HdfsOverFtpMetrics.get()
+			.counter("SpooledUploads", "Uploads acknowledged from the local spool");
+
+	private static final MutableCounterLong COMMITS = HdfsOverFtpMetrics.get()
+			.counter("SpoolCommits", "Spooled uploads committed to HDFS");
+
+	private static final MutableCounterLong COMMIT_FAILURES = HdfsOverFtpMetrics.get()
+			.counter("SpoolCommitFailures", "Failed commits of spooled uploads, retried later");
+
+	private static final MutableCounterLong FAILED = HdfsOverFtpMetrics.get()
+			.counter("SpoolFailedUploads", "Spooled uploads given up after their last commit attempt");
+
+	private static final MutableCounterLong OVERFLOWS = HdfsOverFtpMetrics.get()
+			.counter("SpoolOverflows", "Uploads moved from the spool to HDFS while being written");
+
+	private final Logger log = LoggerFactory.getLogger(UploadSpool.class);
+
+	private final File dir;
+
+	private final long maxBytes;
+
+	private final long maxFileSize;
+
+	private final boolean sync;
+
+	private final long retryInterval;
+
+	private final int maxAttempts;
+
+	private final File failedDir;
+
+	private final ScheduledThreadPoolExecutor executor;
+
+	// bytes of spool files, written or being written
+	private final AtomicLong used = new AtomicLong();
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	// uploads waiting for their commit by path
+	private final ConcurrentHashMap<String, Entry> pending = new ConcurrentHashMap<String, Entry>();
+
+	// uploads being written to HDFS by path, one at a time per path
+	private final ConcurrentHashMap<String, Entry> committing = new ConcurrentHashMap<String, Entry>();
+
+	// changes of pending and committing of a path are serialized on one of these
+	private final Object[] locks = new Object[64];
+
+	private volatile FsPermission permission = null;
+
+	/**
+	 * Spooled upload, a data file and its metadata file
+	 */
+	private class Entry {
+		private final long seq;
+		private final String path;
+		private final String owner;
+		private final String group;
+		private final short replication;
+		private final long blockSize;
+		private final int bufferSize;
+		private final String storagePolicy;
+		private final long length;
+		private final long mtime;
+		private boolean done = false;
+		private boolean inFlight = false;
+		private int attempts = 0;
+
+		Entry(long seq, String path, String owner, String group, short replication, long blockSize,
+				int bufferSize, String storagePolicy, long length, long mtime) {
+			this.seq = seq;
+			this.path = path;
+			this.owner = owner;
+			this.group = group;
+			this.replication = replication;
+			this.blockSize = blockSize;
+			this.bufferSize = bufferSize;
+			this.storagePolicy = storagePolicy;
+			this.length = length;
+			this.mtime = mtime;
+		}
+
+		File getData() {
+			return new File(dir, seq + ".data");
+		}
+
+		File getMeta() {
+			return new File(dir, seq + ".meta");
+		}
+
+		FileStatus getStatus() {
+			return new FileStatus(length, false, replication, blockSize, mtime, mtime, getPermission(),
+					owner, group, new Path(path));
+		}
+
+		void store() throws IOException {
+			Properties meta = new Properties();
+			meta.setProperty("path", path);
+			meta.setProperty("owner", owner);
+			meta.setProperty("group", group);
+			meta.setProperty("replication", Short.toString(replication));
+			meta.setProperty("block-size", Long.toString(blockSize));
+			meta.setProperty("buffer-size", Integer.toString(bufferSize));
+			if (storagePolicy != null) {
+				meta.setProperty("storage-policy", storagePolicy);
+			}
+			meta.setProperty("length", Long.toString(length));
+			meta.setProperty("mtime", Long.toString(mtime));
+
+			// the upload counts as spooled once the metadata file is there
+			File tmp = new File(dir, seq + ".meta.tmp");
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				meta.store(out, null);
+				if (sync) {
+					out.getFD().sync();
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(getMeta())) {
+				tmp.delete();
+				throw new IOException("Failed to rename " + tmp);
+			}
+		}
+	}
+
+	/**
+	 * Constructs the spool and takes over the uploads left in it
+	 *
+	 * @param dir           local directory of the spool files
+	 * @param maxBytes      maximum number of bytes in the spool
+	 * @param maxFileSize   maximum size of a spooled upload
+	 * @param threads       number of threads committing uploads
+	 * @param sync          sync spool files to disk before acknowledging uploads
+	 * @param retryInterval pause in milliseconds before a failed commit is retried
+	 * @param maxAttempts   commit attempts of an upload before it is moved to
+	 *                      the failed directory, attempts failing to reach the
+	 *                      NameNode do not count
+	 */
+	public UploadSpool(File dir, long maxBytes, long maxFileSize, int threads, boolean sync, long retryInterval,
+			int maxAttempts) throws IOException {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.maxFileSize = maxFileSize;
+		this.sync = sync;
+		this.retryInterval = retryInterval;
+		this.maxAttempts = maxAttempts;
+		this.failedDir = new File(dir, "failed");
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Failed to create spool directory " + dir);
+		}
+		if (!failedDir.isDirectory() && !failedDir.mkdirs()) {
+			throw new IOException("Failed to create spool directory " + failedDir);
+		}
+
+		executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "upload-spool");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		recover();
+	}
+
+	/**
+	 * Checks if an upload may be spooled
+	 *
+	 * @param sizeHint announced size of the upload, -1 if unknown
+	 * @return true if the upload fits the spool
+	 */
+	public boolean accepts(long sizeHint) {
+		return sizeHint <= maxFileSize && used.get() < maxBytes;
+	}
+
+	/**
+	 * Create a spooled upload
+	 *
+	 * @param path          path of the upload
+	 * @param user          uploading user
+	 * @param replication   replication of the HDFS file
+	 * @param blockSize     block size of the HDFS file
+	 * @param bufferSize    buffer size to write the HDFS file with
+	 * @param storagePolicy storage policy of the HDFS file, null for the default
+	 * @param direct        opens an HDFS upload if the upload does not fit the spool
+	 * @return stream to write the upload to
+	 */
+	public OutputStream create(Path path, HdfsUser user, short replication, long blockSize, int bufferSize,
+			String storagePolicy, Callable<OutputStream> direct) throws IOException {
+		return new SpoolOutputStream(new Entry(nextSequence(), HdfsMetadataCache.key(path), user.getName(),
+				user.getMainGroup(), replication, blockSize, bufferSize, storagePolicy, 0, 0), direct);
+	}
+
+	/**
+	 * Get status of a spooled upload
+	 *
+	 * @param key cache key of the path
+	 * @return status of the upload, null if none is waiting for its commit
+	 */
+	public FileStatus getFileStatus(String key) {
+		Entry entry = pending.get(key);
+		return entry != null ? entry.getStatus() : null;
+	}
+
+	/**
+	 * Checks if uploads into a directory are waiting for their commit
+	 *
+	 * @param key cache key of the directory
+	 * @return true if the directory has spooled uploads
+	 */
+	public boolean hasPending(String key) {
+		for (String path : pending.keySet()) {
+			if (key.equals(HdfsMetadataCache.parentOf(path))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Add the spooled uploads into a directory to its listing
+	 *
+	 * @param key     cache key of the directory
+	 * @param listing statuses of the directory entries in HDFS
+	 * @return statuses of the directory entries
+	 */
+	public FileStatus[] overlay(String key, FileStatus[] listing) {
+		Map<String, FileStatus> spooled = new HashMap<String, FileStatus>();
+		for (Entry entry : pending.values()) {
+			if (key.equals(HdfsMetadataCache.parentOf(entry.path))) {
+				spooled.put(entry.path, entry.getStatus());
+			}
+		}
+		if (spooled.isEmpty()) {
+			return listing;
+		}
+
+		List<FileStatus> merged = new ArrayList<FileStatus>(listing.length + spooled.size());
+		for (FileStatus status : listing) {
+			if (!spooled.containsKey(HdfsMetadataCache.key(status.getPath()))) {
+				merged.add(status);
+			}
+		}
+		merged.addAll(spooled.values());
+		return merged.toArray(new FileStatus[merged.size()]);
+	}
+
+	/**
+	 * Open a spooled upload for reading
+	 *
+	 * @param key    cache key of the path
+	 * @param offset offset to start reading at
+	 * @return stream of the spool file, null if the upload is not in the spool
+	 */
+	public InputStream open(String key, long offset) throws IOException {
+		Entry entry = pending.get(key);
+		if (entry == null) {
+			return null;
+		}
+		FileInputStream in;
+		try {
+			in = new FileInputStream(entry.getData());
+		} catch (FileNotFoundException e) {
+			// committed meanwhile
+			return null;
+		}
+		IOUtils.skipFully(in, offset);
+		return in;
+	}
+
+	/**
+	 * Commit the spooled upload of a path now
+	 *
+	 * @param key cache key of the path
+	 */
+	public void flush(String key) throws IOException, InterruptedException {
+		Entry entry = pending.get(key);
+		if (entry != null) {
+			commit(entry);
+		}
+	}
+
+	/**
+	 * Commit the spooled uploads of a path and everything below it now
+	 *
+	 * @param key cache key of the path
+	 */
+	public void flushTree(String key) throws IOException, InterruptedException {
+		String prefix = key.endsWith("/") ? key : key + "/";
+		for (Entry entry : pending.values()) {
+			if (entry.path.equals(key) || entry.path.startsWith(prefix)) {
+				commit(entry);
+			}
+		}
+	}
+
+	/**
+	 * Drop the spooled uploads of a path and everything below it
+	 *
+	 * @param key cache key of the path
+	 * @return true if an upload was dropped
+	 */
+	public boolean discardTree(String key) throws InterruptedException {
+		String prefix = key.endsWith("/") ? key : key + "/";
+		boolean discarded = false;
+		for (Entry entry : pending.values()) {
+			if (entry.path.equals(key) || entry.path.startsWith(prefix)) {
+				Object lock = lockFor(entry.path);
+				synchronized (lock) {
+					// a commit in flight would write the file after its deletion
+					while (committing.containsKey(entry.path)) {
+						lock.wait();
+					}
+					if (pending.remove(entry.path, entry)) {
+						finish(entry);
+						discarded = true;
+					}
+				}
+				HdfsOverFtpSystem.getMetadataCache().invalidate(entry.path);
+			}
+		}
+		return discarded;
+	}
+
+	/**
+	 * Get the number of uploads waiting for their commit
+	 *
+	 * @return number of uploads
+	 */
+	public int size() {
+		return pending.size();
+	}
+
+	/**
+	 * Get the number of bytes in the spool
+	 *
+	 * @return number of bytes
+	 */
+	public long getBytes() {
+		return used.get();
+	}
+
+	/**
+	 * Write an upload to HDFS. The lock of the path is held only to claim
+	 * and release the commit, commits of one path wait for each other.
+	 */
+	private void commit(Entry entry) throws IOException, InterruptedException {
+		Object lock = lockFor(entry.path);
+		synchronized (lock) {
+			while (committing.containsKey(entry.path)) {
+				lock.wait();
+			}
+			if (entry.done) {
+				return;
+			}
+			// an upload replaced by a later one of the same path is dropped
+			if (pending.get(entry.path) != entry) {
+				finish(entry);
+				return;
+			}
+			committing.put(entry.path, entry);
+			entry.inFlight = true;
+		}
+
+		boolean written = false;
+		try {
+			write(entry);
+			written = true;
+		} finally {
+			synchronized (lock) {
+				committing.remove(entry.path);
+				entry.inFlight = false;
+				if (written) {
+					pending.remove(entry.path, entry);
+					COMMITS.incr();
+					log.debug("Committed spooled upload of {}", entry.path);
+				}
+				// replaced while being written, or written
+				if (pending.get(entry.path) != entry) {
+					finish(entry);
+				}
+				lock.notifyAll();
+			}
+			if (written) {
+				HdfsOverFtpSystem.getMetadataCache().invalidate(entry.path);
+			}
+		}
+	}
+
+	/**
+	 * Write an upload to HDFS as a NameNode call of the guard, so that failed
+	 * commits count towards its breaker and run within the commit deadline
+	 */
+	private void write(final Entry entry) throws IOException, InterruptedException {
+		final Path path = new Path(entry.path);
+		HdfsOverFtpSystem.getNameNodeGuard().call("commit", path, new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				FileSystem dfs = HdfsOverFtpSystem.getDfs();
+				FSDataOutputStream out = dfs.create(path, true, entry.bufferSize, entry.replication,
+						entry.blockSize);
+				try {
+					if (entry.storagePolicy != null && dfs instanceof DistributedFileSystem) {
+						((DistributedFileSystem) dfs).setStoragePolicy(path, entry.storagePolicy);
+					}
+					InputStream in = new FileInputStream(entry.getData());
+					try {
+						IOUtils.copyBytes(in, out, entry.bufferSize, false);
+					} finally {
+						in.close();
+					}
+				} finally {
+					out.close();
+				}
+				dfs.setOwner(path, entry.owner, entry.group);
+				return null;
+			}
+		});
+	}
+
+	private void finish(Entry entry) {
+		entry.done = true;
+		entry.getMeta().delete();
+		entry.getData().delete();
+		used.addAndGet(-entry.length);
+	}
+
+	private void schedule(final Entry entry, long delay) {
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					commit(entry);
+				} catch (Exception e) {
+					COMMIT_FAILURES.incr();
+					// attempts while the NameNode is unavailable do not count
+					if (!NameNodeGuard.isUnavailable(e) && ++entry.attempts >= maxAttempts) {
+						fail(entry, e);
+						return;
+					}
+					log.warn("Failed to commit spooled upload of " + entry.path + ", retrying", e);
+					schedule(entry, retryInterval);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Give up the commits of an upload and move its files to the failed directory
+	 */
+	private void fail(Entry entry, Exception e) {
+		synchronized (lockFor(entry.path)) {
+			if (entry.done) {
+				return;
+			}
+			// claimed by a flush meanwhile
+			if (entry.inFlight) {
+				schedule(entry, retryInterval);
+				return;
+			}
+			if (!pending.remove(entry.path, entry)) {
+				finish(entry);
+				return;
+			}
+			entry.done = true;
+			File meta = new File(failedDir, entry.getMeta().getName());
+			if (!entry.getData().renameTo(new File(failedDir, entry.getData().getName()))
+					|| !entry.getMeta().renameTo(meta)) {
+				log.error("Failed to move spooled upload " + entry.seq + " of " + entry.path + " to " + failedDir);
+			}
+			used.addAndGet(-entry.length);
+		}
+		FAILED.incr();
+		HdfsOverFtpSystem.getMetadataCache().invalidate(entry.path);
+		log.error("Gave up spooled upload of " + entry.path + " after " + entry.attempts + " attempts, moved to "
+				+ failedDir, e);
+	}
+
+	private void spooled(Entry entry) {
+		synchronized (lockFor(entry.path)) {
+			Entry replaced = pending.put(entry.path, entry);
+			// a replaced upload being written is finished by its commit
+			if (replaced != null && !replaced.inFlight) {
+				finish(replaced);
+			}
+		}
+		HdfsOverFtpSystem.getMetadataCache().invalidate(entry.path);
+		schedule(entry, 0);
+	}
+
+	/**
+	 * Take over the uploads acknowledged before a restart. Spool files
+	 * without metadata were never acknowledged and are removed.
+	 */
+	private void recover() throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			throw new IOException("Failed to list spool directory " + dir);
+		}
+
+		long maxSeq = 0;
+		List<Entry> entries = new ArrayList<Entry>();
+		for (File file : files) {
+			String name = file.getName();
+			if (!file.isFile() || !name.endsWith(".meta")) {
+				continue;
+			}
+			try {
+				Entry entry = load(Long.parseLong(name.substring(0, name.length() - ".meta".length())));
+				entries.add(entry);
+				maxSeq = Math.max(maxSeq, entry.seq);
+			} catch (Exception e) {
+				log.error("Unreadable spool metadata " + file + ", the upload is lost", e);
+				file.delete();
+			}
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(".tmp") || (name.endsWith(".data")
+					&& !new File(dir, name.substring(0, name.length() - ".data".length()) + ".meta").exists())) {
+				file.delete();
+			}
+		}
+
+		// later uploads of a path replace earlier ones
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return Long.compare(a.seq, b.seq);
+			}
+		});
+		for (Entry entry : entries) {
+			used.addAndGet(entry.length);
+			Entry replaced = pending.put(entry.path, entry);
+			if (replaced != null) {
+				finish(replaced);
+			}
+		}
+		for (Entry entry : pending.values()) {
+			schedule(entry, 0);
+		}
+		if (!pending.isEmpty()) {
+			log.info("Committing {} uploads left in the spool", pending.size());
+		}
+
+		sequence.set(Math.max(maxSeq + 1, System.currentTimeMillis() * 1000));
+	}
+
+	private Entry load(long seq) throws IOException {
+		Properties meta = new Properties();
+		InputStream in = new FileInputStream(new File(dir, seq + ".meta"));
+		try {
+			meta.load(in);
+		} finally {
+			in.close();
+		}
+		return new Entry(seq, meta.getProperty("path"), meta.getProperty("owner"), meta.getProperty("group"),
+				Short.parseShort(meta.getProperty("replication")),
+				Long.parseLong(meta.getProperty("block-size")),
+				Integer.parseInt(meta.getProperty("buffer-size")),
+				meta.getProperty("storage-policy"),
+				Long.parseLong(meta.getProperty("length")),
+				Long.parseLong(meta.getProperty("mtime")));
+	}
+
+	private long nextSequence() {
+		return sequence.getAndIncrement();
+	}
+
+	private Object lockFor(String path) {
+		return locks[(path.hashCode() & 0x7fffffff) % locks.length];
+	}
+
+	private FsPermission getPermission() {
+		if (permission == null) {
+			try {
+				permission = FsPermission.getFileDefault().applyUMask(
+						FsPermission.getUMask(HdfsOverFtpSystem.getDfs().getConf()));
+			} catch (Exception e) {
+				return FsPermission.getFileDefault();
+			}
+		}
+		return permission;
+	}
+
+	/**
+	 * Stream of a spooled upload. When the upload outgrows the spool the
+	 * written bytes are copied to an HDFS upload, which takes the rest.
+	 */
+	private class SpoolOutputStream extends OutputStream {
+
+		private final Entry opened;
+
+		private final Callable<OutputStream> direct;
+
+		private final FileOutputStream file;
+
+		private final OutputStream out;
+
+		private OutputStream directOut = null;
+
+		private long written = 0;
+
+		private boolean closed = false;
+
+		SpoolOutputStream(Entry opened, Callable<OutputStream> direct) throws IOException {
+			this.opened = opened;
+			this.direct = direct;
+			this.file = new FileOutputStream(opened.getData());
+			this.out = new BufferedOutputStream(file, 64 * 1024);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (directOut == null && (written + len > maxFileSize || !reserve(len))) {
+				overflow();
+			}
+			if (directOut != null) {
+				directOut.write(b, off, len);
+				return;
+			}
+			out.write(b, off, len);
+			written += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (directOut != null) {
+				directOut.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (directOut != null) {
+				directOut.close();
+				return;
+			}
+
+			try {
+				out.flush();
+				if (sync) {
+					file.getFD().sync();
+				}
+				out.close();
+				Entry entry = new Entry(opened.seq, opened.path, opened.owner, opened.group, opened.replication,
+						opened.blockSize, opened.bufferSize, opened.storagePolicy, written,
+						System.currentTimeMillis());
+				entry.store();
+				SPOOLED.incr();
+				spooled(entry);
+			} catch (IOException e) {
+				opened.getData().delete();
+				used.addAndGet(-written);
+				throw e;
+			}
+		}
+
+		private boolean reserve(long len) {
+			while (true) {
+				long current = used.get();
+				if (current + len > maxBytes) {
+					return false;
+				}
+				if (used.compareAndSet(current, current + len)) {
+					return true;
+				}
+			}
+		}
+
+		private void overflow() throws IOException {
+			OVERFLOWS.incr();
+			out.close();
+			try {
+				directOut = direct.call();
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException("Failed to open the HDFS upload of " + opened.path, e);
+			} finally {
+				if (directOut == null) {
+					opened.getData().delete();
+					used.addAndGet(-written);
+					closed = true;
+				}
+			}
+			if (directOut == null) {
+				throw new IOException("Failed to open the HDFS upload of " + opened.path);
+			}
+
+			InputStream in = new FileInputStream(opened.getData());
+			try {
+				IOUtils.copyBytes(in, directOut, 64 * 1024, false);
+			} finally {
+				in.close();
+				opened.getData().delete();
+				used.addAndGet(-written);
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.ftplet.FtpFile;
+import org.apache.ftpserver.ftplet.User;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.RemoteIterator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Read-only file generated by the gateway from HDFS content. Subclasses
+ * give its status and content; it cannot be written, moved or deleted.
+ */
+public abstract class VirtualFileObject extends HdfsFileObject {
+
+	/**
+	 * Constructs the virtual file
+	 *
+	 * @param path path of the virtual file
+	 * @param user accessor of the object
+	 * @param view file system view of the session the object belongs to
+	 */
+	protected VirtualFileObject(String path, User user, HdfsFileSystemView view) {
+		super(path, user, view);
+	}
+
+	@Override
+	public boolean isWritable() {
+		return false;
+	}
+
+	@Override
+	public boolean mkdir() {
+		return false;
+	}
+
+	@Override
+	public boolean delete() {
+		return false;
+	}
+
+	@Override
+	public boolean move(FtpFile FtpFile) {
+		return false;
+	}
+
+	@Override
+	public List<? extends FtpFile> listFiles() {
+		return null;
+	}
+
+	@Override
+	public RemoteIterator<FileStatus> listStatusIterator() {
+		return null;
+	}
+
+	@Override
+	public OutputStream createOutputStream(long l) throws IOException {
+		throw new IOException("No write permission : " + getAbsolutePath());
+	}
+
+	/**
+	 * Get the status, rethrowing failures as IOException
+	 */
+	protected FileStatus requireFileStatus() throws IOException {
+		try {
+			return getFileStatus();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+}
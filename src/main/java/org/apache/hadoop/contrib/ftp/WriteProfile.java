@@ -0,0 +1,179 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Settings uploads are created with: block size, io buffer size, replication
+ * and storage policy. A profile applies to uploads under its path prefixes or
+ * by its users. Settings left at 0 or null use the cluster defaults.
+ */
+public class WriteProfile {
+
+	private static final long MB = 1024 * 1024;
+
+	private final String name;
+
+	private final List<String> paths = new ArrayList<String>();
+
+	private final Set<String> users = new HashSet<String>();
+
+	private long blockSize = 0;
+
+	private int bufferSize = 0;
+
+	private short replication = 0;
+
+	private String storagePolicy = null;
+
+	private int alloMaxBlocks = 0;
+
+	private long alloMaxBlockSize = 0;
+
+	/**
+	 * Constructs the profile
+	 *
+	 * @param name  name of the profile
+	 * @param paths comma separated path prefixes the profile applies to
+	 * @param users comma separated user names the profile applies to
+	 */
+	public WriteProfile(String name, String paths, String users) {
+		this.name = name;
+		if (paths != null) {
+			for (String prefix : paths.split(",")) {
+				prefix = prefix.trim();
+				if (prefix.length() > 0) {
+					this.paths.add(prefix.endsWith("/") ? prefix : prefix + "/");
+				}
+			}
+		}
+		if (users != null) {
+			for (String user : users.split(",")) {
+				if (user.trim().length() > 0) {
+					this.users.add(user.trim());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get name of the profile
+	 *
+	 * @return name of the profile
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Checks if the profile applies to the upload
+	 *
+	 * @param path path of the upload
+	 * @param user uploading user
+	 * @return true if the path is under a prefix of the profile or the user is one of its users
+	 */
+	public boolean matches(Path path, HdfsUser user) {
+		if (users.contains(user.getName())) {
+			return true;
+		}
+		String file = HdfsMetadataCache.key(path);
+		for (String prefix : paths) {
+			if (file.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get block size of the upload. With a size hint from ALLO the block size
+	 * grows so that the file has at most allo-max-blocks blocks.
+	 *
+	 * @param dfs      file system
+	 * @param path     path of the upload
+	 * @param sizeHint size announced by ALLO, -1 if none
+	 * @return block size
+	 */
+	public long getBlockSize(FileSystem dfs, Path path, long sizeHint) {
+		long size = blockSize > 0 ? blockSize : dfs.getDefaultBlockSize(path);
+		if (sizeHint > 0 && alloMaxBlocks > 0) {
+			long wanted = (sizeHint + alloMaxBlocks - 1) / alloMaxBlocks;
+			// whole megabytes keep the block size a multiple of the checksum chunk
+			wanted = (wanted + MB - 1) / MB * MB;
+			if (alloMaxBlockSize > 0) {
+				wanted = Math.min(wanted, alloMaxBlockSize);
+			}
+			size = Math.max(size, wanted);
+		}
+		return size;
+	}
+
+	/**
+	 * Get io buffer size of the upload
+	 *
+	 * @param dfs file system
+	 * @return io buffer size
+	 */
+	public int getBufferSize(FileSystem dfs) {
+		return bufferSize > 0 ? bufferSize : dfs.getConf().getInt("io.file.buffer.size", 4096);
+	}
+
+	/**
+	 * Get replication of the upload
+	 *
+	 * @param dfs  file system
+	 * @param path path of the upload
+	 * @return replication
+	 */
+	public short getReplication(FileSystem dfs, Path path) {
+		return replication > 0 ? replication : dfs.getDefaultReplication(path);
+	}
+
+	/**
+	 * Get storage policy of the upload
+	 *
+	 * @return storage policy name, null for the policy inherited from the parent
+	 */
+	public String getStoragePolicy() {
+		return storagePolicy;
+	}
+
+	public void setBlockSize(long blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	public void setReplication(short replication) {
+		this.replication = replication;
+	}
+
+	public void setStoragePolicy(String storagePolicy) {
+		this.storagePolicy = storagePolicy;
+	}
+
+	/**
+	 * Set the number of blocks an upload announced with ALLO should fit in
+	 *
+	 * @param alloMaxBlocks maximum number of blocks, 0 ignores ALLO hints
+	 */
+	public void setAlloMaxBlocks(int alloMaxBlocks) {
+		this.alloMaxBlocks = alloMaxBlocks;
+	}
+
+	/**
+	 * Set the largest block size ALLO hints can pick
+	 *
+	 * @param alloMaxBlockSize maximum block size, 0 for no limit
+	 */
+	public void setAlloMaxBlockSize(long alloMaxBlockSize) {
+		this.alloMaxBlockSize = alloMaxBlockSize;
+	}
+}
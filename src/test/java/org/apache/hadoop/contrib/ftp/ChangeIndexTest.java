@@ -0,0 +1,53 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Changes are kept with NameNode times, and the index covers the time
+ * from the first event after a reset on
+ */
+public class ChangeIndexTest {
+
+	@Test
+	public void coverageStartsWithFirstEvent() {
+		ChangeIndex index = new ChangeIndex(100);
+		index.reset();
+		assertNull(index.getChanges("/", 0));
+
+		index.changed("/dir/a", false, 5000);
+		assertNull(index.getChanges("/", 4999));
+		index.changed("/dir/b", false, 6000);
+		assertEquals(Collections.singletonList("/dir/b"), index.getChanges("/", 5000).getPaths());
+	}
+
+	@Test
+	public void eventTimesAreKept() {
+		ChangeIndex index = new ChangeIndex(100);
+		index.reset();
+		// a NameNode clock far behind the gateway one
+		index.changed("/dir/a", false, 1000);
+		index.changed("/dir/b", false, 2000);
+		assertEquals(Collections.singletonList("/dir/b"), index.getChanges("/dir", 1000).getPaths());
+		index.changed("/dir/c", false, 2500);
+		assertEquals(Arrays.asList("/dir/b", "/dir/c"), index.getChanges("/dir", 1500).getPaths());
+	}
+
+	@Test
+	public void gatewayChangeCountsUntilItsEvent() {
+		ChangeIndex index = new ChangeIndex(100);
+		index.reset();
+		index.changed("/dir/a", false, 1000);
+		index.changed("/dir/b", false, -1);
+		assertEquals(Collections.singletonList("/dir/b"), index.getChanges("/dir", 1000000).getPaths());
+
+		index.changed("/dir/b", false, 3000);
+		assertEquals(Collections.<String>emptyList(), index.getChanges("/dir", 3000).getPaths());
+		assertEquals(Collections.singletonList("/dir/b"), index.getChanges("/dir", 2000).getPaths());
+	}
+}
@@ -0,0 +1,100 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.DFSClient;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.ClientProtocol;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DistributedFileSystem counting the calls its client makes to the
+ * NameNode. Installed as the hdfs file system of HdfsOverFtpSystem by
+ * {@link #install()}, so the gateway runs on it unchanged.
+ */
+public class CountingFileSystem extends DistributedFileSystem {
+
+	private static final AtomicLong CALLS = new AtomicLong();
+
+	private static final Map<String, Long> METHODS = new TreeMap<String, Long>();
+
+	/**
+	 * Make the gateway connect with this file system. Must be called before
+	 * the gateway connects to HDFS.
+	 */
+	public static void install() {
+		HdfsOverFtpSystem.setConf("fs.hdfs.impl", CountingFileSystem.class.getName());
+		HdfsOverFtpSystem.setConf("fs.hdfs.impl.disable.cache", "true");
+	}
+
+	/**
+	 * Start counting anew
+	 */
+	public static void reset() {
+		CALLS.set(0);
+		synchronized (METHODS) {
+			METHODS.clear();
+		}
+	}
+
+	/**
+	 * Get the number of NameNode calls since the last reset
+	 *
+	 * @return number of calls
+	 */
+	public static long getCalls() {
+		return CALLS.get();
+	}
+
+	/**
+	 * Get the NameNode calls since the last reset by method
+	 *
+	 * @return calls by ClientProtocol method
+	 */
+	public static String getMethods() {
+		synchronized (METHODS) {
+			return METHODS.toString();
+		}
+	}
+
+	@Override
+	public void initialize(URI uri, Configuration conf) throws IOException {
+		super.initialize(uri, conf);
+		DFSClient client = getClient();
+		try {
+			Field field = DFSClient.class.getDeclaredField("namenode");
+			field.setAccessible(true);
+			final ClientProtocol namenode = (ClientProtocol) field.get(client);
+			field.set(client, Proxy.newProxyInstance(ClientProtocol.class.getClassLoader(),
+					new Class<?>[]{ClientProtocol.class}, new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+							// lease renewals run in the background, not for a command
+							if (!"renewLease".equals(method.getName())) {
+								CALLS.incrementAndGet();
+								synchronized (METHODS) {
+									Long calls = METHODS.get(method.getName());
+									METHODS.put(method.getName(), calls == null ? 1 : calls + 1);
+								}
+							}
+							try {
+								return method.invoke(namenode, args);
+							} catch (InvocationTargetException e) {
+								throw e.getCause();
+							}
+						}
+					}));
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Failed to count the NameNode calls of " + uri, e);
+		}
+	}
+}
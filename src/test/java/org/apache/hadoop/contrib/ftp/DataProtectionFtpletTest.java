@@ -0,0 +1,161 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPSClient;
+import org.apache.commons.net.util.TrustManagerUtils;
+import org.apache.ftpserver.FtpServer;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.Properties;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Data connections of an explicit TLS listener: PROT C and unprotected
+ * transfers refused, and the cleardata user and clear data network
+ * allowed to use them
+ */
+public class DataProtectionFtpletTest {
+
+	private static final String PASSWORD = "333333";
+
+	private static final File KEYSTORE = new File("target/protection-test/ftp.jks");
+
+	private static final File USERS = new File("target/protection-test/users.properties");
+
+	// clients connecting from this address may use clear data connections
+	private static final String CLEAR_DATA_ADDRESS = "127.0.0.2";
+
+	private static final byte[] CONTENT = "protected content".getBytes();
+
+	private static MiniDFSCluster cluster;
+
+	private static FtpServer server;
+
+	private static int port;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		MiniGateway.createKeystore(KEYSTORE, PASSWORD);
+		writeUsers();
+		cluster = MiniGateway.startCluster("protection", 1);
+		FSDataOutputStream out = cluster.getFileSystem().create(new Path("/protection/file"));
+		out.write(CONTENT);
+		out.close();
+
+		Properties settings = new Properties();
+		port = MiniGateway.addListener(settings, "tls", "explicit");
+		settings.setProperty("ssl-keystore", KEYSTORE.getPath());
+		settings.setProperty("ssl-keystore-password", PASSWORD);
+		settings.setProperty("ssl-clear-data-networks", CLEAR_DATA_ADDRESS + "/32");
+		settings.setProperty("users-file", USERS.getPath());
+		server = MiniGateway.startServer(settings);
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		if (server != null) {
+			server.stop();
+		}
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void protCIsRefused() throws Exception {
+		FTPSClient client = login("root", "127.0.0.1");
+		try {
+			assertEquals(536, client.sendCommand("PROT", "C"));
+		} finally {
+			client.disconnect();
+		}
+	}
+
+	@Test
+	public void unprotectedRetrIsRefused() throws Exception {
+		FTPSClient client = login("root", "127.0.0.1");
+		try {
+			// no PROT, the data connection stays clear
+			assertNull(client.retrieveFileStream("/protection/file"));
+			assertEquals(521, client.getReplyCode());
+
+			client.execPROT("P");
+			assertArrayEquals(CONTENT, retrieve(client));
+		} finally {
+			client.disconnect();
+		}
+	}
+
+	@Test
+	public void clearDataUserMayUseProtC() throws Exception {
+		FTPSClient client = login("trusted", "127.0.0.1");
+		try {
+			client.execPROT("C");
+			assertArrayEquals(CONTENT, retrieve(client));
+		} finally {
+			client.disconnect();
+		}
+	}
+
+	@Test
+	public void clearDataNetworkMayUseProtC() throws Exception {
+		FTPSClient client = login("root", CLEAR_DATA_ADDRESS);
+		try {
+			client.execPROT("C");
+			assertArrayEquals(CONTENT, retrieve(client));
+		} finally {
+			client.disconnect();
+		}
+	}
+
+	private static FTPSClient login(String user, String localAddress) throws Exception {
+		FTPSClient client = new FTPSClient(false);
+		client.setTrustManager(TrustManagerUtils.getAcceptAllTrustManager());
+		client.connect(InetAddress.getByName("127.0.0.1"), port, InetAddress.getByName(localAddress), 0);
+		assertTrue(client.login(user, "123456"));
+		client.execPBSZ(0);
+		client.enterLocalPassiveMode();
+		client.setFileType(FTP.BINARY_FILE_TYPE);
+		return client;
+	}
+
+	private static byte[] retrieve(FTPSClient client) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertTrue(client.getReplyString(), client.retrieveFile("/protection/file", out));
+		return out.toByteArray();
+	}
+
+	private static void writeUsers() throws Exception {
+		Properties users = new Properties();
+		for (String name : new String[]{"root", "trusted"}) {
+			String prefix = "ftpserver.user." + name + ".";
+			// 123456
+			users.setProperty(prefix + "userpassword", "e10adc3949ba59abbe56e057f20f883e");
+			users.setProperty(prefix + "homedirectory", "/");
+			users.setProperty(prefix + "enableflag", "true");
+			users.setProperty(prefix + "writepermission", "true");
+			users.setProperty(prefix + "groups", "supergroup");
+		}
+		users.setProperty("ftpserver.user.trusted.cleardata", "true");
+		OutputStream out = new FileOutputStream(USERS);
+		try {
+			users.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.ftpserver.FtpServer;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads sent from direct buffers and from the download cache over
+ * channel data connections, and a throughput benchmark against the
+ * ftpserver transfer loop
+ */
+public class DirectBufferTransferTest {
+
+	private static final int FILE_SIZE = 64 * 1024 * 1024;
+
+	private static final int ROUNDS = 3;
+
+	private static MiniDFSCluster cluster;
+
+	private static final Path FILE = new Path("/direct/large");
+
+	@BeforeClass
+	public static void startCluster() throws Exception {
+		cluster = MiniGateway.startCluster("direct", 1);
+		FileSystem fs = cluster.getFileSystem();
+		FSDataOutputStream out = fs.create(FILE);
+		byte[] chunk = new byte[1024 * 1024];
+		for (int i = 0; i < FILE_SIZE / chunk.length; i++) {
+			Arrays.fill(chunk, (byte) i);
+			out.write(chunk);
+		}
+		out.close();
+	}
+
+	@AfterClass
+	public static void stopCluster() {
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void cachedDownloadIsSentWithTransferTo() throws Exception {
+		Properties settings = new Properties();
+		int port = MiniGateway.addListener(settings, "cache", "none");
+		settings.setProperty("download-cache-dir", "target/direct-test/cache");
+		settings.setProperty("direct-transfer", "true");
+		FtpServer server = MiniGateway.startServer(settings);
+		try {
+			MutableCounterLong fileTransfers = counter("FileChannelTransfers");
+			long before = fileTransfers.value();
+			assertEquals(FILE_SIZE, download(port));
+			// the second download reads the copy made by the first one
+			assertEquals(FILE_SIZE, download(port));
+			assertEquals(before + 1, fileTransfers.value());
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void throughputBenchmark() throws Exception {
+		for (boolean direct : new boolean[]{false, true}) {
+			Properties settings = new Properties();
+			int port = MiniGateway.addListener(settings, direct ? "direct" : "stock", "none");
+			settings.setProperty("direct-transfer", Boolean.toString(direct));
+			FtpServer server = MiniGateway.startServer(settings);
+			// left by a server of another test with the download cache on
+			HdfsOverFtpSystem.setDownloadCache(null);
+			try {
+				MutableCounterLong transfers = counter("DirectTransfers");
+				long before = transfers.value();
+				download(port);
+
+				long collections = collections();
+				long start = System.nanoTime();
+				for (int i = 0; i < ROUNDS; i++) {
+					assertEquals(FILE_SIZE, download(port));
+				}
+				long elapsed = System.nanoTime() - start;
+				System.out.printf("%s download: %.1f MB/s, %d gcs%n", direct ? "direct buffer" : "ftpserver loop",
+						(double) ROUNDS * FILE_SIZE / 1048576 / (elapsed / 1e9), collections() - collections);
+				assertEquals(direct ? before + ROUNDS + 1 : before, transfers.value());
+			} finally {
+				server.stop();
+			}
+		}
+	}
+
+	private static long download(int port) throws Exception {
+		FTPClient client = new FTPClient();
+		client.connect("localhost", port);
+		try {
+			assertTrue(client.login("root", "123456"));
+			client.enterLocalPassiveMode();
+			client.setFileType(FTP.BINARY_FILE_TYPE);
+			InputStream in = client.retrieveFileStream(FILE.toString());
+			byte[] chunk = new byte[1024 * 1024];
+			long read = 0;
+			for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) {
+				// every megabyte is filled with its index
+				assertEquals((byte) ((read + n - 1) / chunk.length), chunk[n - 1]);
+				read += n;
+			}
+			in.close();
+			assertTrue(client.completePendingCommand());
+			return read;
+		} finally {
+			client.disconnect();
+		}
+	}
+
+	private static MutableCounterLong counter(String name) {
+		return HdfsOverFtpMetrics.get().counter(name, "");
+	}
+
+	private static long collections() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += gc.getCollectionCount();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,212 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.ftpserver.FtpServer;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Files cached by complete downloads only, misses of changed files, LRU
+ * eviction within the byte limit, and cached downloads sent with
+ * transferTo
+ */
+public class DownloadCacheTest {
+
+	private static MiniDFSCluster cluster;
+
+	private static FileSystem fs;
+
+	private static byte[] content;
+
+	@BeforeClass
+	public static void startCluster() throws Exception {
+		cluster = MiniGateway.startCluster("downloads", 1);
+		fs = cluster.getFileSystem();
+		content = new byte[1000];
+		new Random(42).nextBytes(content);
+	}
+
+	@AfterClass
+	public static void stopCluster() {
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void completeDownloadIsCached() throws Exception {
+		DownloadCache cache = newCache("complete", 100000);
+		Path file = write("/downloads/complete");
+		FileStatus status = fs.getFileStatus(file);
+		long hits = counter("DownloadCacheHits");
+		long misses = counter("DownloadCacheMisses");
+
+		assertNull(cache.open(status, 0));
+		assertEquals(misses + 1, counter("DownloadCacheMisses"));
+		assertArrayEquals(content, readFully(cache.fill(fs, status, fs.open(file))));
+		assertEquals(1, cache.size());
+		assertEquals(content.length, cache.getBytes());
+
+		assertArrayEquals(content, readFully(cache.open(status, 0)));
+		// a restarted download reads the copy from its offset
+		assertArrayEquals(Arrays.copyOfRange(content, 400, content.length), readFully(cache.open(status, 400)));
+		assertEquals(hits + 2, counter("DownloadCacheHits"));
+	}
+
+	@Test
+	public void partialDownloadIsNotCached() throws Exception {
+		DownloadCache cache = newCache("partial", 100000);
+		Path file = write("/downloads/partial");
+		FileStatus status = fs.getFileStatus(file);
+
+		InputStream in = cache.fill(fs, status, fs.open(file));
+		IOUtils.readFully(in, new byte[500], 0, 500);
+		in.close();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getBytes());
+
+		// read to the end, but with a gap
+		in = cache.fill(fs, status, fs.open(file));
+		assertEquals(100, in.skip(100));
+		assertEquals(content.length - 100, readFully(in).length);
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getBytes());
+		assertNull(cache.open(status, 0));
+		assertEquals(0, new File("target/download-cache-test/partial").list().length);
+	}
+
+	@Test
+	public void changedFileMisses() throws Exception {
+		DownloadCache cache = newCache("changed", 100000);
+		Path file = write("/downloads/changed");
+		FileStatus status = fs.getFileStatus(file);
+		readFully(cache.fill(fs, status, fs.open(file)));
+		assertNotNull(cache.open(status, 0));
+
+		fs.setTimes(file, status.getModificationTime() + 1000, -1);
+		assertNull(cache.open(fs.getFileStatus(file), 0));
+
+		FSDataOutputStream out = fs.append(file);
+		out.write(content, 0, 10);
+		out.close();
+		FileStatus appended = fs.getFileStatus(file);
+		assertEquals(content.length + 10, appended.getLen());
+		assertNull(cache.open(appended, 0));
+	}
+
+	@Test
+	public void leastRecentlyDownloadedFileIsEvicted() throws Exception {
+		DownloadCache cache = newCache("evicted", 2500);
+		FileStatus a = fs.getFileStatus(write("/downloads/evicted/a"));
+		FileStatus b = fs.getFileStatus(write("/downloads/evicted/b"));
+		FileStatus c = fs.getFileStatus(write("/downloads/evicted/c"));
+		long evictions = counter("DownloadCacheEvictions");
+
+		readFully(cache.fill(fs, a, fs.open(a.getPath())));
+		readFully(cache.fill(fs, b, fs.open(b.getPath())));
+		assertEquals(2000, cache.getBytes());
+		// a is downloaded again, b becomes the least recent
+		readFully(cache.open(a, 0));
+
+		readFully(cache.fill(fs, c, fs.open(c.getPath())));
+		assertEquals(evictions + 1, counter("DownloadCacheEvictions"));
+		assertEquals(2, cache.size());
+		assertEquals(2000, cache.getBytes());
+		assertNull(cache.open(b, 0));
+		assertNotNull(cache.open(a, 0));
+		assertNotNull(cache.open(c, 0));
+		assertEquals(2, new File("target/download-cache-test/evicted").list().length);
+
+		// larger than the whole cache, the download is not copied
+		DownloadCache small = newCache("small", 500);
+		InputStream in = fs.open(a.getPath());
+		assertSame(in, small.fill(fs, a, in));
+		in.close();
+		assertEquals(0, small.getBytes());
+	}
+
+	@Test
+	public void cachedDownloadIsSentWithTransferTo() throws Exception {
+		Path file = write("/downloads/sent");
+		Properties settings = new Properties();
+		int port = MiniGateway.addListener(settings, "downloads", "none");
+		settings.setProperty("download-cache-dir", "target/download-cache-test/sent");
+		settings.setProperty("direct-transfer", "true");
+		FtpServer server = MiniGateway.startServer(settings);
+		try {
+			long hits = counter("DownloadCacheHits");
+			long transfers = counter("FileChannelTransfers");
+			assertArrayEquals(content, download(port, file));
+			assertEquals(transfers, counter("FileChannelTransfers"));
+			assertArrayEquals(content, download(port, file));
+			assertEquals(hits + 1, counter("DownloadCacheHits"));
+			assertEquals(transfers + 1, counter("FileChannelTransfers"));
+		} finally {
+			server.stop();
+			HdfsOverFtpSystem.setDownloadCache(null);
+		}
+	}
+
+	private static DownloadCache newCache(String name, long maxBytes) throws Exception {
+		return new DownloadCache(new File("target/download-cache-test/" + name), maxBytes, 1000000);
+	}
+
+	private static Path write(String name) throws Exception {
+		Path file = new Path(name);
+		FSDataOutputStream out = fs.create(file);
+		out.write(content);
+		out.close();
+		return file;
+	}
+
+	private static byte[] readFully(InputStream in) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			IOUtils.copyBytes(in, out, 4096, false);
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] download(int port, Path file) throws Exception {
+		FTPClient client = new FTPClient();
+		client.connect("localhost", port);
+		try {
+			assertTrue(client.login("root", "123456"));
+			client.enterLocalPassiveMode();
+			client.setFileType(FTP.BINARY_FILE_TYPE);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			assertTrue(client.retrieveFile(file.toString(), out));
+			return out.toByteArray();
+		} finally {
+			client.disconnect();
+		}
+	}
+
+	private static long counter(String name) {
+		return HdfsOverFtpMetrics.get().counter(name, "").value();
+	}
+}
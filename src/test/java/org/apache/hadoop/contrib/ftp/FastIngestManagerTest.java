@@ -0,0 +1,77 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants.SafeModeAction;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replication restores still pending when the gateway stops are done by
+ * the next gateway started with the same journal
+ */
+public class FastIngestManagerTest {
+
+	private static final File JOURNAL = new File("target/ingest-test/restore.journal");
+
+	private static MiniDFSCluster cluster;
+
+	@BeforeClass
+	public static void startCluster() throws Exception {
+		cluster = MiniGateway.startCluster("ingest", 2);
+		HdfsOverFtpSystem.setMetadataCache(new HdfsMetadataCache(600000, 1000));
+		JOURNAL.delete();
+	}
+
+	@AfterClass
+	public static void stopCluster() {
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void pendingRestoresSurviveRestart() throws Exception {
+		DistributedFileSystem fs = cluster.getFileSystem();
+		final Path file = new Path("/ingest/file");
+		fs.create(file, (short) 1).close();
+
+		// restores are retried after an hour, the first attempt fails while the namenode is in safe mode
+		fs.setSafeMode(SafeModeAction.SAFEMODE_ENTER);
+		final long failures = HdfsOverFtpMetrics.get().counter("ReplicationRestoreFailures", "").value();
+		FastIngestManager stopped = new FastIngestManager("/ingest", null, (short) 1, 1, 3600000, JOURNAL);
+		stopped.restore(file, (short) 2, 0);
+		assertTrue(MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() {
+				return JOURNAL.length() > 0
+						&& HdfsOverFtpMetrics.get().counter("ReplicationRestoreFailures", "").value() > failures;
+			}
+		}));
+		fs.setSafeMode(SafeModeAction.SAFEMODE_LEAVE);
+		assertEquals(1, fs.getFileStatus(file).getReplication());
+		assertEquals(1, stopped.getPendingFiles());
+
+		final FastIngestManager started = new FastIngestManager("/ingest", null, (short) 1, 1, 3600000, JOURNAL);
+		started.recover();
+		assertTrue("pending restore was not recovered", MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() throws Exception {
+				return started.getPendingFiles() == 0;
+			}
+		}));
+		assertEquals(2, fs.getFileStatus(file).getReplication());
+
+		// nothing is left to recover by a third start
+		FastIngestManager again = new FastIngestManager("/ingest", null, (short) 1, 1, 3600000, JOURNAL);
+		again.recover();
+		assertEquals(0, again.getPendingFiles());
+	}
+}
@@ -0,0 +1,72 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.security.GroupMappingServiceProvider;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * One group lookup for a burst of permission checks of a user whose
+ * groups are not known yet
+ */
+public class GroupMappingCacheTest {
+
+	private static final AtomicInteger LOOKUPS = new AtomicInteger();
+
+	private static final CountDownLatch RELEASE = new CountDownLatch(1);
+
+	/**
+	 * Group mapping whose lookups wait until the test releases them
+	 */
+	public static class BlockingMapping implements GroupMappingServiceProvider {
+
+		@Override
+		public List<String> getGroups(String user) throws IOException {
+			LOOKUPS.incrementAndGet();
+			try {
+				RELEASE.await();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			return Arrays.asList("group");
+		}
+
+		@Override
+		public void cacheGroupsRefresh() {
+		}
+
+		@Override
+		public void cacheGroupsAdd(List<String> groups) {
+		}
+	}
+
+	@Test
+	public void burstBeforeTheFirstLookupSendsOneLookup() throws Exception {
+		Configuration conf = new Configuration(false);
+		conf.setClass(CommonConfigurationKeys.HADOOP_SECURITY_GROUP_MAPPING, BlockingMapping.class,
+				GroupMappingServiceProvider.class);
+		final GroupMappingCache cache = new GroupMappingCache(conf, 300000, 30000, 4);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(cache.getGroups("user").isEmpty());
+		}
+		RELEASE.countDown();
+
+		assertTrue(MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() {
+				return !cache.getGroups("user").isEmpty();
+			}
+		}));
+		assertEquals(1, LOOKUPS.get());
+	}
+}
@@ -0,0 +1,128 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Changes made to HDFS directly reach the metadata cache through the
+ * inotify stream, long before the entries expire
+ */
+public class HdfsInotifyTailerTest {
+
+	private static MiniDFSCluster cluster;
+
+	// client changing HDFS outside of the gateway
+	private static FileSystem fs;
+
+	private HdfsMetadataCache cache;
+
+	private HdfsInotifyTailer tailer;
+
+	@BeforeClass
+	public static void startCluster() throws Exception {
+		cluster = MiniGateway.startCluster("inotify", 1);
+		fs = cluster.getFileSystem();
+	}
+
+	@AfterClass
+	public static void stopCluster() {
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Before
+	public void startTailer() {
+		cache = new HdfsMetadataCache(600000, 1000);
+		HdfsOverFtpSystem.setMetadataCache(cache);
+		tailer = new HdfsInotifyTailer(cache, 10000, 100);
+		tailer.start();
+	}
+
+	@After
+	public void stopTailer() {
+		tailer.stop();
+	}
+
+	@Test
+	public void statusChangedOutsideIsInvalidated() throws Exception {
+		final Path file = new Path("/status/file");
+		fs.create(file).close();
+		fs.setPermission(file, new FsPermission((short) 0644));
+		assertEquals(0644, cache.getFileStatus(file).getPermission().toShort());
+
+		fs.setPermission(file, new FsPermission((short) 0600));
+		assertTrue("cached status was not invalidated", MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() throws Exception {
+				return cache.getFileStatus(file).getPermission().toShort() == 0600;
+			}
+		}));
+	}
+
+	@Test
+	public void listingSeesFileCreatedOutside() throws Exception {
+		final Path dir = new Path("/listing");
+		fs.mkdirs(dir);
+		fs.create(new Path(dir, "a")).close();
+		assertEquals(1, cache.listStatus(dir).length);
+
+		fs.create(new Path(dir, "b")).close();
+		assertTrue("cached listing was not invalidated", MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() throws Exception {
+				return cache.listStatus(dir).length == 2;
+			}
+		}));
+	}
+
+	@Test
+	public void treeDeletedOutsideIsInvalidated() throws Exception {
+		final Path file = new Path("/tree/sub/file");
+		fs.create(file).close();
+		cache.listStatus(file.getParent());
+		cache.getFileStatus(file);
+
+		fs.delete(new Path("/tree/sub"), true);
+		assertTrue("cached status below a deleted directory was not invalidated",
+				MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() throws Exception {
+				try {
+					cache.getFileStatus(file);
+					return false;
+				} catch (FileNotFoundException e) {
+					return true;
+				}
+			}
+		}));
+	}
+
+	@Test
+	public void fullCacheKeepsNewEntries() throws Exception {
+		HdfsMetadataCache small = new HdfsMetadataCache(600000, 10);
+		Path dir = new Path("/full");
+		for (int i = 0; i < 30; i++) {
+			fs.create(new Path(dir, "f" + i)).close();
+		}
+		for (FileStatus status : fs.listStatus(dir)) {
+			small.getFileStatus(status.getPath());
+			assertTrue(small.size() <= 10);
+		}
+		// a full cache evicts some entries instead of starting over empty
+		assertTrue(small.size() >= 5);
+	}
+}
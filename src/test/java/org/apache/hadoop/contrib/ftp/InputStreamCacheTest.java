@@ -0,0 +1,135 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Idle streams reused by a download of the same file version and user near
+ * where they stopped, and closed after the idle timeout
+ */
+public class InputStreamCacheTest {
+
+	private static MiniDFSCluster cluster;
+
+	private static FileSystem fs;
+
+	private static byte[] content;
+
+	@BeforeClass
+	public static void startCluster() throws Exception {
+		cluster = MiniGateway.startCluster("streams", 1);
+		fs = cluster.getFileSystem();
+		content = new byte[100000];
+		new Random(42).nextBytes(content);
+	}
+
+	@AfterClass
+	public static void stopCluster() {
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void streamIsReusedAtANearbyOffset() throws Exception {
+		InputStreamCache cache = new InputStreamCache(4, 60000, 64 * 1024, 4 * 1024 * 1024);
+		Path file = write("/streams/reused");
+		long hits = counter("StreamCacheHits");
+
+		FSDataInputStream in = cache.open(fs, "alice", file, fs.getFileStatus(file), 0);
+		assertArrayEquals(Arrays.copyOfRange(content, 0, 1000), read(in, 1000));
+		in.close();
+		assertEquals(1, cache.size());
+
+		// the next download continues near where the first one stopped
+		in = cache.open(fs, "alice", file, fs.getFileStatus(file), 1500);
+		assertEquals(hits + 1, counter("StreamCacheHits"));
+		assertEquals(0, cache.size());
+		assertEquals(1500, in.getPos());
+		assertArrayEquals(Arrays.copyOfRange(content, 1500, 2500), read(in, 1000));
+		in.close();
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void changedFileMisses() throws Exception {
+		InputStreamCache cache = new InputStreamCache(4, 60000, 64 * 1024, 4 * 1024 * 1024);
+		Path file = write("/streams/changed");
+		cache.open(fs, "alice", file, fs.getFileStatus(file), 0).close();
+		long misses = counter("StreamCacheMisses");
+
+		FileStatus status = fs.getFileStatus(file);
+		fs.setTimes(file, status.getModificationTime() + 1000, -1);
+		FSDataInputStream in = cache.open(fs, "alice", file, fs.getFileStatus(file), 0);
+		assertEquals(misses + 1, counter("StreamCacheMisses"));
+		// the stream of the old version stays idle until it expires
+		assertEquals(1, cache.size());
+		in.close();
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void streamsAreNotSharedBetweenUsers() throws Exception {
+		InputStreamCache cache = new InputStreamCache(4, 60000, 64 * 1024, 4 * 1024 * 1024);
+		Path file = write("/streams/users");
+		cache.open(fs, "alice", file, fs.getFileStatus(file), 0).close();
+		long hits = counter("StreamCacheHits");
+		long misses = counter("StreamCacheMisses");
+
+		cache.open(fs, "bob", file, fs.getFileStatus(file), 0).close();
+		assertEquals(hits, counter("StreamCacheHits"));
+		assertEquals(misses + 1, counter("StreamCacheMisses"));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void idleStreamsAreClosedAfterTheTimeout() throws Exception {
+		final InputStreamCache cache = new InputStreamCache(4, 200, 64 * 1024, 4 * 1024 * 1024);
+		Path file = write("/streams/idle");
+		cache.open(fs, "alice", file, fs.getFileStatus(file), 0).close();
+		assertEquals(1, cache.size());
+
+		assertTrue(MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() throws Exception {
+				return cache.size() == 0;
+			}
+		}));
+		long misses = counter("StreamCacheMisses");
+		cache.open(fs, "alice", file, fs.getFileStatus(file), 0).close();
+		assertEquals(misses + 1, counter("StreamCacheMisses"));
+	}
+
+	private static Path write(String name) throws Exception {
+		Path file = new Path(name);
+		FSDataOutputStream out = fs.create(file);
+		out.write(content);
+		out.close();
+		return file;
+	}
+
+	private static byte[] read(FSDataInputStream in, int length) throws Exception {
+		byte[] read = new byte[length];
+		IOUtils.readFully(in, read, 0, length);
+		return read;
+	}
+
+	private static long counter(String name) {
+		return HdfsOverFtpMetrics.get().counter(name, "").value();
+	}
+}
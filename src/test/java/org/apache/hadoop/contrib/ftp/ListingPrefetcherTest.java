@@ -0,0 +1,101 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Prefetched listings are dropped by changes of their own directory only,
+ * and are not kept after their session ended or their window passed
+ */
+public class ListingPrefetcherTest {
+
+	private static MiniDFSCluster cluster;
+
+	private static HdfsMetadataCache cache;
+
+	private static ListingPrefetcher prefetcher;
+
+	private static HdfsUser user;
+
+	@BeforeClass
+	public static void startCluster() throws Exception {
+		cluster = MiniGateway.startCluster("prefetch", 1);
+		FileSystem fs = cluster.getFileSystem();
+		fs.create(new Path("/a/file")).close();
+		fs.create(new Path("/b/file")).close();
+		fs.create(new Path("/a/sub/file")).close();
+		cache = new HdfsMetadataCache(0, 1000);
+		HdfsOverFtpSystem.setMetadataCache(cache);
+		prefetcher = new ListingPrefetcher(2, 16, 60000);
+		HdfsOverFtpSystem.setListingPrefetcher(prefetcher);
+		user = new HdfsUser();
+		user.setName(System.getProperty("user.name"));
+		user.setHomeDirectory("/");
+		user.setGroups(new ArrayList<String>(Arrays.asList("supergroup")));
+	}
+
+	@AfterClass
+	public static void stopCluster() {
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void otherDirectoryChangeKeepsPrefetch() throws Exception {
+		ListingPrefetcher.Prefetch prefetch = prefetcher.prefetch(new Path("/a"));
+		cache.invalidate("/b/file");
+		cache.invalidateTree("/a/sub/deeper");
+		assertNotNull(prefetch);
+		assertEquals(2, prefetch.get(new Path("/a")).length);
+	}
+
+	@Test
+	public void ownDirectoryChangeDropsPrefetch() throws Exception {
+		ListingPrefetcher.Prefetch prefetch = prefetcher.prefetch(new Path("/a"));
+		cache.invalidate("/a/new");
+		assertNull(prefetch.get(new Path("/a")));
+	}
+
+	@Test
+	public void parentTreeChangeDropsPrefetch() throws Exception {
+		ListingPrefetcher.Prefetch prefetch = prefetcher.prefetch(new Path("/a/sub"));
+		cache.invalidateTree("/a");
+		assertNull(prefetch.get(new Path("/a/sub")));
+	}
+
+	@Test
+	public void disposedSessionCancelsItsPrefetch() throws Exception {
+		int live = prefetcher.size();
+		HdfsFileSystemView view = new HdfsFileSystemView(user);
+		assertTrue(view.changeWorkingDirectory("/a"));
+		assertEquals(live + 1, prefetcher.size());
+		view.dispose();
+		assertEquals(live, prefetcher.size());
+	}
+
+	@Test
+	public void expiredPrefetchesArePruned() throws Exception {
+		ListingPrefetcher shortLived = new ListingPrefetcher(2, 16, 100);
+		for (int i = 0; i < 5; i++) {
+			// started on CWD, but never taken
+			assertNotNull(shortLived.prefetch(new Path("/a")));
+		}
+		assertEquals(5, shortLived.size());
+		Thread.sleep(200);
+		assertNotNull(shortLived.prefetch(new Path("/b")));
+		assertEquals(1, shortLived.size());
+	}
+}
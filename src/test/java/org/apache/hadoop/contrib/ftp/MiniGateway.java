@@ -0,0 +1,136 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.util.BaseProperties;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+/**
+ * MiniDFSCluster the gateway classes of a test are connected to, and
+ * the ftp server in front of it
+ */
+public class MiniGateway {
+
+	private MiniGateway() {
+	}
+
+	/**
+	 * Start a cluster and point HdfsOverFtpSystem at it
+	 *
+	 * @param name      name of the test, the cluster lives in target/minidfs/name
+	 * @param dataNodes number of DataNodes
+	 * @param conf      settings of the cluster
+	 * @return running cluster
+	 * @throws IOException
+	 */
+	public static MiniDFSCluster startCluster(String name, int dataNodes, Configuration conf) throws IOException {
+		conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, new File("target/minidfs/" + name).getAbsolutePath());
+		MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(dataNodes).format(true).build();
+		cluster.waitActive();
+
+		HdfsOverFtpSystem.setHDFS_URI(cluster.getURI().toString());
+		HdfsOverFtpSystem.setSuperuser(System.getProperty("user.name"));
+		return cluster;
+	}
+
+	public static MiniDFSCluster startCluster(String name, int dataNodes) throws IOException {
+		return startCluster(name, dataNodes, new Configuration());
+	}
+
+	/**
+	 * Start the ftp server on the cluster, as HdfsOverFtpServer does
+	 *
+	 * @param settings settings of hdfs-over-ftp.properties, hdfs-uri and
+	 *                 superuser default to the cluster
+	 * @return started server
+	 * @throws Exception
+	 */
+	public static FtpServer startServer(Properties settings) throws Exception {
+		BaseProperties props = new BaseProperties();
+		props.setProperty("hdfs-uri", HdfsOverFtpSystem.HDFS_URI);
+		props.setProperty("superuser", HdfsOverFtpSystem.getSuperuser());
+		props.putAll(settings);
+		HdfsOverFtpServer.configure(props);
+		return HdfsOverFtpServer.startServer();
+	}
+
+	/**
+	 * Add a listener on free ports to the settings
+	 *
+	 * @param settings settings of the server
+	 * @param name     name of the listener
+	 * @param ssl      none, implicit or explicit
+	 * @return control port of the listener
+	 * @throws IOException
+	 */
+	public static int addListener(Properties settings, String name, String ssl) throws IOException {
+		String names = settings.getProperty("listeners");
+		settings.setProperty("listeners", names == null ? name : names + ", " + name);
+		int port = freePort();
+		settings.setProperty("listener." + name + ".port", Integer.toString(port));
+		settings.setProperty("listener." + name + ".data-ports", freePort() + ", " + freePort());
+		settings.setProperty("listener." + name + ".ssl", ssl);
+		return port;
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Create a keystore with a self-signed key for localhost
+	 *
+	 * @param file     keystore file
+	 * @param password password of the keystore and the key
+	 * @throws Exception
+	 */
+	public static void createKeystore(File file, String password) throws Exception {
+		if (file.exists()) {
+			file.delete();
+		}
+		file.getParentFile().mkdirs();
+		Process keytool = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+				"-genkeypair", "-keystore", file.getPath(), "-storetype", "JKS",
+				"-storepass", password, "-keypass", password, "-alias", "ftp",
+				"-keyalg", "RSA", "-keysize", "2048", "-validity", "1", "-dname", "CN=localhost")
+				.inheritIO().start();
+		if (keytool.waitFor() != 0) {
+			throw new IOException("keytool failed");
+		}
+	}
+
+	/**
+	 * Wait until a condition holds
+	 *
+	 * @param timeout   milliseconds to wait at most
+	 * @param condition condition to wait for
+	 * @return true if the condition held in time
+	 */
+	public static boolean await(long timeout, Condition condition) throws Exception {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!condition.holds()) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(20);
+		}
+		return true;
+	}
+
+	/**
+	 * Condition of {@link #await(long, Condition)}
+	 */
+	public interface Condition {
+		boolean holds() throws Exception;
+	}
+}
@@ -0,0 +1,203 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPSClient;
+import org.apache.commons.net.util.TrustManagerUtils;
+import org.apache.ftpserver.FtpServer;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SSL contexts of concurrent first handshakes, and a handshake and
+ * throughput benchmark of the implicit SSL listener on localhost
+ */
+public class MySslConfigurationTest {
+
+	private static final String PASSWORD = "333333";
+
+	private static final int HANDSHAKES = 50;
+
+	private static final int FILE_SIZE = 64 * 1024 * 1024;
+
+	private static final File KEYSTORE = new File("target/ssl-test/ftp.jks");
+
+	private static MiniDFSCluster cluster;
+
+	private static FtpServer server;
+
+	private static int port;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		MiniGateway.createKeystore(KEYSTORE, PASSWORD);
+		cluster = MiniGateway.startCluster("ssl", 1);
+
+		Properties settings = new Properties();
+		port = MiniGateway.addListener(settings, "ssl", "implicit");
+		settings.setProperty("ssl-keystore", KEYSTORE.getPath());
+		settings.setProperty("ssl-keystore-password", PASSWORD);
+		server = MiniGateway.startServer(settings);
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		if (server != null) {
+			server.stop();
+		}
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	private static MySslConfiguration createConfiguration() {
+		MySslConfiguration ssl = new MySslConfiguration();
+		ssl.setKeystoreFile(KEYSTORE);
+		ssl.setKeystorePassword(PASSWORD);
+		ssl.setKeystoreType("JKS");
+		return ssl;
+	}
+
+	@Test
+	public void concurrentFirstHandshakesShareOneContext() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		try {
+			for (int round = 0; round < 20; round++) {
+				final MySslConfiguration ssl = createConfiguration();
+				final CyclicBarrier barrier = new CyclicBarrier(16);
+				List<Future<SSLContext>> contexts = new ArrayList<Future<SSLContext>>();
+				for (int i = 0; i < 16; i++) {
+					contexts.add(executor.submit(new Callable<SSLContext>() {
+						@Override
+						public SSLContext call() throws Exception {
+							barrier.await();
+							return ssl.getSSLContext();
+						}
+					}));
+				}
+				SSLContext first = contexts.get(0).get();
+				for (Future<SSLContext> context : contexts) {
+					assertSame(first, context.get());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void cipherSuitesPreferGcm() throws Exception {
+		String[] suites = createConfiguration().getEnabledCipherSuites();
+		assertTrue(suites[0], suites[0].contains("_GCM_"));
+		for (String suite : suites) {
+			assertFalse(suite, suite.startsWith("TLS_AES_"));
+		}
+	}
+
+	/**
+	 * Full handshakes use a new client context for every connection, resumed
+	 * ones share a context, which offers the session of the previous one
+	 */
+	@Test
+	public void handshakeBenchmark() throws Exception {
+		SSLContext shared = createClientContext();
+		byte[] sessionId = handshake(shared);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < HANDSHAKES; i++) {
+			handshake(createClientContext());
+		}
+		long full = (System.nanoTime() - start) / HANDSHAKES;
+
+		start = System.nanoTime();
+		for (int i = 0; i < HANDSHAKES; i++) {
+			assertArrayEquals("session was not resumed", sessionId, handshake(shared));
+		}
+		long resumed = (System.nanoTime() - start) / HANDSHAKES;
+
+		System.out.printf("implicit ssl handshake: full %.2f ms, resumed %.2f ms%n", full / 1e6, resumed / 1e6);
+		assertTrue("resumed handshakes are not faster than full ones", resumed < full);
+	}
+
+	@Test
+	public void throughputBenchmark() throws Exception {
+		FileSystem fs = cluster.getFileSystem();
+		Path file = new Path("/ssl/large");
+		FSDataOutputStream out = fs.create(file);
+		byte[] chunk = new byte[1024 * 1024];
+		Arrays.fill(chunk, (byte) 'x');
+		for (int i = 0; i < FILE_SIZE / chunk.length; i++) {
+			out.write(chunk);
+		}
+		out.close();
+
+		FTPSClient client = new FTPSClient(true);
+		client.setTrustManager(TrustManagerUtils.getAcceptAllTrustManager());
+		client.connect("localhost", port);
+		try {
+			assertTrue(client.login("root", "123456"));
+			client.execPBSZ(0);
+			client.execPROT("P");
+			client.enterLocalPassiveMode();
+			client.setFileType(FTP.BINARY_FILE_TYPE);
+
+			long start = System.nanoTime();
+			InputStream in = client.retrieveFileStream(file.toString());
+			long read = 0;
+			for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) {
+				read += n;
+			}
+			in.close();
+			assertTrue(client.completePendingCommand());
+			long elapsed = System.nanoTime() - start;
+
+			assertEquals(FILE_SIZE, read);
+			System.out.printf("implicit ssl download: %.1f MB/s%n", read / 1048576.0 / (elapsed / 1e9));
+		} finally {
+			client.disconnect();
+		}
+	}
+
+	private static SSLContext createClientContext() throws Exception {
+		SSLContext context = SSLContext.getInstance("TLSv1.2");
+		context.init(null, new TrustManager[]{TrustManagerUtils.getAcceptAllTrustManager()}, null);
+		return context;
+	}
+
+	private static byte[] handshake(SSLContext context) throws Exception {
+		SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port);
+		try {
+			socket.startHandshake();
+			// wait for the banner, the server is done with the connection by then
+			socket.getInputStream().read();
+			return socket.getSession().getId();
+		} finally {
+			socket.close();
+		}
+	}
+}
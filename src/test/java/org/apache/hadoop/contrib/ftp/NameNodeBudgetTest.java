@@ -0,0 +1,161 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.ftpserver.FtpServer;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * NameNode calls of FTP commands against the real server, with the
+ * metadata cache off, counted by {@link CountingFileSystem}. A command
+ * making more calls than its budget fails the build, so a change costing a
+ * call per directory entry or per path element is caught before it
+ * reaches a NameNode. The budgets are the calls the commands make now.
+ */
+public class NameNodeBudgetTest {
+
+	private static final int ENTRIES = 50;
+
+	private static MiniDFSCluster cluster;
+
+	private static FtpServer server;
+
+	private static int port;
+
+	private FTPClient client;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		cluster = MiniGateway.startCluster("budget", 1);
+		CountingFileSystem.install();
+		FileSystem fs = cluster.getFileSystem();
+		for (int i = 0; i < ENTRIES; i++) {
+			fs.create(new Path("/budget/list/file" + i)).close();
+		}
+		fs.mkdirs(new Path("/budget/work"));
+		fs.create(new Path("/budget/names/file")).close();
+		fs.create(new Path("/budget/names/.hidden")).close();
+		fs.mkdirs(new Path("/budget/names/dir"));
+
+		Properties settings = new Properties();
+		port = MiniGateway.addListener(settings, "budget", "none");
+		server = MiniGateway.startServer(settings);
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		if (server != null) {
+			server.stop();
+		}
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Before
+	public void connect() throws Exception {
+		client = new FTPClient();
+		client.connect("localhost", port);
+		assertTrue(client.login("root", "123456"));
+		client.enterLocalPassiveMode();
+		client.setFileType(FTP.BINARY_FILE_TYPE);
+	}
+
+	@After
+	public void disconnect() throws Exception {
+		client.disconnect();
+	}
+
+	@Test
+	public void list() throws Exception {
+		CountingFileSystem.reset();
+		assertEquals(ENTRIES, client.listFiles("/budget/list").length);
+		// the entries come with the listing, whatever their number
+		assertBudget("LIST of " + ENTRIES + " entries", 3);
+	}
+
+	@Test
+	public void nlst() throws Exception {
+		CountingFileSystem.reset();
+		assertEquals(ENTRIES, client.listNames("/budget/list").length);
+		assertBudget("NLST of " + ENTRIES + " entries", 3);
+
+		// the same names as LIST, dot-files included
+		Set<String> listed = new TreeSet<String>();
+		for (FTPFile file : client.listFiles("/budget/names")) {
+			listed.add(file.getName());
+		}
+		Set<String> named = new TreeSet<String>();
+		for (String name : client.listNames("/budget/names")) {
+			named.add(name.substring(name.lastIndexOf('/') + 1));
+		}
+		assertEquals(new TreeSet<String>(Arrays.asList(".hidden", "dir", "file")), listed);
+		assertEquals(listed, named);
+	}
+
+	@Test
+	public void cwd() throws Exception {
+		CountingFileSystem.reset();
+		assertTrue(client.changeWorkingDirectory("/budget/list"));
+		assertBudget("CWD", 1);
+	}
+
+	@Test
+	public void size() throws Exception {
+		CountingFileSystem.reset();
+		assertEquals(213, client.sendCommand("SIZE", "/budget/list/file0"));
+		assertBudget("SIZE", 1);
+	}
+
+	@Test
+	public void storRetrDele() throws Exception {
+		byte[] content = "content".getBytes("UTF-8");
+		CountingFileSystem.reset();
+		assertTrue(client.storeFile("/budget/work/stored", new ByteArrayInputStream(content)));
+		// the client asks for the server defaults on its first write, and
+		// repeats complete until the block is reported
+		assertBudget("STOR", 10);
+
+		CountingFileSystem.reset();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertTrue(client.retrieveFile("/budget/work/stored", out));
+		assertEquals(content.length, out.size());
+		assertBudget("RETR", 2);
+
+		CountingFileSystem.reset();
+		assertTrue(client.deleteFile("/budget/work/stored"));
+		assertBudget("DELE", 2);
+	}
+
+	@Test
+	public void rename() throws Exception {
+		cluster.getFileSystem().create(new Path("/budget/work/from")).close();
+		CountingFileSystem.reset();
+		assertTrue(client.rename("/budget/work/from", "/budget/work/to"));
+		assertBudget("RNFR and RNTO", 4);
+	}
+
+	private static void assertBudget(String command, long budget) {
+		long calls = CountingFileSystem.getCalls();
+		assertTrue(command + " made " + calls + " NameNode calls " + CountingFileSystem.getMethods()
+				+ ", " + budget + " are budgeted", calls <= budget);
+	}
+}
@@ -0,0 +1,239 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.ftpserver.FtpServer;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.net.ConnectException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Deadlines, breaker trips, fast failures and the probe closing the breaker
+ * of {@link NameNodeGuard}, with calls blocking until released, and the 451
+ * reply of the gateway while the breaker is open
+ */
+public class NameNodeGuardTest {
+
+	private static final Path PATH = new Path("/guard");
+
+	private static MiniDFSCluster cluster;
+
+	private static FtpServer server;
+
+	private static int port;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		cluster = MiniGateway.startCluster("guard", 1);
+		Properties settings = new Properties();
+		settings.setProperty("namenode-breaker-failures", "2");
+		// the breaker of the gateway stays open for the test
+		settings.setProperty("namenode-breaker-probe-interval", "600000");
+		port = MiniGateway.addListener(settings, "guard", "none");
+		server = MiniGateway.startServer(settings);
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		if (server != null) {
+			server.stop();
+		}
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void callPastItsDeadlineFails() throws Exception {
+		Map<String, Long> deadlines = new HashMap<String, Long>();
+		deadlines.put("slow", 100L);
+		NameNodeGuard guard = new NameNodeGuard(0, deadlines, 4, 0, 100);
+		CountDownLatch release = new CountDownLatch(1);
+		long timeouts = counter("NameNodeCallTimeouts");
+		try {
+			long start = System.currentTimeMillis();
+			try {
+				guard.call("slow", PATH, new Blocking(release));
+				fail("call ran past its deadline");
+			} catch (NameNodeGuard.UnavailableException e) {
+				assertTrue(System.currentTimeMillis() - start < 5000);
+			}
+			assertEquals(timeouts + 1, counter("NameNodeCallTimeouts"));
+			// an operation without a deadline of its own waits for the answer
+			assertEquals("answered", guard.call("other", PATH, new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					Thread.sleep(200);
+					return "answered";
+				}
+			}));
+			assertFalse(guard.isOpen());
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void breakerFailsCallsAtOnceUntilTheProbeAnswers() throws Exception {
+		NameNodeGuard guard = new NameNodeGuard(100, Collections.<String, Long>emptyMap(), 4, 2, 200);
+		CountDownLatch release = new CountDownLatch(1);
+		long trips = counter("NameNodeBreakerTrips");
+		long fastFails = counter("NameNodeFastFails");
+		try {
+			for (int i = 0; i < 2; i++) {
+				try {
+					guard.call("status", PATH, new Blocking(release));
+					fail("call ran past its deadline");
+				} catch (NameNodeGuard.UnavailableException e) {
+					// expected
+				}
+			}
+			assertTrue(guard.isOpen());
+			assertEquals(trips + 1, counter("NameNodeBreakerTrips"));
+
+			final AtomicBoolean called = new AtomicBoolean();
+			try {
+				guard.call("status", PATH, new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						called.set(true);
+						return null;
+					}
+				});
+				fail("breaker is open");
+			} catch (NameNodeGuard.UnavailableException e) {
+				// expected
+			}
+			assertFalse(called.get());
+			assertEquals(fastFails + 1, counter("NameNodeFastFails"));
+		} finally {
+			release.countDown();
+		}
+
+		// the probe reaches the NameNode of the cluster
+		final NameNodeGuard probed = guard;
+		assertTrue(MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() throws Exception {
+				return !probed.isOpen();
+			}
+		}));
+		assertEquals("answered", guard.call("status", PATH, new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return "answered";
+			}
+		}));
+	}
+
+	@Test
+	public void streamOpenedPastTheDeadlineIsClosed() throws Exception {
+		NameNodeGuard guard = new NameNodeGuard(100, Collections.<String, Long>emptyMap(), 4, 0, 100);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		try {
+			guard.open("open", PATH, new Callable<Closeable>() {
+				@Override
+				public Closeable call() throws Exception {
+					// an ipc call finishing despite the interrupt of the deadline
+					boolean interrupted = false;
+					while (release.getCount() > 0) {
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							interrupted = true;
+						}
+					}
+					if (interrupted) {
+						Thread.currentThread().interrupt();
+					}
+					return new Closeable() {
+						@Override
+						public void close() {
+							closed.countDown();
+						}
+					};
+				}
+			});
+			fail("open ran past its deadline");
+		} catch (NameNodeGuard.UnavailableException e) {
+			// expected
+		}
+		release.countDown();
+		assertTrue(closed.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void commandsNeedingHdfsAreAnswered451WhileTheBreakerIsOpen() throws Exception {
+		NameNodeGuard guard = HdfsOverFtpSystem.getNameNodeGuard();
+		for (int i = 0; i < 2; i++) {
+			try {
+				guard.call("status", PATH, new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						throw new ConnectException("Connection refused");
+					}
+				});
+				fail("call failed");
+			} catch (ConnectException e) {
+				// expected
+			}
+		}
+		assertTrue(guard.isOpen());
+
+		FTPClient client = new FTPClient();
+		client.connect("localhost", port);
+		try {
+			assertTrue(client.login("root", "123456"));
+			client.enterLocalPassiveMode();
+			client.setFileType(FTP.BINARY_FILE_TYPE);
+			assertEquals(451, client.sendCommand("SIZE", "/guard"));
+			assertEquals(451, client.sendCommand("CWD", "/guard"));
+			// commands without HDFS keep working
+			assertEquals(200, client.sendCommand("NOOP"));
+			assertEquals(257, client.sendCommand("PWD"));
+		} finally {
+			client.disconnect();
+		}
+	}
+
+	private static long counter(String name) {
+		return HdfsOverFtpMetrics.get().counter(name, "").value();
+	}
+
+	/**
+	 * NameNode call hanging until released, as during a GC pause or failover
+	 */
+	private static class Blocking implements Callable<Void> {
+
+		private final CountDownLatch release;
+
+		Blocking(CountDownLatch release) {
+			this.release = release;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			release.await(60, TimeUnit.SECONDS);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.ftpserver.FtpServer;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Concatenated downloads of parts, empty ones among them, from offsets on
+ * and inside part boundaries, with the next part read ahead, and the
+ * summed size of the virtual file
+ */
+public class PartConcatenationTest {
+
+	// sizes of the parts, empty ones in between
+	private static final int[] PARTS = {300, 0, 500, 0, 200};
+
+	private static final Path DIR = new Path("/concat/job");
+
+	private static MiniDFSCluster cluster;
+
+	private static FtpServer server;
+
+	private static int port;
+
+	private static byte[] content;
+
+	private static HdfsUser user;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		cluster = MiniGateway.startCluster("concat", 1);
+		FileSystem fs = cluster.getFileSystem();
+		int total = 0;
+		for (int size : PARTS) {
+			total += size;
+		}
+		content = new byte[total];
+		new Random(42).nextBytes(content);
+		int offset = 0;
+		for (int i = 0; i < PARTS.length; i++) {
+			FSDataOutputStream out = fs.create(new Path(DIR, String.format("part-%05d", i)));
+			out.write(content, offset, PARTS[i]);
+			out.close();
+			offset += PARTS[i];
+		}
+		// not a part
+		fs.create(new Path(DIR, "_SUCCESS")).close();
+
+		Properties settings = new Properties();
+		settings.setProperty("concat-name", "_ALL");
+		port = MiniGateway.addListener(settings, "concat", "none");
+		server = MiniGateway.startServer(settings);
+
+		user = new HdfsUser();
+		user.setName(System.getProperty("user.name"));
+		user.setGroups(new ArrayList<String>(Arrays.asList("supergroup")));
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		if (server != null) {
+			server.stop();
+		}
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void offsetsOnAndInsidePartBoundaries() throws Exception {
+		PartConcatenation concatenation = new PartConcatenation("_ALL", "part-*", 64, 4);
+		List<FileStatus> parts = concatenation.getParts(DIR);
+		assertEquals(PARTS.length, parts.size());
+		for (int offset : new int[]{0, 1, 299, 300, 301, 799, 800, 801, 999, 1000, 1001}) {
+			byte[] expected = Arrays.copyOfRange(content, Math.min(offset, content.length), content.length);
+			assertArrayEquals("offset " + offset, expected, readFully(concatenation.open(user, parts, offset)));
+		}
+	}
+
+	@Test
+	public void nextPartsAreReadAhead() throws Exception {
+		PartConcatenation concatenation = new PartConcatenation("_ALL", "part-*", 64, 4);
+		long prefetches = counter("ConcatPartPrefetches");
+		assertArrayEquals(content, readFully(concatenation.open(user, concatenation.getParts(DIR), 0)));
+		// every part after the first was handed over from a prefetch
+		assertEquals(prefetches + PARTS.length - 1, counter("ConcatPartPrefetches"));
+
+		// byte by byte across the prefetched heads
+		InputStream in = concatenation.open(user, concatenation.getParts(DIR), 250);
+		try {
+			for (int i = 250; i < content.length; i++) {
+				assertEquals("byte " + i, content[i] & 0xff, in.read());
+			}
+			assertEquals(-1, in.read());
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void closeWithAPrefetchInFlightFreesItsThread() throws Exception {
+		// a single prefetch thread, only free again once a closed prefetch finished
+		final PartConcatenation concatenation = new PartConcatenation("_ALL", "part-*", 64, 1);
+		final List<FileStatus> parts = concatenation.getParts(DIR);
+		for (int i = 0; i < 5; i++) {
+			InputStream in = concatenation.open(user, parts, 0);
+			assertEquals(content[0] & 0xff, in.read());
+			in.close();
+			assertEquals(-1, in.read());
+		}
+		assertTrue(MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() throws Exception {
+				long prefetches = counter("ConcatPartPrefetches");
+				InputStream in = concatenation.open(user, parts, 0);
+				in.read();
+				in.close();
+				return counter("ConcatPartPrefetches") > prefetches;
+			}
+		}));
+		assertArrayEquals(content, readFully(concatenation.open(user, parts, 0)));
+	}
+
+	@Test
+	public void virtualFileHasTheSummedSize() throws Exception {
+		FTPClient client = new FTPClient();
+		client.connect("localhost", port);
+		try {
+			assertTrue(client.login("root", "123456"));
+			client.enterLocalPassiveMode();
+			client.setFileType(FTP.BINARY_FILE_TYPE);
+			assertEquals(213, client.sendCommand("SIZE", "/concat/job/_ALL"));
+			assertEquals("213 " + content.length, client.getReplyString().trim());
+
+			client.setRestartOffset(300);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			assertTrue(client.retrieveFile("/concat/job/_ALL", out));
+			assertArrayEquals(Arrays.copyOfRange(content, 300, content.length), out.toByteArray());
+		} finally {
+			client.disconnect();
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			IOUtils.copyBytes(in, out, 100, false);
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	private static long counter(String name) {
+		return HdfsOverFtpMetrics.get().counter(name, "").value();
+	}
+}
@@ -0,0 +1,225 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.SocketFactory;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads from a cluster with one slow DataNode: stateful reads stay on
+ * the slow node for whole blocks, hedged positional reads move on to
+ * another replica after the threshold
+ */
+public class PositionalReadInputStreamTest {
+
+	private static final String SOCKET_FACTORY = "hadoop.rpc.socket.factory.class.ClientProtocol";
+
+	// the legacy block reader reads from socket streams, the other one from channels
+	private static final String LEGACY_READER = "dfs.client.use.legacy.blockreader";
+
+	private static final int BLOCK_SIZE = 1024 * 1024;
+
+	private static final int FILES = 8;
+
+	private static final int FILE_SIZE = 2 * BLOCK_SIZE;
+
+	private static MiniDFSCluster cluster;
+
+	private static byte[] content;
+
+	@BeforeClass
+	public static void startCluster() throws Exception {
+		Configuration conf = new Configuration();
+		conf.setLong("dfs.blocksize", BLOCK_SIZE);
+		cluster = MiniGateway.startCluster("hedged", 3, conf);
+
+		content = new byte[FILE_SIZE];
+		new Random(42).nextBytes(content);
+		FileSystem fs = cluster.getFileSystem();
+		for (int i = 0; i < FILES; i++) {
+			FSDataOutputStream out = fs.create(new Path("/hedged/file" + i), (short) 3);
+			out.write(content);
+			out.close();
+		}
+		SlowDataNodeSocketFactory.slowPort = cluster.getDataNodes().get(0).getXferPort();
+	}
+
+	@AfterClass
+	public static void stopCluster() {
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void offsetIsHonoured() throws Exception {
+		FileSystem fs = cluster.getFileSystem();
+		InputStream in = new PositionalReadInputStream(fs.open(new Path("/hedged/file0")), BLOCK_SIZE - 10, FILE_SIZE,
+				64 * 1024);
+		byte[] read = readFully(in);
+		assertArrayEquals(Arrays.copyOfRange(content, BLOCK_SIZE - 10, FILE_SIZE), read);
+	}
+
+	@Test
+	public void skipStopsAtTheEnd() throws Exception {
+		FileSystem fs = cluster.getFileSystem();
+		InputStream in = new PositionalReadInputStream(fs.open(new Path("/hedged/file0")), 0, FILE_SIZE, 1024);
+		try {
+			assertEquals(content[0] & 0xff, in.read());
+			// the rest of the buffer, then up to the end of the file
+			assertEquals(FILE_SIZE - 1, in.skip(FILE_SIZE * 2L));
+			assertEquals(0, in.skip(10));
+			assertEquals(-1, in.read());
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void hedgedReadsCutTheTail() throws Exception {
+		// stateful reads of a client without hedging
+		Configuration conf = new Configuration(cluster.getConfiguration(0));
+		conf.set(SOCKET_FACTORY, SlowDataNodeSocketFactory.class.getName());
+		conf.setBoolean(LEGACY_READER, true);
+		FileSystem plain = FileSystem.newInstance(cluster.getURI(), conf);
+		long[] stateful = new long[FILES];
+		for (int i = 0; i < FILES; i++) {
+			long start = System.nanoTime();
+			assertArrayEquals(content, readFully(plain.open(new Path("/hedged/file" + i))));
+			stateful[i] = System.nanoTime() - start;
+		}
+		plain.close();
+
+		// hedged positional reads of the gateway client
+		HdfsOverFtpSystem.setConf(SOCKET_FACTORY, SlowDataNodeSocketFactory.class.getName());
+		HdfsOverFtpSystem.setConf(LEGACY_READER, "true");
+		HdfsOverFtpSystem.setConf("dfs.client.hedged.read.threadpool.size", "16");
+		HdfsOverFtpSystem.setConf("dfs.client.hedged.read.threshold.millis", "50");
+		FileSystem dfs = HdfsOverFtpSystem.getDfs();
+		long[] hedged = new long[FILES];
+		for (int i = 0; i < FILES; i++) {
+			long start = System.nanoTime();
+			FSDataInputStream in = dfs.open(new Path("/hedged/file" + i));
+			assertArrayEquals(content, readFully(new PositionalReadInputStream(in, 0, FILE_SIZE, 256 * 1024)));
+			hedged[i] = System.nanoTime() - start;
+		}
+
+		Arrays.sort(stateful);
+		Arrays.sort(hedged);
+		System.out.printf("download of %d files with a slow datanode: stateful median %d ms max %d ms, "
+						+ "hedged median %d ms max %d ms, %d hedged reads%n", FILES,
+				stateful[FILES / 2] / 1000000, stateful[FILES - 1] / 1000000,
+				hedged[FILES / 2] / 1000000, hedged[FILES - 1] / 1000000,
+				HdfsOverFtpSystem.getHedgedReadMetrics().getHedgedReadOps());
+		assertTrue(HdfsOverFtpSystem.getHedgedReadMetrics().getHedgedReadOps() > 0);
+		assertTrue("hedged reads did not cut the slowest download", hedged[FILES - 1] < stateful[FILES - 1] / 2);
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		byte[] read = new byte[FILE_SIZE];
+		int length = 0;
+		try {
+			for (int n = in.read(read, 0, read.length); n > 0; n = in.read(read, length, read.length - length)) {
+				length += n;
+				if (length == read.length) {
+					assertEquals(-1, in.read());
+					break;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return Arrays.copyOf(read, length);
+	}
+
+	/**
+	 * Client sockets which receive data from the DataNode on slowPort at
+	 * 512 KB/s. The DFS client connects to NameNode and DataNodes with the
+	 * socket factory of ClientProtocol. The sockets have no channel.
+	 */
+	public static class SlowDataNodeSocketFactory extends SocketFactory {
+
+		static volatile int slowPort = -1;
+
+		private static final long NANOS_PER_BYTE = 1000000000L / (512 * 1024);
+
+		@Override
+		public Socket createSocket() {
+			return new Socket() {
+				@Override
+				public InputStream getInputStream() throws IOException {
+					InputStream in = super.getInputStream();
+					return getPort() != slowPort ? in : new FilterInputStream(in) {
+						@Override
+						public int read() throws IOException {
+							byte[] b = new byte[1];
+							return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+						}
+
+						@Override
+						public int read(byte[] b, int off, int len) throws IOException {
+							int n = super.read(b, off, len);
+							if (n > 0) {
+								try {
+									Thread.sleep(n * NANOS_PER_BYTE / 1000000, (int) (n * NANOS_PER_BYTE % 1000000));
+								} catch (InterruptedException e) {
+									throw new IOException(e);
+								}
+							}
+							return n;
+						}
+					};
+				}
+			};
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			Socket socket = createSocket();
+			socket.connect(new InetSocketAddress(host, port));
+			return socket;
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			Socket socket = createSocket();
+			socket.bind(new InetSocketAddress(localHost, localPort));
+			socket.connect(new InetSocketAddress(host, port));
+			return socket;
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			Socket socket = createSocket();
+			socket.connect(new InetSocketAddress(host, port));
+			return socket;
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			Socket socket = createSocket();
+			socket.bind(new InetSocketAddress(localAddress, localPort));
+			socket.connect(new InetSocketAddress(address, port));
+			return socket;
+		}
+	}
+}
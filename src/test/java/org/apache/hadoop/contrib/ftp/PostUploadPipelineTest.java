@@ -0,0 +1,175 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.ftpserver.FtpServer;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Manifests of batches handled within the same millisecond, retries of
+ * failing handlers, and segmented uploads queued once complete
+ */
+public class PostUploadPipelineTest {
+
+	private static MiniDFSCluster cluster;
+
+	private static FtpServer server;
+
+	private static int port;
+
+	@BeforeClass
+	public static void startCluster() throws Exception {
+		cluster = MiniGateway.startCluster("post-upload", 1);
+		Properties settings = new Properties();
+		settings.setProperty("metadata-cache-ttl", "600000");
+		settings.setProperty("segmented-uploads", "true");
+		settings.setProperty("post-upload-handlers", "manifest");
+		settings.setProperty("post-upload-batch", "1");
+		settings.setProperty("post-upload-interval", "0");
+		port = MiniGateway.addListener(settings, "post-upload", "none");
+		server = MiniGateway.startServer(settings);
+	}
+
+	@AfterClass
+	public static void stopCluster() {
+		if (server != null) {
+			server.stop();
+		}
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void batchesGetTheirOwnManifest() throws Exception {
+		FileSystem fs = cluster.getFileSystem();
+		final int batches = 20;
+		for (int i = 0; i < batches; i++) {
+			fs.create(new Path("/manifests/file" + i)).close();
+		}
+
+		// batches of one upload, handed over at once
+		PostUploadPipeline pipeline = new PostUploadPipeline(Collections.singletonList(
+				PostUploadPipeline.createHandler("manifest", (short) 1, "_UPLOADED.")), 100, 1, 0, 0, 0);
+		pipeline.start();
+		String user = System.getProperty("user.name");
+		for (int i = 0; i < batches; i++) {
+			pipeline.add(new PostUploadPipeline.Upload(new Path("/manifests/file" + i), user, "supergroup", 0));
+		}
+		final Path dir = new Path("/manifests");
+		assertTrue(MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() throws Exception {
+				return manifests(dir).size() == batches;
+			}
+		}));
+		pipeline.stop();
+	}
+
+	@Test
+	public void failingHandlerIsRetried() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		final List<Long> handled = Collections.synchronizedList(new ArrayList<Long>());
+		PostUploadPipeline.Handler failing = new PostUploadPipeline.Handler() {
+			@Override
+			public void handle(List<PostUploadPipeline.Upload> uploads) throws Exception {
+				if (calls.incrementAndGet() <= 2) {
+					throw new Exception("failing call " + calls.get());
+				}
+			}
+		};
+		PostUploadPipeline.Handler next = new PostUploadPipeline.Handler() {
+			@Override
+			public void handle(List<PostUploadPipeline.Upload> uploads) {
+				handled.add(uploads.get(0).getBatch());
+			}
+		};
+		PostUploadPipeline pipeline = new PostUploadPipeline(Arrays.asList(failing, next), 100, 1, 0, 3, 10);
+		pipeline.start();
+		pipeline.add(new PostUploadPipeline.Upload(new Path("/retried"), "user", "group", 0));
+		assertTrue(MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() {
+				return !handled.isEmpty();
+			}
+		}));
+		pipeline.stop();
+		assertEquals(3, calls.get());
+	}
+
+	@Test
+	public void segmentedUploadIsQueuedOnceComplete() throws Exception {
+		byte[] content = new byte[3000];
+		new Random(42).nextBytes(content);
+		FTPClient first = new FTPClient();
+		FTPClient second = new FTPClient();
+		first.connect("localhost", port);
+		second.connect("localhost", port);
+		try {
+			for (FTPClient client : new FTPClient[]{first, second}) {
+				assertTrue(client.login("root", "123456"));
+				client.enterLocalPassiveMode();
+				client.setFileType(FTP.BINARY_FILE_TYPE);
+			}
+			OutputStream out = first.storeFileStream("/segmented/stored");
+			out.write(content, 0, 1000);
+			second.setRestartOffset(1000);
+			assertTrue(second.storeFile("/segmented/stored", new ByteArrayInputStream(content, 1000, 2000)));
+			out.close();
+			assertTrue(first.completePendingCommand());
+		} finally {
+			first.disconnect();
+			second.disconnect();
+		}
+
+		final Path dir = new Path("/segmented");
+		assertTrue(MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() throws Exception {
+				return !manifests(dir).isEmpty();
+			}
+		}));
+		// the part segment queued nothing, the target is queued with its full length
+		List<String> manifests = manifests(dir);
+		assertEquals(manifests.toString(), 1, manifests.size());
+		Path manifest = new Path(dir, manifests.get(0));
+		byte[] read = new byte[(int) cluster.getFileSystem().getFileStatus(manifest).getLen()];
+		FSDataInputStream in = cluster.getFileSystem().open(manifest);
+		try {
+			in.readFully(read);
+		} finally {
+			in.close();
+		}
+		assertEquals("stored\t3000\n", new String(read, "UTF-8"));
+	}
+
+	private static List<String> manifests(Path dir) throws Exception {
+		List<String> names = new ArrayList<String>();
+		for (FileStatus status : cluster.getFileSystem().listStatus(dir)) {
+			if (status.getPath().getName().startsWith("_UPLOADED.")) {
+				names.add(status.getPath().getName());
+			}
+		}
+		return names;
+	}
+}
@@ -0,0 +1,128 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.ftpserver.FtpServer;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads refused with 552 before any data is sent when their ALLO size
+ * exceeds what is left of a space quota, uploads fitting it, and overwrites
+ * counted without the file they replace
+ */
+public class QuotaGuardTest {
+
+	private static final int BLOCK_SIZE = 1024 * 1024;
+
+	private static MiniDFSCluster cluster;
+
+	private static FtpServer server;
+
+	private static int port;
+
+	private FTPClient client;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		// small blocks, so a quota of a few blocks is cheap
+		HdfsOverFtpSystem.setConf("dfs.blocksize", Integer.toString(BLOCK_SIZE));
+		HdfsOverFtpSystem.setConf("dfs.replication", "1");
+		cluster = MiniGateway.startCluster("quota", 1);
+		DistributedFileSystem fs = cluster.getFileSystem();
+		fs.mkdirs(new Path("/quota/dir"));
+		fs.setQuota(new Path("/quota/dir"), HdfsConstants.QUOTA_DONT_SET, 2 * BLOCK_SIZE);
+		// nearly full with a file to overwrite
+		fs.mkdirs(new Path("/quota/full"));
+		fs.setQuota(new Path("/quota/full"), HdfsConstants.QUOTA_DONT_SET, 2 * BLOCK_SIZE);
+		FSDataOutputStream out = fs.create(new Path("/quota/full/file"), true, 4096, (short) 1, BLOCK_SIZE);
+		out.write(new byte[BLOCK_SIZE + BLOCK_SIZE / 2]);
+		out.close();
+		// room for the directory and two names
+		fs.mkdirs(new Path("/quota/names"));
+		fs.setQuota(new Path("/quota/names"), 3, HdfsConstants.QUOTA_DONT_SET);
+		fs.create(new Path("/quota/names/file")).close();
+
+		Properties settings = new Properties();
+		settings.setProperty("quota-dirs", "/quota/*");
+		port = MiniGateway.addListener(settings, "quota", "none");
+		server = MiniGateway.startServer(settings);
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		if (server != null) {
+			server.stop();
+		}
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Before
+	public void connect() throws Exception {
+		client = new FTPClient();
+		client.connect("localhost", port);
+		assertTrue(client.login("root", "123456"));
+		client.enterLocalPassiveMode();
+		client.setFileType(FTP.BINARY_FILE_TYPE);
+	}
+
+	@After
+	public void disconnect() throws Exception {
+		client.disconnect();
+	}
+
+	@Test
+	public void uploadExceedingTheQuotaIsRefusedAtOnce() throws Exception {
+		long rejections = HdfsOverFtpMetrics.get().counter("QuotaRejections", "").value();
+		assertEquals(200, client.sendCommand("ALLO", Integer.toString(3 * BLOCK_SIZE)));
+		// no data stream is handed out, the refusal comes before the transfer
+		assertNull(client.storeFileStream("/quota/dir/large"));
+		assertEquals(552, client.getReplyCode());
+		assertFalse(cluster.getFileSystem().exists(new Path("/quota/dir/large")));
+		assertEquals(rejections + 1, HdfsOverFtpMetrics.get().counter("QuotaRejections", "").value());
+	}
+
+	@Test
+	public void uploadFittingTheQuotaIsAccepted() throws Exception {
+		byte[] content = new byte[1000];
+		assertEquals(200, client.sendCommand("ALLO", Integer.toString(content.length)));
+		assertTrue(client.storeFile("/quota/dir/small", new ByteArrayInputStream(content)));
+		assertEquals(content.length, cluster.getFileSystem().getFileStatus(new Path("/quota/dir/small")).getLen());
+	}
+
+	@Test
+	public void overwriteCountsWithoutTheOldFile() throws Exception {
+		byte[] content = new byte[BLOCK_SIZE + BLOCK_SIZE / 2];
+		assertEquals(200, client.sendCommand("ALLO", Integer.toString(content.length)));
+		// the old file's space is freed by the NameNode when it is overwritten
+		assertTrue(client.storeFile("/quota/full/file", new ByteArrayInputStream(content)));
+		assertEquals(content.length, cluster.getFileSystem().getFileStatus(new Path("/quota/full/file")).getLen());
+	}
+
+	@Test
+	public void overwritesUseNoNames() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			assertTrue(client.storeFile("/quota/names/file", new ByteArrayInputStream(new byte[10])));
+		}
+		// the last name left is still free
+		assertTrue(client.storeFile("/quota/names/other", new ByteArrayInputStream(new byte[10])));
+	}
+}
@@ -0,0 +1,230 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.ftpserver.FtpServer;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Segments joined by the close of the last one, overlapping segments,
+ * segments which failed to close, parts of abandoned uploads, and segmented
+ * uploads through the server
+ */
+public class SegmentedUploadsTest {
+
+	private static MiniDFSCluster cluster;
+
+	private static FileSystem fs;
+
+	private static byte[] content;
+
+	private static FtpServer server;
+
+	private static int port;
+
+	@BeforeClass
+	public static void startCluster() throws Exception {
+		cluster = MiniGateway.startCluster("segments", 1);
+		fs = cluster.getFileSystem();
+		Properties settings = new Properties();
+		settings.setProperty("segmented-uploads", "true");
+		settings.setProperty("metadata-cache-ttl", "600000");
+		port = MiniGateway.addListener(settings, "segments", "none");
+		server = MiniGateway.startServer(settings);
+		content = new byte[3000];
+		new Random(42).nextBytes(content);
+	}
+
+	@AfterClass
+	public static void stopCluster() {
+		if (server != null) {
+			server.stop();
+		}
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void segmentsAreJoined() throws Exception {
+		SegmentedUploads uploads = new SegmentedUploads(3600000);
+		Path target = new Path("/segments/joined");
+		SegmentedUploads.Segment first = uploads.open(target, 0);
+		SegmentedUploads.Segment second = uploads.open(target, 1000);
+		SegmentedUploads.Segment third = uploads.open(target, 2000);
+		assertTrue(second.isPart());
+		write(uploads, target, third, 2000, 3000);
+		write(uploads, target, second, 1000, 2000);
+		write(uploads, target, first, 0, 1000);
+
+		assertEquals(0, uploads.size());
+		assertArrayEquals(content, read(target));
+		assertFalse(fs.exists(second.getPath()));
+	}
+
+	@Test
+	public void overlappingSegmentIsJoined() throws Exception {
+		SegmentedUploads uploads = new SegmentedUploads(3600000);
+		Path target = new Path("/segments/overlap");
+		SegmentedUploads.Segment first = uploads.open(target, 0);
+		SegmentedUploads.Segment second = uploads.open(target, 1000);
+		// the first segment was sent longer than the client planned
+		write(uploads, target, first, 0, 1500);
+		write(uploads, target, second, 1000, 3000);
+
+		assertEquals(0, uploads.size());
+		assertArrayEquals(content, read(target));
+		assertFalse(fs.exists(second.getPath()));
+	}
+
+	@Test
+	public void failedSegmentIsDiscarded() throws Exception {
+		SegmentedUploads uploads = new SegmentedUploads(3600000);
+		Path target = new Path("/segments/failed");
+		SegmentedUploads.Segment first = uploads.open(target, 0);
+		SegmentedUploads.Segment second = uploads.open(target, 1000);
+		write(uploads, target, first, 0, 1000);
+		FSDataOutputStream out = fs.create(second.getPath());
+		out.write(content, 1000, 500);
+		out.close();
+		uploads.closed(target, second, 500, false, null);
+
+		assertEquals(0, uploads.size());
+		assertFalse(fs.exists(second.getPath()));
+		assertEquals(1000, fs.getFileStatus(target).getLen());
+	}
+
+	@Test
+	public void abandonedPartsAreNotJoinedIntoANewUpload() throws Exception {
+		SegmentedUploads uploads = new SegmentedUploads(3600000);
+		Path target = new Path("/segments/replaced");
+		// an upload abandoned before its first segment was sent
+		SegmentedUploads.Segment abandoned = uploads.open(target, 1000);
+		write(uploads, target, abandoned, 1000, 3000);
+		assertTrue(uploads.isPending(target));
+
+		// a plain STOR of exactly the length of the abandoned part's offset
+		byte[] other = new byte[1000];
+		new Random(7).nextBytes(other);
+		SegmentedUploads.Segment plain = uploads.open(target, 0);
+		writeBytes(uploads, target, plain, other);
+		assertEquals(0, uploads.size());
+		assertFalse(fs.exists(abandoned.getPath()));
+		assertArrayEquals(other, read(target));
+
+		// and one reaching into an abandoned part
+		abandoned = uploads.open(target, 2000);
+		assertTrue(abandoned.isPart());
+		write(uploads, target, abandoned, 2000, 3000);
+		other = new byte[2500];
+		new Random(8).nextBytes(other);
+		plain = uploads.open(target, 0);
+		writeBytes(uploads, target, plain, other);
+		assertEquals(0, uploads.size());
+		assertFalse(fs.exists(abandoned.getPath()));
+		assertArrayEquals(other, read(target));
+	}
+
+	@Test
+	public void loneSegmentPastTheEndExpires() throws Exception {
+		final SegmentedUploads uploads = new SegmentedUploads(200);
+		final Path target = new Path("/segments/lone");
+		FSDataOutputStream out = fs.create(target);
+		out.write(content, 0, 100);
+		out.close();
+		final SegmentedUploads.Segment lone = uploads.open(target, 1000);
+		assertTrue(lone.isPart());
+		write(uploads, target, lone, 1000, 2000);
+		assertTrue(uploads.isPending(target));
+
+		assertTrue(MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() throws Exception {
+				return uploads.size() == 0 && !fs.exists(lone.getPath());
+			}
+		}));
+		assertFalse(uploads.isPending(target));
+		assertEquals(100, fs.getFileStatus(target).getLen());
+	}
+
+	@Test
+	public void targetIsCompleteWhenLastStorIsAnswered() throws Exception {
+		FTPClient first = new FTPClient();
+		FTPClient second = new FTPClient();
+		first.connect("localhost", port);
+		second.connect("localhost", port);
+		try {
+			for (FTPClient client : new FTPClient[]{first, second}) {
+				assertTrue(client.login("root", "123456"));
+				client.enterLocalPassiveMode();
+				client.setFileType(FTP.BINARY_FILE_TYPE);
+			}
+			// the first segment is still being sent while the second one completes
+			OutputStream out = first.storeFileStream("/segments/stored");
+			out.write(content, 0, 1000);
+			second.setRestartOffset(1000);
+			assertTrue(second.storeFile("/segments/stored", new ByteArrayInputStream(content, 1000, 2000)));
+			out.close();
+			assertTrue(first.completePendingCommand());
+
+			// no waiting: the part was joined before the reply
+			assertEquals(3000, fs.getFileStatus(new Path("/segments/stored")).getLen());
+			assertEquals(213, first.sendCommand("SIZE", "/segments/stored"));
+			assertEquals("213 3000", first.getReplyString().trim());
+			assertEquals(0, HdfsOverFtpSystem.getSegmentedUploads().size());
+			assertArrayEquals(content, read(new Path("/segments/stored")));
+			for (FileStatus status : fs.listStatus(new Path("/segments"))) {
+				assertFalse(status.getPath().getName(), status.getPath().getName().startsWith(".stored.part-"));
+			}
+		} finally {
+			first.disconnect();
+			second.disconnect();
+		}
+	}
+
+	private static void write(SegmentedUploads uploads, Path target, SegmentedUploads.Segment segment,
+			int from, int to) throws Exception {
+		FSDataOutputStream out = segment.isAppend() ? fs.append(segment.getPath()) : fs.create(segment.getPath());
+		out.write(content, from, to - from);
+		out.close();
+		uploads.closed(target, segment, to - from, true, null);
+	}
+
+	private static void writeBytes(SegmentedUploads uploads, Path target, SegmentedUploads.Segment segment,
+			byte[] bytes) throws Exception {
+		FSDataOutputStream out = fs.create(segment.getPath());
+		out.write(bytes);
+		out.close();
+		uploads.closed(target, segment, bytes.length, true, null);
+	}
+
+	private static byte[] read(Path file) throws Exception {
+		byte[] read = new byte[(int) fs.getFileStatus(file).getLen()];
+		FSDataInputStream in = fs.open(file);
+		try {
+			IOUtils.readFully(in, read, 0, read.length);
+		} finally {
+			in.close();
+		}
+		return read;
+	}
+}
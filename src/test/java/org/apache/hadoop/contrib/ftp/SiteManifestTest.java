@@ -0,0 +1,161 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.ftpserver.FtpServer;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lines of SITE MANIFEST and SITE CHANGED, directories the user may not
+ * read left unexpanded, and the 503 reply without PORT or PASV
+ */
+public class SiteManifestTest {
+
+	private static final Pattern LINE = Pattern.compile("type=(dir|file);size=(\\d+);modify=\\d{14}\\.\\d{3}; (/\\S*)");
+
+	private static MiniDFSCluster cluster;
+
+	private static FtpServer server;
+
+	private static int port;
+
+	private static long since;
+
+	private ManifestClient client;
+
+	/**
+	 * Client reading the data connection of a SITE command
+	 */
+	private static class ManifestClient extends FTPClient {
+
+		Socket openSite(String argument) throws Exception {
+			return _openDataConnection_("SITE", argument);
+		}
+	}
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		cluster = MiniGateway.startCluster("manifest", 1);
+		FileSystem fs = cluster.getFileSystem();
+		FSDataOutputStream out = fs.create(new Path("/manifest/a/file"));
+		out.write("12345".getBytes("UTF-8"));
+		out.close();
+		fs.mkdirs(new Path("/manifest/a/b"));
+		fs.create(new Path("/manifest/private/secret")).close();
+		fs.setOwner(new Path("/manifest/private"), "nobody", "nobody");
+		fs.setPermission(new Path("/manifest/private"), new FsPermission((short) 0700));
+
+		fs.create(new Path("/changed/a/old")).close();
+		fs.mkdirs(new Path("/changed/b"));
+		// SITE CHANGED takes whole seconds
+		since = (System.currentTimeMillis() / 1000 + 1) * 1000;
+		Thread.sleep(since - System.currentTimeMillis() + 10);
+		fs.create(new Path("/changed/a/new")).close();
+
+		Properties settings = new Properties();
+		port = MiniGateway.addListener(settings, "manifest", "none");
+		server = MiniGateway.startServer(settings);
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		if (server != null) {
+			server.stop();
+		}
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Before
+	public void connect() throws Exception {
+		client = new ManifestClient();
+		client.connect("localhost", port);
+		assertTrue(client.login("root", "123456"));
+		client.setFileType(FTP.BINARY_FILE_TYPE);
+	}
+
+	@After
+	public void disconnect() throws Exception {
+		client.disconnect();
+	}
+
+	@Test
+	public void manifestListsTheReadableTree() throws Exception {
+		client.enterLocalPassiveMode();
+		TreeMap<String, String> lines = read("MANIFEST /manifest");
+		assertEquals(Arrays.asList("/manifest/a", "/manifest/a/b", "/manifest/a/file", "/manifest/private"),
+				Arrays.asList(lines.keySet().toArray()));
+		assertEquals("dir 0", lines.get("/manifest/a"));
+		assertEquals("file 5", lines.get("/manifest/a/file"));
+		// listed, but not expanded
+		assertEquals("dir 0", lines.get("/manifest/private"));
+	}
+
+	@Test
+	public void changedListsEntriesModifiedSince() throws Exception {
+		client.enterLocalPassiveMode();
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		TreeMap<String, String> lines = read("CHANGED " + format.format(new Date(since)) + " /changed");
+		// the directory the file was created in changed with it
+		assertEquals(Arrays.asList("/changed/a", "/changed/a/new"), Arrays.asList(lines.keySet().toArray()));
+		assertEquals("file 0", lines.get("/changed/a/new"));
+	}
+
+	@Test
+	public void manifestNeedsPortOrPasv() throws Exception {
+		assertEquals(503, client.sendCommand("SITE", "MANIFEST /manifest"));
+		assertEquals(503, client.sendCommand("SITE", "CHANGED 20000101000000 /changed"));
+		// the session still works
+		assertEquals(257, client.sendCommand("PWD"));
+	}
+
+	/**
+	 * Read the manifest lines of a SITE command
+	 *
+	 * @return type and size by path
+	 */
+	private TreeMap<String, String> read(String argument) throws Exception {
+		Socket socket = client.openSite(argument);
+		assertNotNull(client.getReplyString(), socket);
+		TreeMap<String, String> lines = new TreeMap<String, String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				Matcher matcher = LINE.matcher(line);
+				assertTrue(line, matcher.matches());
+				lines.put(matcher.group(3), matcher.group(1) + " " + matcher.group(2));
+			}
+		} finally {
+			socket.close();
+		}
+		assertTrue(client.completePendingCommand());
+		return lines;
+	}
+}
@@ -0,0 +1,128 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.ftpserver.FtpServer;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Archives of directories sent by RETR, next to real files of the archive
+ * name, and the memory read ahead by all archives
+ */
+public class TarDownloadsTest {
+
+	private static final int FILES = 20;
+
+	private static final int FILE_SIZE = 100 * 1024;
+
+	private static MiniDFSCluster cluster;
+
+	private static FtpServer server;
+
+	private static int port;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		cluster = MiniGateway.startCluster("tar", 1);
+		FileSystem fs = cluster.getFileSystem();
+		byte[] content = new byte[FILE_SIZE];
+		for (int i = 0; i < FILES; i++) {
+			Arrays.fill(content, (byte) i);
+			FSDataOutputStream out = fs.create(new Path("/tar/dir/file" + i));
+			out.write(content);
+			out.close();
+		}
+
+		Properties settings = new Properties();
+		port = MiniGateway.addListener(settings, "tar", "none");
+		settings.setProperty("tar-suffix", ".tar");
+		settings.setProperty("tar-parallelism", "4");
+		// less than the archive, so the reader holds back the walker
+		settings.setProperty("tar-buffer-size", Integer.toString(4 * FILE_SIZE));
+		settings.setProperty("tar-max-memory", Integer.toString(2 * FILE_SIZE));
+		settings.setProperty("tar-threads", "2");
+		server = MiniGateway.startServer(settings);
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		if (server != null) {
+			server.stop();
+		}
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void archiveIsResolvedByRetrOnly() throws Exception {
+		FTPClient client = connect();
+		try {
+			byte[] archive = retrieve(client, "/tar/dir.tar");
+			assertTrue(archive.length > FILES * FILE_SIZE);
+			assertEquals("dir/", new String(archive, 0, 4, "UTF-8"));
+			assertEquals(0, HdfsOverFtpSystem.getTarDownloads().getBufferedBytes());
+
+			// a real file of the archive name can be uploaded and is sent instead
+			byte[] real = "real file".getBytes("UTF-8");
+			assertTrue(client.storeFile("/tar/dir.tar", new ByteArrayInputStream(real)));
+			assertArrayEquals(real, retrieve(client, "/tar/dir.tar"));
+			assertTrue(client.deleteFile("/tar/dir.tar"));
+
+			// other commands do not see the archive
+			assertEquals(550, client.sendCommand("SIZE", "/tar/dir.tar"));
+			assertTrue(retrieve(client, "/tar/dir.tar").length > FILES * FILE_SIZE);
+		} finally {
+			client.disconnect();
+		}
+	}
+
+	@Test
+	public void abortedArchiveReleasesItsMemory() throws Exception {
+		FTPClient client = connect();
+		try {
+			client.enterLocalPassiveMode();
+			client.setFileType(FTP.BINARY_FILE_TYPE);
+			client.retrieveFileStream("/tar/dir.tar").close();
+			client.completePendingCommand();
+		} finally {
+			client.disconnect();
+		}
+		assertTrue(MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() {
+				return HdfsOverFtpSystem.getTarDownloads().getBufferedBytes() == 0;
+			}
+		}));
+	}
+
+	private static FTPClient connect() throws Exception {
+		FTPClient client = new FTPClient();
+		client.connect("localhost", port);
+		assertTrue(client.login("root", "123456"));
+		client.enterLocalPassiveMode();
+		client.setFileType(FTP.BINARY_FILE_TYPE);
+		return client;
+	}
+
+	private static byte[] retrieve(FTPClient client, String path) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertTrue(client.retrieveFile(path, out));
+		return out.toByteArray();
+	}
+}
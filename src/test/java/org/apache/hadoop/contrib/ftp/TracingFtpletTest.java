@@ -0,0 +1,218 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.ftpserver.FtpServer;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * HDFS calls recorded in the traces of sampled commands, nothing recorded at
+ * a sample rate of 0, and passwords kept out of the slow operation log
+ */
+public class TracingFtpletTest {
+
+	private static MiniDFSCluster cluster;
+
+	private final Capture capture = new Capture();
+
+	/**
+	 * Messages written to the slow operation log
+	 */
+	private static class Capture extends AppenderSkeleton {
+
+		private final List<String> messages = new ArrayList<String>();
+
+		@Override
+		protected synchronized void append(LoggingEvent event) {
+			messages.add(event.getRenderedMessage());
+		}
+
+		synchronized List<String> getMessages() {
+			return new ArrayList<String>(messages);
+		}
+
+		/**
+		 * Find the trace of a command
+		 *
+		 * @return the trace, null if the command was not logged
+		 */
+		synchronized String find(String command) {
+			for (String message : messages) {
+				if (message.startsWith(command + " by ")) {
+					return message;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public boolean requiresLayout() {
+			return false;
+		}
+	}
+
+	@BeforeClass
+	public static void startCluster() throws Exception {
+		cluster = MiniGateway.startCluster("trace", 1);
+		FSDataOutputStream out = cluster.getFileSystem().create(new Path("/trace/file"));
+		out.write(new byte[100]);
+		out.close();
+	}
+
+	@AfterClass
+	public static void stopCluster() {
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Before
+	public void attach() {
+		Logger.getLogger(TracingFtplet.class).addAppender(capture);
+	}
+
+	@After
+	public void detach() {
+		Logger.getLogger(TracingFtplet.class).removeAppender(capture);
+		CommandTrace.setEnabled(false);
+	}
+
+	@Test
+	public void sampledCommandsRecordTheirHdfsCalls() throws Exception {
+		long traced = counter("TracedCommands");
+		long slow = counter("SlowCommands");
+		run("1", "0", new Session() {
+			@Override
+			public void run(FTPClient client) throws Exception {
+				assertEquals(213, client.sendCommand("SIZE", "/trace/file"));
+				assertTrue(client.storeFile("/trace/new", new ByteArrayInputStream(new byte[10])));
+			}
+		});
+		assertTrue(counter("TracedCommands") > traced);
+		assertTrue(counter("SlowCommands") > slow);
+
+		String size = capture.find("SIZE /trace/file");
+		assertNotNull(capture.getMessages().toString(), size);
+		assertTrue(size, size.startsWith("SIZE /trace/file by root: "));
+		assertTrue(size, size.contains(" ms status /trace/file "));
+
+		String stor = capture.find("STOR /trace/new");
+		assertNotNull(capture.getMessages().toString(), stor);
+		assertTrue(stor, stor.contains(" ms create /trace/new "));
+		assertTrue(stor, stor.contains(" ms close /trace/new "));
+	}
+
+	@Test
+	public void fastCommandsAreNotLogged() throws Exception {
+		long traced = counter("TracedCommands");
+		long slow = counter("SlowCommands");
+		run("1", "60000", new Session() {
+			@Override
+			public void run(FTPClient client) throws Exception {
+				assertEquals(213, client.sendCommand("SIZE", "/trace/file"));
+			}
+		});
+		assertTrue(counter("TracedCommands") > traced);
+		assertEquals(slow, counter("SlowCommands"));
+		assertTrue(capture.getMessages().toString(), capture.getMessages().isEmpty());
+	}
+
+	@Test
+	public void rateZeroRecordsNothing() throws Exception {
+		long traced = counter("TracedCommands");
+		run("0", "0", new Session() {
+			@Override
+			public void run(FTPClient client) throws Exception {
+				assertEquals(213, client.sendCommand("SIZE", "/trace/file"));
+			}
+		});
+		assertEquals(traced, counter("TracedCommands"));
+		assertTrue(capture.getMessages().toString(), capture.getMessages().isEmpty());
+
+		// HDFS calls of a command are not recorded while tracing is off
+		CommandTrace.setEnabled(false);
+		CommandTrace.begin("SIZE /trace/file", "root");
+		CommandTrace.record("status", new Path("/trace/file"), System.nanoTime());
+		String trace = CommandTrace.end().format(213);
+		assertTrue(trace, trace.contains(", 0 hdfs calls "));
+		assertFalse(trace, trace.contains("status"));
+	}
+
+	@Test
+	public void passwordIsNotLogged() throws Exception {
+		run("1", "0", new Session() {
+			@Override
+			public void run(FTPClient client) throws Exception {
+				// logged in with PASS 123456
+				assertEquals(257, client.sendCommand("PWD"));
+			}
+		});
+		assertNotNull(capture.getMessages().toString(), capture.find("PASS"));
+		for (String message : capture.getMessages()) {
+			assertFalse(message, message.contains("123456"));
+		}
+	}
+
+	/**
+	 * Commands of a client logged in as root
+	 */
+	private interface Session {
+		void run(FTPClient client) throws Exception;
+	}
+
+	/**
+	 * Run a session against a gateway with the tracing settings
+	 *
+	 * @param sampleRate trace-sample-rate
+	 * @param threshold  trace-slow-threshold
+	 */
+	private static void run(String sampleRate, String threshold, Session session) throws Exception {
+		Properties settings = new Properties();
+		settings.setProperty("trace-sample-rate", sampleRate);
+		settings.setProperty("trace-slow-threshold", threshold);
+		int port = MiniGateway.addListener(settings, "trace", "none");
+		FtpServer server = MiniGateway.startServer(settings);
+		try {
+			FTPClient client = new FTPClient();
+			client.connect("localhost", port);
+			try {
+				assertTrue(client.login("root", "123456"));
+				client.enterLocalPassiveMode();
+				client.setFileType(FTP.BINARY_FILE_TYPE);
+				session.run(client);
+			} finally {
+				client.disconnect();
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static long counter(String name) {
+		return HdfsOverFtpMetrics.get().counter(name, "").value();
+	}
+}
@@ -0,0 +1,166 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records written by the background writer, and the overhead of adding a
+ * record on a transfer thread
+ */
+public class TransferAuditLogTest {
+
+	private static final int RECORDS = 1000000;
+
+	private File dir;
+
+	@Before
+	public void cleanDir() {
+		dir = new File("target/audit-test");
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	@Test
+	public void recordsAreWrittenAsJsonLines() throws Exception {
+		TransferAuditLog log = new TransferAuditLog(dir, 1024, 1024 * 1024, 2, 10);
+		log.start();
+		assertTrue(log.add("1", "root", "127.0.0.1", "STOR", "/a \"quoted\"\npath", 42, 7, 226));
+		assertTrue(log.add("1", "root", "127.0.0.1", "DELE", "/b", 0, 1, 550));
+		log.stop();
+
+		List<String> lines = readLines(new File(dir, "audit.log"));
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(0), lines.get(0).contains("\"path\":\"/a \\\"quoted\\\"\\npath\",\"bytes\":42"));
+		assertTrue(lines.get(0), lines.get(0).endsWith("\"code\":226,\"result\":\"ok\"}"));
+		assertTrue(lines.get(1), lines.get(1).endsWith("\"code\":550,\"result\":\"failed\"}"));
+	}
+
+	@Test
+	public void filesAreRotated() throws Exception {
+		TransferAuditLog log = new TransferAuditLog(dir, 1024, 1000, 2, 10);
+		log.start();
+		for (int i = 0; i < 100; i++) {
+			log.add("1", "root", "127.0.0.1", "RETR", "/file" + i, i, 1, 226);
+		}
+		log.stop();
+
+		assertTrue(new File(dir, "audit.log.1").exists());
+		assertTrue(new File(dir, "audit.log.2").exists());
+		assertFalse(new File(dir, "audit.log.3").exists());
+		assertTrue(new File(dir, "audit.log").length() <= 1000);
+	}
+
+	@Test
+	public void fullBufferDropsWithoutBlocking() throws Exception {
+		// the writer is not started, nothing is taken out of the buffer
+		TransferAuditLog log = new TransferAuditLog(dir, 1024, 1024 * 1024, 2, 10);
+		for (int i = 0; i < 1024; i++) {
+			assertTrue(log.add("1", "root", "127.0.0.1", "RETR", "/file", 1, 1, 226));
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < 1000; i++) {
+			assertFalse(log.add("1", "root", "127.0.0.1", "RETR", "/file", 1, 1, 226));
+		}
+		assertTrue(System.nanoTime() - start < 1000000000L);
+		assertEquals(1000, log.getDropped());
+	}
+
+	/**
+	 * Time of an add on transfer threads while the writer drains to disk
+	 */
+	@Test
+	public void overheadBenchmark() throws Exception {
+		for (int threads : new int[]{1, 4, 16}) {
+			cleanDir();
+			TransferAuditLog log = new TransferAuditLog(dir, 65536, 1L << 30, 2, 1000);
+			log.start();
+			long nanos = addConcurrently(log, threads, RECORDS / threads);
+			log.stop();
+
+			long written = readLines(new File(dir, "audit.log")).size();
+			System.out.printf("audit add: %d threads, %.0f ns per record, %d written, %d dropped%n",
+					threads, (double) nanos / RECORDS, written, log.getDropped());
+			assertEquals(RECORDS, written + log.getDropped());
+		}
+	}
+
+	/**
+	 * Records per second the writer keeps up with, past which records are dropped
+	 */
+	@Test
+	public void writerBenchmark() throws Exception {
+		TransferAuditLog log = new TransferAuditLog(dir, 65536, 1L << 30, 2, 1000);
+		log.start();
+		long start = System.nanoTime();
+		for (int i = 0; i < RECORDS; i++) {
+			while (!log.add("1", "root", "127.0.0.1", "RETR", "/data/file", i, 1, 226)) {
+				Thread.yield();
+			}
+		}
+		log.stop();
+		long nanos = System.nanoTime() - start;
+
+		assertEquals(RECORDS, readLines(new File(dir, "audit.log")).size());
+		System.out.printf("audit writer: %.0f records per second%n", RECORDS / (nanos / 1e9));
+	}
+
+	private static long addConcurrently(final TransferAuditLog log, int threads, final int records) throws Exception {
+		final CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+		List<Thread> producers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final String session = Integer.toString(t);
+			Thread producer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						barrier.await();
+						for (int i = 0; i < records; i++) {
+							log.add(session, "root", "127.0.0.1", "RETR", "/data/file", i, 1, 226);
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			producer.start();
+			producers.add(producer);
+		}
+		barrier.await();
+		long start = System.nanoTime();
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		// the total time of all producers
+		return (System.nanoTime() - start) * threads;
+	}
+
+	private static List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+}
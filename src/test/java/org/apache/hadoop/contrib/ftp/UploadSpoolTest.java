@@ -0,0 +1,227 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Commits of spooled uploads: replacements of a path while it is being
+ * committed, uploads given up after their last attempt, uploads waiting
+ * out a NameNode outage, and uploads left in the spool by a restart
+ */
+public class UploadSpoolTest {
+
+	private static MiniDFSCluster cluster;
+
+	private static HdfsUser user;
+
+	private File dir;
+
+	@BeforeClass
+	public static void startCluster() throws Exception {
+		// commits fail at once while the NameNode is down
+		HdfsOverFtpSystem.setConf("ipc.client.connect.max.retries", "0");
+		HdfsOverFtpSystem.setConf("ipc.client.connect.max.retries.on.timeouts", "0");
+		// a restarted NameNode stays in safe mode until the DataNode reports its blocks
+		Configuration conf = new Configuration();
+		conf.setFloat(DFSConfigKeys.DFS_NAMENODE_SAFEMODE_THRESHOLD_PCT_KEY, 1.0f);
+		cluster = MiniGateway.startCluster("spool", 1, conf);
+		HdfsOverFtpSystem.setMetadataCache(new HdfsMetadataCache(600000, 1000));
+		user = new HdfsUser();
+		user.setName(System.getProperty("user.name"));
+		user.setGroups(new ArrayList<String>(Arrays.asList("supergroup")));
+	}
+
+	@AfterClass
+	public static void stopCluster() {
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Before
+	public void cleanDir() {
+		dir = new File("target/spool-test");
+		delete(dir);
+	}
+
+	@Test
+	public void latestUploadOfAPathIsCommitted() throws Exception {
+		final UploadSpool spool = new UploadSpool(dir, 1024 * 1024, 1024, 4, false, 10, 3);
+		Path path = new Path("/spool/replaced");
+		for (int i = 0; i < 200; i++) {
+			upload(spool, path, "upload " + i);
+		}
+		assertTrue(MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() {
+				return spool.size() == 0;
+			}
+		}));
+		assertEquals("upload 199", read(path));
+		assertEquals(0, spool.getBytes());
+	}
+
+	@Test
+	public void failingUploadIsMovedToFailedDirectory() throws Exception {
+		// the parent of the upload is a file, every commit fails
+		cluster.getFileSystem().create(new Path("/spool/file")).close();
+		final long failed = HdfsOverFtpMetrics.get().counter("SpoolFailedUploads", "").value();
+		final UploadSpool spool = new UploadSpool(dir, 1024 * 1024, 1024, 1, false, 10, 3);
+		upload(spool, new Path("/spool/file/upload"), "lost");
+		assertTrue(MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() {
+				return spool.size() == 0;
+			}
+		}));
+
+		assertEquals(failed + 1, HdfsOverFtpMetrics.get().counter("SpoolFailedUploads", "").value());
+		assertEquals(0, spool.getBytes());
+		String[] names = new File(dir, "failed").list();
+		Arrays.sort(names);
+		assertEquals(2, names.length);
+		assertTrue(names[0], names[0].endsWith(".data"));
+		assertTrue(names[1], names[1].endsWith(".meta"));
+
+		// the failed uploads are not committed again on restart
+		assertEquals(0, new UploadSpool(dir, 1024 * 1024, 1024, 1, false, 10, 3).size());
+	}
+
+	@Test
+	public void uploadOutlivesNameNodeOutage() throws Exception {
+		// a block for the DataNode to report
+		FSDataOutputStream block = cluster.getFileSystem().create(new Path("/spool/block"));
+		block.write(1);
+		block.close();
+
+		final long failures = HdfsOverFtpMetrics.get().counter("SpoolCommitFailures", "").value();
+		final UploadSpool spool = new UploadSpool(dir, 1024 * 1024, 1024, 1, false, 50, 3);
+		cluster.shutdownNameNode(0);
+		try {
+			upload(spool, new Path("/spool/outage"), "kept");
+			// many more failed commits than attempts of an upload
+			assertTrue(MiniGateway.await(20000, new MiniGateway.Condition() {
+				@Override
+				public boolean holds() {
+					return HdfsOverFtpMetrics.get().counter("SpoolCommitFailures", "").value() >= failures + 10;
+				}
+			}));
+			assertEquals(1, spool.size());
+			assertEquals(0, new File(dir, "failed").list().length);
+		} finally {
+			cluster.restartNameNode(0, true);
+		}
+
+		assertTrue(MiniGateway.await(30000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() {
+				return spool.size() == 0;
+			}
+		}));
+		assertEquals("kept", read(new Path("/spool/outage")));
+		assertEquals(0, new File(dir, "failed").list().length);
+	}
+
+	@Test
+	public void uploadsLeftInTheSpoolAreCommittedOnStart() throws Exception {
+		dir.mkdirs();
+		// acknowledged before a crash: data and metadata
+		writeFile(new File(dir, "7.data"), "recovered");
+		Properties meta = new Properties();
+		meta.setProperty("path", "/spool/recovered");
+		meta.setProperty("owner", user.getName());
+		meta.setProperty("group", user.getMainGroup());
+		meta.setProperty("replication", "1");
+		meta.setProperty("block-size", Integer.toString(1024 * 1024));
+		meta.setProperty("buffer-size", "4096");
+		meta.setProperty("length", "9");
+		meta.setProperty("mtime", Long.toString(System.currentTimeMillis()));
+		FileOutputStream out = new FileOutputStream(new File(dir, "7.meta"));
+		try {
+			meta.store(out, null);
+		} finally {
+			out.close();
+		}
+		// never acknowledged: data without metadata, metadata being written
+		writeFile(new File(dir, "8.data"), "unacknowledged");
+		writeFile(new File(dir, "8.meta.tmp"), "path=/spool/unacknowledged");
+
+		final UploadSpool spool = new UploadSpool(dir, 1024 * 1024, 1024, 1, false, 10, 3);
+		assertTrue(MiniGateway.await(10000, new MiniGateway.Condition() {
+			@Override
+			public boolean holds() {
+				return spool.size() == 0;
+			}
+		}));
+		assertEquals("recovered", read(new Path("/spool/recovered")));
+		assertFalse(cluster.getFileSystem().exists(new Path("/spool/unacknowledged")));
+		assertEquals(0, spool.getBytes());
+		String[] names = dir.list();
+		assertEquals(Arrays.toString(names), 1, names.length);
+		assertEquals("failed", names[0]);
+	}
+
+	private static void writeFile(File file, String content) throws Exception {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void upload(UploadSpool spool, Path path, String content) throws Exception {
+		OutputStream out = spool.create(path, user, (short) 1, 1024 * 1024, 4096, null,
+				new Callable<OutputStream>() {
+					@Override
+					public OutputStream call() {
+						throw new IllegalStateException("upload does not fit the spool");
+					}
+				});
+		out.write(content.getBytes("UTF-8"));
+		out.close();
+	}
+
+	private static String read(Path path) throws Exception {
+		FileSystem fs = cluster.getFileSystem();
+		byte[] content = new byte[(int) fs.getFileStatus(path).getLen()];
+		FSDataInputStream in = fs.open(path);
+		try {
+			in.readFully(content);
+		} finally {
+			in.close();
+		}
+		return new String(content, "UTF-8");
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,180 @@
+package org.apache.hadoop.contrib.ftp;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.ftpserver.FtpServer;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Write profiles picked by path prefix and user, block sizes grown from the
+ * size announced by ALLO within the allo-max-* limits, and the profiles the
+ * gateway creates uploads with
+ */
+public class WriteProfileTest {
+
+	private static final long MB = 1024 * 1024;
+
+	private static MiniDFSCluster cluster;
+
+	private static FileSystem fs;
+
+	private static FtpServer server;
+
+	private static int port;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		cluster = MiniGateway.startCluster("profiles", 1);
+		fs = cluster.getFileSystem();
+		fs.mkdirs(new Path("/allo/big"));
+
+		Properties settings = new Properties();
+		settings.setProperty("allo-max-blocks", "2");
+		settings.setProperty("allo-max-block-size", String.valueOf(4 * MB));
+		settings.setProperty("write-profile.default.block-size", String.valueOf(MB));
+		settings.setProperty("write-profiles", "big");
+		settings.setProperty("write-profile.big.paths", "/allo/big");
+		settings.setProperty("write-profile.big.block-size", String.valueOf(MB));
+		settings.setProperty("write-profile.big.allo-max-blocks", "4");
+		port = MiniGateway.addListener(settings, "profiles", "none");
+		server = MiniGateway.startServer(settings);
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		if (server != null) {
+			server.stop();
+		}
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void profileMatchesPathPrefixesAndUsers() {
+		WriteProfile profile = new WriteProfile("archive", "/archive, /cold/,", "etl, ops");
+		assertTrue(profile.matches(new Path("/archive/file"), user("bob")));
+		assertTrue(profile.matches(new Path("/cold/a/b"), user("bob")));
+		assertTrue(profile.matches(new Path("hdfs://namenode:8020/archive/file"), user("bob")));
+		// prefixes are whole path components
+		assertFalse(profile.matches(new Path("/archived/file"), user("bob")));
+		assertFalse(profile.matches(new Path("/coldest"), user("bob")));
+		assertTrue(profile.matches(new Path("/other/file"), user("etl")));
+		assertTrue(profile.matches(new Path("/other/file"), user("ops")));
+		assertFalse(profile.matches(new Path("/other/file"), user("etl2")));
+
+		assertFalse(new WriteProfile("none", null, null).matches(new Path("/archive/file"), user("etl")));
+	}
+
+	@Test
+	public void firstMatchingProfileIsUsed() {
+		WriteProfile archive = new WriteProfile("archive", "/archive", null);
+		WriteProfile etl = new WriteProfile("etl", "/archive/etl", "etl");
+		WriteProfile defaultProfile = new WriteProfile("default", null, null);
+		try {
+			HdfsOverFtpSystem.setWriteProfiles(Arrays.asList(archive, etl), defaultProfile);
+			assertSame(archive, HdfsOverFtpSystem.getWriteProfile(new Path("/archive/etl/file"), user("etl")));
+			assertSame(etl, HdfsOverFtpSystem.getWriteProfile(new Path("/ingest/file"), user("etl")));
+			assertSame(defaultProfile, HdfsOverFtpSystem.getWriteProfile(new Path("/ingest/file"), user("bob")));
+		} finally {
+			HdfsOverFtpSystem.setWriteProfiles(new ArrayList<WriteProfile>(),
+					new WriteProfile("default", null, null));
+		}
+	}
+
+	@Test
+	public void alloHintGrowsTheBlockSize() {
+		Path path = new Path("/allo/file");
+		WriteProfile profile = new WriteProfile("hinted", null, null);
+		profile.setBlockSize(4 * MB);
+		assertEquals(4 * MB, profile.getBlockSize(fs, path, 100 * MB));
+
+		profile.setAlloMaxBlocks(8);
+		assertEquals(4 * MB, profile.getBlockSize(fs, path, -1));
+		assertEquals(4 * MB, profile.getBlockSize(fs, path, 0));
+		// never below the block size of the profile
+		assertEquals(4 * MB, profile.getBlockSize(fs, path, 16 * MB));
+		assertEquals(4 * MB, profile.getBlockSize(fs, path, 32 * MB));
+		// 12.5 MB per block, rounded up to whole megabytes
+		assertEquals(13 * MB, profile.getBlockSize(fs, path, 100 * MB));
+		assertEquals(13 * MB, profile.getBlockSize(fs, path, 104 * MB));
+		assertEquals(14 * MB, profile.getBlockSize(fs, path, 104 * MB + 1));
+
+		// without a block size of its own the cluster default is the minimum
+		WriteProfile defaults = new WriteProfile("defaults", null, null);
+		defaults.setAlloMaxBlocks(8);
+		long clusterDefault = fs.getDefaultBlockSize(path);
+		assertEquals(clusterDefault, defaults.getBlockSize(fs, path, -1));
+		assertEquals(clusterDefault * 2, defaults.getBlockSize(fs, path, clusterDefault * 16));
+	}
+
+	@Test
+	public void alloBlockSizeIsLimited() {
+		Path path = new Path("/allo/file");
+		WriteProfile profile = new WriteProfile("limited", null, null);
+		profile.setBlockSize(4 * MB);
+		profile.setAlloMaxBlocks(8);
+		profile.setAlloMaxBlockSize(64 * MB);
+		assertEquals(64 * MB, profile.getBlockSize(fs, path, 10240 * MB));
+		assertEquals(13 * MB, profile.getBlockSize(fs, path, 100 * MB));
+
+		// a limit below the block size of the profile leaves it alone
+		profile.setAlloMaxBlockSize(2 * MB);
+		assertEquals(4 * MB, profile.getBlockSize(fs, path, 10240 * MB));
+	}
+
+	@Test
+	public void uploadsAreCreatedWithTheAnnouncedSize() throws Exception {
+		FTPClient client = new FTPClient();
+		client.connect("localhost", port);
+		try {
+			assertTrue(client.login("root", "123456"));
+			client.enterLocalPassiveMode();
+			client.setFileType(FTP.BINARY_FILE_TYPE);
+
+			// 5 MB per block, limited to 4 MB by allo-max-block-size
+			assertTrue(client.allocate((int) (10 * MB)));
+			store(client, "/allo/file");
+			assertEquals(4 * MB, fs.getFileStatus(new Path("/allo/file")).getBlockSize());
+
+			// 2.5 MB per block with allo-max-blocks of the profile, rounded up
+			assertTrue(client.allocate((int) (10 * MB)));
+			store(client, "/allo/big/file");
+			assertEquals(3 * MB, fs.getFileStatus(new Path("/allo/big/file")).getBlockSize());
+
+			// the hint applies to one upload only
+			store(client, "/allo/next");
+			assertEquals(MB, fs.getFileStatus(new Path("/allo/next")).getBlockSize());
+
+			assertEquals(501, client.sendCommand("ALLO", "lots"));
+			assertEquals(501, client.sendCommand("ALLO"));
+		} finally {
+			client.disconnect();
+		}
+	}
+
+	private static void store(FTPClient client, String path) throws Exception {
+		assertTrue(client.getReplyString(), client.storeFile(path, new ByteArrayInputStream(new byte[1000])));
+	}
+
+	private static HdfsUser user(String name) {
+		HdfsUser user = new HdfsUser();
+		user.setName(name);
+		return user;
+	}
+}